@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.benchmarks;
+
+import com.google.gson.Gson;
+import io.apigee.buildTools.enterprise4g.utils.ConfigTokens.Policy;
+import io.apigee.buildTools.enterprise4g.utils.PackageConfigurer;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+
+/**
+ * Applies config.json tokens to a large target endpoint and a large
+ * policy with the DOM and the streaming engine. The tokens are the same
+ * each time, so every invocation rewrites the file with the same content.
+ *
+ * Run with: java -jar target/benchmarks.jar ConfigureBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ConfigureBenchmark {
+
+    /** Repeated elements in each file */
+    @Param({"100", "5000"})
+    public int size;
+
+    /** Tokens applied to each file */
+    @Param({"1", "20"})
+    public int tokens;
+
+    File dir;
+    File target;
+    File policy;
+    Policy targetTokens;
+    Policy policyTokens;
+    Transformer transformer;
+
+    @Setup(Level.Trial)
+    public void createFiles() throws Exception {
+        dir = File.createTempFile("configure", "");
+        dir.delete();
+        dir.mkdirs();
+
+        StringBuilder xml = new StringBuilder("<TargetEndpoint name=\"default\">\n  <PreFlow name=\"PreFlow\"><Request>\n");
+        for (int i = 0; i < size; i++) {
+            xml.append("    <Step><Name>Policy-").append(i).append("</Name><Condition>request.verb = \"GET\"</Condition></Step>\n");
+        }
+        xml.append("  </Request></PreFlow>\n  <HTTPTargetConnection>\n    <URL>http://localhost</URL>\n    <Properties>\n");
+        for (int i = 0; i < size; i++) {
+            xml.append("      <Property name=\"p").append(i).append("\">").append(i).append("</Property>\n");
+        }
+        xml.append("    </Properties>\n  </HTTPTargetConnection>\n</TargetEndpoint>\n");
+        target = new File(dir, "default.xml");
+        FileUtils.writeStringToFile(target, xml.toString(), "UTF-8");
+
+        xml = new StringBuilder("<AssignMessage name=\"Assign-Message-1\">\n  <Set>\n    <Headers>\n");
+        for (int i = 0; i < size; i++) {
+            xml.append("      <Header name=\"h").append(i).append("\">value ").append(i).append("</Header>\n");
+        }
+        xml.append("    </Headers>\n    <Payload>{}</Payload>\n  </Set>\n</AssignMessage>\n");
+        policy = new File(dir, "Assign-Message-1.xml");
+        FileUtils.writeStringToFile(policy, xml.toString(), "UTF-8");
+
+        StringBuilder json = new StringBuilder("{\"name\": \"default.xml\", \"tokens\": [")
+                .append("{\"xpath\": \"/TargetEndpoint/HTTPTargetConnection/URL\", \"value\": \"https://backend\"}");
+        for (int i = 1; i < tokens; i++) {
+            json.append(", {\"xpath\": \"/TargetEndpoint/HTTPTargetConnection/Properties/Property[@name='p")
+                    .append(i * size / tokens).append("']\", \"value\": \"changed\"}");
+        }
+        targetTokens = new Gson().fromJson(json.append("]}").toString(), Policy.class);
+
+        json = new StringBuilder("{\"name\": \"Assign-Message-1.xml\", \"tokens\": [");
+        for (int i = 0; i < tokens; i++) {
+            json.append(i > 0 ? ", " : "").append("{\"xpath\": \"/AssignMessage/Set/Headers/Header[@name='h")
+                    .append(i * size / tokens).append("']/text()\", \"value\": \"changed\"}");
+        }
+        policyTokens = new Gson().fromJson(json.append("]}").toString(), Policy.class);
+
+        transformer = TransformerFactory.newInstance().newTransformer();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFiles() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    @Benchmark
+    public long targetDom() throws Exception {
+        PackageConfigurer.replaceTokens(target, targetTokens, PackageConfigurer.ENGINE_DOM, transformer);
+        return target.length();
+    }
+
+    @Benchmark
+    public long targetStax() throws Exception {
+        PackageConfigurer.replaceTokens(target, targetTokens, PackageConfigurer.ENGINE_STAX, transformer);
+        return target.length();
+    }
+
+    @Benchmark
+    public long policyDom() throws Exception {
+        PackageConfigurer.replaceTokens(policy, policyTokens, PackageConfigurer.ENGINE_DOM, transformer);
+        return policy.length();
+    }
+
+    @Benchmark
+    public long policyStax() throws Exception {
+        PackageConfigurer.replaceTokens(policy, policyTokens, PackageConfigurer.ENGINE_STAX, transformer);
+        return policy.length();
+    }
+}
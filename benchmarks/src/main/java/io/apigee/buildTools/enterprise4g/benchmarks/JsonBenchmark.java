@@ -0,0 +1,117 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.benchmarks;
+
+import com.google.api.client.json.JsonObjectParser;
+import com.google.api.client.json.jackson.JacksonFactory;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import io.apigee.buildTools.enterprise4g.rest.RestUtil.AppConfig;
+import io.apigee.buildTools.enterprise4g.rest.RestUtil.BundleDeploymentConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses management server responses the way RestUtil does, with the
+ * JsonObjectParser of its request factory, and serializes the result with
+ * gson as RestUtil does for its log.
+ *
+ * Run with: java -jar target/benchmarks.jar JsonBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class JsonBenchmark {
+
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Policies of the revision, and revisions deployed to each environment */
+    @Param({"10", "500"})
+    public int size;
+
+    JsonObjectParser parser;
+    Gson gson;
+    byte[] appConfig;
+    byte[] deployments;
+    AppConfig parsedAppConfig;
+
+    @Setup
+    public void createResponses() throws IOException {
+        parser = new JacksonFactory().createJsonObjectParser();
+        gson = new GsonBuilder().setPrettyPrinting().create();
+
+        StringBuilder json = new StringBuilder("{\"configurationVersion\": {\"majorVersion\": 4, \"minorVersion\": 0},")
+                .append("\"contextInfo\": \"Revision 3 of application bench, in organization org\",")
+                .append("\"createdAt\": 1400000000000, \"createdBy\": \"build@example.com\",")
+                .append("\"description\": \"synthetic proxy\", \"lastModifiedAt\": 1400000000000,")
+                .append("\"lastModifiedBy\": \"build@example.com\", \"name\": \"bench\", \"policies\": [");
+        for (int i = 0; i < size; i++) {
+            json.append(i > 0 ? ", " : "").append("\"Assign-Message-").append(i).append("\"");
+        }
+        json.append("], \"proxyEndpoints\": [\"default\"], \"resources\": [\"node://node_modules.zip\"],")
+                .append("\"revision\": \"3\", \"targetEndpoints\": [\"default\"], \"targetServers\": [],")
+                .append("\"type\": \"Application\"}");
+        appConfig = json.toString().getBytes(UTF_8);
+
+        json = new StringBuilder("{\"environment\": [");
+        for (int env = 0; env < 3; env++) {
+            json.append(env > 0 ? ", " : "").append("{\"name\": \"env").append(env).append("\", \"revision\": [");
+            for (int i = 0; i < size; i++) {
+                json.append(i > 0 ? ", " : "").append("{\"configuration\": {\"basePath\": \"/\", \"steps\": []},")
+                        .append("\"name\": \"").append(i + 1).append("\", \"server\": [")
+                        .append("{\"status\": \"deployed\", \"type\": [\"message-processor\"], \"uUID\": \"")
+                        .append(new java.util.UUID(env, i)).append("\"}], \"state\": \"deployed\"}");
+            }
+            json.append("]}");
+        }
+        json.append("], \"name\": \"bench\", \"organization\": \"org\"}");
+        deployments = json.toString().getBytes(UTF_8);
+
+        parsedAppConfig = parseAppConfig();
+    }
+
+    @Benchmark
+    public AppConfig parseAppConfig() throws IOException {
+        return parser.parseAndClose(new ByteArrayInputStream(appConfig), UTF_8, AppConfig.class);
+    }
+
+    @Benchmark
+    public BundleDeploymentConfig parseDeployments() throws IOException {
+        return parser.parseAndClose(new ByteArrayInputStream(deployments), UTF_8, BundleDeploymentConfig.class);
+    }
+
+    @Benchmark
+    public String printAppConfig() {
+        return gson.toJson(parsedAppConfig);
+    }
+}
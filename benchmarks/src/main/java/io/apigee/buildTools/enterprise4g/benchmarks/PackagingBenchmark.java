@@ -0,0 +1,109 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.benchmarks;
+
+import io.apigee.buildTools.enterprise4g.utils.FileReader;
+import io.apigee.buildTools.enterprise4g.utils.PackageConfigurer;
+import io.apigee.buildTools.enterprise4g.utils.ZipUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The steps of a build on a generated proxy: configuring target/apiproxy
+ * from config.json with each engine, parsing its target endpoint, and
+ * zipping it into the bundle. The tokens are the same each time, so every
+ * configure rewrites the files with the same content.
+ *
+ * Every combination of the parameters is run; narrow them with -p, e.g.
+ * java -jar target/benchmarks.jar PackagingBenchmark -p policies=200 -p nodeFiles=0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PackagingBenchmark {
+
+    @Param({"10", "200"})
+    public int policies;
+
+    @Param({"0", "2000"})
+    public int nodeFiles;
+
+    /** Headers in each policy, steps and properties in the target endpoint */
+    @Param({"10", "1000"})
+    public int xmlSize;
+
+    SyntheticProxy proxy;
+    File apiproxyDir;
+    File targetEndpoint;
+    File zip;
+
+    @Setup(Level.Trial)
+    public void createProxy() throws IOException {
+        proxy = SyntheticProxy.create(policies, nodeFiles, xmlSize);
+        apiproxyDir = proxy.copyToTarget();
+        targetEndpoint = new File(apiproxyDir, "targets/default.xml");
+        zip = new File(proxy.baseDir, "target/bench.zip");
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteProxy() throws IOException {
+        proxy.delete();
+    }
+
+    @Benchmark
+    public long configureDom() throws Exception {
+        PackageConfigurer.configurePackage(SyntheticProxy.ENVIRONMENT, proxy.configFile, false,
+                PackageConfigurer.ENGINE_DOM, 1);
+        return targetEndpoint.length();
+    }
+
+    @Benchmark
+    public long configureStax() throws Exception {
+        PackageConfigurer.configurePackage(SyntheticProxy.ENVIRONMENT, proxy.configFile, false,
+                PackageConfigurer.ENGINE_STAX, 1);
+        return targetEndpoint.length();
+    }
+
+    @Benchmark
+    public Document parseTargetEndpoint() throws Exception {
+        return new FileReader().getXMLDocument(targetEndpoint);
+    }
+
+    @Benchmark
+    public long zipBundle() throws IOException {
+        new ZipUtils(false).zipDir(zip, apiproxyDir, "apiproxy");
+        return zip.length();
+    }
+}
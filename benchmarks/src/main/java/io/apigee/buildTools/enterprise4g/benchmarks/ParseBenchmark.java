@@ -0,0 +1,81 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.benchmarks;
+
+import io.apigee.buildTools.enterprise4g.utils.FileReader;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+/**
+ * Parses a typical policy file the way FileReader used to, looking up a
+ * new DocumentBuilderFactory and DocumentBuilder for every file, and with
+ * the builder XmlParsers keeps for the thread.
+ *
+ * Run with: java -jar target/benchmarks.jar ParseBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ParseBenchmark {
+
+    File policy;
+
+    @Setup(Level.Trial)
+    public void createFile() throws IOException {
+        policy = File.createTempFile("Assign-Message-1", ".xml");
+        FileUtils.writeStringToFile(policy, "<AssignMessage async=\"false\" continueOnError=\"false\" enabled=\"true\" "
+                + "name=\"Assign-Message-1\">\n    <DisplayName>Assign Message 1</DisplayName>\n    <Set>\n"
+                + "        <Headers>\n            <Header name=\"ENV\">LOCAL</Header>\n        </Headers>\n    </Set>\n"
+                + "    <IgnoreUnresolvedVariables>true</IgnoreUnresolvedVariables>\n"
+                + "    <AssignTo createNew=\"false\" transport=\"http\" type=\"request\"/>\n</AssignMessage>\n", "UTF-8");
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFile() {
+        policy.delete();
+    }
+
+    @Benchmark
+    public Document newFactoryPerFile() throws Exception {
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(policy);
+    }
+
+    @Benchmark
+    public Document sharedParser() throws Exception {
+        return new FileReader().getXMLDocument(policy);
+    }
+}
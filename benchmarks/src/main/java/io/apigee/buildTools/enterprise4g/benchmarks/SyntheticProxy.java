@@ -0,0 +1,147 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.benchmarks;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Writes a proxy project the size of which is set by the benchmark
+ * parameters: apiproxy/ with a descriptor, one proxy endpoint, one target
+ * endpoint and AssignMessage policies, a node_modules tree below
+ * apiproxy/resources/node, and a config.json with a token for the target
+ * and for every policy in the configuration "bench".
+ *
+ * The content depends on the parameters only, so runs are comparable.
+ */
+public class SyntheticProxy {
+
+    public static final String ENVIRONMENT = "bench";
+
+    public final File baseDir;
+    public final File apiproxyDir;
+    public final File configFile;
+    public final File targetEndpoint;
+
+    /**
+     * @param policies  AssignMessage policies, each with a config.json token
+     * @param nodeFiles files below apiproxy/resources/node/node_modules
+     * @param xmlSize   headers in each policy, and steps and properties in the target endpoint
+     */
+    public static SyntheticProxy create(int policies, int nodeFiles, int xmlSize) throws IOException {
+        File baseDir = File.createTempFile("apiproxy", "");
+        baseDir.delete();
+        SyntheticProxy proxy = new SyntheticProxy(baseDir);
+        proxy.write(policies, nodeFiles, xmlSize);
+        return proxy;
+    }
+
+    private SyntheticProxy(File baseDir) {
+        this.baseDir = baseDir;
+        this.apiproxyDir = new File(baseDir, "apiproxy");
+        this.configFile = new File(baseDir, "config.json");
+        this.targetEndpoint = new File(apiproxyDir, "targets/default.xml");
+    }
+
+    /**
+     * Copies apiproxy/ to target/apiproxy, as the resources plugin does
+     * before the configure goal runs.
+     */
+    public File copyToTarget() throws IOException {
+        File target = new File(baseDir, "target/apiproxy");
+        FileUtils.deleteDirectory(target);
+        FileUtils.copyDirectory(apiproxyDir, target);
+        return target;
+    }
+
+    public void delete() throws IOException {
+        FileUtils.deleteDirectory(baseDir);
+    }
+
+    private void write(int policies, int nodeFiles, int xmlSize) throws IOException {
+        // the description is set, so configuring does not look up the SCM
+        StringBuilder descriptor = new StringBuilder("<APIProxy name=\"bench\">\n")
+                .append("    <Description>synthetic proxy</Description>\n    <Policies>\n");
+        for (int i = 0; i < policies; i++) {
+            descriptor.append("        <Policy>Assign-Message-").append(i).append("</Policy>\n");
+        }
+        descriptor.append("    </Policies>\n    <ProxyEndpoints><ProxyEndpoint>default</ProxyEndpoint></ProxyEndpoints>\n")
+                .append("    <TargetEndpoints><TargetEndpoint>default</TargetEndpoint></TargetEndpoints>\n</APIProxy>\n");
+        write(new File(apiproxyDir, "bench.xml"), descriptor);
+
+        StringBuilder proxy = new StringBuilder("<ProxyEndpoint name=\"default\">\n    <PreFlow name=\"PreFlow\"><Request>\n");
+        for (int i = 0; i < policies; i++) {
+            proxy.append("        <Step><Name>Assign-Message-").append(i).append("</Name></Step>\n");
+        }
+        proxy.append("    </Request></PreFlow>\n    <HTTPProxyConnection><BasePath>/bench</BasePath></HTTPProxyConnection>\n")
+                .append("    <RouteRule name=\"default\"><TargetEndpoint>default</TargetEndpoint></RouteRule>\n</ProxyEndpoint>\n");
+        write(new File(apiproxyDir, "proxies/default.xml"), proxy);
+
+        StringBuilder target = new StringBuilder("<TargetEndpoint name=\"default\">\n    <PreFlow name=\"PreFlow\"><Request>\n");
+        for (int i = 0; i < xmlSize; i++) {
+            target.append("        <Step><Name>Step-").append(i).append("</Name><Condition>request.verb = \"GET\"</Condition></Step>\n");
+        }
+        target.append("    </Request></PreFlow>\n    <HTTPTargetConnection>\n        <URL>http://localhost</URL>\n")
+                .append("        <Properties>\n");
+        for (int i = 0; i < xmlSize; i++) {
+            target.append("            <Property name=\"p").append(i).append("\">").append(i).append("</Property>\n");
+        }
+        target.append("        </Properties>\n    </HTTPTargetConnection>\n</TargetEndpoint>\n");
+        write(targetEndpoint, target);
+
+        StringBuilder config = new StringBuilder("{\"configurations\": [{\"name\": \"").append(ENVIRONMENT).append("\",\n")
+                .append("  \"targets\": [{\"name\": \"default.xml\", \"tokens\": [{\"xpath\": ")
+                .append("\"/TargetEndpoint/HTTPTargetConnection/URL\", \"value\": \"https://backend\"}]}],\n")
+                .append("  \"policies\": [");
+        for (int i = 0; i < policies; i++) {
+            StringBuilder policy = new StringBuilder("<AssignMessage name=\"Assign-Message-").append(i).append("\">\n")
+                    .append("    <Set>\n        <Headers>\n");
+            for (int h = 0; h < xmlSize; h++) {
+                policy.append("            <Header name=\"h").append(h).append("\">value ").append(h).append("</Header>\n");
+            }
+            policy.append("        </Headers>\n    </Set>\n    <AssignTo createNew=\"false\" type=\"request\"/>\n</AssignMessage>\n");
+            write(new File(apiproxyDir, "policies/Assign-Message-" + i + ".xml"), policy);
+
+            config.append(i > 0 ? ",\n    " : "\n    ").append("{\"name\": \"Assign-Message-").append(i)
+                    .append(".xml\", \"tokens\": [{\"xpath\": \"/AssignMessage/Set/Headers/Header[@name='h0']\", ")
+                    .append("\"value\": \"").append(ENVIRONMENT).append("\"}]}");
+        }
+        config.append("]}]}\n");
+        write(configFile, config);
+
+        // small, compressible sources in nested packages, plus a few binaries
+        Random random = new Random(42);
+        for (int i = 0; i < nodeFiles; i++) {
+            File file = new File(apiproxyDir, "resources/node/node_modules/module" + (i % 50) + "/lib/sub" + (i % 7)
+                    + "/file" + i + (i % 100 == 0 ? ".png" : ".js"));
+            StringBuilder source = new StringBuilder();
+            int lines = 20 + random.nextInt(200);
+            for (int line = 0; line < lines; line++) {
+                source.append("module.exports.f").append(line).append(" = function (a, b) { return a + b * ")
+                        .append(random.nextInt(1000)).append("; };\n");
+            }
+            write(file, source);
+        }
+    }
+
+    private static void write(File file, CharSequence content) throws IOException {
+        file.getParentFile().mkdirs();
+        FileUtils.writeStringToFile(file, content.toString(), "UTF-8");
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.benchmarks;
+
+import io.apigee.buildTools.enterprise4g.utils.ParallelZip;
+import io.apigee.buildTools.enterprise4g.utils.ZipUtils;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Zips a generated node_modules tree with the ZipOutputStream based
+ * ZipUtils and with ParallelZip, on one thread and on the common pool.
+ *
+ * Run with: java -jar target/benchmarks.jar ZipBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ZipBenchmark {
+
+    @Param({"500", "5000"})
+    public int files;
+
+    File tree;
+    File zip;
+    ForkJoinPool singleThread;
+
+    @Setup(Level.Trial)
+    public void createTree() throws IOException {
+        tree = File.createTempFile("node_modules", "");
+        tree.delete();
+        zip = File.createTempFile("node_modules", ".zip");
+        singleThread = new ForkJoinPool(1);
+
+        // small, compressible sources in nested packages, plus a few binaries
+        Random random = new Random(42);
+        for (int i = 0; i < files; i++) {
+            File dir = new File(tree, "module" + (i % 50) + "/lib/sub" + (i % 7));
+            dir.mkdirs();
+            FileOutputStream out = new FileOutputStream(new File(dir, "file" + i + (i % 100 == 0 ? ".png" : ".js")));
+            StringBuilder source = new StringBuilder();
+            int lines = 20 + random.nextInt(200);
+            for (int line = 0; line < lines; line++) {
+                source.append("module.exports.f").append(line).append(" = function (a, b) { return a + b * ")
+                        .append(random.nextInt(1000)).append("; };\n");
+            }
+            out.write(source.toString().getBytes("UTF-8"));
+            out.close();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteTree() throws IOException {
+        singleThread.shutdown();
+        FileUtils.deleteDirectory(tree);
+        zip.delete();
+    }
+
+    @Benchmark
+    public long zipOutputStream() throws IOException {
+        new ZipUtils(false).zipDir(zip, tree, "node_modules");
+        return zip.length();
+    }
+
+    @Benchmark
+    public long parallelZipOneThread() throws IOException {
+        new ParallelZip(singleThread, Deflater.DEFAULT_COMPRESSION).zipDir(zip, tree, "node_modules");
+        return zip.length();
+    }
+
+    @Benchmark
+    public long parallelZip() throws IOException {
+        new ParallelZip().zipDir(zip, tree, "node_modules");
+        return zip.length();
+    }
+}
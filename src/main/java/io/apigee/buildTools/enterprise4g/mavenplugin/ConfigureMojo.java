@@ -15,15 +15,18 @@
  */
 package io.apigee.buildTools.enterprise4g.mavenplugin;
 
-import io.apigee.buildTools.enterprise4g.utils.PackageConfigurer;
-import io.apigee.buildTools.enterprise4g.utils.ZipUtils;
+import io.apigee.buildTools.enterprise4g.utils.BuildMetrics;
+import io.apigee.buildTools.enterprise4g.utils.BundlePackager;
+import io.apigee.buildTools.enterprise4g.utils.ParallelZip;
+import io.apigee.buildTools.enterprise4g.utils.Tracing;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.apache.commons.io.FileUtils;
 
 import java.io.File;
+import java.util.Collections;
+import java.util.List;
 
 
 /**
@@ -45,95 +48,46 @@ public class ConfigureMojo extends GatewayAbstractMojo {
 		}
 
 		Logger logger = LoggerFactory.getLogger(ConfigureMojo.class);
-		File configFile = findConfigFile(logger);
+		File baseDir = new File(super.getBaseDirectoryPath());
+		File buildDir = new File(super.getBuildDirectory());
+		String proxy = super.getProfile().getApplication();
+		// configuring and packaging share one listing of target/apiproxy, and modules one read of the Git workspace
+		Tracing.Span goal = startGoalSpan("configure");
 
-		if (configFile != null) {
-			configurePackage(logger, configFile);
-		}
-
-        logger.info("\n\n=============Checking for node.js app================\n\n");
-        //sometimes node.js source lives outside the apiproxy/ in node/ within the base project directory
-        String externalNodeDirPath = super.getBaseDirectoryPath() + "/node/";
-        File externalNodeDir = new File(externalNodeDirPath);
-
-        //if node.js source is inside apiproxy/ directory, it will be in the build directory
-        String nodeDirPath = super.getBuildDirectory() + "/apiproxy/resources/node/";
-        File nodeDir = new File(nodeDirPath);
-
-
-        //if we find files in the node/ directory outside apiproxy/, move into apiproxy/resources/node
-        //this takes precedence and we will overwrite potentially stale node.js code in  apiproxy/resources/node
-        if(externalNodeDir.isDirectory()){
-            String[] filesInExternalNodeDir = externalNodeDir.list();
-            if(filesInExternalNodeDir.length > 0) {
-                logger.info("Node.js app code found outside apiproxy/ directory. Moving to target/apiproxy/resources/node (will overwrite).");
-                try {
-                    FileUtils.deleteDirectory(nodeDir);
-                    FileUtils.copyDirectory(externalNodeDir, nodeDir);
-                }catch(Exception e){
-                    throw new MojoExecutionException(e.getMessage());
-                }
-            }
-        }
-
-        //always handle zipping of any directories in apiproxy/resources/node
-		if (nodeDir.isDirectory()) {
-            logger.info("\n\n=============Now zipping node modules================\n\n");
-
-            String[] filesInNodeDir = nodeDir.list();
-
-            for (String fileName : filesInNodeDir) {
-                String filePath = nodeDirPath + fileName;
-                File dirFile = new File(filePath);
-                if (dirFile.isDirectory() && fileName.contains("node_modules"))
-                {
-                    logger.info("Zipping " + fileName + " (it is a directory).");
-                    try {
-                        ZipUtils zu = new ZipUtils();
-                        zu.zipDir(new File(filePath + ".zip"),
-                                dirFile, fileName);
-                        FileUtils.deleteDirectory(dirFile);
-                    } catch (Exception e) {
-                        throw new MojoExecutionException(e.getMessage());
-                    }
-                }
-            }
-
-        }
-
-		logger.info("\n\n=============Now zipping the App Bundle================\n\n");
-
-		try {
-			ZipUtils zu = new ZipUtils();
-			zu.zipDir(new File(super.getApplicationBundlePath()),
-					new File(super.getBuildDirectory() + "/apiproxy"), "apiproxy");
-		} catch (Exception e) {
-			throw new MojoExecutionException(e.getMessage());
-		}
-	}
-
-	private void configurePackage(Logger logger, File configFile) throws MojoExecutionException {
-		logger.debug("\n\n=============Now updating the configuration values for the App Bundle================\n\n");
 		try {
-			if (super.getProfile().getProfileId() != null && super.getProfile().getProfileId() != "") {
-				PackageConfigurer.configurePackage(super.getProfile().getProfileId(), configFile);
-			} else {
-				PackageConfigurer.configurePackage(super.getProfile().getEnvironment(), configFile);
+			BuildMetrics.Phase phase = BuildMetrics.startPhase(proxy, "configure");
+			try {
+				if (super.getProfile().getProfileId() != null && super.getProfile().getProfileId() != "") {
+					BundlePackager.configure(baseDir, super.getProfile().getProfileId(), super.isConfigIncremental(), super.getConfigEngine(), super.getConfigThreads());
+				} else {
+					BundlePackager.configure(baseDir, super.getProfile().getEnvironment(), super.isConfigIncremental(), super.getConfigEngine(), super.getConfigThreads());
+				}
+				phase.succeeded();
+			} catch (Exception e) {
+				logger.error(e.getMessage());
+				throw new MojoExecutionException(e.getMessage());
+			} finally {
+				phase.end();
 			}
-		} catch (Exception e) {
-			logger.error(e.getMessage());
-			throw new MojoExecutionException(e.getMessage());
-		}
-	}
-
-	private File findConfigFile(Logger logger) throws MojoExecutionException {
-		File configFile = new File(super.getBaseDirectoryPath() + File.separator + "config.json");
 
-		if (configFile.exists()) {
-			return configFile;
+			phase = BuildMetrics.startPhase(proxy, "zip");
+			try {
+				List<ParallelZip.Entry> entries = BundlePackager.bundleEntries(baseDir, buildDir);
+				BundlePackager.stampContentHash(buildDir, entries);
+				BundlePackager.zipBundle(entries, new File(super.getApplicationBundlePath()));
+				phase.succeeded();
+			} catch (Exception e) {
+				throw new MojoExecutionException(e.getMessage());
+			} finally {
+				phase.end();
+			}
+			goal.succeeded();
+		} catch (MojoExecutionException e) {
+			goal.failed(e);
+			throw e;
+		} finally {
+			writeMetrics(Collections.singleton(proxy));
+			endGoalSpan(goal);
 		}
-
-		logger.info("No config.json found. Skipping package configuration.");
-		return null;
 	}
 }
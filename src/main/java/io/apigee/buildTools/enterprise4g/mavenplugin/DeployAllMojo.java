@@ -0,0 +1,375 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.mavenplugin;
+
+import io.apigee.buildTools.enterprise4g.rest.EnvironmentActivator;
+import io.apigee.buildTools.enterprise4g.rest.RestUtil;
+import io.apigee.buildTools.enterprise4g.rest.RestUtil.Options;
+import io.apigee.buildTools.enterprise4g.utils.BuildMetrics;
+import io.apigee.buildTools.enterprise4g.utils.BundlePackager;
+import io.apigee.buildTools.enterprise4g.utils.ParallelZip;
+import io.apigee.buildTools.enterprise4g.utils.ServerProfile;
+import io.apigee.buildTools.enterprise4g.utils.Tracing;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Goal to configure, package and deploy every proxy bundle found below a
+ * directory in one run. Packaging runs on one thread per core and hands
+ * each bundle to a pool of deploy workers, so local work overlaps with the
+ * management API calls of other proxies.
+ *
+ * @goal deploy-all
+ * @aggregator
+ */
+
+public class DeployAllMojo extends DeployMojo
+{
+
+	static Logger logger = LoggerFactory.getLogger(DeployAllMojo.class);
+
+	static final String STATE_UNCHANGED = "unchanged";
+
+	/**
+	 * Directory searched for proxy projects, i.e. directories with an apiproxy/ folder
+	 *
+	 * @parameter expression="${apigee.bundles.directory}" default-value="${basedir}"
+	 */
+	private File bundlesDirectory;
+
+
+	/**
+	 * Number of proxies uploaded and activated at the same time
+	 *
+	 * @parameter expression="${apigee.deploy.workers}" default-value="4"
+	 */
+	private Integer workers;
+
+
+	/**
+	 * Outcome of one proxy.
+	 */
+	static class ProxyResult {
+		final String name;
+		String revision = "";
+		String state = "";
+		long packageMillis;
+		long deployMillis;
+		Exception error;
+
+		ProxyResult(String name) {
+			this.name = name;
+		}
+	}
+
+
+	public void execute() throws MojoExecutionException, MojoFailureException {
+
+		if (super.isSkip()) {
+			getLog().info("Skipping");
+			return;
+		}
+
+		List<ProxyResult> results;
+		List<String> names = new ArrayList<String>();
+		long start = System.currentTimeMillis();
+		Tracing.Span goal = startGoalSpan("deploy-all");
+		try {
+			fixOSXNonProxyHosts();
+			init();
+			endPhase(true);
+			if (buildOption != BUILDOPTIONS.NULL || Options.update || Options.clean) {
+				throw new MojoFailureException("deploy-all only supports import and activation");
+			}
+
+			List<File> proxies = findProxies(bundlesDirectory);
+			for (File proxy : proxies) {
+				names.add(BundlePackager.proxyName(proxy));
+			}
+			logger.info("\n\n=============Deploying " + proxies.size() + " proxies from " + bundlesDirectory + "================\n\n");
+			results = deployAll(proxies);
+			for (ProxyResult result : results) {
+				if (result.error != null) {
+					goal.failed(result.error);
+				}
+			}
+			goal.succeeded();
+		} catch (MojoFailureException e) {
+			goal.failed(e);
+			throw e;
+		} catch (Exception e) {
+			goal.failed(e);
+			throw new MojoExecutionException(e.getMessage(), e);
+		} finally {
+			endPhase(false);
+			writeMetrics(names);
+			endGoalSpan(goal);
+		}
+
+		logger.info(formatResults(results, System.currentTimeMillis() - start));
+		for (ProxyResult result : results) {
+			if (result.error != null) {
+				throw new MojoFailureException("Not every proxy was deployed, see the summary above");
+			}
+		}
+	}
+
+
+	List<ProxyResult> deployAll(List<File> proxies) throws InterruptedException {
+		int cores = Runtime.getRuntime().availableProcessors();
+		final ExecutorService packagers = Executors.newFixedThreadPool(cores, threads("apigee-package-"));
+		final ExecutorService deployers = Executors.newFixedThreadPool(workers != null && workers > 0 ? workers : 4,
+				threads("apigee-deploy-"));
+		final ServerProfile profile = super.getProfile();
+		final Tracing.Span parent = Tracing.current();
+
+		try {
+			// stage one packages the bundle, then queues stage two on the deploy pool
+			List<Future<Future<ProxyResult>>> pipeline = new ArrayList<Future<Future<ProxyResult>>>();
+			for (final File proxy : proxies) {
+				pipeline.add(packagers.submit(new Callable<Future<ProxyResult>>() {
+					public Future<ProxyResult> call() throws Exception {
+						final ProxyResult result = new ProxyResult(proxyName(proxy));
+						Tracing.Span span = Tracing.start("package " + result.name, parent).set("apigee.proxy", result.name);
+						final File bundle;
+						try {
+							bundle = packageProxy(proxy, profile, result);
+						} finally {
+							end(span, result);
+						}
+						if (result.error != null) {
+							// never reaches the deploy pool
+							return CompletableFuture.completedFuture(result);
+						}
+						return deployers.submit(new Callable<ProxyResult>() {
+							public ProxyResult call() {
+								Tracing.Span span = Tracing.start("deploy " + result.name, parent).set("apigee.proxy", result.name);
+								try {
+									deployProxy(bundle, profile.forApplication(result.name), result);
+								} finally {
+									end(span.set("apigee.revision", result.revision).set("apigee.state", result.state), result);
+								}
+								return result;
+							}
+						});
+					}
+				}));
+			}
+
+			List<ProxyResult> results = new ArrayList<ProxyResult>();
+			for (Future<Future<ProxyResult>> stage : pipeline) {
+				try {
+					results.add(stage.get().get());
+				} catch (ExecutionException e) {
+					// both stages record their own failures, only errors get here
+					if (e.getCause() instanceof Error) {
+						throw (Error) e.getCause();
+					}
+					throw new IllegalStateException(e.getCause());
+				}
+			}
+			return results;
+		} finally {
+			packagers.shutdownNow();
+			deployers.shutdownNow();
+		}
+	}
+
+
+	/**
+	 * The name the proxy is deployed under, from its descriptor. The deploy
+	 * goal uses the artifactId, which has to match the descriptor too; a
+	 * directory named differently only gets a warning.
+	 */
+	static String proxyName(File proxy) {
+		String name = BundlePackager.proxyName(proxy);
+		if (!name.equals(proxy.getName())) {
+			logger.warn("Proxy in " + proxy + " is named " + name + " in its descriptor, deploying it as " + name);
+		}
+		return name;
+	}
+
+
+	static void end(Tracing.Span span, ProxyResult result) {
+		if (result.error != null) {
+			span.failed(result.error);
+		} else {
+			span.succeeded();
+		}
+		span.end();
+	}
+
+
+	File packageProxy(File proxy, ServerProfile profile, ProxyResult result) {
+		long start = System.currentTimeMillis();
+		File buildDir = new File(proxy, "target");
+		File bundle = new File(buildDir, proxy.getName() + "-" + profile.getProfileId() + ".zip");
+		BuildMetrics.Phase phase = BuildMetrics.startPhase(result.name, "configure");
+		try {
+			BundlePackager.copyProxy(proxy, buildDir);
+			BundlePackager.configure(proxy, profile.getProfileId() != null && profile.getProfileId().length() > 0
+					? profile.getProfileId() : profile.getEnvironment(), isConfigIncremental(), getConfigEngine(), getConfigThreads());
+			phase.succeeded();
+			phase.end();
+			phase = BuildMetrics.startPhase(result.name, "zip");
+			List<ParallelZip.Entry> entries = BundlePackager.bundleEntries(proxy, buildDir);
+			BundlePackager.stampContentHash(buildDir, entries);
+			BundlePackager.zipBundle(entries, bundle);
+			phase.succeeded();
+		} catch (Exception e) {
+			logger.error("Packaging " + result.name + " failed: " + e.getMessage());
+			result.state = "package failed";
+			result.error = e;
+		} finally {
+			phase.end();
+		}
+		result.packageMillis = System.currentTimeMillis() - start;
+		return bundle;
+	}
+
+
+	void deployProxy(File bundle, ServerProfile profile, ProxyResult result) {
+		long start = System.currentTimeMillis();
+		try {
+			List<String> envs = environments.isEmpty() ? Collections.singletonList(profile.getEnvironment()) : environments;
+			String unchanged = Options.dedupe ? findUnchangedRevision(profile, bundle, envs) : null;
+			if (unchanged != null) {
+				result.revision = unchanged;
+				result.state = STATE_UNCHANGED;
+				result.deployMillis = System.currentTimeMillis() - start;
+				return;
+			}
+			BuildMetrics.Phase phase = BuildMetrics.startPhase(result.name, "importing");
+			try {
+				result.revision = RestUtil.uploadBundle(profile, bundle.getPath());
+				phase.succeeded();
+			} finally {
+				phase.end();
+			}
+			if (Options.inactive) {
+				result.state = RestUtil.STATE_IMPORTED;
+			} else {
+				phase = BuildMetrics.startPhase(result.name, "activating");
+				try {
+					int parallelism = this.getDeployParallelism() != null ? this.getDeployParallelism() : EnvironmentActivator.DEFAULT_PARALLELISM;
+					List<EnvironmentActivator.Result> activations = new EnvironmentActivator(profile, parallelism)
+							.activate(result.revision, envs);
+					for (EnvironmentActivator.Result activation : activations) {
+						if (!activation.isDeployed() && result.error == null) {
+							result.error = activation.error != null ? activation.error
+									: new IllegalStateException(activation.environment + ": " + activation.state);
+						}
+					}
+					result.state = result.error == null ? RestUtil.STATE_DEPLOYED : RestUtil.STATE_ERROR;
+					if (result.error == null) {
+						phase.succeeded();
+					}
+				} finally {
+					phase.end();
+				}
+			}
+		} catch (Exception e) {
+			logger.error("Deploying " + result.name + " failed: " + e.getMessage());
+			result.state = RestUtil.STATE_ERROR;
+			result.error = e;
+		}
+		result.deployMillis = System.currentTimeMillis() - start;
+	}
+
+
+	/**
+	 * Finds the directories below root that contain an apiproxy/ folder,
+	 * without looking inside target/ or hidden directories.
+	 */
+	static List<File> findProxies(File root) {
+		List<File> proxies = new ArrayList<File>();
+		collectProxies(root, proxies);
+		Collections.sort(proxies);
+		return proxies;
+	}
+
+	private static void collectProxies(File dir, List<File> proxies) {
+		if (new File(dir, "apiproxy").isDirectory()) {
+			proxies.add(dir);
+			return;
+		}
+		File[] children = dir.listFiles(new FileFilter() {
+			public boolean accept(File file) {
+				return file.isDirectory() && !file.getName().startsWith(".") && !file.getName().equals("target");
+			}
+		});
+		if (children != null) {
+			Arrays.sort(children);
+			for (File child : children) {
+				collectProxies(child, proxies);
+			}
+		}
+	}
+
+
+	static String formatResults(List<ProxyResult> results, long millis) {
+		int width = "Proxy".length();
+		int failed = 0;
+		for (ProxyResult result : results) {
+			width = Math.max(width, result.name.length());
+			if (result.error != null) {
+				failed++;
+			}
+		}
+		String format = "%-" + width + "s  %-8s  %-14s  %9s  %9s  %s%n";
+		StringBuilder table = new StringBuilder("\n");
+		table.append(String.format(format, "Proxy", "Revision", "State", "Package", "Deploy", ""));
+		for (ProxyResult result : results) {
+			table.append(String.format(format, result.name, result.revision, result.state,
+					result.packageMillis + " ms", result.deployMillis + " ms",
+					result.error == null ? "" : String.valueOf(result.error.getMessage())));
+		}
+		table.append(String.format("%n%d proxies, %d deployed, %d failed in %d ms%n",
+				results.size(), results.size() - failed, failed, millis));
+		return table.toString();
+	}
+
+
+	private static ThreadFactory threads(final String prefix) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, prefix + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+}
@@ -15,14 +15,23 @@
  */
 package io.apigee.buildTools.enterprise4g.mavenplugin;
 
+import io.apigee.buildTools.enterprise4g.rest.EnvironmentActivator;
 import io.apigee.buildTools.enterprise4g.rest.RestUtil;
 import io.apigee.buildTools.enterprise4g.rest.RestUtil.Options;
+import io.apigee.buildTools.enterprise4g.utils.BuildMetrics;
+import io.apigee.buildTools.enterprise4g.utils.BundleHash;
+import io.apigee.buildTools.enterprise4g.utils.ServerProfile;
+import io.apigee.buildTools.enterprise4g.utils.Tracing;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 
 
@@ -60,7 +69,7 @@ public class DeployMojo extends GatewayAbstractMojo
 	}
 	
 	enum OPTIONS {
-		inactive,force,validate,clean,update,override
+		inactive,force,validate,clean,update,override,dedupe
 	}
 	
 	State state = State.START;
@@ -70,13 +79,38 @@ public class DeployMojo extends GatewayAbstractMojo
 	
 	BUILDOPTIONS buildOption;
 	
+	List<String> environments = new ArrayList<String>();
+	
+	BuildMetrics.Phase phase;
+	
+	/**
+	 * Moves to the next state; every state but COMPLETE is timed as a phase of the deploy.
+	 */
+	void setState(State next) {
+		endPhase(true);
+		state = next;
+		if (next != State.COMPLETE) {
+			phase = BuildMetrics.startPhase(getProfile().getApplication(), next.name().toLowerCase());
+		}
+	}
+	
+	void endPhase(boolean succeeded) {
+		if (phase != null) {
+			if (succeeded) {
+				phase.succeeded();
+			}
+			phase.end();
+			phase = null;
+		}
+	}
+	
 
 
 	public void init() throws IOException, MojoFailureException,Exception {
 		try {
 
 			String options="";
-			state = State.INIT;
+			setState(State.INIT);
 			long delay=0;
 			
 			if (this.getBuildOption() != null) {
@@ -98,6 +132,45 @@ public class DeployMojo extends GatewayAbstractMojo
 				delay = this.getOverridedelay();
 				Options.override_delay=delay;
 			}
+			if (this.getReadTimeout() != null) {
+				Options.readTimeout=this.getReadTimeout();
+			}
+			if (this.getMinUploadThroughput() != null) {
+				Options.minUploadThroughput=this.getMinUploadThroughput();
+			}
+			if (this.getUploadThroughputWindow() != null) {
+				Options.uploadThroughputWindow=this.getUploadThroughputWindow();
+			}
+			if (this.getPollTimeout() != null) {
+				Options.pollTimeout=this.getPollTimeout();
+			}
+			if (this.getPollInterval() != null) {
+				Options.pollInterval=this.getPollInterval();
+			}
+			if (this.getPollMaxInterval() != null) {
+				Options.pollMaxInterval=this.getPollMaxInterval();
+			}
+			if (this.getRateLimit() != null) {
+				Options.requestsPerSecond=this.getRateLimit();
+			}
+			if (this.getRetryMaxAttempts() != null) {
+				Options.retryMaxAttempts=this.getRetryMaxAttempts();
+			}
+			if (this.getRetryBudget() != null) {
+				Options.retryBudget=this.getRetryBudget();
+			}
+			if (this.getRetryInitialDelay() != null) {
+				Options.retryInitialDelay=this.getRetryInitialDelay();
+			}
+			if (this.getRetryMaxDelay() != null) {
+				Options.retryMaxDelay=this.getRetryMaxDelay();
+			}
+			if (this.getCircuitBreakerThreshold() != null) {
+				Options.circuitBreakerThreshold=this.getCircuitBreakerThreshold();
+			}
+			if (this.getCircuitBreakerCooldown() != null) {
+				Options.circuitBreakerCooldown=this.getCircuitBreakerCooldown();
+			}
 			
 			options=super.getOptions();
 			if (options != null) {
@@ -122,6 +195,9 @@ public class DeployMojo extends GatewayAbstractMojo
 					case override:
 						Options.override=true;
 						break;
+					case dedupe:
+						Options.dedupe=true;
+						break;
 					default:
 						break;	
 					
@@ -131,7 +207,22 @@ public class DeployMojo extends GatewayAbstractMojo
 			
 			
 			
+			if (this.getEnvironments() != null) {
+				for (String env : this.getEnvironments().split(",")) {
+					if (env.trim().length() > 0 && !environments.contains(env.trim())) {
+						environments.add(env.trim());
+					}
+				}
+			}
+			if (!environments.isEmpty() && (Options.update || Options.clean
+					|| buildOption == BUILDOPTIONS.undeploy || buildOption == BUILDOPTIONS.delete)) {
+				throw new MojoFailureException("apigee.environments only supports import and activation; "
+						+ "use apigee.env to update, clean, undeploy or delete one environment at a time");
+			}
+			
 			logger.info("\n\n=============Initializing Maven Deployment================\n\n");
+
+			RestUtil.configureTransport(this.getProfile());
 			
 			} catch (RuntimeException e) {
 				throw e;
@@ -148,7 +239,7 @@ public class DeployMojo extends GatewayAbstractMojo
 		try {
 			
 			logger.info("\n\n=============Importing App================\n\n");
-			state = State.IMPORTING;
+			setState(State.IMPORTING);
 			bundleRevision = RestUtil.uploadBundle(super.getProfile(), super.getApplicationBundlePath());
 
 		
@@ -163,11 +254,64 @@ public class DeployMojo extends GatewayAbstractMojo
 	}
 
 	
+	/**
+	 * Looks for a deployed revision with the same content hash as the bundle.
+	 *
+	 * @return the revision deployed in every one of envs, or null if the bundle has to be imported
+	 */
+	protected String findUnchangedRevision(ServerProfile profile, File bundle, List<String> envs) throws IOException {
+		String hash = BundleHash.readFromBundle(bundle);
+		if (hash == null) {
+			logger.info("Bundle " + bundle.getName() + " has no content hash, importing it");
+			return null;
+		}
+		String unchanged = null;
+		for (String env : envs) {
+			ServerProfile envProfile = profile.forEnvironment(env);
+			String deployed = RestUtil.getDeployedRevision(envProfile);
+			if (deployed.length() == 0) {
+				logger.info("No revision of " + profile.getApplication() + " is deployed in " + env + ", importing the bundle");
+				return null;
+			}
+			if (unchanged != null && !unchanged.equals(deployed)) {
+				logger.info("Revisions " + unchanged + " and " + deployed + " are deployed, importing the bundle");
+				return null;
+			}
+			if (unchanged == null && !hash.equals(BundleHash.extract(RestUtil.getRevisionDescription(envProfile, deployed)))) {
+				logger.info("Bundle content differs from revision " + deployed + " deployed in " + env + ", importing it");
+				return null;
+			}
+			unchanged = deployed;
+		}
+		logger.info("Bundle content is unchanged since revision " + unchanged + " deployed in " + envs
+				+ ", skipping import and activation");
+		return unchanged;
+	}
+
+	/**
+	 * With the dedupe option, skips the import if the deployed revision has the bundle's content.
+	 *
+	 * @return whether the deployment is already up to date
+	 */
+	protected boolean isUnchanged() throws IOException {
+		if (!Options.dedupe || Options.clean) {
+			return false;
+		}
+		List<String> envs = environments.isEmpty() ? Collections.singletonList(this.getProfile().getEnvironment()) : environments;
+		String revision = findUnchangedRevision(this.getProfile(), new File(super.getApplicationBundlePath()), envs);
+		if (revision == null) {
+			return false;
+		}
+		bundleRevision = revision;
+		return true;
+	}
+
+	
 	protected void doUpdate(String revision) throws IOException, MojoFailureException,Exception {
 		try {
 			
 			logger.info("\n\n=============Updating App================\n\n");
-			state = State.IMPORTING;
+			setState(State.IMPORTING);
 			bundleRevision = RestUtil.updateBundle(super.getProfile(), super.getApplicationBundlePath(),revision);
 		
 		} catch (IOException e) {
@@ -187,7 +331,7 @@ public class DeployMojo extends GatewayAbstractMojo
 	public void doDeactivae() throws IOException, MojoFailureException,Exception {
 		try {
 			logger.info("\n\n=============Deactivating App================\n\n");
-			state = State.DEACTIVATING;
+			setState(State.DEACTIVATING);
 			RestUtil.deactivateBundle(super.getProfile());
 		}
 		catch (IOException e) {
@@ -206,7 +350,7 @@ public class DeployMojo extends GatewayAbstractMojo
 	public void doRefreshBundle()  throws IOException, MojoFailureException{
 		try {
 			logger.info("\n\n=============Refresh Bundle================\n\n");
-			state = State.ACTIVATING;
+			setState(State.ACTIVATING);
 			RestUtil.refreshBundle(super.getProfile(), this.bundleRevision);
 		} catch (IOException e) {
 			throw e ;
@@ -223,7 +367,7 @@ public class DeployMojo extends GatewayAbstractMojo
 	public void doActivateBundle()  throws IOException, MojoFailureException{
 		try {
 			logger.info("\n\n=============Activating Bundle================\n\n");
-			state = State.ACTIVATING;
+			setState(State.ACTIVATING);
 			RestUtil.activateBundleRevision(super.getProfile(), this.bundleRevision);
 
 		} catch (IOException e) {
@@ -234,6 +378,28 @@ public class DeployMojo extends GatewayAbstractMojo
 		
 	}
 	
+	/**
+	 * Activate a bundle revision in every environment of apigee.environments.
+	 */
+	
+	public void doActivateEnvironments()  throws IOException, MojoFailureException{
+		try {
+			logger.info("\n\n=============Activating Bundle in " + environments + "================\n\n");
+			setState(State.ACTIVATING);
+			int parallelism = this.getDeployParallelism() != null ? this.getDeployParallelism() : EnvironmentActivator.DEFAULT_PARALLELISM;
+			List<EnvironmentActivator.Result> results = new EnvironmentActivator(super.getProfile(), parallelism)
+					.activate(this.bundleRevision, environments);
+			logger.info(EnvironmentActivator.formatResults(results));
+			if (!EnvironmentActivator.allDeployed(results)) {
+				throw new MojoFailureException("Revision " + this.bundleRevision + " was not deployed in every environment");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while activating bundle");
+		}
+		
+	}
+	
 	/**
 	 * Activate a bundle revision.
 	 */
@@ -241,7 +407,7 @@ public class DeployMojo extends GatewayAbstractMojo
 	public void doDelete(String revision) throws IOException, MojoFailureException,Exception {
 		try {
 			logger.info("/n/n=============Deleting App================/n/n");
-			state = State.DELETING;
+			setState(State.DELETING);
 			RestUtil.deleteBundle(this.getProfile(), revision);
 
 		} catch (IOException e) {
@@ -258,6 +424,7 @@ public class DeployMojo extends GatewayAbstractMojo
 	 */
 	public void execute() throws MojoExecutionException, MojoFailureException {
 
+		Tracing.Span goal = startGoalSpan("deploy");
 		try {
 			fixOSXNonProxyHosts();
 			
@@ -266,7 +433,15 @@ public class DeployMojo extends GatewayAbstractMojo
 			switch (buildOption) {
 				case NULL:
 
-						if (Options.override) {
+						if (isUnchanged()) {
+							break;
+						}
+						if (!environments.isEmpty()) {
+							doImport();
+							if (!Options.inactive)
+								doActivateEnvironments();
+						}
+						else if (Options.override) {
                             activeRevision=RestUtil.getDeployedRevision(this.getProfile());
                             if (activeRevision.length() > 0) {
                                 doImport();
@@ -318,16 +493,23 @@ public class DeployMojo extends GatewayAbstractMojo
 			}
 		
 			
-			state = State.COMPLETE;
+			setState(State.COMPLETE);
+			goal.succeeded();
 			
 		} catch (MojoFailureException e) {
+			goal.failed(e);
 			processHelpfulErrorMessage(e);
 		} catch (RuntimeException e) {
+			goal.failed(e);
 			processHelpfulErrorMessage(e);
 		} catch (Exception e) {
+			goal.failed(e);
 			processHelpfulErrorMessage(e);
 		} finally {
-			
+			// a phase still running failed
+			endPhase(false);
+			writeMetrics(Collections.singleton(this.getProfile().getApplication()));
+			endGoalSpan(goal);
 		}
 	}
 
@@ -16,8 +16,14 @@
 package io.apigee.buildTools.enterprise4g.mavenplugin;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Date;
 
+import io.apigee.buildTools.enterprise4g.utils.BuildContext;
+import io.apigee.buildTools.enterprise4g.utils.BuildMetrics;
 import io.apigee.buildTools.enterprise4g.utils.ServerProfile;
+import io.apigee.buildTools.enterprise4g.utils.Tracing;
 import org.apache.maven.plugin.AbstractMojo;
 
 
@@ -59,6 +65,14 @@ public abstract class GatewayAbstractMojo extends AbstractMojo {
 	 */
 	private String artifactId;
 	
+	/**
+	 * Start of the build, which identifies it
+	 * 
+	 * @parameter expression="${session.startTime}"
+	 * @readonly
+	 */
+	private Date buildStartTime;
+	
 	/**
 	 * Profile id
 	 * 
@@ -143,6 +157,249 @@ public abstract class GatewayAbstractMojo extends AbstractMojo {
 	private Long overridedelay;
 	
 	
+	/**
+	 * HTTP transport used for management API calls, net (HttpURLConnection) or pooled (Apache HttpClient)
+	 * 
+	 * @parameter expression="${apigee.http.transport}" default-value="net"
+	 */
+	private String httpTransport;
+	
+	
+	/**
+	 * Maximum number of pooled connections
+	 * 
+	 * @parameter expression="${apigee.http.maxConnections}"
+	 */
+	private Integer maxConnections;
+	
+	
+	/**
+	 * Maximum number of pooled connections per management server
+	 * 
+	 * @parameter expression="${apigee.http.maxConnectionsPerRoute}"
+	 */
+	private Integer maxConnectionsPerRoute;
+	
+	
+	/**
+	 * Idle time in milliseconds after which a pooled connection is closed
+	 * 
+	 * @parameter expression="${apigee.http.idleTimeout}"
+	 */
+	private Long idleConnectionTimeout;
+	
+	
+	/**
+	 * Milliseconds to wait for a free pooled connection before failing
+	 * 
+	 * @parameter expression="${apigee.http.poolTimeout}"
+	 */
+	private Long poolTimeout;
+	
+	
+	/**
+	 * Trust every server certificate. Defaults to true unless a trust store
+	 * or pinned certificates are configured.
+	 * 
+	 * @parameter expression="${apigee.ssl.insecure}"
+	 */
+	private Boolean sslInsecure;
+	
+	
+	/**
+	 * Trust store used to validate the management server certificate
+	 * 
+	 * @parameter expression="${apigee.ssl.trustStore}"
+	 */
+	private String trustStore;
+	
+	
+	/**
+	 * Trust store password
+	 * 
+	 * @parameter expression="${apigee.ssl.trustStorePassword}"
+	 */
+	private String trustStorePassword;
+	
+	
+	/**
+	 * Trust store type, the JVM default keystore type if not set
+	 * 
+	 * @parameter expression="${apigee.ssl.trustStoreType}"
+	 */
+	private String trustStoreType;
+	
+	
+	/**
+	 * Comma separated SHA-256 fingerprints of trusted server certificates
+	 * 
+	 * @parameter expression="${apigee.ssl.pinnedCertificates}"
+	 */
+	private String pinnedCertificates;
+	
+	
+	/**
+	 * Socket read timeout in milliseconds for management API calls, 0 waits forever
+	 * 
+	 * @parameter expression="${apigee.http.readTimeout}"
+	 */
+	private Integer readTimeout;
+	
+	
+	/**
+	 * Minimum bundle upload throughput in bytes per second, the upload fails
+	 * when it stays below this for a whole throughput window
+	 * 
+	 * @parameter expression="${apigee.upload.minThroughput}"
+	 */
+	private Long minUploadThroughput;
+	
+	
+	/**
+	 * Window in milliseconds over which upload throughput is averaged
+	 * 
+	 * @parameter expression="${apigee.upload.throughputWindow}"
+	 */
+	private Long uploadThroughputWindow;
+	
+	
+	/**
+	 * Maximum time in milliseconds to wait for a deployment to settle
+	 * 
+	 * @parameter expression="${apigee.poll.timeout}"
+	 */
+	private Long pollTimeout;
+	
+	
+	/**
+	 * Initial interval in milliseconds between deployment state checks
+	 * 
+	 * @parameter expression="${apigee.poll.interval}"
+	 */
+	private Long pollInterval;
+	
+	
+	/**
+	 * Upper bound in milliseconds for the backed off check interval
+	 * 
+	 * @parameter expression="${apigee.poll.maxInterval}"
+	 */
+	private Long pollMaxInterval;
+	
+	
+	/**
+	 * Comma separated environments to activate the imported revision in,
+	 * instead of the single apigee.env
+	 * 
+	 * @parameter expression="${apigee.environments}"
+	 */
+	private String environments;
+	
+	
+	/**
+	 * Number of environments activated at the same time
+	 * 
+	 * @parameter expression="${apigee.deploy.parallelism}"
+	 */
+	private Integer deployParallelism;
+	
+	
+	/**
+	 * Maximum management API calls per second for each organization
+	 * 
+	 * @parameter expression="${apigee.rateLimit}"
+	 */
+	private Double rateLimit;
+	
+	
+	/**
+	 * Attempts per management API operation before giving up on transient errors
+	 * 
+	 * @parameter expression="${apigee.retry.maxAttempts}"
+	 */
+	private Integer retryMaxAttempts;
+	
+	
+	/**
+	 * Time in milliseconds one operation may spend on retries
+	 * 
+	 * @parameter expression="${apigee.retry.budget}"
+	 */
+	private Long retryBudget;
+	
+	
+	/**
+	 * Delay in milliseconds before the first retry, doubled for each further retry
+	 * 
+	 * @parameter expression="${apigee.retry.initialDelay}"
+	 */
+	private Long retryInitialDelay;
+	
+	
+	/**
+	 * Upper bound in milliseconds for the delay between retries
+	 * 
+	 * @parameter expression="${apigee.retry.maxDelay}"
+	 */
+	private Long retryMaxDelay;
+	
+	
+	/**
+	 * Failed calls in a row after which calls to the management server are stopped
+	 * 
+	 * @parameter expression="${apigee.circuitBreaker.threshold}"
+	 */
+	private Integer circuitBreakerThreshold;
+	
+	
+	/**
+	 * Time in milliseconds calls stay stopped before a trial call is let through
+	 * 
+	 * @parameter expression="${apigee.circuitBreaker.cooldown}"
+	 */
+	private Long circuitBreakerCooldown;
+	
+	
+	/**
+	 * Reuse the configured XML files of the last build when neither they nor their config.json tokens changed
+	 * 
+	 * @parameter expression="${apigee.config.incremental}" default-value="false"
+	 */
+	private boolean configIncremental;
+	
+	
+	/**
+	 * How config.json tokens are applied: dom, or stax to stream the files that allow it
+	 * 
+	 * @parameter expression="${apigee.config.engine}" default-value="dom"
+	 */
+	private String configEngine;
+	
+	
+	/**
+	 * Number of XML files configured at once
+	 * 
+	 * @parameter expression="${apigee.config.threads}" default-value="1"
+	 */
+	private int configThreads;
+	
+	
+	/**
+	 * Also write the phase and call metrics of target/apigee-metrics.json in the Prometheus text format
+	 * 
+	 * @parameter expression="${apigee.metrics.prometheus}" default-value="false"
+	 */
+	private boolean metricsPrometheus;
+	
+	
+	/**
+	 * File the trace spans of the build are appended to as OTLP/JSON, relative to the directory Maven runs in; no tracing if not set
+	 * 
+	 * @parameter expression="${apigee.trace.file}"
+	 */
+	private String traceFile;
+	
+	
 	/**
 	* Skip running this plugin.
 	* Default is false.
@@ -172,6 +429,16 @@ public abstract class GatewayAbstractMojo extends AbstractMojo {
 		this.buildProfile.setOptions(this.options);
 		this.buildProfile.setDelay(this.delay);
 		this.buildProfile.setOverridedelay(this.overridedelay);
+		this.buildProfile.setHttpTransport(this.httpTransport);
+		this.buildProfile.setMaxConnections(this.maxConnections);
+		this.buildProfile.setMaxConnectionsPerRoute(this.maxConnectionsPerRoute);
+		this.buildProfile.setIdleConnectionTimeout(this.idleConnectionTimeout);
+		this.buildProfile.setPoolTimeout(this.poolTimeout);
+		this.buildProfile.setSslInsecure(this.sslInsecure);
+		this.buildProfile.setTrustStore(this.trustStore);
+		this.buildProfile.setTrustStorePassword(this.trustStorePassword);
+		this.buildProfile.setTrustStoreType(this.trustStoreType);
+		this.buildProfile.setPinnedCertificates(this.pinnedCertificates);
 		
 		return buildProfile;
 	}
@@ -241,6 +508,50 @@ public abstract class GatewayAbstractMojo extends AbstractMojo {
 	}
 	
 
+	/**
+	 * Writes the BuildMetrics of the proxies to the build directory; a
+	 * report that cannot be written does not fail the build.
+	 */
+	protected void writeMetrics(Collection<String> proxies) {
+		if (!BuildMetrics.isRecording()) {
+			return;
+		}
+		try {
+			BuildMetrics.write(new File(getBuildDirectory()), proxies, isMetricsPrometheus());
+		} catch (IOException e) {
+			getLog().warn("Could not write the deploy metrics: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Starts or continues the BuildContext of the build, traced if a trace
+	 * file is set, and starts the span of the goal in it.
+	 */
+	protected Tracing.Span startGoalSpan(String goal) {
+		BuildContext.start(getBuildStartTime(), traceFile != null && traceFile.length() > 0);
+		return Tracing.start("apigee:" + goal)
+				.set("maven.goal", goal)
+				.set("apigee.proxy", projectName)
+				.set("apigee.org", orgName)
+				.set("apigee.env", deploymentEnv);
+	}
+
+	/**
+	 * Ends the span of a goal and appends the spans of the goal to the
+	 * trace file; a trace that cannot be written does not fail the build.
+	 */
+	protected void endGoalSpan(Tracing.Span span) {
+		span.end();
+		if (traceFile == null || traceFile.length() == 0 || !Tracing.isTracing()) {
+			return;
+		}
+		try {
+			Tracing.write(new File(traceFile));
+		} catch (IOException e) {
+			getLog().warn("Could not write the trace: " + e.getMessage());
+		}
+	}
+
 	protected void fixOSXNonProxyHosts() {
 		
 		// This is required to work around a Mac OS X bug.  Probably would be better to be more selective about this.  Only override if we're
@@ -271,6 +582,214 @@ public abstract class GatewayAbstractMojo extends AbstractMojo {
 	public void setOverridedelay(Long overridedelay) {
 		this.overridedelay = overridedelay;
 	}
+
+	public Integer getReadTimeout() {
+		return this.readTimeout;
+	}
+
+
+	public void setReadTimeout(Integer readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+
+	public Long getMinUploadThroughput() {
+		return this.minUploadThroughput;
+	}
+
+
+	public void setMinUploadThroughput(Long minUploadThroughput) {
+		this.minUploadThroughput = minUploadThroughput;
+	}
+
+	public Long getUploadThroughputWindow() {
+		return this.uploadThroughputWindow;
+	}
+
+
+	public void setUploadThroughputWindow(Long uploadThroughputWindow) {
+		this.uploadThroughputWindow = uploadThroughputWindow;
+	}
+
+
+	public Long getPollTimeout() {
+		return this.pollTimeout;
+	}
+
+
+	public void setPollTimeout(Long pollTimeout) {
+		this.pollTimeout = pollTimeout;
+	}
+
+
+	public Long getPollInterval() {
+		return this.pollInterval;
+	}
+
+
+	public void setPollInterval(Long pollInterval) {
+		this.pollInterval = pollInterval;
+	}
+
+
+	public Long getPollMaxInterval() {
+		return this.pollMaxInterval;
+	}
+
+
+	public void setPollMaxInterval(Long pollMaxInterval) {
+		this.pollMaxInterval = pollMaxInterval;
+	}
+
+
+	public String getEnvironments() {
+		return this.environments;
+	}
+
+
+	public void setEnvironments(String environments) {
+		this.environments = environments;
+	}
+
+
+	public Integer getDeployParallelism() {
+		return this.deployParallelism;
+	}
+
+
+	public void setDeployParallelism(Integer deployParallelism) {
+		this.deployParallelism = deployParallelism;
+	}
+
+
+	public Double getRateLimit() {
+		return this.rateLimit;
+	}
+
+
+	public void setRateLimit(Double rateLimit) {
+		this.rateLimit = rateLimit;
+	}
+
+
+	public Integer getRetryMaxAttempts() {
+		return this.retryMaxAttempts;
+	}
+
+
+	public void setRetryMaxAttempts(Integer retryMaxAttempts) {
+		this.retryMaxAttempts = retryMaxAttempts;
+	}
+
+
+	public Long getRetryBudget() {
+		return this.retryBudget;
+	}
+
+
+	public void setRetryBudget(Long retryBudget) {
+		this.retryBudget = retryBudget;
+	}
+
+
+	public Long getRetryInitialDelay() {
+		return this.retryInitialDelay;
+	}
+
+
+	public void setRetryInitialDelay(Long retryInitialDelay) {
+		this.retryInitialDelay = retryInitialDelay;
+	}
+
+
+	public Long getRetryMaxDelay() {
+		return this.retryMaxDelay;
+	}
+
+
+	public void setRetryMaxDelay(Long retryMaxDelay) {
+		this.retryMaxDelay = retryMaxDelay;
+	}
+
+
+	public Integer getCircuitBreakerThreshold() {
+		return this.circuitBreakerThreshold;
+	}
+
+
+	public void setCircuitBreakerThreshold(Integer circuitBreakerThreshold) {
+		this.circuitBreakerThreshold = circuitBreakerThreshold;
+	}
+
+
+	public Long getCircuitBreakerCooldown() {
+		return this.circuitBreakerCooldown;
+	}
+
+
+	public void setCircuitBreakerCooldown(Long circuitBreakerCooldown) {
+		this.circuitBreakerCooldown = circuitBreakerCooldown;
+	}
+
+
+	public boolean isConfigIncremental() {
+		return this.configIncremental;
+	}
+
+
+	public void setConfigIncremental(boolean configIncremental) {
+		this.configIncremental = configIncremental;
+	}
+
+
+	public String getConfigEngine() {
+		return this.configEngine;
+	}
+
+
+	public void setConfigEngine(String configEngine) {
+		this.configEngine = configEngine;
+	}
+
+
+	public int getConfigThreads() {
+		return this.configThreads;
+	}
+
+
+	public void setConfigThreads(int configThreads) {
+		this.configThreads = configThreads;
+	}
+
+
+	public Date getBuildStartTime() {
+		return this.buildStartTime;
+	}
+
+
+	public void setBuildStartTime(Date buildStartTime) {
+		this.buildStartTime = buildStartTime;
+	}
+
+
+	public boolean isMetricsPrometheus() {
+		return this.metricsPrometheus;
+	}
+
+
+	public void setMetricsPrometheus(boolean metricsPrometheus) {
+		this.metricsPrometheus = metricsPrometheus;
+	}
+
+
+
+	public String getTraceFile() {
+		return this.traceFile;
+	}
+
+
+	public void setTraceFile(String traceFile) {
+		this.traceFile = traceFile;
+	}
 	
 	
 }
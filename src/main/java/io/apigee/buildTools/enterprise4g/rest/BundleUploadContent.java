@@ -0,0 +1,232 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.rest;
+
+import com.google.api.client.http.HttpContent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams a bundle zip to the management server from a FileChannel through
+ * a bounded buffer, logging progress and throughput as it goes.
+ *
+ * If a minimum throughput is set, the upload fails once the average rate
+ * over the last throughput window stays below it, instead of letting a
+ * stalled connection hang the build. The bytes are then written on a
+ * separate thread, so that a write blocked on a socket the server stopped
+ * reading from is caught too; the transport closes the connection when
+ * writeTo fails, which releases that thread.
+ */
+public class BundleUploadContent implements HttpContent {
+
+    public static final String CONTENT_TYPE = "application/octet-stream";
+    public static final int BUFFER_SIZE = 64 * 1024;
+    public static final long DEFAULT_THROUGHPUT_WINDOW = 30000;
+
+    static final long PROGRESS_INTERVAL_NANOS = 5000000000L;
+
+    static Logger logger = LoggerFactory.getLogger(BundleUploadContent.class);
+
+    private final File file;
+    private final long minThroughput;
+    private final long throughputWindow;
+
+    private volatile long bytesSent;
+    private volatile long elapsedNanos;
+    private volatile boolean aborted;
+
+    /**
+     * @param minThroughput minimum bytes per second, 0 to disable the check
+     * @param throughputWindow milliseconds over which throughput is averaged
+     */
+    public BundleUploadContent(File file, long minThroughput, long throughputWindow) {
+        this.file = file;
+        this.minThroughput = minThroughput;
+        this.throughputWindow = throughputWindow > 0 ? throughputWindow : DEFAULT_THROUGHPUT_WINDOW;
+    }
+
+    public long getLength() throws IOException {
+        return file.length();
+    }
+
+    public String getEncoding() {
+        return null;
+    }
+
+    public String getType() {
+        return CONTENT_TYPE;
+    }
+
+    public boolean retrySupported() {
+        return true;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedNanos / 1000000;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        if (minThroughput <= 0) {
+            write(out);
+            return;
+        }
+        // the socket write itself has no timeout, so it runs on its own thread
+        // and this one aborts the upload when a window passes without enough progress
+        Writer writer = new Writer(out);
+        writer.start();
+        try {
+            long windowStart = System.nanoTime();
+            long windowFrom = 0;
+            while (!writer.done.await(throughputWindow, TimeUnit.MILLISECONDS)) {
+                long now = System.nanoTime();
+                long sent = bytesSent;
+                checkThroughput(sent - windowFrom, now - windowStart);
+                windowStart = now;
+                windowFrom = sent;
+            }
+        } catch (InterruptedException e) {
+            aborted = true;
+            throw new InterruptedIOException("Upload of " + file.getName() + " interrupted");
+        } catch (IOException e) {
+            // the caller closes the connection, which fails the blocked write
+            aborted = true;
+            throw e;
+        }
+        writer.rethrow();
+    }
+
+    void write(OutputStream out) throws IOException {
+        long total = file.length();
+        FileInputStream in = new FileInputStream(file);
+        FileChannel channel = in.getChannel();
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.max(1, Math.min(BUFFER_SIZE, total)));
+            long start = System.nanoTime();
+            long lastReport = start;
+            bytesSent = 0;
+
+            int read;
+            while ((read = channel.read(buffer)) != -1 && !aborted) {
+                if (read == 0) {
+                    continue;
+                }
+                out.write(buffer.array(), 0, read);
+                buffer.clear();
+                bytesSent += read;
+
+                long now = System.nanoTime();
+                if (now - lastReport >= PROGRESS_INTERVAL_NANOS) {
+                    logger.info("Uploading " + file.getName() + ": " + formatProgress(bytesSent, total, now - start));
+                    lastReport = now;
+                }
+            }
+            if (aborted) {
+                return;
+            }
+            out.flush();
+            elapsedNanos = System.nanoTime() - start;
+            logger.info("Uploaded " + file.getName() + ": " + formatProgress(bytesSent, total, elapsedNanos));
+        } finally {
+            channel.close();
+            in.close();
+        }
+    }
+
+    void checkThroughput(long bytes, long nanos) throws IOException {
+        if (minThroughput <= 0) {
+            return;
+        }
+        long rate = rate(bytes, nanos);
+        if (rate < minThroughput) {
+            throw new IOException("Upload of " + file.getName() + " aborted: throughput "
+                    + formatBytes(rate) + "/s over the last " + (nanos / 1000000) + " ms is below the minimum of "
+                    + formatBytes(minThroughput) + "/s");
+        }
+    }
+
+    static long rate(long bytes, long nanos) {
+        return nanos <= 0 ? bytes : (long) (bytes * 1000000000.0 / nanos);
+    }
+
+    static String formatProgress(long sent, long total, long nanos) {
+        int percent = total == 0 ? 100 : (int) (sent * 100 / total);
+        return formatBytes(sent) + " of " + formatBytes(total) + " (" + percent + "%) in "
+                + (nanos / 1000000) + " ms, " + formatBytes(rate(sent, nanos)) + "/s";
+    }
+
+    /**
+     * Writes the bundle on a daemon thread, keeping what it failed with.
+     */
+    class Writer extends Thread {
+
+        final CountDownLatch done = new CountDownLatch(1);
+        private final OutputStream out;
+        private Throwable failure;
+
+        Writer(OutputStream out) {
+            super("apigee-upload-" + file.getName());
+            this.out = out;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                write(out);
+            } catch (Throwable t) {
+                failure = t;
+            } finally {
+                done.countDown();
+            }
+        }
+
+        void rethrow() throws IOException {
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            }
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            }
+            if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+        }
+    }
+
+    static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        if (bytes < 1024 * 1024) {
+            return String.format("%.1f KB", bytes / 1024.0);
+        }
+        return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+    }
+}
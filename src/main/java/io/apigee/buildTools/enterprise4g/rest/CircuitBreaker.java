@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.rest;
+
+import io.apigee.buildTools.enterprise4g.rest.RestUtil.Options;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stops calling a management server that keeps failing. After
+ * Options.circuitBreakerThreshold transient failures in a row the circuit
+ * for that host opens and calls fail at once, without touching the
+ * network, for Options.circuitBreakerCooldown milliseconds. Then a single
+ * trial call is let through, and other calls keep failing at once until it
+ * completes: success closes the circuit, failure opens it again.
+ */
+public class CircuitBreaker {
+
+    public static final int DEFAULT_THRESHOLD = 5;
+    public static final long DEFAULT_COOLDOWN = 30000;
+
+    static Logger logger = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    private static final Map<String, CircuitBreaker> breakers = new HashMap<String, CircuitBreaker>();
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String host;
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+    private boolean trialInFlight;
+
+    CircuitBreaker(String host) {
+        this.host = host;
+    }
+
+    public static CircuitBreaker forHost(String host) {
+        synchronized (breakers) {
+            CircuitBreaker breaker = breakers.get(host);
+            if (breaker == null) {
+                breaker = new CircuitBreaker(host);
+                breakers.put(host, breaker);
+            }
+            return breaker;
+        }
+    }
+
+    /**
+     * Closes every circuit, e.g. between tests.
+     */
+    public static void reset() {
+        synchronized (breakers) {
+            breakers.clear();
+        }
+    }
+
+    /**
+     * Called before each attempt.
+     *
+     * @throws IOException if the circuit is open
+     */
+    public synchronized void before() throws IOException {
+        if (state == State.OPEN) {
+            long cooldown = Options.circuitBreakerCooldown > 0 ? Options.circuitBreakerCooldown : DEFAULT_COOLDOWN;
+            long remaining = openedAt + cooldown - System.currentTimeMillis();
+            if (remaining > 0) {
+                throw new IOException("Circuit breaker for " + host + " is open after " + failures
+                        + " failed calls, not calling it for another " + remaining + " ms");
+            }
+            logger.info("Circuit breaker for " + host + " is half open, letting a trial call through");
+            state = State.HALF_OPEN;
+            trialInFlight = true;
+            return;
+        }
+        if (state == State.HALF_OPEN && trialInFlight) {
+            throw new IOException("Circuit breaker for " + host + " is half open, waiting for the trial call");
+        }
+    }
+
+    public synchronized void onSuccess() {
+        if (state != State.CLOSED) {
+            logger.info("Circuit breaker for " + host + " is closed again");
+        }
+        state = State.CLOSED;
+        failures = 0;
+        trialInFlight = false;
+    }
+
+    /**
+     * Records a transient failure (server error, timeout, connection problem).
+     */
+    public synchronized void onFailure() {
+        failures++;
+        int threshold = Options.circuitBreakerThreshold > 0 ? Options.circuitBreakerThreshold : DEFAULT_THRESHOLD;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= threshold)) {
+            logger.warn("Circuit breaker for " + host + " is open after " + failures + " failed calls");
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+        trialInFlight = false;
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+}
@@ -0,0 +1,242 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.rest;
+
+import io.apigee.buildTools.enterprise4g.rest.RestUtil.BundleActivationConfig;
+import io.apigee.buildTools.enterprise4g.rest.RestUtil.Options;
+import io.apigee.buildTools.enterprise4g.rest.RestUtil.Server;
+import io.apigee.buildTools.enterprise4g.utils.BuildMetrics;
+import io.apigee.buildTools.enterprise4g.utils.ServerProfile;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Waits for a deployment to settle by polling the management API with
+ * exponential backoff and jitter, up to a total deadline, instead of
+ * sleeping for a fixed time.
+ */
+public class DeploymentPoller {
+
+    public static final long DEFAULT_TIMEOUT = 120000;
+    public static final long DEFAULT_INTERVAL = 250;
+    public static final long DEFAULT_MAX_INTERVAL = 5000;
+
+    static Logger logger = LoggerFactory.getLogger(DeploymentPoller.class);
+
+    private static final Random random = new Random();
+
+    /**
+     * A state check made on every poll.
+     */
+    interface Condition {
+        /**
+         * @return true once the awaited state is reached
+         */
+        boolean check() throws IOException;
+    }
+
+    /**
+     * Waits until the revision reports deployed on every server of the
+     * profile's environment.
+     *
+     * @return true if the revision was deployed before the deadline
+     */
+    public static boolean awaitDeployed(final RestClient.Context context, final String revision) throws IOException {
+        ServerProfile profile = context.profile;
+        return await(context, "revision " + revision + " deployed to " + profile.getEnvironment(), new Condition() {
+            public boolean check() throws IOException {
+                try {
+                    return isDeployed(getDeployment(context, revision));
+                } catch (HttpResponseException e) {
+                    if (e.getStatusCode() == 404) {
+                        // the deployment is not visible yet
+                        return false;
+                    }
+                    // transient errors are retried by poll(), anything else, like 401 or 403, fails now
+                    throw e;
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits until the revision is no longer deployed in the profile's environment.
+     *
+     * @return true if the revision was undeployed before the deadline
+     */
+    public static boolean awaitUndeployed(final RestClient.Context context, final String revision) throws IOException {
+        ServerProfile profile = context.profile;
+        return await(context, "revision " + revision + " undeployed from " + profile.getEnvironment(), new Condition() {
+            public boolean check() throws IOException {
+                try {
+                    return isUndeployed(getDeployment(context, revision));
+                } catch (HttpResponseException e) {
+                    if (e.getStatusCode() == 404) {
+                        // there is no deployment left for the revision
+                        return true;
+                    }
+                    throw e;
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits until the revision exists (after an import) or is gone (after a delete).
+     *
+     * @return true if the revision reached the expected state before the deadline
+     */
+    public static boolean awaitRevision(final RestClient.Context context, final String revision, final boolean present)
+            throws IOException {
+        return await(context, "revision " + revision + (present ? " imported" : " deleted"), new Condition() {
+            public boolean check() throws IOException {
+                return revisionExists(context, revision) == present;
+            }
+        });
+    }
+
+    /**
+     * @return whether the revision exists in the organization
+     */
+    public static boolean revisionExists(RestClient.Context context, String revision) throws IOException {
+        ServerProfile profile = context.profile;
+        HttpRequest request = RestUtil.requestFactory().buildGetRequest(new GenericUrl(
+                profile.getHostUrl() + "/" + profile.getApi_version() + "/organizations/"
+                        + profile.getOrg() + "/apis/" + profile.getApplication() + "/revisions/" + revision));
+        prepare(request, context);
+        try {
+            RestUtil.send(request).ignore();
+            return true;
+        } catch (HttpResponseException e) {
+            if (e.getStatusCode() == 404) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    public static boolean isDeployed(BundleActivationConfig deployment) {
+        if (deployment == null || !RestUtil.STATE_DEPLOYED.equalsIgnoreCase(deployment.state)) {
+            return false;
+        }
+        if (deployment.server != null) {
+            for (Server server : deployment.server) {
+                if (!RestUtil.STATE_DEPLOYED.equalsIgnoreCase(server.status)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    public static boolean isUndeployed(BundleActivationConfig deployment) {
+        return deployment == null || RestUtil.STATE_UNDEPLOYED.equalsIgnoreCase(deployment.state);
+    }
+
+    static BundleActivationConfig getDeployment(RestClient.Context context, String revision) throws IOException {
+        ServerProfile profile = context.profile;
+        HttpRequest request = RestUtil.requestFactory().buildGetRequest(new GenericUrl(
+                profile.getHostUrl() + "/" + profile.getApi_version() + "/organizations/"
+                        + profile.getOrg() + "/environments/" + profile.getEnvironment()
+                        + "/apis/" + profile.getApplication() + "/revisions/" + revision + "/deployments"));
+        prepare(request, context);
+        HttpResponse response = RestUtil.send(request);
+        return response.parseAs(BundleActivationConfig.class);
+    }
+
+    static void prepare(HttpRequest request, RestClient.Context context) {
+        ServerProfile profile = context.profile;
+        request.setReadTimeout(context.readTimeout);
+        HttpHeaders headers = new HttpHeaders();
+        headers.setAccept("application/json");
+        headers.setBasicAuthentication(profile.getCredential_user(), profile.getCredential_pwd());
+        request.setHeaders(headers);
+    }
+
+    /**
+     * Polls until the condition holds, timed as the "poll" phase of the proxy.
+     */
+    static boolean await(RestClient.Context context, String what, Condition condition) throws IOException {
+        BuildMetrics.Phase phase = BuildMetrics.startPhase(context.profile.getApplication(), "poll");
+        try {
+            boolean done = poll(timeout(context), what, condition);
+            if (done) {
+                phase.succeeded();
+            }
+            return done;
+        } finally {
+            phase.end();
+        }
+    }
+
+    /**
+     * @return how long polls for the context wait in total, in milliseconds
+     */
+    static long timeout(RestClient.Context context) {
+        return context.pollTimeout > 0 ? context.pollTimeout : DEFAULT_TIMEOUT;
+    }
+
+    private static boolean poll(long timeout, String what, Condition condition) throws IOException {
+        long interval = Options.pollInterval > 0 ? Options.pollInterval : DEFAULT_INTERVAL;
+        long maxInterval = Math.max(interval, Options.pollMaxInterval > 0 ? Options.pollMaxInterval : DEFAULT_MAX_INTERVAL);
+
+        long start = System.currentTimeMillis();
+        long deadline = start + timeout;
+        int polls = 0;
+        while (true) {
+            polls++;
+            boolean done;
+            try {
+                done = condition.check();
+            } catch (IOException e) {
+                if (!RetryPolicy.isTransient(e)) {
+                    throw e;
+                }
+                // a failed status call is just another poll that did not see the state yet
+                logger.debug("Status check for {} failed: {}", what, e.getMessage());
+                done = false;
+            }
+            if (done) {
+                logger.info("Confirmed " + what + " after " + polls + " poll(s), "
+                        + (System.currentTimeMillis() - start) + " ms");
+                return true;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                logger.warn("Gave up waiting for " + what + " after " + polls + " poll(s), " + timeout + " ms");
+                return false;
+            }
+            // sleep somewhere between half and all of the current interval
+            long sleep = Math.min(remaining, interval / 2 + (long) (random.nextDouble() * (interval / 2 + 1)));
+            logger.debug("Waiting {} ms for {}", sleep, what);
+            try {
+                Thread.sleep(sleep);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for " + what);
+            }
+            interval = Math.min(maxInterval, interval * 2);
+        }
+    }
+}
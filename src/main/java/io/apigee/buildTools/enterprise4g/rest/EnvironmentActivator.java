@@ -0,0 +1,182 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.rest;
+
+import io.apigee.buildTools.enterprise4g.rest.RestUtil.Options;
+import io.apigee.buildTools.enterprise4g.utils.ServerProfile;
+import io.apigee.buildTools.enterprise4g.utils.Tracing;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Activates one imported revision in several environments at once.
+ * Revisions belong to the organization, so the bundle is imported a single
+ * time and only the activation is repeated per environment, on a bounded
+ * pool of threads.
+ */
+public class EnvironmentActivator {
+
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    static Logger logger = LoggerFactory.getLogger(EnvironmentActivator.class);
+
+    private final ServerProfile profile;
+    private final int parallelism;
+
+    /**
+     * Outcome of the activation in one environment.
+     */
+    public static class Result {
+        public final String environment;
+        public final String revision;
+        public String state;
+        public long millis;
+        public Exception error;
+
+        Result(String environment, String revision) {
+            this.environment = environment;
+            this.revision = revision;
+        }
+
+        public boolean isDeployed() {
+            return error == null && RestUtil.STATE_DEPLOYED.equalsIgnoreCase(state);
+        }
+    }
+
+    public EnvironmentActivator(ServerProfile profile, int parallelism) {
+        this.profile = profile;
+        this.parallelism = parallelism > 0 ? parallelism : DEFAULT_PARALLELISM;
+    }
+
+    /**
+     * Activates the revision in every environment and waits for all of them.
+     * A failure in one environment does not stop the others; it is recorded
+     * in that environment's result.
+     *
+     * @return one result per environment, in the order given
+     */
+    public List<Result> activate(final String revision, List<String> environments) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, environments.size()),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "apigee-activate-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        final Tracing.Span parent = Tracing.current();
+        try {
+            List<Future<Result>> futures = new ArrayList<Future<Result>>();
+            for (final String environment : environments) {
+                futures.add(executor.submit(new Callable<Result>() {
+                    public Result call() {
+                        Tracing.Span span = Tracing.start("activate " + environment, parent)
+                                .set("apigee.proxy", profile.getApplication())
+                                .set("apigee.env", environment)
+                                .set("apigee.revision", revision);
+                        try {
+                            Result result = activate(profile.forEnvironment(environment), revision);
+                            if (result.error != null) {
+                                span.failed(result.error);
+                            } else if (result.isDeployed()) {
+                                span.succeeded();
+                            }
+                            span.set("apigee.state", result.state);
+                            return result;
+                        } finally {
+                            span.end();
+                        }
+                    }
+                }));
+            }
+            List<Result> results = new ArrayList<Result>();
+            for (Future<Result> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    // activate(ServerProfile, String) records its own failures, only errors get here
+                    if (e.getCause() instanceof Error) {
+                        throw (Error) e.getCause();
+                    }
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    Result activate(ServerProfile envProfile, String revision) {
+        Result result = new Result(envProfile.getEnvironment(), revision);
+        long start = System.currentTimeMillis();
+        try {
+            if (Options.override && RestUtil.getDeployedRevision(envProfile).length() > 0) {
+                result.state = RestUtil.activateBundleRevision(envProfile, revision, true);
+            } else if (Options.override) {
+                // nothing deployed yet, so there is nothing to override
+                result.state = RestUtil.activateBundleRevision(envProfile, revision, false);
+            } else {
+                result.state = RestUtil.refreshBundle(envProfile, revision);
+            }
+        } catch (Exception e) {
+            logger.error("Activation in " + envProfile.getEnvironment() + " failed: " + e.getMessage());
+            result.state = RestUtil.STATE_ERROR;
+            result.error = e;
+        }
+        result.millis = System.currentTimeMillis() - start;
+        return result;
+    }
+
+    public static boolean allDeployed(List<Result> results) {
+        for (Result result : results) {
+            if (!result.isDeployed()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Formats the results as a table with one row per environment.
+     */
+    public static String formatResults(List<Result> results) {
+        int width = "Environment".length();
+        for (Result result : results) {
+            width = Math.max(width, result.environment.length());
+        }
+        String format = "%-" + width + "s  %-10s  %-8s  %8s  %s%n";
+        StringBuilder table = new StringBuilder("\n");
+        table.append(String.format(format, "Environment", "State", "Revision", "Time", ""));
+        for (Result result : results) {
+            table.append(String.format(format, result.environment, result.state, result.revision,
+                    result.millis + " ms", result.error == null ? "" : String.valueOf(result.error.getMessage())));
+        }
+        return table.toString();
+    }
+}
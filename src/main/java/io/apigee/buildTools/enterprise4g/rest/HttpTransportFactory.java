@@ -0,0 +1,285 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.rest;
+
+import io.apigee.buildTools.enterprise4g.utils.ServerProfile;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
+import org.apache.http.HttpVersion;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.conn.ProxySelectorRoutePlanner;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.ProxySelector;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds the {@link HttpTransport} used by {@link RestUtil}.
+ *
+ * The "net" transport, the default, is the HttpURLConnection based one,
+ * see {@link UrlConnectionTransport}. The opt-in "pooled" transport uses
+ * Apache HttpClient with a bounded pool of keep-alive connections to the
+ * management server and its own idle and pool-acquire timeouts.
+ */
+public class HttpTransportFactory {
+
+    public static final String TRANSPORT_POOLED = "pooled";
+    public static final String TRANSPORT_NET = "net";
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 20;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 10;
+    public static final long DEFAULT_IDLE_TIMEOUT = 30000;
+    public static final long DEFAULT_POOL_TIMEOUT = 30000;
+
+    /**
+     * SO_LINGER for TLS sockets, in seconds. Closing a TLS socket waits for
+     * a write blocked on it, forever unless SO_LINGER is set, so without it
+     * a stalled upload could not be aborted by closing its connection.
+     */
+    static final int CLOSE_LINGER = 1;
+
+    static Logger logger = LoggerFactory.getLogger(HttpTransportFactory.class);
+
+    /**
+     * Transport settings, compared by value so that modules of one reactor
+     * with the same settings share the same connection pool.
+     */
+    public static class Settings {
+
+        final String transport;
+        final int maxConnections;
+        final int maxConnectionsPerRoute;
+        final long idleTimeout;
+        final long poolTimeout;
+        final SslConfiguration ssl;
+
+        public Settings(String transport, Integer maxConnections,
+                        Integer maxConnectionsPerRoute, Long idleTimeout) {
+            this(transport, maxConnections, maxConnectionsPerRoute, idleTimeout, null,
+                    new SslConfiguration(null, null, null, null, null));
+        }
+
+        /**
+         * @param idleTimeout milliseconds an unused pooled connection is kept open
+         * @param poolTimeout milliseconds to wait for a free connection when the pool is exhausted
+         */
+        public Settings(String transport, Integer maxConnections, Integer maxConnectionsPerRoute,
+                        Long idleTimeout, Long poolTimeout, SslConfiguration ssl) {
+            this.transport = (transport == null || transport.trim().length() == 0)
+                    ? TRANSPORT_NET : transport.trim().toLowerCase();
+            this.maxConnections = (maxConnections == null || maxConnections <= 0)
+                    ? DEFAULT_MAX_CONNECTIONS : maxConnections;
+            this.maxConnectionsPerRoute = (maxConnectionsPerRoute == null || maxConnectionsPerRoute <= 0)
+                    ? DEFAULT_MAX_CONNECTIONS_PER_ROUTE : maxConnectionsPerRoute;
+            this.idleTimeout = (idleTimeout == null || idleTimeout <= 0)
+                    ? DEFAULT_IDLE_TIMEOUT : idleTimeout;
+            this.poolTimeout = (poolTimeout == null || poolTimeout <= 0)
+                    ? DEFAULT_POOL_TIMEOUT : poolTimeout;
+            this.ssl = ssl;
+        }
+
+        public static Settings fromProfile(ServerProfile profile) {
+            return new Settings(profile.getHttpTransport(), profile.getMaxConnections(),
+                    profile.getMaxConnectionsPerRoute(), profile.getIdleConnectionTimeout(),
+                    profile.getPoolTimeout(), SslConfiguration.fromProfile(profile));
+        }
+
+        public boolean isPooled() {
+            return TRANSPORT_POOLED.equals(transport);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Settings)) {
+                return false;
+            }
+            Settings other = (Settings) o;
+            return transport.equals(other.transport)
+                    && maxConnections == other.maxConnections
+                    && maxConnectionsPerRoute == other.maxConnectionsPerRoute
+                    && idleTimeout == other.idleTimeout
+                    && poolTimeout == other.poolTimeout
+                    && ssl.equals(other.ssl);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = transport.hashCode();
+            result = 31 * result + maxConnections;
+            result = 31 * result + maxConnectionsPerRoute;
+            result = 31 * result + (int) (idleTimeout ^ (idleTimeout >>> 32));
+            result = 31 * result + (int) (poolTimeout ^ (poolTimeout >>> 32));
+            result = 31 * result + ssl.hashCode();
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return transport + " (maxConnections=" + maxConnections
+                    + ", maxConnectionsPerRoute=" + maxConnectionsPerRoute
+                    + ", idleTimeout=" + idleTimeout + "ms, poolTimeout=" + poolTimeout + "ms, ssl: " + ssl + ")";
+        }
+    }
+
+    public static HttpTransport create(Settings settings) {
+        if (!settings.isPooled()) {
+            logger.debug("Created {} HTTP transport", settings);
+            return new UrlConnectionTransport(settings.ssl);
+        }
+        return createPooled(settings);
+    }
+
+    static HttpTransport createPooled(Settings settings) {
+        HttpParams params = new BasicHttpParams();
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+        HttpConnectionParams.setSocketBufferSize(params, 8192);
+        HttpConnectionParams.setLinger(params, CLOSE_LINGER);
+        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+        ConnManagerParams.setMaxTotalConnections(params, settings.maxConnections);
+        ConnManagerParams.setMaxConnectionsPerRoute(params,
+                new ConnPerRouteBean(settings.maxConnectionsPerRoute));
+
+        SchemeRegistry registry = new SchemeRegistry();
+        registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        registry.register(new Scheme("https", createSslSocketFactory(settings.ssl), 443));
+
+        ThreadSafeClientConnManager connManager = new BoundedWaitConnManager(params, registry, settings.poolTimeout);
+        DefaultHttpClient client = new DefaultHttpClient(connManager, params);
+        client.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0, false));
+        // honour http.proxyHost / https.proxyHost like HttpURLConnection does
+        client.setRoutePlanner(new ProxySelectorRoutePlanner(registry, ProxySelector.getDefault()));
+
+        IdleConnectionEvictor.watch(connManager, settings.idleTimeout);
+
+        logger.debug("Created {} HTTP transport", settings);
+        return new ApacheHttpTransport(client);
+    }
+
+    private static SSLSocketFactory createSslSocketFactory(SslConfiguration ssl) {
+        SSLSocketFactory factory = new SSLSocketFactory(ssl.getSSLContext());
+        factory.setHostnameVerifier(ssl.verifiesHostname()
+                ? SSLSocketFactory.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER
+                : SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
+        return factory;
+    }
+
+    /**
+     * Releases the connections held by a transport created by this factory.
+     */
+    public static void shutdown(HttpTransport transport) throws IOException {
+        if (transport instanceof ApacheHttpTransport) {
+            IdleConnectionEvictor.forget(((ApacheHttpTransport) transport).getHttpClient().getConnectionManager());
+        }
+        transport.shutdown();
+    }
+
+    /**
+     * Waits at most poolTimeout for a free connection. google-http-client
+     * sets the pool wait of every request to its connect timeout, so the
+     * client wide ConnManagerParams timeout would never apply.
+     */
+    static class BoundedWaitConnManager extends ThreadSafeClientConnManager {
+
+        private final long poolTimeout;
+
+        BoundedWaitConnManager(HttpParams params, SchemeRegistry registry, long poolTimeout) {
+            super(params, registry);
+            this.poolTimeout = poolTimeout;
+        }
+
+        @Override
+        public ClientConnectionRequest requestConnection(HttpRoute route, Object state) {
+            final ClientConnectionRequest request = super.requestConnection(route, state);
+            return new ClientConnectionRequest() {
+                public ManagedClientConnection getConnection(long timeout, TimeUnit unit)
+                        throws InterruptedException, ConnectionPoolTimeoutException {
+                    return request.getConnection(poolTimeout, TimeUnit.MILLISECONDS);
+                }
+
+                public void abortRequest() {
+                    request.abortRequest();
+                }
+            };
+        }
+    }
+
+    /**
+     * Daemon thread that closes expired and idle pooled connections, so a
+     * connection the server has already dropped is not handed out again.
+     */
+    static class IdleConnectionEvictor extends Thread {
+
+        private static final java.util.Map<Object, IdleConnectionEvictor> evictors =
+                new java.util.IdentityHashMap<Object, IdleConnectionEvictor>();
+
+        private final ThreadSafeClientConnManager connManager;
+        private final long idleTimeout;
+        private volatile boolean shutdown;
+
+        private IdleConnectionEvictor(ThreadSafeClientConnManager connManager, long idleTimeout) {
+            super("apigee-idle-connection-evictor");
+            this.connManager = connManager;
+            this.idleTimeout = idleTimeout;
+            setDaemon(true);
+        }
+
+        static synchronized void watch(ThreadSafeClientConnManager connManager, long idleTimeout) {
+            IdleConnectionEvictor evictor = new IdleConnectionEvictor(connManager, idleTimeout);
+            evictors.put(connManager, evictor);
+            evictor.start();
+        }
+
+        static synchronized void forget(Object connManager) {
+            IdleConnectionEvictor evictor = evictors.remove(connManager);
+            if (evictor != null) {
+                evictor.shutdown = true;
+                evictor.interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            long interval = Math.max(1000, idleTimeout / 2);
+            try {
+                while (!shutdown) {
+                    Thread.sleep(interval);
+                    connManager.closeExpiredConnections();
+                    connManager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                // transport was shut down
+            }
+        }
+    }
+}
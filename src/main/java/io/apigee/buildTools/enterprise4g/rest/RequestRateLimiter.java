@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.rest;
+
+import io.apigee.buildTools.enterprise4g.rest.RestUtil.Options;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpRequest;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Limits management API calls to Options.requestsPerSecond per organization,
+ * shared by every thread of the build. Each organization has a token bucket
+ * that holds up to one second worth of calls; a caller that finds it empty
+ * reserves the next free slot and sleeps until then, so waiting callers are
+ * served in order.
+ */
+public class RequestRateLimiter implements HttpExecuteInterceptor {
+
+    static final Pattern ORGANIZATION = Pattern.compile("/organizations/([^/?]+)");
+
+    private final Map<String, TokenBucket> buckets = new HashMap<String, TokenBucket>();
+
+    public void intercept(HttpRequest request) throws IOException {
+        double rate = Options.requestsPerSecond;
+        if (rate <= 0) {
+            return;
+        }
+        long wait = bucket(organization(request.getUrl()), rate).reserve(System.nanoTime());
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the request rate limit");
+            }
+        }
+    }
+
+    TokenBucket bucket(String organization, double rate) {
+        synchronized (buckets) {
+            TokenBucket bucket = buckets.get(organization);
+            if (bucket == null || bucket.rate != rate) {
+                bucket = new TokenBucket(rate, System.nanoTime());
+                buckets.put(organization, bucket);
+            }
+            return bucket;
+        }
+    }
+
+    static String organization(GenericUrl url) {
+        Matcher matcher = ORGANIZATION.matcher(url.build());
+        return matcher.find() ? matcher.group(1) : "";
+    }
+
+    static class TokenBucket {
+
+        final double rate;
+        final double capacity;
+        private double tokens;
+        private long updated;
+
+        TokenBucket(double rate, long now) {
+            this.rate = rate;
+            this.capacity = Math.max(1, rate);
+            this.tokens = capacity;
+            this.updated = now;
+        }
+
+        /**
+         * Takes a token, going into debt if there is none.
+         *
+         * @return nanoseconds to wait before the request may be sent
+         */
+        synchronized long reserve(long now) {
+            if (now > updated) {
+                tokens = Math.min(capacity, tokens + (now - updated) * rate / 1e9);
+                updated = now;
+            }
+            tokens -= 1;
+            return tokens >= 0 ? 0 : (long) (-tokens * 1e9 / rate);
+        }
+    }
+}
@@ -0,0 +1,920 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.rest;
+
+import io.apigee.buildTools.enterprise4g.rest.RestUtil.AppConfig;
+import io.apigee.buildTools.enterprise4g.rest.RestUtil.BundleActivationConfig;
+import io.apigee.buildTools.enterprise4g.rest.RestUtil.BundleDeploymentConfig;
+import io.apigee.buildTools.enterprise4g.rest.RestUtil.Environment;
+import io.apigee.buildTools.enterprise4g.rest.RestUtil.Options;
+import io.apigee.buildTools.enterprise4g.rest.RestUtil.SeamLessDeploymentStatus;
+import io.apigee.buildTools.enterprise4g.utils.PrintUtil;
+import io.apigee.buildTools.enterprise4g.utils.ServerProfile;
+import io.apigee.buildTools.enterprise4g.utils.StringToIntComparator;
+import io.apigee.buildTools.enterprise4g.utils.Tracing;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.UrlEncodedContent;
+import com.google.api.client.testing.http.MockHttpContent;
+import com.google.api.client.util.GenericData;
+import com.google.gson.Gson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Management API operations that return at once with a CompletableFuture
+ * and run on an executor, so that one build can import, activate and
+ * query many proxies and environments at the same time.
+ *
+ * Everything a call depends on is in its Context: the profile and the
+ * deploy options, copied when the context is made. Nothing is shared
+ * between calls but the HTTP transport, the rate limiter, the retry
+ * budget and the circuit breaker, which are meant to be shared, and the
+ * retry and poll settings of RestUtil.Options. The span current on the
+ * calling thread is the parent of the spans of the call.
+ *
+ * The static methods of RestUtil run the same operations on the calling
+ * thread and wait for them.
+ */
+public class RestClient {
+
+    static Logger logger = LoggerFactory.getLogger(RestClient.class);
+    static Gson gson = new Gson();
+
+    /** Runs each task on the thread that submits it */
+    static final Executor CALLING_THREAD = new Executor() {
+        public void execute(Runnable task) {
+            task.run();
+        }
+    };
+
+    /** The client of the blocking RestUtil methods */
+    static final RestClient BLOCKING = new RestClient(CALLING_THREAD);
+
+    /**
+     * The profile and the options of a call.
+     */
+    public static class Context {
+        public final ServerProfile profile;
+        public final int readTimeout;
+        public final boolean validate;
+        public final boolean override;
+        public final boolean force;
+        /** Wait for imports and deletions to become visible if not 0 */
+        public final long delay;
+        public final long minUploadThroughput;
+        public final long uploadThroughputWindow;
+        /** How long to wait for a deployment or revision to settle, DeploymentPoller.DEFAULT_TIMEOUT if not positive */
+        public final long pollTimeout;
+
+        /**
+         * A context for the profile with the current RestUtil.Options.
+         */
+        public Context(ServerProfile profile) {
+            this(profile, Options.readTimeout, Options.validate, Options.override, Options.force, Options.delay,
+                    Options.minUploadThroughput, Options.uploadThroughputWindow, Options.pollTimeout);
+        }
+
+        Context(ServerProfile profile, int readTimeout, boolean validate, boolean override, boolean force,
+                long delay, long minUploadThroughput, long uploadThroughputWindow, long pollTimeout) {
+            this.profile = profile;
+            this.readTimeout = readTimeout;
+            this.validate = validate;
+            this.override = override;
+            this.force = force;
+            this.delay = delay;
+            this.minUploadThroughput = minUploadThroughput;
+            this.uploadThroughputWindow = uploadThroughputWindow;
+            this.pollTimeout = pollTimeout;
+        }
+
+        /**
+         * @return this context for another profile, e.g. another environment
+         */
+        public Context forProfile(ServerProfile profile) {
+            return new Context(profile, readTimeout, validate, override, force, delay,
+                    minUploadThroughput, uploadThroughputWindow, pollTimeout);
+        }
+
+        /**
+         * @return this context with activations done as seamless deployments or not
+         */
+        public Context withOverride(boolean override) {
+            return new Context(profile, readTimeout, validate, override, force, delay,
+                    minUploadThroughput, uploadThroughputWindow, pollTimeout);
+        }
+    }
+
+    private final Executor executor;
+
+    /**
+     * @param executor runs the calls; each call takes a thread for as long as it waits for the server
+     */
+    public RestClient(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * @return an executor that runs each call on a virtual thread of its
+     *         own on Java 21 and later, and on a cached pool of daemon
+     *         threads on earlier versions
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            // the plugin is built for Java 1.8
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            logger.debug("No virtual threads on this Java version, using platform threads");
+            return Executors.newCachedThreadPool(new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "apigee-rest-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    /**
+     * @return the revisions of the application, latest first; empty if the application does not exist yet
+     */
+    public CompletableFuture<List<String>> getRevisions(final Context context) {
+        return submit(new Callable<List<String>>() {
+            public List<String> call() throws IOException {
+                return doGetRevisions(context);
+            }
+        });
+    }
+
+    /**
+     * @return the description of a revision, null if the revision does not exist
+     */
+    public CompletableFuture<String> getRevisionDescription(final Context context, final String revision) {
+        return submit(new Callable<String>() {
+            public String call() throws IOException {
+                return doGetRevisionDescription(context, revision);
+            }
+        });
+    }
+
+    /**
+     * @return the revision deployed to the environment of the profile, "" if there is none or the lookup failed
+     */
+    public CompletableFuture<String> getDeployedRevision(final Context context) {
+        return submit(new Callable<String>() {
+            public String call() throws IOException {
+                return doGetDeployedRevision(context);
+            }
+        });
+    }
+
+    /**
+     * @return the revision created by importing the bundle
+     */
+    public CompletableFuture<String> importBundle(final Context context, final String bundleFile) {
+        return submit(new Callable<String>() {
+            public String call() throws IOException {
+                return doImport(context, bundleFile);
+            }
+        });
+    }
+
+    /**
+     * @return the revision, after replacing its content with the bundle
+     */
+    public CompletableFuture<String> updateBundle(final Context context, final String bundleFile, final String revision) {
+        return submit(new Callable<String>() {
+            public String call() throws IOException {
+                return doUpdate(context, bundleFile, revision);
+            }
+        });
+    }
+
+    /**
+     * Undeploys the revision deployed to the environment of the profile, if any.
+     *
+     * @return RestUtil.STATE_UNDEPLOYED, or RestUtil.STATE_ERROR if it is still deployed
+     */
+    public CompletableFuture<String> deactivate(final Context context) {
+        return submit(new Callable<String>() {
+            public String call() throws IOException {
+                return doDeactivate(context);
+            }
+        });
+    }
+
+    /**
+     * Deploys the revision to the environment of the profile, as a seamless
+     * deployment if the context says override, and waits until every
+     * server has it.
+     *
+     * @return the state of the deployment
+     */
+    public CompletableFuture<String> activate(final Context context, final String revision) {
+        return submit(new Callable<String>() {
+            public String call() throws IOException {
+                return doActivate(context, revision);
+            }
+        });
+    }
+
+    /**
+     * Undeploys the revision deployed to the environment of the profile, then deploys revision.
+     *
+     * @return the state of the deployment
+     */
+    public CompletableFuture<String> refresh(final Context context, final String revision) {
+        return deactivate(context).thenCompose(new Function<String, CompletionStage<String>>() {
+            public CompletionStage<String> apply(String state) {
+                if (!RestUtil.STATE_UNDEPLOYED.equals(state)) {
+                    logger.error("The bundle is not undeployed");
+                    throw new CompletionException(new IOException("Error in undeploying bundle"));
+                }
+                logger.info("Activating Version: " + revision + " For Env Profile: " + context.profile.getEnvironment());
+                return activate(context.withOverride(false), revision);
+            }
+        });
+    }
+
+    /**
+     * Deletes a revision, undeploying it first if it is deployed to the environment of the profile.
+     *
+     * @return the deleted revision
+     */
+    public CompletableFuture<String> delete(final Context context, final String revision) {
+        return submit(new Callable<String>() {
+            public String call() throws IOException {
+                return doDelete(context, revision);
+            }
+        });
+    }
+
+    /**
+     * Waits for a call.
+     *
+     * @return its result
+     * @throws IOException the exception of a failed call, as it was thrown
+     */
+    public static <T> T await(Future<T> call) throws IOException {
+        try {
+            return call.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the management server");
+        } catch (ExecutionException e) {
+            Throwable cause = unwrap(e.getCause());
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    static Throwable unwrap(Throwable e) {
+        while (e instanceof CompletionException && e.getCause() != null) {
+            e = e.getCause();
+        }
+        return e;
+    }
+
+    /**
+     * Runs the call on the executor, with the span current on this thread as its parent.
+     */
+    <T> CompletableFuture<T> submit(final Callable<T> call) {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        final Tracing.Span parent = Tracing.current();
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    Tracing.Span previous = Tracing.attach(parent);
+                    try {
+                        future.complete(call.call());
+                    } catch (Exception e) {
+                        future.completeExceptionally(e);
+                    } catch (Error e) {
+                        future.completeExceptionally(e);
+                        throw e;
+                    } finally {
+                        Tracing.detach(previous);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Lists the revisions of the application, latest first; empty if the
+     * application does not exist yet.
+     */
+    static List<String> doGetRevisions(Context context) throws IOException {
+        return listRevisions(context, true);
+    }
+
+    /**
+     * @param retry whether to retry transient failures; false for the checks
+     *              of an operation that already holds the circuit breaker of
+     *              the host and has its own retries
+     */
+    private static List<String> listRevisions(Context context, boolean retry) throws IOException {
+        ServerProfile profile = context.profile;
+        HttpRequest restRequest = RestUtil.requestFactory()
+                .buildGetRequest(new GenericUrl(profile.getHostUrl() + "/"
+                        + profile.getApi_version() + "/organizations/"
+                        + profile.getOrg() + "/apis/"
+                        + profile.getApplication() + "/revisions"));
+        restRequest.setReadTimeout(context.readTimeout);
+        HttpHeaders headers = new HttpHeaders();
+        headers.setAccept("application/json");
+        headers.setBasicAuthentication(profile.getCredential_user(),
+                profile.getCredential_pwd());
+        restRequest.setHeaders(headers);
+
+        logger.debug("{}", PrintUtil.request(restRequest));
+
+        List<String> revisions = new ArrayList<String>();
+        try {
+            HttpResponse response = retry ? RestUtil.execute("Revision list", restRequest) : RestUtil.send(restRequest);
+            String json = response.parseAsString();
+            logger.debug("{}", PrintUtil.response(response, json));
+            for (String revision : gson.fromJson(json, String[].class)) {
+                revisions.add(revision);
+            }
+            Collections.sort(revisions, new StringToIntComparator());
+        } catch (HttpResponseException e) {
+            if (e.getStatusCode() != 404) {
+                throw e;
+            }
+        }
+        return revisions;
+    }
+
+    /**
+     * @return the description of a revision, null if the revision does not exist
+     */
+    static String doGetRevisionDescription(Context context, String revision) throws IOException {
+        ServerProfile profile = context.profile;
+        HttpRequest restRequest = RestUtil.requestFactory()
+                .buildGetRequest(new GenericUrl(profile.getHostUrl() + "/"
+                        + profile.getApi_version() + "/organizations/"
+                        + profile.getOrg() + "/apis/"
+                        + profile.getApplication() + "/revisions/" + revision));
+        restRequest.setReadTimeout(context.readTimeout);
+        HttpHeaders headers = new HttpHeaders();
+        headers.setAccept("application/json");
+        headers.setBasicAuthentication(profile.getCredential_user(),
+                profile.getCredential_pwd());
+        restRequest.setHeaders(headers);
+
+        logger.debug("{}", PrintUtil.request(restRequest));
+
+        try {
+            HttpResponse response = RestUtil.execute("Lookup of revision " + revision, restRequest);
+            AppConfig appconf = response.parseAs(AppConfig.class);
+            logger.debug("{}", PrintUtil.response(response, appconf));
+            return appconf.description;
+        } catch (HttpResponseException e) {
+            if (e.getStatusCode() != 404) {
+                throw e;
+            }
+            return null;
+        }
+    }
+
+    // This function should do -
+    // Return a revision if there is a active revision
+    // Returns "" if there are no active revision
+
+    static String doGetDeployedRevision(Context context)
+            throws IOException {
+        ServerProfile profile = context.profile;
+
+        BundleDeploymentConfig deployment1 = null;
+
+        try {
+
+            HttpRequest restRequest = RestUtil.requestFactory()
+                    .buildGetRequest(new GenericUrl(profile.getHostUrl() + "/"
+                            + profile.getApi_version() + "/organizations/"
+                            + profile.getOrg() + "/apis/"
+                            + profile.getApplication() + "/deployments"));
+            restRequest.setReadTimeout(context.readTimeout);
+            HttpHeaders headers = new HttpHeaders();
+            headers.setAccept("application/json");
+            headers.setBasicAuthentication(profile.getCredential_user(),
+                    profile.getCredential_pwd());
+            restRequest.setHeaders(headers);
+
+
+            logger.debug("{}", PrintUtil.request(restRequest));
+            HttpResponse response = RestUtil.execute("Deployment lookup", restRequest);
+            deployment1 = response.parseAs(BundleDeploymentConfig.class);
+            logger.debug("{}", PrintUtil.response(response, deployment1));
+
+
+            if (deployment1 != null) {
+                for (Environment env : deployment1.environment) {
+                    if (env.name.equalsIgnoreCase(profile.getEnvironment()))
+                        return env.revision.get(0).name;
+                }
+            }
+
+        } catch (HttpResponseException e) {
+            logger.error(e.getMessage());
+        } catch (Exception e) {
+            logger.error(e.getMessage());
+        }
+
+        //This is not correct , it will always return the 1st env's deployed revision .
+        //return deployment1.environment.get(0).revision.get(0).name;
+        return "";
+
+
+    }
+
+
+    static String doImport(final Context context, String bundleFile)
+            throws IOException {
+        final ServerProfile profile = context.profile;
+
+        BundleUploadContent fContent = new BundleUploadContent(new File(bundleFile),
+                context.minUploadThroughput, context.uploadThroughputWindow);
+        String importedRevision;
+        //testing
+        logger.debug("URL parameters API Version{}", (profile.getApi_version()));
+        logger.debug("URL parameters URL {}", (profile.getHostUrl()));
+        logger.debug("URL parameters Org{}", (profile.getOrg()));
+        logger.debug("URL parameters App {}", (profile.getApplication()));
+
+        //Forcefully validate before deployment
+        String importCmd = profile.getHostUrl() + "/"
+                + profile.getApi_version() + "/organizations/"
+                + profile.getOrg() + "/apis?action=import&name="
+                + profile.getApplication();
+        if (context.validate) {
+            importCmd = importCmd + "&validate=true";
+        }
+
+        final HttpRequest restRequest = RestUtil.requestFactory().buildPostRequest(
+                new GenericUrl(importCmd), fContent);
+        restRequest.setReadTimeout(context.readTimeout);
+        HttpHeaders headers = new HttpHeaders();
+        headers.setAccept("application/json");
+        headers.setBasicAuthentication(profile.getCredential_user(),
+                profile.getCredential_pwd());
+        restRequest.setHeaders(headers);
+
+        // an import creates a new revision every time, so remember the latest
+        // one to tell whether a failed import went through after all
+        final AtomicReference<List<String>> existingRevisions = new AtomicReference<List<String>>();
+
+        PrintUtil.logRequest(logger, restRequest);
+
+        try {
+            AppConfig appconf = RetryPolicy.execute("Import of " + profile.getApplication(),
+                    restRequest.getUrl().getHost(), new RetryPolicy.Attempt<AppConfig>() {
+                public AppConfig call() throws IOException {
+                    if (Options.retryMaxAttempts > 1 && existingRevisions.get() == null) {
+                        // listed in the attempt, so that a failed listing is retried like the import
+                        existingRevisions.set(listRevisions(context, false));
+                    }
+                    HttpResponse response = RestUtil.send(restRequest);
+                    // logger.info(response.parseAsString());
+                    AppConfig appconf = response.parseAs(AppConfig.class);
+                    PrintUtil.logResponse(logger, response, appconf);
+                    return appconf;
+                }
+            }, new RetryPolicy.Recovery<AppConfig>() {
+                public AppConfig recover() throws IOException {
+                    if (existingRevisions.get() == null) {
+                        // the listing failed, the import was not sent
+                        return null;
+                    }
+                    List<String> revisions = listRevisions(context, false);
+                    if (revisions.isEmpty() || existingRevisions.get().contains(revisions.get(0))) {
+                        return null;
+                    }
+                    logger.info("Found revision " + revisions.get(0) + " created by the failed import");
+                    AppConfig appconf = new AppConfig();
+                    appconf.revision = revisions.get(0);
+                    return appconf;
+                }
+            });
+            importedRevision = appconf.revision;
+
+            //Wait until the revision is visible
+            if (context.delay != 0) {
+                DeploymentPoller.awaitRevision(context, appconf.revision, true);
+            }
+        } catch (HttpResponseException e) {
+            logger.error(e.getMessage());
+            throw new IOException(e.getMessage());
+        }
+
+        return importedRevision;
+
+    }
+
+
+    static String doUpdate(Context context, String bundleFile, String revision)
+            throws IOException {
+        ServerProfile profile = context.profile;
+
+        BundleUploadContent fContent = new BundleUploadContent(new File(bundleFile),
+                context.minUploadThroughput, context.uploadThroughputWindow);
+        String importedRevision;
+        //System.out.println("\n\n\nFile path: "+ new File(bundleFile).getCanonicalPath().toString());
+        logger.debug("URL parameters API Version{}", (profile.getApi_version()));
+        logger.debug("URL parameters URL {}", (profile.getHostUrl()));
+        logger.debug("URL parameters Org{}", (profile.getOrg()));
+        logger.debug("URL parameters App {}", (profile.getApplication()));
+
+        //Forcefully validate before deployment
+        String importCmd = profile.getHostUrl() + "/"
+                + profile.getApi_version() + "/organizations/"
+                + profile.getOrg() + "/apis/"
+                + profile.getApplication() + "/revisions/"
+                + revision+"?validate=true";
+
+        if (context.validate) {
+            importCmd = importCmd + "&validate=true";
+        }
+
+        HttpRequest restRequest = RestUtil.requestFactory().buildPostRequest(
+                new GenericUrl(importCmd), fContent);
+        restRequest.setReadTimeout(context.readTimeout);
+        HttpHeaders headers = new HttpHeaders();
+        headers.setAccept("application/json");
+        headers.setBasicAuthentication(profile.getCredential_user(),
+                profile.getCredential_pwd());
+        restRequest.setHeaders(headers);
+
+        PrintUtil.logRequest(logger, restRequest);
+
+        try {
+            // uploading the same bundle to the same revision again does no harm
+            HttpResponse response = RestUtil.execute("Update of revision " + revision, restRequest);
+            AppConfig appconf = response.parseAs(AppConfig.class);
+            importedRevision = appconf.revision;
+            PrintUtil.logResponse(logger, response, appconf);
+
+            //Wait until the revision is visible
+            if (context.delay != 0) {
+                DeploymentPoller.awaitRevision(context, appconf.revision, true);
+            }
+        } catch (HttpResponseException e) {
+            logger.error(e.getMessage());
+            throw new IOException(e.getMessage());
+        }
+
+        return importedRevision;
+
+    }
+
+
+    static String doDeactivate(final Context context)
+            throws IOException {
+        final ServerProfile profile = context.profile;
+        //JsonHttpContent content = new JsonHttpContent(new JacksonFactory(), "{}") ;
+        MockHttpContent content = new MockHttpContent();
+
+        String existingRevision = "";
+        BundleActivationConfig deployment1 = new BundleActivationConfig();
+        try {
+
+            existingRevision = doGetDeployedRevision(context);
+
+            if (existingRevision.length() > 0) //  there are active revisions
+            // deployment then undeploy
+            {
+
+                logger.info("De-activating Version: " + existingRevision + " For Env Profile: " + profile.getEnvironment());
+                String undeployCmd = profile.getHostUrl() + "/"
+                        + profile.getApi_version() + "/organizations/"
+                        + profile.getOrg() + "/environments/"
+                        + profile.getEnvironment() + "/apis/"
+                        + profile.getApplication() + "/revisions/"
+                        + existingRevision
+                        + "/deployments";
+
+
+                final HttpRequest undeployRestRequest = RestUtil.requestFactory().buildDeleteRequest(
+                        new GenericUrl(undeployCmd));
+                undeployRestRequest.setReadTimeout(context.readTimeout);
+                HttpHeaders headers = new HttpHeaders();
+                headers.setAccept("application/json");
+                headers.setContentType("application/x-www-form-urlencoded");
+                headers.setBasicAuthentication(profile.getCredential_user(),
+                        profile.getCredential_pwd());
+                undeployRestRequest.setHeaders(headers);
+
+                HttpResponse response = null;
+
+                PrintUtil.logRequest(logger, undeployRestRequest);
+                final String undeployedRevision = existingRevision;
+                deployment1 = RetryPolicy.execute("Undeployment of revision " + existingRevision,
+                        undeployRestRequest.getUrl().getHost(), new RetryPolicy.Attempt<BundleActivationConfig>() {
+                    public BundleActivationConfig call() throws IOException {
+                        HttpResponse response = RestUtil.send(undeployRestRequest);
+                        BundleActivationConfig deployment = response.parseAs(BundleActivationConfig.class);
+                        PrintUtil.logResponse(logger, response, deployment);
+                        return deployment;
+                    }
+                }, new RetryPolicy.Recovery<BundleActivationConfig>() {
+                    public BundleActivationConfig recover() throws IOException {
+                        // undeploying a revision that is no longer deployed is an error, so look first
+                        BundleActivationConfig deployment;
+                        try {
+                            deployment = DeploymentPoller.getDeployment(context, undeployedRevision);
+                        } catch (HttpResponseException e) {
+                            deployment = null;
+                        }
+                        if (!DeploymentPoller.isUndeployed(deployment)) {
+                            return null;
+                        }
+                        deployment = new BundleActivationConfig();
+                        deployment.state = RestUtil.STATE_UNDEPLOYED;
+                        return deployment;
+                    }
+                });
+
+                //Wait until the revision is undeployed from every server
+                if (!DeploymentPoller.isUndeployed(deployment1)
+                        && DeploymentPoller.awaitUndeployed(context, existingRevision)) {
+                    deployment1.state = RestUtil.STATE_UNDEPLOYED;
+                }
+            } else {
+                //If there are no existing active revisions
+                deployment1.state = RestUtil.STATE_UNDEPLOYED;
+            }
+
+        } catch (HttpResponseException e) {
+            logger.error(e.getMessage());
+            //deployment1.state = "No application was in deployed state";
+            deployment1.state = RestUtil.STATE_ERROR;
+
+        } catch (Exception e) {
+            logger.error(e.getMessage());
+            //deployment1.state = "No application was in deployed state";
+            deployment1.state = RestUtil.STATE_ERROR;
+        } finally {
+
+
+            //Rechecking only if we supply force option.  Checking if still any active revision exists
+            if (context.force) {
+
+                String anyExistingRevision = "";
+
+                try {
+                    logger.info("Checking if any deployed version still exists for Env Profile: " + profile.getEnvironment());
+                    anyExistingRevision = doGetDeployedRevision(context);
+
+                } catch (Exception e) {
+                    //deployment1.state = "\nNo application is in deployed state\n";
+                    logger.error("Application couldn't be undeployed :: " + anyExistingRevision);
+                    deployment1.state = RestUtil.STATE_ERROR;
+                }
+                //check  if there is a any other existing revision and throw exception if its there
+                if (anyExistingRevision.length() > 0) // Looks like still some active version exist
+                {
+                    logger.warn("Application couldn't be undeployed :: " + anyExistingRevision);
+                    deployment1.state = RestUtil.STATE_ERROR;
+                }
+
+            }
+
+
+        }
+
+        return deployment1.state;
+
+    }
+
+
+    /**
+     * Activates a revision, as a seamless deployment over the revision that
+     * is currently deployed when override is set.
+     */
+    static String doActivate(final Context context, final String revision)
+            throws IOException {
+        final ServerProfile profile = context.profile;
+        final boolean override = context.override;
+
+        //JsonHttpContent content = new JsonHttpContent(new JacksonFactory(), "{}") ;
+
+        try {
+
+            UrlEncodedContent urlEncodedContent = null;
+
+            HttpHeaders headers = new HttpHeaders();
+            headers.setAccept("application/json");
+            //headers.setContentType("application/x-www-form-urlencoded");
+            headers.setBasicAuthentication(profile.getCredential_user(),
+                    profile.getCredential_pwd());
+
+            String deployCmd = profile.getHostUrl() + "/"
+                    + profile.getApi_version() + "/organizations/"
+                    + profile.getOrg() + "/environments/"
+                    + profile.getEnvironment() + "/apis/"
+                    + profile.getApplication() + "/revisions/" + revision
+                    + "/deployments";
+
+            if (override) {
+                GenericData data = new GenericData();
+                data.set("override", "true");
+                data.set("delay", "5");
+                urlEncodedContent = new UrlEncodedContent(data);
+            }
+
+
+            final HttpRequest deployRestRequest = RestUtil.requestFactory().buildPostRequest(
+                    new GenericUrl(deployCmd), urlEncodedContent);
+            deployRestRequest.setReadTimeout(context.readTimeout);
+            deployRestRequest.setHeaders(headers);
+
+            PrintUtil.logRequest(logger, deployRestRequest);
+
+            return RetryPolicy.execute("Activation of revision " + revision + " in " + profile.getEnvironment(),
+                    deployRestRequest.getUrl().getHost(), new RetryPolicy.Attempt<String>() {
+                public String call() throws IOException {
+                    return activationState(context, revision, RestUtil.send(deployRestRequest));
+                }
+            }, new RetryPolicy.Recovery<String>() {
+                public String recover() throws IOException {
+                    // activating a revision that is already deployed is an error, so look first
+                    try {
+                        return DeploymentPoller.isDeployed(DeploymentPoller.getDeployment(context, revision))
+                                ? RestUtil.STATE_DEPLOYED : null;
+                    } catch (HttpResponseException e) {
+                        return null;
+                    }
+                }
+            });
+
+        } catch (Exception e) {
+            logger.error(e.getMessage());
+            throw new IOException(e);
+        }
+
+    }
+
+
+    static String activationState(Context context, String revision, HttpResponse response)
+            throws IOException {
+        ServerProfile profile = context.profile;
+
+        if (context.override) {
+            SeamLessDeploymentStatus deployment3 = response.parseAs(SeamLessDeploymentStatus.class);
+            Iterator<BundleActivationConfig> iter =   deployment3.environment.iterator();
+            while (iter.hasNext()){
+                BundleActivationConfig config = iter.next();
+                if (config.environment.equalsIgnoreCase(profile.getEnvironment())) {
+                    if (!config.state.equalsIgnoreCase("deployed"))
+                     {
+                         logger.info("\nWaiting to assert bundle activation.....");
+                         if (DeploymentPoller.awaitDeployed(context, revision))
+                         {
+                             logger.info("\nDeployed revision is: " + revision);
+                             return RestUtil.STATE_DEPLOYED;
+                         }
+                         logger.error("Deployment failed to activate");
+                         throw new IOException("Deployment failed: Bundle did not activate within expected time. Please check deployment status manually before trying again");
+                     }
+                    else {
+                        PrintUtil.logResponse(logger, response, deployment3);
+                        logger.info("\nDeployed revision is: " + revision);
+                        return RestUtil.STATE_DEPLOYED;
+                    }
+                }
+            }
+
+        }
+
+        BundleActivationConfig deployment2 = response.parseAs(BundleActivationConfig.class);
+        PrintUtil.logResponse(logger, response, deployment2);
+        logger.info("\nDeployed revision is: " + revision);
+
+        //Wait until the revision is deployed on every server
+        if (!DeploymentPoller.isDeployed(deployment2)) {
+            if (!DeploymentPoller.awaitDeployed(context, revision)) {
+                throw new IOException("Revision " + revision + " did not reach the deployed state in "
+                        + profile.getEnvironment() + " within " + DeploymentPoller.timeout(context) + " ms");
+            }
+            deployment2.state = RestUtil.STATE_DEPLOYED;
+        }
+
+        return deployment2.state;
+
+    }
+
+
+    static String doDelete(final Context context, final String revision)
+            throws IOException {
+        final ServerProfile profile = context.profile;
+        // get the deployed revision
+        String deployed_revision = "";
+
+        try {
+            deployed_revision = doGetDeployedRevision(context);
+        } catch (Exception e) {
+            throw new IOException("Error fetching deployed revision");
+        }
+
+
+        if (deployed_revision.equals(revision)) // the same version is the active bundle deactivate first
+        {
+            doDeactivate(context);
+        }
+
+        HttpHeaders headers = new HttpHeaders();
+        headers.setAccept("application/json");
+        headers.setContentType("application/octet-stream");
+        headers.setBasicAuthentication(profile.getCredential_user(),
+                profile.getCredential_pwd());
+        final HttpRequest deleteRestRequest = RestUtil.requestFactory().buildDeleteRequest(
+                new GenericUrl(profile.getHostUrl() + "/"
+                        + profile.getApi_version() + "/organizations/"
+                        + profile.getOrg() + "/apis/"
+                        + profile.getApplication() + "/revisions/" + revision));
+        deleteRestRequest.setReadTimeout(context.readTimeout);
+        deleteRestRequest.setHeaders(headers);
+
+        PrintUtil.logRequest(logger, deleteRestRequest);
+
+        AppConfig deleteResponse = RetryPolicy.execute("Deletion of revision " + revision,
+                deleteRestRequest.getUrl().getHost(), new RetryPolicy.Attempt<AppConfig>() {
+            public AppConfig call() throws IOException {
+                HttpResponse response = RestUtil.send(deleteRestRequest);
+                //		String deleteResponse = response.parseAsString();
+                AppConfig deleteResponse = response.parseAs(AppConfig.class);
+                PrintUtil.logResponse(logger, response, deleteResponse);
+                return deleteResponse;
+            }
+        }, new RetryPolicy.Recovery<AppConfig>() {
+            public AppConfig recover() throws IOException {
+                // deleting a revision twice fails with a 404, so look first
+                if (DeploymentPoller.revisionExists(context, revision)) {
+                    return null;
+                }
+                AppConfig deleteResponse = new AppConfig();
+                deleteResponse.revision = revision;
+                return deleteResponse;
+            }
+        });
+
+        //Wait until the revision is gone
+        if (context.delay != 0) {
+            DeploymentPoller.awaitRevision(context, revision, false);
+        }
+
+        return deleteResponse.getRevision();
+
+    }
+
+}
@@ -15,33 +15,26 @@
  */
 package io.apigee.buildTools.enterprise4g.rest;
 
-import io.apigee.buildTools.enterprise4g.utils.PrintUtil;
+import io.apigee.buildTools.enterprise4g.utils.BuildMetrics;
 import io.apigee.buildTools.enterprise4g.utils.ServerProfile;
-import io.apigee.buildTools.enterprise4g.utils.StringToIntComparator;
+import io.apigee.buildTools.enterprise4g.utils.Tracing;
 import com.google.api.client.http.*;
-import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson.JacksonFactory;
-import com.google.api.client.testing.http.MockHttpContent;
-import com.google.api.client.util.GenericData;
 import com.google.api.client.util.Key;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
-import org.apache.maven.plugin.MojoExecutionException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.net.ssl.HttpsURLConnection;
-import java.io.File;
 import java.io.IOException;
-import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
 
 
 public class RestUtil {
 
-    static final HttpTransport HTTP_TRANSPORT = new NetHttpTransport();
+    static HttpTransportFactory.Settings transportSettings;
+    static HttpTransport HTTP_TRANSPORT;
     static final JsonFactory JSON_FACTORY = new JacksonFactory();
     static String versionRevision;
     static Logger logger = LoggerFactory.getLogger(RestUtil.class);
@@ -60,9 +53,23 @@ public class RestUtil {
         public static boolean update;
         public static boolean inactive;
         public static boolean override;
+        public static boolean dedupe;
         public static boolean validate;
         public static long delay;
         public static long override_delay;
+        public static int readTimeout;
+        public static long minUploadThroughput;
+        public static long uploadThroughputWindow;
+        public static long pollTimeout = DeploymentPoller.DEFAULT_TIMEOUT;
+        public static long pollInterval = DeploymentPoller.DEFAULT_INTERVAL;
+        public static long pollMaxInterval = DeploymentPoller.DEFAULT_MAX_INTERVAL;
+        public static double requestsPerSecond;
+        public static int retryMaxAttempts = RetryPolicy.DEFAULT_MAX_ATTEMPTS;
+        public static long retryBudget = RetryPolicy.DEFAULT_BUDGET;
+        public static long retryInitialDelay = RetryPolicy.DEFAULT_INITIAL_DELAY;
+        public static long retryMaxDelay = RetryPolicy.DEFAULT_MAX_DELAY;
+        public static int circuitBreakerThreshold = CircuitBreaker.DEFAULT_THRESHOLD;
+        public static long circuitBreakerCooldown = CircuitBreaker.DEFAULT_COOLDOWN;
 
     }
 
@@ -169,6 +176,9 @@ public class RestUtil {
         @Key
         public long createdAt;
 
+        @Key
+        public String description;
+
         @Key
         public String createdBy;
 
@@ -209,495 +219,215 @@ public class RestUtil {
     }
 
 
-    static HttpRequestFactory REQUEST_FACTORY = HTTP_TRANSPORT
-            .createRequestFactory(new HttpRequestInitializer() {
-                // @Override
-                public void initialize(HttpRequest request) {
-                    request.setParser(JSON_FACTORY.createJsonObjectParser());
-                    XTrustProvider.install();
-                    FakeHostnameVerifier _hostnameVerifier = new FakeHostnameVerifier();
-                    // Install the all-trusting host name verifier:
-                    HttpsURLConnection.setDefaultHostnameVerifier(_hostnameVerifier);
-
-                }
-            });
-
-    public static void getRevision(ServerProfile profile) throws IOException {
-
-        // trying to construct the URL like
-        // https://api.enterprise.apigee.com/v1/organizations/apigee-cs/apis/taskservice/
-        // response is like
-        // {
-        // "name" : "taskservice1",
-        // "revision" : [ "1" ]
-        // }
-        HttpRequest restRequest = REQUEST_FACTORY
-                .buildGetRequest(new GenericUrl(profile.getHostUrl() + "/"
-                        + profile.getApi_version() + "/organizations/"
-                        + profile.getOrg() + "/apis/"
-                        + profile.getApplication() + "/"));
-        restRequest.setReadTimeout(0);
-        HttpHeaders headers = new HttpHeaders();
-        headers.setAccept("application/json");
-        headers.setBasicAuthentication(profile.getCredential_user(),
-                profile.getCredential_pwd());
-        restRequest.setHeaders(headers);
-
-        logger.info(PrintUtil.formatRequest(restRequest));
+    static final RequestRateLimiter RATE_LIMITER = new RequestRateLimiter();
 
-        try {
-            HttpResponse response = restRequest.execute();
-            AppRevision apprev = response.parseAs(AppRevision.class);
-            Collections.sort(apprev.revision, new StringToIntComparator());
-            setVersionRevision(apprev.revision.get(0));
-            logger.info(PrintUtil.formatResponse(response, gson.toJson(apprev).toString()));
-        } catch (HttpResponseException e) {
-            logger.error(e.getMessage());
+    static final HttpRequestInitializer REQUEST_INITIALIZER = new HttpRequestInitializer() {
+        // @Override
+        public void initialize(HttpRequest request) {
+            request.setParser(JSON_FACTORY.createJsonObjectParser());
+            request.setInterceptor(RATE_LIMITER);
+            // trust and host name settings are part of the transport, see SslConfiguration
         }
-    }
-
-    // This function should do -
-    // Return a revision if there is a active revision
-    // Returns "" if there are no active revision
-
-    public static String getDeployedRevision(ServerProfile profile)
-            throws IOException {
-
-        BundleDeploymentConfig deployment1 = null;
-
-        try {
-
-            HttpRequest restRequest = REQUEST_FACTORY
-                    .buildGetRequest(new GenericUrl(profile.getHostUrl() + "/"
-                            + profile.getApi_version() + "/organizations/"
-                            + profile.getOrg() + "/apis/"
-                            + profile.getApplication() + "/deployments"));
-            restRequest.setReadTimeout(0);
-            HttpHeaders headers = new HttpHeaders();
-            headers.setAccept("application/json");
-            headers.setBasicAuthentication(profile.getCredential_user(),
-                    profile.getCredential_pwd());
-            restRequest.setHeaders(headers);
-
-
-            logger.debug(PrintUtil.formatRequest(restRequest));
-            HttpResponse response = restRequest.execute();
-            deployment1 = response.parseAs(BundleDeploymentConfig.class);
-            logger.debug(PrintUtil.formatResponse(response, gson.toJson(deployment1).toString()));
-
-
-            if (deployment1 != null) {
-                for (Environment env : deployment1.environment) {
-                    if (env.name.equalsIgnoreCase(profile.getEnvironment()))
-                        return env.revision.get(0).name;
-                }
+    };
+
+    private static volatile HttpRequestFactory REQUEST_FACTORY;
+
+    /**
+     * Returns the request factory of the current transport. When no profile
+     * has configured one, the default net transport is created on first use
+     * rather than when this class is loaded.
+     */
+    static HttpRequestFactory requestFactory() {
+        HttpRequestFactory factory = REQUEST_FACTORY;
+        if (factory != null) {
+            return factory;
+        }
+        synchronized (RestUtil.class) {
+            if (REQUEST_FACTORY == null) {
+                HttpTransportFactory.Settings settings = new HttpTransportFactory.Settings(
+                        HttpTransportFactory.TRANSPORT_NET, null, null, null);
+                HTTP_TRANSPORT = HttpTransportFactory.create(settings);
+                REQUEST_FACTORY = HTTP_TRANSPORT.createRequestFactory(REQUEST_INITIALIZER);
+                transportSettings = settings;
             }
-
-        } catch (HttpResponseException e) {
-            logger.error(e.getMessage());
-        } catch (Exception e) {
-            logger.error(e.getMessage());
+            return REQUEST_FACTORY;
         }
-
-        //This is not correct , it will always return the 1st env's deployed revision .
-        //return deployment1.environment.get(0).revision.get(0).name;
-        return "";
-
-
     }
 
-
-    public static String uploadBundle(ServerProfile profile, String bundleFile)
-            throws IOException {
-
-        FileContent fContent = new FileContent("application/octet-stream",
-                new File(bundleFile));
-        //testing
-        logger.debug("URL parameters API Version{}", (profile.getApi_version()));
-        logger.debug("URL parameters URL {}", (profile.getHostUrl()));
-        logger.debug("URL parameters Org{}", (profile.getOrg()));
-        logger.debug("URL parameters App {}", (profile.getApplication()));
-
-        //Forcefully validate before deployment
-        String importCmd = profile.getHostUrl() + "/"
-                + profile.getApi_version() + "/organizations/"
-                + profile.getOrg() + "/apis?action=import&name="
-                + profile.getApplication();
-        if (Options.validate) {
-            importCmd = importCmd + "&validate=true";
+    /**
+     * Selects the HTTP transport from the profile settings. The transport is
+     * only rebuilt when the settings change, so all modules of a reactor
+     * build share one connection pool.
+     */
+    public static synchronized void configureTransport(ServerProfile profile) {
+        HttpTransportFactory.Settings settings = HttpTransportFactory.Settings.fromProfile(profile);
+        if (settings.equals(transportSettings)) {
+            return;
         }
+        logger.info("Using " + settings + " HTTP transport");
+        setHttpTransport(HttpTransportFactory.create(settings));
+        transportSettings = settings;
+    }
 
-        HttpRequest restRequest = REQUEST_FACTORY.buildPostRequest(
-                new GenericUrl(importCmd), fContent);
-        restRequest.setReadTimeout(0);
-        HttpHeaders headers = new HttpHeaders();
-        headers.setAccept("application/json");
-        headers.setBasicAuthentication(profile.getCredential_user(),
-                profile.getCredential_pwd());
-        restRequest.setHeaders(headers);
-
-        logger.info(PrintUtil.formatRequest(restRequest));
-
-        try {
-            HttpResponse response = restRequest.execute();
-
-
-            // logger.info(response.parseAsString());
-            AppConfig appconf = response.parseAs(AppConfig.class);
-            setVersionRevision(appconf.revision);
-            logger.info(PrintUtil.formatResponse(response, gson.toJson(appconf).toString()));
-
-            //Introduce Delay
-            if (Options.delay != 0) {
-                try {
-                    logger.info("Delay of " + Options.delay + " milli second");
-                    Thread.sleep(Options.delay);
-                } catch (InterruptedException e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
-                }
+    /**
+     * Replaces the transport used for all management API calls.
+     */
+    public static synchronized void setHttpTransport(HttpTransport transport) {
+        HttpTransport previous = HTTP_TRANSPORT;
+        HTTP_TRANSPORT = transport;
+        REQUEST_FACTORY = transport.createRequestFactory(REQUEST_INITIALIZER);
+        transportSettings = null;
+        if (previous != null && previous != transport) {
+            try {
+                HttpTransportFactory.shutdown(previous);
+            } catch (IOException e) {
+                logger.debug("Error shutting down HTTP transport: " + e.getMessage());
             }
-        } catch (HttpResponseException e) {
-            logger.error(e.getMessage());
-            throw new IOException(e.getMessage());
         }
-
-        return getVersionRevision();
-
     }
 
+    /**
+     * Executes an idempotent request, retrying transient failures.
+     */
+    static HttpResponse execute(String operation, final HttpRequest request) throws IOException {
+        return RetryPolicy.execute(operation, request.getUrl().getHost(), new RetryPolicy.Attempt<HttpResponse>() {
+            public HttpResponse call() throws IOException {
+                return send(request);
+            }
+        });
+    }
 
-    public static String updateBundle(ServerProfile profile, String bundleFile, String revision)
-            throws IOException {
-
-        FileContent fContent = new FileContent("application/octet-stream",
-                new File(bundleFile));
-        //System.out.println("\n\n\nFile path: "+ new File(bundleFile).getCanonicalPath().toString());
-        logger.debug("URL parameters API Version{}", (profile.getApi_version()));
-        logger.debug("URL parameters URL {}", (profile.getHostUrl()));
-        logger.debug("URL parameters Org{}", (profile.getOrg()));
-        logger.debug("URL parameters App {}", (profile.getApplication()));
-
-        //Forcefully validate before deployment
-        String importCmd = profile.getHostUrl() + "/"
-                + profile.getApi_version() + "/organizations/"
-                + profile.getOrg() + "/apis/"
-                + profile.getApplication() + "/revisions/"
-                + revision+"?validate=true";
-
-        if (Options.validate) {
-            importCmd = importCmd + "&validate=true";
+    /**
+     * Executes a request once, recording it in the BuildMetrics and as a
+     * client span whose trace context goes along in a traceparent header.
+     */
+    static HttpResponse send(HttpRequest request) throws IOException {
+        long length = -1;
+        if (request.getContent() != null) {
+            length = request.getContent().getLength();
+        }
+        String url = request.getUrl().build();
+        int attempt = RetryPolicy.currentAttempt();
+        BuildMetrics.Call call = BuildMetrics.startCall(request.getMethod().name(), url, length, attempt);
+        Tracing.Span span = Tracing.startClient(call.method + " " + call.endpoint)
+                .set("http.request.method", call.method)
+                .set("url.full", url)
+                .set("apigee.proxy", call.proxy)
+                .set("http.request.resend_count", attempt > 1 ? Integer.valueOf(attempt - 1) : null)
+                .set("http.request.body.size", length >= 0 ? Long.valueOf(length) : null);
+        if (span.traceparent() != null) {
+            request.getHeaders().set(Tracing.TRACEPARENT, span.traceparent());
         }
-
-        HttpRequest restRequest = REQUEST_FACTORY.buildPostRequest(
-                new GenericUrl(importCmd), fContent);
-        restRequest.setReadTimeout(0);
-        HttpHeaders headers = new HttpHeaders();
-        headers.setAccept("application/json");
-        headers.setBasicAuthentication(profile.getCredential_user(),
-                profile.getCredential_pwd());
-        restRequest.setHeaders(headers);
-
-        logger.info(PrintUtil.formatRequest(restRequest));
-
         try {
-            HttpResponse response = restRequest.execute();
-            AppConfig appconf = response.parseAs(AppConfig.class);
-            setVersionRevision(appconf.revision);
-            logger.info(PrintUtil.formatResponse(response, gson.toJson(appconf).toString()));
-
-            //Introduce Delay
-            if (Options.delay != 0) {
-                try {
-                    logger.info("Delay of " + Options.delay + " milli second");
-                    Thread.sleep(Options.delay);
-                } catch (InterruptedException e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
-                }
-            }
+            HttpResponse response = request.execute();
+            call.end(response.getStatusCode(), response.getHeaders().getContentLength());
+            span.set("http.response.status_code", response.getStatusCode()).succeeded();
+            return response;
         } catch (HttpResponseException e) {
-            logger.error(e.getMessage());
-            throw new IOException(e.getMessage());
+            call.end(e.getStatusCode(), e.getHeaders() != null ? e.getHeaders().getContentLength() : null);
+            span.set("http.response.status_code", e.getStatusCode()).failed(e);
+            throw e;
+        } catch (IOException e) {
+            call.fail(e);
+            span.failed(e);
+            throw e;
+        } catch (RuntimeException e) {
+            call.fail(e);
+            span.failed(e);
+            throw e;
+        } finally {
+            span.end();
         }
-
-        return getVersionRevision();
-
     }
 
-
-    public static String deactivateBundle(ServerProfile profile)
-            throws IOException {
-        //JsonHttpContent content = new JsonHttpContent(new JacksonFactory(), "{}") ;
-        MockHttpContent content = new MockHttpContent();
-
-        String existingRevision = "";
-        BundleActivationConfig deployment1 = new BundleActivationConfig();
+    /**
+     * Sets the version revision to the latest revision of the application.
+     */
+    public static void getRevision(ServerProfile profile) throws IOException {
         try {
-
-            existingRevision = getDeployedRevision(profile);
-
-            if (existingRevision.length() > 0) //  there are active revisions
-            // deployment then undeploy
-            {
-
-                logger.info("De-activating Version: " + existingRevision + " For Env Profile: " + profile.getEnvironment());
-                String undeployCmd = profile.getHostUrl() + "/"
-                        + profile.getApi_version() + "/organizations/"
-                        + profile.getOrg() + "/environments/"
-                        + profile.getEnvironment() + "/apis/"
-                        + profile.getApplication() + "/revisions/"
-                        + existingRevision
-                        + "/deployments";
-
-
-                HttpRequest undeployRestRequest = REQUEST_FACTORY.buildDeleteRequest(
-                        new GenericUrl(undeployCmd));
-                undeployRestRequest.setReadTimeout(0);
-                HttpHeaders headers = new HttpHeaders();
-                headers.setAccept("application/json");
-                headers.setContentType("application/x-www-form-urlencoded");
-                headers.setBasicAuthentication(profile.getCredential_user(),
-                        profile.getCredential_pwd());
-                undeployRestRequest.setHeaders(headers);
-
-                HttpResponse response = null;
-
-                logger.info(PrintUtil.formatRequest(undeployRestRequest));
-                response = undeployRestRequest.execute();
-                deployment1 = response.parseAs(BundleActivationConfig.class);
-                logger.info(PrintUtil.formatResponse(response, gson.toJson(deployment1).toString()));
-
-                //Introduce Delay
-                if (Options.delay != 0) {
-                    try {
-                        logger.info("Delay of " + Options.delay + " milli second");
-                        Thread.sleep(Options.delay);
-                    } catch (InterruptedException e) {
-                        // TODO Auto-generated catch block
-                        e.printStackTrace();
-                    }
-                }
-            } else {
-                //If there are no existing active revisions
-                deployment1.state = STATE_UNDEPLOYED;
+            List<String> revisions = getRevisions(profile);
+            if (revisions.isEmpty()) {
+                logger.error("No revisions of " + profile.getApplication() + " found");
+                return;
             }
-
+            setVersionRevision(revisions.get(0));
         } catch (HttpResponseException e) {
             logger.error(e.getMessage());
-            //deployment1.state = "No application was in deployed state";
-            deployment1.state = STATE_ERROR;
-
-        } catch (Exception e) {
-            logger.error(e.getMessage());
-            //deployment1.state = "No application was in deployed state";
-            deployment1.state = STATE_ERROR;
-        } finally {
+        }
+    }
 
+    /**
+     * Lists the revisions of the application, latest first; empty if the
+     * application does not exist yet.
+     */
+    public static List<String> getRevisions(ServerProfile profile) throws IOException {
+        return RestClient.await(RestClient.BLOCKING.getRevisions(new RestClient.Context(profile)));
+    }
 
-            //Rechecking only if we supply force option.  Checking if still any active revision exists
-            if (Options.force) {
+    /**
+     * @return the description of a revision, null if the revision does not exist
+     */
+    public static String getRevisionDescription(ServerProfile profile, String revision) throws IOException {
+        return RestClient.await(RestClient.BLOCKING.getRevisionDescription(new RestClient.Context(profile), revision));
+    }
 
-                String anyExistingRevision = "";
+    // This function should do -
+    // Return a revision if there is a active revision
+    // Returns "" if there are no active revision
 
-                try {
-                    logger.info("Checking if any deployed version still exists for Env Profile: " + profile.getEnvironment());
-                    anyExistingRevision = getDeployedRevision(profile);
+    public static String getDeployedRevision(ServerProfile profile)
+            throws IOException {
+        return RestClient.await(RestClient.BLOCKING.getDeployedRevision(new RestClient.Context(profile)));
+    }
 
-                } catch (Exception e) {
-                    //deployment1.state = "\nNo application is in deployed state\n";
-                    logger.error("Application couldn't be undeployed :: " + anyExistingRevision);
-                    deployment1.state = STATE_ERROR;
-                }
-                //check  if there is a any other existing revision and throw exception if its there
-                if (anyExistingRevision.length() > 0) // Looks like still some active version exist
-                {
-                    logger.warn("Application couldn't be undeployed :: " + anyExistingRevision);
-                    deployment1.state = STATE_ERROR;
-                }
 
-            }
+    public static String uploadBundle(ServerProfile profile, String bundleFile)
+            throws IOException {
+        String importedRevision = RestClient.await(RestClient.BLOCKING.importBundle(new RestClient.Context(profile), bundleFile));
+        setVersionRevision(importedRevision);
+        return importedRevision;
+    }
 
 
-        }
+    public static String updateBundle(ServerProfile profile, String bundleFile, String revision)
+            throws IOException {
+        String importedRevision = RestClient.await(RestClient.BLOCKING.updateBundle(new RestClient.Context(profile), bundleFile, revision));
+        setVersionRevision(importedRevision);
+        return importedRevision;
+    }
 
-        return deployment1.state;
 
+    public static String deactivateBundle(ServerProfile profile)
+            throws IOException {
+        return RestClient.await(RestClient.BLOCKING.deactivate(new RestClient.Context(profile)));
     }
 
 
     public static String refreshBundle(ServerProfile profile, String revision)
             throws IOException {
-
-        String state = "";
-        try {
-
-            state = deactivateBundle(profile); // de-activating the existing
-            // bundle
-            if (!state.equals(STATE_UNDEPLOYED)) {
-                throw new IOException("The bundle is not undeployed");
-            }
-        } catch (Exception e) {
-            logger.error(e.getMessage());
-            throw new IOException("Error in undeploying bundle");
-        }
-
-        logger.info("Activating Version: " + revision + " For Env Profile: " + profile.getEnvironment());
-        return activateBundleRevision(profile, revision);
-
+        return RestClient.await(RestClient.BLOCKING.refresh(new RestClient.Context(profile), revision));
     }
 
 
     public static String activateBundleRevision(ServerProfile profile, String revision)
             throws IOException {
+        return activateBundleRevision(profile, revision, Options.override);
+    }
 
-        String state = "";
-
-        //JsonHttpContent content = new JsonHttpContent(new JacksonFactory(), "{}") ;
-
-        BundleActivationConfig deployment2 = new BundleActivationConfig();
-
-        try {
-
-            UrlEncodedContent urlEncodedContent = null;
-
-            HttpHeaders headers = new HttpHeaders();
-            headers.setAccept("application/json");
-            //headers.setContentType("application/x-www-form-urlencoded");
-            headers.setBasicAuthentication(profile.getCredential_user(),
-                    profile.getCredential_pwd());
-
-            String deployCmd = profile.getHostUrl() + "/"
-                    + profile.getApi_version() + "/organizations/"
-                    + profile.getOrg() + "/environments/"
-                    + profile.getEnvironment() + "/apis/"
-                    + profile.getApplication() + "/revisions/" + revision
-                    + "/deployments";
-
-            if (Options.override) {
-                GenericData data = new GenericData();
-                data.set("override", "true");
-                data.set("delay", "5");
-                urlEncodedContent = new UrlEncodedContent(data);
-            }
-
-
-            HttpRequest deployRestRequest = REQUEST_FACTORY.buildPostRequest(
-                    new GenericUrl(deployCmd), urlEncodedContent);
-            deployRestRequest.setReadTimeout(0);
-            deployRestRequest.setHeaders(headers);
-
-
-            HttpResponse response = null;
-            logger.info(PrintUtil.formatRequest(deployRestRequest));
-
-            response = deployRestRequest.execute();
-
-            if (Options.override) {
-                SeamLessDeploymentStatus deployment3 = response.parseAs(SeamLessDeploymentStatus.class);
-                Iterator<BundleActivationConfig> iter =   deployment3.environment.iterator();
-                while (iter.hasNext()){
-                    BundleActivationConfig config = iter.next();
-                    if (config.environment.equalsIgnoreCase(profile.getEnvironment())) {
-                        if (!config.state.equalsIgnoreCase("deployed"))
-                         {
-                             logger.info("\nWaiting to assert bundle activation.....");
-                             Thread.sleep(10);
-                             if (getDeployedRevision(profile).equalsIgnoreCase(revision))
-                             {
-                                 logger.info("\nDeployed revision is: " + getVersionRevision());
-                                 return "deployed";
-                             }
-                             else
-                                 logger.error("Deployment failed to activate");
-                                 throw new MojoExecutionException("Deployment failed: Bundle did not activate within expected time. Please check deployment status manually before trying again");
-                         }
-                        else {
-                            logger.info(PrintUtil.formatResponse(response, gson.toJson(deployment3).toString()));
-                        }
-                    }
-                }
-
-            }
-
-            deployment2 = response.parseAs(BundleActivationConfig.class);
-            logger.info(PrintUtil.formatResponse(response, gson.toJson(deployment2).toString()));
-            logger.info("\nDeployed revision is: "+getVersionRevision());
-
-            //Introduce Delay
-            if (Options.delay != 0) {
-                try {
-                    logger.debug("Delay of " + Options.delay + " milli second");
-                    Thread.sleep(Options.delay);
-                } catch (InterruptedException e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
-                }
-            }
-
-
-        } catch (Exception e) {
-            logger.error(e.getMessage());
-            throw new IOException(e);
-        }
-
-        return deployment2.state;
 
+    /**
+     * Activates a revision, as a seamless deployment over the revision that
+     * is currently deployed when override is set.
+     */
+    public static String activateBundleRevision(ServerProfile profile, String revision, boolean override)
+            throws IOException {
+        return RestClient.await(RestClient.BLOCKING.activate(new RestClient.Context(profile).withOverride(override), revision));
     }
 
 
     public static String deleteBundle(ServerProfile profile, String revision)
             throws IOException {
-        // get the deployed revision
-        String deployed_revision = "";
-
-        try {
-            deployed_revision = getDeployedRevision(profile);
-        } catch (Exception e) {
-            throw new IOException("Error fetching deployed revision");
-        }
-
-
-        if (deployed_revision.equals(revision)) // the same version is the active bundle deactivate first
-        {
-            deactivateBundle(profile);
-        }
-
-        HttpHeaders headers = new HttpHeaders();
-        headers.setAccept("application/json");
-        headers.setContentType("application/octet-stream");
-        headers.setBasicAuthentication(profile.getCredential_user(),
-                profile.getCredential_pwd());
-        HttpRequest deleteRestRequest = REQUEST_FACTORY.buildDeleteRequest(
-                new GenericUrl(profile.getHostUrl() + "/"
-                        + profile.getApi_version() + "/organizations/"
-                        + profile.getOrg() + "/apis/"
-                        + profile.getApplication() + "/revisions/" + revision));
-        deleteRestRequest.setReadTimeout(0);
-        deleteRestRequest.setHeaders(headers);
-
-        HttpResponse response = null;
-
-        logger.info(PrintUtil.formatRequest(deleteRestRequest));
-        response = deleteRestRequest.execute();
-
-        //		String deleteResponse = response.parseAsString();
-        AppConfig deleteResponse = response.parseAs(AppConfig.class);
-        logger.info(PrintUtil.formatResponse(response, gson.toJson(deleteResponse).toString()));
-
-        //Introduce Delay
-        if (Options.delay != 0) {
-            try {
-                logger.info("Delay of " + Options.delay + " milli second");
-                Thread.sleep(Options.delay);
-            } catch (InterruptedException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
-            }
-        }
-
-        return deleteResponse.getRevision();
-
+        return RestClient.await(RestClient.BLOCKING.delete(new RestClient.Context(profile), revision));
     }
 
     public static String getVersionRevision() {
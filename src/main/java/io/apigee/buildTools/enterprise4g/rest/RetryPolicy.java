@@ -0,0 +1,236 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.rest;
+
+import io.apigee.buildTools.enterprise4g.rest.RestUtil.Options;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import org.apache.http.ConnectionClosedException;
+import org.apache.http.NoHttpResponseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Retries management API operations that fail for transient reasons: 408,
+ * 429, 502, 503 and 504 responses, timeouts and connection errors. Other
+ * errors, such as a bundle that does not validate or a deployment that
+ * does not settle in time, are thrown at once.
+ *
+ * Each operation gets Options.retryMaxAttempts attempts and a time budget
+ * of Options.retryBudget milliseconds. Attempts are spaced by exponential
+ * backoff with jitter, or by the server's Retry-After if that is longer.
+ * Calls go through the host's CircuitBreaker; 429 responses are retried
+ * but do not count as failures of the server there.
+ *
+ * An operation that is not idempotent passes a Recovery, which is asked
+ * before every retry whether the failed attempt took effect anyway.
+ */
+public class RetryPolicy {
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 4;
+    public static final long DEFAULT_BUDGET = 120000;
+    public static final long DEFAULT_INITIAL_DELAY = 1000;
+    public static final long DEFAULT_MAX_DELAY = 30000;
+
+    static Logger logger = LoggerFactory.getLogger(RetryPolicy.class);
+
+    private static final Random random = new Random();
+
+    // the attempt the calling thread is making, 1 outside of retried operations
+    private static final ThreadLocal<Integer> ATTEMPT = new ThreadLocal<Integer>();
+
+    /**
+     * One attempt of an operation.
+     */
+    public interface Attempt<T> {
+        T call() throws IOException;
+    }
+
+    /**
+     * Checks whether a failed attempt of a non-idempotent operation took effect.
+     */
+    public interface Recovery<T> {
+        /**
+         * @return the operation's result if it took effect, null to retry
+         */
+        T recover() throws IOException;
+    }
+
+    /**
+     * Runs an idempotent operation, retrying transient failures.
+     */
+    public static <T> T execute(String operation, String host, Attempt<T> attempt) throws IOException {
+        return execute(operation, host, attempt, null);
+    }
+
+    public static <T> T execute(String operation, String host, Attempt<T> attempt, Recovery<T> recovery)
+            throws IOException {
+        Integer outer = ATTEMPT.get();
+        try {
+            return run(operation, host, attempt, recovery);
+        } finally {
+            if (outer == null) {
+                ATTEMPT.remove();
+            } else {
+                ATTEMPT.set(outer);
+            }
+        }
+    }
+
+    /**
+     * @return the attempt of the operation the calling thread is making, 1 for the first
+     */
+    public static int currentAttempt() {
+        Integer attempt = ATTEMPT.get();
+        return attempt == null ? 1 : attempt;
+    }
+
+    private static <T> T run(String operation, String host, Attempt<T> attempt, Recovery<T> recovery)
+            throws IOException {
+        int maxAttempts = Options.retryMaxAttempts > 0 ? Options.retryMaxAttempts : DEFAULT_MAX_ATTEMPTS;
+        long budget = Options.retryBudget > 0 ? Options.retryBudget : DEFAULT_BUDGET;
+        long initialDelay = Options.retryInitialDelay > 0 ? Options.retryInitialDelay : DEFAULT_INITIAL_DELAY;
+        long maxDelay = Math.max(initialDelay, Options.retryMaxDelay > 0 ? Options.retryMaxDelay : DEFAULT_MAX_DELAY);
+
+        CircuitBreaker breaker = CircuitBreaker.forHost(host);
+        long deadline = System.currentTimeMillis() + budget;
+        boolean failedBefore = false;
+        for (int attemptNumber = 1; ; attemptNumber++) {
+            ATTEMPT.set(attemptNumber);
+            breaker.before();
+            IOException failure;
+            try {
+                if (failedBefore && recovery != null) {
+                    // a check that fails counts as a failed attempt and is repeated next time
+                    T recovered = recovery.recover();
+                    if (recovered != null) {
+                        breaker.onSuccess();
+                        logger.info(operation + " took effect despite the error, not repeating it");
+                        return recovered;
+                    }
+                }
+                T result = attempt.call();
+                breaker.onSuccess();
+                return result;
+            } catch (IOException e) {
+                if (!isTransient(e)) {
+                    // the server answered, it is just not a good answer
+                    breaker.onSuccess();
+                    throw e;
+                }
+                if (isRateLimited(e)) {
+                    // the server is up, it only wants fewer calls, see RequestRateLimiter
+                    breaker.onSuccess();
+                } else {
+                    breaker.onFailure();
+                }
+                failure = e;
+            } catch (RuntimeException e) {
+                // not a failure of the server, but the trial call of a half open circuit is over
+                breaker.onSuccess();
+                throw e;
+            }
+            failedBefore = true;
+
+            long delay = backoff(attemptNumber, initialDelay, maxDelay);
+            long retryAfter = retryAfter(failure);
+            if (retryAfter > delay) {
+                delay = retryAfter;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (attemptNumber >= maxAttempts || delay > remaining) {
+                logger.error(operation + " failed after " + attemptNumber + " attempt(s): " + failure.getMessage());
+                throw failure;
+            }
+            logger.warn(operation + " failed (" + failure.getMessage() + "), attempt " + attemptNumber + " of "
+                    + maxAttempts + ", retrying in " + delay + " ms");
+            sleep(delay);
+        }
+    }
+
+    /**
+     * Server overload and gateway errors, timeouts and connection problems
+     * are worth another try; other HTTP errors are not.
+     */
+    public static boolean isTransient(IOException e) {
+        if (e instanceof HttpResponseException) {
+            int status = ((HttpResponseException) e).getStatusCode();
+            return status == 408 || status == 429 || status == 502 || status == 503 || status == 504;
+        }
+        // timeouts, refused or reset connections and servers closing the connection without answering
+        return e instanceof InterruptedIOException
+                || e instanceof SocketException
+                || e instanceof NoHttpResponseException
+                || e instanceof ConnectionClosedException;
+    }
+
+    static boolean isRateLimited(IOException e) {
+        return e instanceof HttpResponseException && ((HttpResponseException) e).getStatusCode() == 429;
+    }
+
+    static long backoff(int attemptNumber, long initialDelay, long maxDelay) {
+        long delay = initialDelay;
+        for (int i = 1; i < attemptNumber && delay < maxDelay; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, maxDelay);
+        // between half and all of the delay, so parallel builds do not retry in lock step
+        return delay / 2 + (long) (random.nextDouble() * (delay / 2 + 1));
+    }
+
+    /**
+     * @return the Retry-After of the response in milliseconds, or 0
+     */
+    static long retryAfter(IOException e) {
+        if (!(e instanceof HttpResponseException)) {
+            return 0;
+        }
+        HttpHeaders headers = ((HttpResponseException) e).getHeaders();
+        String value = headers == null ? null : headers.getRetryAfter();
+        if (value == null || value.trim().length() == 0) {
+            return 0;
+        }
+        value = value.trim();
+        try {
+            return Long.parseLong(value) * 1000;
+        } catch (NumberFormatException notSeconds) {
+            try {
+                SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+                Date date = format.parse(value);
+                return Math.max(0, date.getTime() - System.currentTimeMillis());
+            } catch (java.text.ParseException notDate) {
+                return 0;
+            }
+        }
+    }
+
+    private static void sleep(long millis) throws IOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting to retry");
+        }
+    }
+}
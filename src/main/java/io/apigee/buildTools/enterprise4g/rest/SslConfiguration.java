@@ -0,0 +1,247 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.rest;
+
+import io.apigee.buildTools.enterprise4g.utils.ServerProfile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * TLS settings for the management API connection. The SSLContext for a
+ * given configuration is built once and kept for the lifetime of the plugin
+ * classloader, so its client session cache lets later connections of the
+ * build (and of other modules in the reactor) resume the TLS session
+ * instead of doing a full handshake.
+ *
+ * Trust is decided in this order: pinned certificate fingerprints, then a
+ * trust store, then insecure (trust everything, the plugin's historical
+ * behaviour), then the JVM default trust store.
+ */
+public class SslConfiguration {
+
+    public static final int SESSION_CACHE_SIZE = 100;
+    public static final int SESSION_TIMEOUT_SECONDS = 3600;
+
+    static Logger logger = LoggerFactory.getLogger(SslConfiguration.class);
+
+    private static final Map<SslConfiguration, SSLContext> contexts = new HashMap<SslConfiguration, SSLContext>();
+
+    final boolean insecure;
+    final String trustStore;
+    final String trustStorePassword;
+    final String trustStoreType;
+    final List<String> pinnedCertificates;
+
+    public SslConfiguration(Boolean insecure, String trustStore, String trustStorePassword,
+                            String trustStoreType, String pinnedCertificates) {
+        this.trustStore = isEmpty(trustStore) ? null : trustStore.trim();
+        this.trustStorePassword = trustStorePassword;
+        this.trustStoreType = isEmpty(trustStoreType) ? KeyStore.getDefaultType() : trustStoreType.trim();
+        this.pinnedCertificates = parsePins(pinnedCertificates);
+        // unless told otherwise, keep trusting everything like earlier versions did
+        this.insecure = (insecure == null) ? (this.trustStore == null && this.pinnedCertificates.isEmpty()) : insecure;
+    }
+
+    public static SslConfiguration fromProfile(ServerProfile profile) {
+        return new SslConfiguration(profile.getSslInsecure(), profile.getTrustStore(),
+                profile.getTrustStorePassword(), profile.getTrustStoreType(), profile.getPinnedCertificates());
+    }
+
+    public boolean isInsecure() {
+        return insecure && trustStore == null && pinnedCertificates.isEmpty();
+    }
+
+    /**
+     * Host names are only checked when certificates are validated against a
+     * trust store; pinned certificates identify the server on their own.
+     */
+    public boolean verifiesHostname() {
+        return !isInsecure() && pinnedCertificates.isEmpty();
+    }
+
+    /**
+     * Returns the shared SSLContext for this configuration, building it on first use.
+     */
+    public SSLContext getSSLContext() {
+        synchronized (contexts) {
+            SSLContext context = contexts.get(this);
+            if (context == null) {
+                context = createSSLContext();
+                contexts.put(this, context);
+            }
+            return context;
+        }
+    }
+
+    SSLContext createSSLContext() {
+        try {
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, createTrustManagers(), null);
+            context.getClientSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+            context.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+            logger.debug("Created SSL context: {}", this);
+            return context;
+        } catch (Exception e) {
+            throw new IllegalStateException("Unable to initialise the SSL context (" + this + "): " + e.getMessage(), e);
+        }
+    }
+
+    TrustManager[] createTrustManagers() throws Exception {
+        if (!pinnedCertificates.isEmpty()) {
+            return new TrustManager[]{new PinnedTrustManager(pinnedCertificates)};
+        }
+        if (trustStore != null) {
+            KeyStore keyStore = KeyStore.getInstance(trustStoreType);
+            InputStream in = new FileInputStream(new File(trustStore));
+            try {
+                keyStore.load(in, trustStorePassword == null ? null : trustStorePassword.toCharArray());
+            } finally {
+                in.close();
+            }
+            TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            tmf.init(keyStore);
+            return tmf.getTrustManagers();
+        }
+        if (insecure) {
+            return new XTrustProvider.TrustManagerFactoryImpl().engineGetTrustManagers();
+        }
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init((KeyStore) null);
+        return tmf.getTrustManagers();
+    }
+
+    static List<String> parsePins(String pins) {
+        if (isEmpty(pins)) {
+            return Collections.emptyList();
+        }
+        List<String> result = new ArrayList<String>();
+        for (String pin : pins.split(",")) {
+            String normalized = normalizeFingerprint(pin);
+            if (normalized.length() > 0) {
+                result.add(normalized);
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    static String normalizeFingerprint(String fingerprint) {
+        return fingerprint.replace(":", "").replace(" ", "").trim().toLowerCase();
+    }
+
+    static String fingerprint(X509Certificate cert) throws CertificateException {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(cert.getEncoded());
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (java.security.NoSuchAlgorithmException e) {
+            throw new CertificateException(e);
+        }
+    }
+
+    private static boolean isEmpty(String s) {
+        return s == null || s.trim().length() == 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof SslConfiguration)) {
+            return false;
+        }
+        SslConfiguration other = (SslConfiguration) o;
+        return insecure == other.insecure
+                && eq(trustStore, other.trustStore)
+                && eq(trustStorePassword, other.trustStorePassword)
+                && eq(trustStoreType, other.trustStoreType)
+                && pinnedCertificates.equals(other.pinnedCertificates);
+    }
+
+    private static boolean eq(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = insecure ? 1 : 0;
+        result = 31 * result + (trustStore != null ? trustStore.hashCode() : 0);
+        result = 31 * result + (trustStorePassword != null ? trustStorePassword.hashCode() : 0);
+        result = 31 * result + trustStoreType.hashCode();
+        result = 31 * result + pinnedCertificates.hashCode();
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        if (!pinnedCertificates.isEmpty()) {
+            return "pinned certificates " + pinnedCertificates;
+        }
+        if (trustStore != null) {
+            return "trust store " + trustStore;
+        }
+        return insecure ? "insecure, all certificates trusted" : "JVM default trust store";
+    }
+
+    /**
+     * Accepts a server whose certificate chain contains one of the pinned
+     * SHA-256 certificate fingerprints.
+     */
+    static class PinnedTrustManager implements X509TrustManager {
+
+        private final List<String> pins;
+
+        PinnedTrustManager(List<String> pins) {
+            this.pins = pins;
+        }
+
+        public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            throw new CertificateException("Client certificates are not trusted");
+        }
+
+        public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            if (chain != null) {
+                for (X509Certificate cert : chain) {
+                    if (pins.contains(fingerprint(cert))) {
+                        return;
+                    }
+                }
+            }
+            throw new CertificateException("Server certificate does not match any pinned certificate");
+        }
+
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    }
+}
@@ -0,0 +1,319 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.rest;
+
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The "net" transport: HttpURLConnection based like the google-http-client
+ * NetHttpTransport, but with the socket factory and host name verifier set
+ * on each connection it opens. Nothing is installed in the JVM wide
+ * HttpsURLConnection defaults, so other HTTPS users in the same Maven
+ * process are not affected by the trust settings of the plugin.
+ */
+final class UrlConnectionTransport extends HttpTransport {
+
+    /**
+     * The JVM default verifier, captured before any code of the plugin runs
+     * so that validating the server certificate also checks its host name.
+     */
+    private static final HostnameVerifier DEFAULT_HOSTNAME_VERIFIER = HttpsURLConnection.getDefaultHostnameVerifier();
+
+    private final SSLSocketFactory socketFactory;
+    private final HostnameVerifier hostnameVerifier;
+
+    UrlConnectionTransport(SslConfiguration ssl) {
+        this.socketFactory = new LingeringSocketFactory(ssl.getSSLContext().getSocketFactory());
+        this.hostnameVerifier = ssl.verifiesHostname() ? DEFAULT_HOSTNAME_VERIFIER : new FakeHostnameVerifier();
+    }
+
+    @Override
+    public boolean supportsHead() {
+        return true;
+    }
+
+    @Override
+    protected LowLevelHttpRequest buildDeleteRequest(String url) throws IOException {
+        return new Request("DELETE", url);
+    }
+
+    @Override
+    protected LowLevelHttpRequest buildGetRequest(String url) throws IOException {
+        return new Request("GET", url);
+    }
+
+    @Override
+    protected LowLevelHttpRequest buildHeadRequest(String url) throws IOException {
+        return new Request("HEAD", url);
+    }
+
+    @Override
+    protected LowLevelHttpRequest buildPostRequest(String url) throws IOException {
+        return new Request("POST", url);
+    }
+
+    @Override
+    protected LowLevelHttpRequest buildPutRequest(String url) throws IOException {
+        return new Request("PUT", url);
+    }
+
+    HttpURLConnection open(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        if (connection instanceof HttpsURLConnection) {
+            HttpsURLConnection https = (HttpsURLConnection) connection;
+            https.setSSLSocketFactory(socketFactory);
+            // always set, a verifier installed JVM wide by someone else must not decide for us
+            https.setHostnameVerifier(hostnameVerifier);
+        }
+        return connection;
+    }
+
+    class Request extends LowLevelHttpRequest {
+
+        private final HttpURLConnection connection;
+        private HttpContent content;
+
+        Request(String method, String url) throws IOException {
+            connection = open(url);
+            connection.setRequestMethod(method);
+            connection.setUseCaches(false);
+            connection.setInstanceFollowRedirects(false);
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            connection.addRequestProperty(name, value);
+        }
+
+        @Override
+        public void setContent(HttpContent content) {
+            this.content = content;
+        }
+
+        @Override
+        public void setTimeout(int connectTimeout, int readTimeout) {
+            connection.setConnectTimeout(connectTimeout);
+            connection.setReadTimeout(readTimeout);
+        }
+
+        @Override
+        public LowLevelHttpResponse execute() throws IOException {
+            try {
+                if (content != null) {
+                    writeContent();
+                }
+                connection.connect();
+                return new Response(connection);
+            } catch (IOException e) {
+                // also closes the socket under a write that is still blocked on it
+                connection.disconnect();
+                throw e;
+            } catch (RuntimeException e) {
+                connection.disconnect();
+                throw e;
+            }
+        }
+
+        private void writeContent() throws IOException {
+            String contentType = content.getType();
+            if (contentType != null) {
+                addHeader("Content-Type", contentType);
+            }
+            String contentEncoding = content.getEncoding();
+            if (contentEncoding != null) {
+                addHeader("Content-Encoding", contentEncoding);
+            }
+            long contentLength = content.getLength();
+            if (contentLength >= 0) {
+                addHeader("Content-Length", Long.toString(contentLength));
+            }
+            if (contentLength == 0) {
+                return;
+            }
+            connection.setDoOutput(true);
+            if (contentLength > 0 && contentLength <= Integer.MAX_VALUE) {
+                connection.setFixedLengthStreamingMode((int) contentLength);
+            } else {
+                connection.setChunkedStreamingMode(0);
+            }
+            OutputStream out = connection.getOutputStream();
+            // not closed in a finally: after a failed write, closing would block or hide the cause
+            content.writeTo(out);
+            out.close();
+        }
+    }
+
+    static class Response extends LowLevelHttpResponse {
+
+        private final HttpURLConnection connection;
+        private final int statusCode;
+        private final String reasonPhrase;
+        private final List<String> headerNames = new ArrayList<String>();
+        private final List<String> headerValues = new ArrayList<String>();
+
+        Response(HttpURLConnection connection) throws IOException {
+            this.connection = connection;
+            int code = connection.getResponseCode();
+            this.statusCode = code == -1 ? 0 : code;
+            this.reasonPhrase = connection.getResponseMessage();
+            for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+                if (header.getKey() == null) {
+                    continue;
+                }
+                for (String value : header.getValue()) {
+                    if (value != null) {
+                        headerNames.add(header.getKey());
+                        headerValues.add(value);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return HttpStatusCodes.isSuccess(statusCode) ? connection.getInputStream() : connection.getErrorStream();
+        }
+
+        @Override
+        public String getContentEncoding() {
+            return connection.getContentEncoding();
+        }
+
+        @Override
+        public long getContentLength() {
+            String length = connection.getHeaderField("Content-Length");
+            return length == null ? -1 : Long.parseLong(length);
+        }
+
+        @Override
+        public String getContentType() {
+            return connection.getHeaderField("Content-Type");
+        }
+
+        @Override
+        public String getStatusLine() {
+            String statusLine = connection.getHeaderField(0);
+            return statusLine != null && statusLine.startsWith("HTTP/1.") ? statusLine : null;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        @Override
+        public String getReasonPhrase() {
+            return reasonPhrase;
+        }
+
+        @Override
+        public int getHeaderCount() {
+            return headerNames.size();
+        }
+
+        @Override
+        public String getHeaderName(int index) {
+            return headerNames.get(index);
+        }
+
+        @Override
+        public String getHeaderValue(int index) {
+            return headerValues.get(index);
+        }
+
+        @Override
+        public void disconnect() {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Sets SO_LINGER on every socket, so that disconnecting closes a TLS
+     * socket even while another thread is blocked writing to it.
+     */
+    static class LingeringSocketFactory extends SSLSocketFactory {
+
+        private final SSLSocketFactory delegate;
+
+        LingeringSocketFactory(SSLSocketFactory delegate) {
+            this.delegate = delegate;
+        }
+
+        private static Socket linger(Socket socket) throws SocketException {
+            socket.setSoLinger(true, HttpTransportFactory.CLOSE_LINGER);
+            return socket;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return delegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return linger(delegate.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+            return linger(delegate.createSocket(socket, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return linger(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return linger(delegate.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return linger(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return linger(delegate.createSocket(address, port, localAddress, localPort));
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A snapshot of the files below an apiproxy directory, taken in one walk:
+ * every file with its size and modification time at the time of the walk,
+ * and the XML files directly in apiproxy/, proxies/, policies/,
+ * stepdefinitions/ and targets/.
+ *
+ * Configuring and packaging a bundle change files but never add or remove
+ * any, so within a build a snapshot is taken once per directory and shared
+ * by both; see BuildContext. Without a build every call walks the tree again.
+ */
+public class ApiProxyTree {
+
+    public static final String PROXIES = "proxies";
+    public static final String POLICIES = "policies";
+    public static final String STEP_DEFINITIONS = "stepdefinitions";
+    public static final String TARGETS = "targets";
+    /** The apiproxy directory itself, which has the proxy descriptor */
+    public static final String ROOT = "";
+
+    static Logger logger = LoggerFactory.getLogger(ApiProxyTree.class);
+
+    public static class FileInfo {
+        /** Path below the apiproxy directory, with / as separator */
+        public final String path;
+        public final File file;
+        public final long size;
+        public final long lastModified;
+
+        FileInfo(String path, File file, long size, long lastModified) {
+            this.path = path;
+            this.file = file;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private final File root;
+    private final List<FileInfo> files;
+    private final Map<String, List<File>> xmlFiles;
+
+    private ApiProxyTree(File root, List<FileInfo> files, Map<String, List<File>> xmlFiles) {
+        this.root = root;
+        this.files = files;
+        this.xmlFiles = xmlFiles;
+    }
+
+    /**
+     * Drops the snapshot of a directory whose files were added or removed.
+     */
+    public static synchronized void invalidate(File apiproxyDir) {
+        BuildContext build = BuildContext.current();
+        if (build != null) {
+            build.trees.remove(apiproxyDir.getAbsoluteFile());
+        }
+    }
+
+    /**
+     * @return the snapshot of apiproxyDir taken in this build, or a new one
+     */
+    public static ApiProxyTree of(File apiproxyDir) throws IOException {
+        File key = apiproxyDir.getAbsoluteFile();
+        BuildContext build = BuildContext.current();
+        if (build == null) {
+            return scan(key);
+        }
+        synchronized (ApiProxyTree.class) {
+            ApiProxyTree tree = build.trees.get(key);
+            if (tree != null) {
+                return tree;
+            }
+        }
+        ApiProxyTree tree = scan(key);
+        synchronized (ApiProxyTree.class) {
+            if (!build.trees.containsKey(key)) {
+                build.trees.put(key, tree);
+            }
+            return build.trees.get(key);
+        }
+    }
+
+    /**
+     * Walks apiproxyDir once. A directory that does not exist is empty.
+     */
+    public static ApiProxyTree scan(File apiproxyDir) throws IOException {
+        final Path rootPath = apiproxyDir.toPath();
+        final List<FileInfo> files = new ArrayList<FileInfo>();
+        final Map<String, List<File>> xmlFiles = new HashMap<String, List<File>>();
+        for (String directory : new String[]{ROOT, PROXIES, POLICIES, STEP_DEFINITIONS, TARGETS}) {
+            xmlFiles.put(directory, new ArrayList<File>());
+        }
+        if (apiproxyDir.isDirectory()) {
+            // File.listFiles follows links to directories, and so does the walk
+            Files.walkFileTree(rootPath, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+                    new SimpleFileVisitor<Path>() {
+                        @Override
+                        public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                            if (!attributes.isRegularFile()) {
+                                return FileVisitResult.CONTINUE;
+                            }
+                            Path relative = rootPath.relativize(file);
+                            String path = relative.toString().replace(File.separatorChar, '/');
+                            files.add(new FileInfo(path, file.toFile(), attributes.size(),
+                                    attributes.lastModifiedTime().toMillis()));
+
+                            String directory = relative.getParent() == null ? ROOT : relative.getParent().toString();
+                            List<File> xml = xmlFiles.get(directory);
+                            if (xml != null && path.toLowerCase().endsWith(".xml")) {
+                                xml.add(file.toFile());
+                            }
+                            return FileVisitResult.CONTINUE;
+                        }
+                    });
+        }
+
+        Collections.sort(files, new Comparator<FileInfo>() {
+            public int compare(FileInfo a, FileInfo b) {
+                return a.path.compareTo(b.path);
+            }
+        });
+        long bytes = 0;
+        for (Map.Entry<String, List<File>> xml : xmlFiles.entrySet()) {
+            Collections.sort(xml.getValue());
+            xml.setValue(Collections.unmodifiableList(xml.getValue()));
+        }
+        for (FileInfo file : files) {
+            bytes += file.size;
+        }
+        logger.debug("Found {} files, {} bytes, in {}", new Object[]{files.size(), bytes, apiproxyDir});
+        return new ApiProxyTree(apiproxyDir, Collections.unmodifiableList(files), xmlFiles);
+    }
+
+    public File getRoot() {
+        return root;
+    }
+
+    /**
+     * @return every file of the tree, by path
+     */
+    public List<FileInfo> getFiles() {
+        return files;
+    }
+
+    /**
+     * @param directory ROOT, PROXIES, POLICIES, STEP_DEFINITIONS or TARGETS
+     * @return the XML files directly in that directory, by name
+     */
+    public List<File> getXMLFiles(String directory) {
+        List<File> xml = xmlFiles.get(directory);
+        if (xml == null) {
+            throw new IllegalArgumentException("Unknown directory " + directory);
+        }
+        return xml;
+    }
+
+    /**
+     * @return the files as zip entries named prefix/path, by name
+     */
+    public List<ParallelZip.Entry> entries(String prefix) {
+        List<ParallelZip.Entry> entries = new ArrayList<ParallelZip.Entry>(files.size());
+        for (FileInfo file : files) {
+            entries.add(new ParallelZip.Entry(prefix + "/" + file.path, file.file));
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.utils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What one Maven build shares across its goals, modules and threads: the
+ * ApiProxyTree snapshots, the ScmMetadata of the Git workspaces, the
+ * BuildMetrics recording and the Tracing trace.
+ *
+ * Every goal starts the context with the start time of the Maven session,
+ * see GatewayAbstractMojo; a later goal or module of the same build
+ * continues it, while the next build, e.g. in a long-lived Maven daemon,
+ * gets a new one. Outside a build there is no context, and nothing is
+ * cached or recorded.
+ */
+public class BuildContext {
+
+    private static BuildContext current;
+
+    final Object buildId;
+    /** Start, in milliseconds since the epoch */
+    final long start = System.currentTimeMillis();
+    /** The trace of the build, null unless it is traced */
+    volatile String traceId;
+
+    final Map<File, ApiProxyTree> trees = new HashMap<File, ApiProxyTree>();
+    final Map<File, ScmMetadata> workspaces = new HashMap<File, ScmMetadata>();
+    final List<BuildMetrics.Phase> phases = new ArrayList<BuildMetrics.Phase>();
+    final List<BuildMetrics.Call> calls = new ArrayList<BuildMetrics.Call>();
+    final List<Tracing.Span> finishedSpans = new ArrayList<Tracing.Span>();
+
+    private BuildContext(Object buildId) {
+        this.buildId = buildId;
+    }
+
+    /**
+     * Starts the context of the given build, or continues it if an earlier
+     * goal of the same build started it.
+     *
+     * @param buildId identifies the build, e.g. the start time of the Maven session; null ends the context
+     * @param traced  whether the build is traced; once traced, it stays traced
+     * @return the context, null if buildId is null
+     */
+    public static synchronized BuildContext start(Object buildId, boolean traced) {
+        if (buildId == null) {
+            current = null;
+            return null;
+        }
+        if (current == null || !buildId.equals(current.buildId)) {
+            current = new BuildContext(buildId);
+        }
+        if (traced && current.traceId == null) {
+            current.traceId = Tracing.id(16);
+        }
+        return current;
+    }
+
+    /**
+     * @return the context of the running build, null outside a build
+     */
+    public static synchronized BuildContext current() {
+        return current;
+    }
+}
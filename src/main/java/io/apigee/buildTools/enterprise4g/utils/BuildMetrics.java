@@ -0,0 +1,377 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.utils;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Durations of the phases of a build (configure, zip, import, activate,
+ * poll, ...) and of every management API call, by proxy, written to
+ * target/ at the end of each goal for charting where deploy time goes.
+ *
+ * Recording covers every thread of the build and lives in its
+ * BuildContext; outside a build nothing is recorded. Phases may nest: polling is part
+ * of activating. Each phase is also a Tracing span.
+ */
+public class BuildMetrics {
+
+    public static final String JSON_REPORT = "apigee-metrics.json";
+    public static final String PROMETHEUS_REPORT = "apigee-metrics.prom";
+
+    static Logger logger = LoggerFactory.getLogger(BuildMetrics.class);
+
+    static final Pattern APPLICATION = Pattern.compile("/apis/([^/?]+)|[?&]name=([^&]+)");
+    static final Pattern PATH_PARAMETER = Pattern.compile("/(organizations|environments|apis|revisions)/[^/?]+");
+    static final Pattern HOST = Pattern.compile("^[a-z]+://[^/]+");
+
+    private static final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+
+    /**
+     * A phase of the build of one proxy.
+     */
+    public static class Phase {
+        public final String proxy;
+        public final String name;
+        /** Start, in milliseconds since the epoch */
+        public final long start;
+        public long millis;
+        public boolean succeeded;
+        private transient final long startNanos = System.nanoTime();
+        private transient boolean ended;
+        private transient final Tracing.Span span;
+
+        Phase(String proxy, String name) {
+            this.proxy = proxy;
+            this.name = name;
+            this.start = System.currentTimeMillis();
+            this.span = Tracing.start(name).set("apigee.proxy", proxy);
+        }
+
+        /**
+         * Marks the phase as successful when it ends.
+         */
+        public void succeeded() {
+            synchronized (BuildMetrics.class) {
+                succeeded = true;
+            }
+        }
+
+        /**
+         * Ends the phase, as failed unless succeeded was called; ending it again does nothing.
+         */
+        public void end() {
+            synchronized (BuildMetrics.class) {
+                if (ended) {
+                    return;
+                }
+                ended = true;
+                millis = (System.nanoTime() - startNanos) / 1000000;
+            }
+            if (!succeeded) {
+                span.status = Tracing.STATUS_ERROR;
+            }
+            span.succeeded().end();
+        }
+    }
+
+    /**
+     * A call to the management API, made for one proxy.
+     */
+    public static class Call {
+        public final String proxy;
+        public final String method;
+        /** The path with the organization, environment, proxy and revision left out */
+        public final String endpoint;
+        /** Start, in milliseconds since the epoch */
+        public final long start;
+        /** 1 for the first attempt of an operation, more for its retries */
+        public final int attempt;
+        /** Time until the response headers arrived */
+        public long millis;
+        /** The status of the response, 0 if there was none */
+        public int status;
+        /** The request body, -1 if unknown */
+        public final long bytesSent;
+        /** The response body as declared by its Content-Length, -1 if unknown */
+        public long bytesReceived = -1;
+        public String error;
+        private transient final long startNanos = System.nanoTime();
+
+        Call(String method, String url, long bytesSent, int attempt) {
+            this.proxy = proxy(url);
+            this.method = method;
+            this.endpoint = endpoint(url);
+            this.start = System.currentTimeMillis();
+            this.bytesSent = bytesSent;
+            this.attempt = attempt;
+        }
+
+        /**
+         * Records the response.
+         *
+         * @param bytesReceived the Content-Length of the response, null if it had none
+         */
+        public void end(int status, Long bytesReceived) {
+            long millis = (System.nanoTime() - startNanos) / 1000000;
+            // report reads them from other threads
+            synchronized (BuildMetrics.class) {
+                this.millis = millis;
+                this.status = status;
+                this.bytesReceived = bytesReceived == null ? -1 : bytesReceived;
+            }
+        }
+
+        /**
+         * Records a call that got no response.
+         */
+        public void fail(Exception e) {
+            long millis = (System.nanoTime() - startNanos) / 1000000;
+            synchronized (BuildMetrics.class) {
+                this.millis = millis;
+                error = e.getClass().getSimpleName();
+            }
+        }
+    }
+
+    /**
+     * The report of one goal, as written to apigee-metrics.json.
+     */
+    static class Report {
+        long buildStart;
+        long phaseMillis;
+        int calls;
+        int failedCalls;
+        int retries;
+        long callMillis;
+        long bytesSent;
+        long bytesReceived;
+        List<Phase> phases;
+        List<Call> requests;
+    }
+
+    private BuildMetrics() {
+    }
+
+    public static boolean isRecording() {
+        return BuildContext.current() != null;
+    }
+
+    /**
+     * @return the started phase, to end when it is done; it is only recorded during a build
+     */
+    public static Phase startPhase(String proxy, String name) {
+        Phase phase = new Phase(proxy, name);
+        BuildContext build = BuildContext.current();
+        if (build != null) {
+            synchronized (BuildMetrics.class) {
+                build.phases.add(phase);
+            }
+        }
+        return phase;
+    }
+
+    /**
+     * @param bytesSent the length of the request body, -1 if unknown
+     * @param attempt   1 for the first attempt of an operation, more for its retries
+     * @return the started call, to end when the response arrives; it is only recorded during a build
+     */
+    public static Call startCall(String method, String url, long bytesSent, int attempt) {
+        Call call = new Call(method, url, bytesSent, attempt);
+        BuildContext build = BuildContext.current();
+        if (build != null) {
+            synchronized (BuildMetrics.class) {
+                build.calls.add(call);
+            }
+        }
+        return call;
+    }
+
+    /**
+     * Writes what was recorded for the proxies during this build to
+     * apigee-metrics.json in dir, and to apigee-metrics.prom in the
+     * Prometheus text format if asked to. Phases and calls that have not
+     * ended yet are left out.
+     *
+     * @param proxies the proxies to report on, null for all
+     */
+    public static void write(File dir, Collection<String> proxies, boolean prometheus) throws IOException {
+        Report report;
+        String json;
+        String text = null;
+        // calls still running on other threads may end while the report is rendered
+        synchronized (BuildMetrics.class) {
+            report = report(proxies);
+            if (report == null) {
+                return;
+            }
+            json = gson.toJson(report);
+            if (prometheus) {
+                text = prometheus(report);
+            }
+        }
+        dir.mkdirs();
+        FileUtils.writeStringToFile(new File(dir, JSON_REPORT), json, "UTF-8");
+        if (text != null) {
+            FileUtils.writeStringToFile(new File(dir, PROMETHEUS_REPORT), text, "UTF-8");
+        }
+        logger.info("Deploy metrics: {} ms in phases, {} calls taking {} ms, {} retries, written to {}",
+                new Object[]{report.phaseMillis, report.calls, report.callMillis, report.retries,
+                        new File(dir, JSON_REPORT)});
+    }
+
+    static synchronized Report report(Collection<String> proxies) {
+        BuildContext build = BuildContext.current();
+        if (build == null) {
+            return null;
+        }
+        Report report = new Report();
+        report.buildStart = build.start;
+        report.phases = new ArrayList<Phase>();
+        report.requests = new ArrayList<Call>();
+        for (Phase phase : build.phases) {
+            if (phase.ended && (proxies == null || proxies.contains(phase.proxy))) {
+                report.phases.add(phase);
+                report.phaseMillis += phase.millis;
+            }
+        }
+        for (Call call : build.calls) {
+            if ((call.status != 0 || call.error != null) && (proxies == null || proxies.contains(call.proxy))) {
+                report.requests.add(call);
+                report.calls++;
+                report.callMillis += call.millis;
+                report.failedCalls += call.status >= 200 && call.status < 400 ? 0 : 1;
+                report.retries += call.attempt > 1 ? 1 : 0;
+                report.bytesSent += Math.max(0, call.bytesSent);
+                report.bytesReceived += Math.max(0, call.bytesReceived);
+            }
+        }
+        return report;
+    }
+
+    /**
+     * Phase durations as gauges, calls as counters and summaries by proxy,
+     * method, endpoint and status.
+     */
+    static String prometheus(Report report) {
+        StringBuilder out = new StringBuilder();
+        out.append("# HELP apigee_phase_duration_seconds Duration of a phase of the build of a proxy.\n")
+                .append("# TYPE apigee_phase_duration_seconds gauge\n");
+        for (Phase phase : report.phases) {
+            out.append("apigee_phase_duration_seconds{proxy=\"").append(escape(phase.proxy))
+                    .append("\",phase=\"").append(escape(phase.name))
+                    .append("\",outcome=\"").append(phase.succeeded ? "success" : "failure").append("\"} ")
+                    .append(seconds(phase.millis)).append('\n');
+        }
+
+        // proxy, method, endpoint, status -> count, retries, millis, bytes sent, bytes received
+        Map<String, long[]> series = new TreeMap<String, long[]>();
+        for (Call call : report.requests) {
+            String labels = "proxy=\"" + escape(call.proxy) + "\",method=\"" + call.method + "\",endpoint=\""
+                    + escape(call.endpoint) + "\",status=\"" + (call.error != null ? call.error : String.valueOf(call.status)) + "\"";
+            long[] values = series.get(labels);
+            if (values == null) {
+                values = new long[5];
+                series.put(labels, values);
+            }
+            values[0]++;
+            values[1] += call.attempt > 1 ? 1 : 0;
+            values[2] += call.millis;
+            values[3] += Math.max(0, call.bytesSent);
+            values[4] += Math.max(0, call.bytesReceived);
+        }
+        metric(out, series, "apigee_http_requests_total", "counter", "Management API calls.", 0, false);
+        metric(out, series, "apigee_http_retries_total", "counter", "Management API calls that retried a failed one.", 1, false);
+        summary(out, series, "apigee_http_request_duration_seconds", "Time until the response headers arrived.", 2, 0);
+        metric(out, series, "apigee_http_sent_bytes_total", "counter", "Request bodies.", 3, false);
+        metric(out, series, "apigee_http_received_bytes_total", "counter", "Response bodies with a Content-Length.", 4, false);
+        return out.toString();
+    }
+
+    private static void metric(StringBuilder out, Map<String, long[]> series, String name, String type, String help,
+                               int index, boolean millis) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n')
+                .append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        for (Map.Entry<String, long[]> entry : series.entrySet()) {
+            long value = entry.getValue()[index];
+            out.append(name).append('{').append(entry.getKey()).append("} ")
+                    .append(millis ? seconds(value) : String.valueOf(value)).append('\n');
+        }
+    }
+
+    /**
+     * A summary without quantiles: the summed durations as name_sum and the
+     * number of calls as name_count.
+     */
+    private static void summary(StringBuilder out, Map<String, long[]> series, String name, String help,
+                                int millisIndex, int countIndex) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n')
+                .append("# TYPE ").append(name).append(" summary\n");
+        for (Map.Entry<String, long[]> entry : series.entrySet()) {
+            out.append(name).append("_sum{").append(entry.getKey()).append("} ")
+                    .append(seconds(entry.getValue()[millisIndex])).append('\n');
+            out.append(name).append("_count{").append(entry.getKey()).append("} ")
+                    .append(entry.getValue()[countIndex]).append('\n');
+        }
+    }
+
+    static String seconds(long millis) {
+        return String.format(Locale.ROOT, "%.3f", millis / 1000.0);
+    }
+
+    static String escape(String label) {
+        return label == null ? "" : label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * @return the proxy a management API URL is about, or "" for none
+     */
+    static String proxy(String url) {
+        Matcher matcher = APPLICATION.matcher(url);
+        if (!matcher.find()) {
+            return "";
+        }
+        return matcher.group(1) != null ? matcher.group(1) : matcher.group(2);
+    }
+
+    /**
+     * @return the path of the URL without the host, the query and the
+     *         organization, environment, proxy and revision names, e.g.
+     *         /v1/organizations/{}/environments/{}/apis/{}/revisions/{}/deployments
+     */
+    static String endpoint(String url) {
+        String path = HOST.matcher(url).replaceFirst("");
+        int query = path.indexOf('?');
+        if (query >= 0) {
+            path = path.substring(0, query);
+        }
+        return PATH_PARAMETER.matcher(path).replaceAll("/$1/{}");
+    }
+}
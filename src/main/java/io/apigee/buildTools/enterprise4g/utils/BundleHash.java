@@ -0,0 +1,268 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.utils;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * A SHA-256 hash of what a bundle contains, stable across builds: files are
+ * hashed in path order, zips (node_modules) by the names and contents of
+ * their entries rather than their bytes, and the Description of the proxy
+ * descriptor is left out because it carries the build user, host and the
+ * hash itself. The hash is kept in the Description as [sha256:...].
+ */
+public class BundleHash {
+
+    static final String PREFIX = "sha256:";
+
+    private static final Pattern MARKER = Pattern.compile("\\[(" + PREFIX + "[0-9a-f]{64})\\]");
+    private static final Pattern DESCRIPTION = Pattern.compile("(?s)<Description\\s*/>|<Description>.*?</Description>");
+    /** The start tag of the descriptor, group 2 is "/" if the element is empty */
+    private static final Pattern ROOT = Pattern.compile("<APIProxy(\\s[^>]*?)?(/?)>");
+    private static final Pattern DESCRIPTOR_ENTRY = Pattern.compile("apiproxy/[^/]+\\.xml");
+
+    /**
+     * @param apiproxyDir the apiproxy/ directory of the bundle
+     * @return the hash as "sha256:" followed by 64 hex digits
+     */
+    public static String compute(File apiproxyDir) throws IOException {
+        return compute(ParallelZip.entries(apiproxyDir, "apiproxy"));
+    }
+
+    /**
+     * @param entries the entries of the bundle zip
+     * @return the hash as "sha256:" followed by 64 hex digits
+     */
+    public static String compute(List<ParallelZip.Entry> entries) throws IOException {
+        MessageDigest digest = newDigest();
+        List<ParallelZip.Entry> sorted = new ArrayList<ParallelZip.Entry>(entries);
+        Collections.sort(sorted, ParallelZip.BY_NAME);
+        for (ParallelZip.Entry entry : sorted) {
+            update(digest, entry.name);
+            if (DESCRIPTOR_ENTRY.matcher(entry.name).matches()) {
+                update(digest, withoutDescription(read(entry.file)));
+            } else if (entry.name.endsWith(".zip")) {
+                updateWithZip(digest, entry.file);
+            } else {
+                InputStream in = new FileInputStream(entry.file);
+                try {
+                    update(digest, in);
+                } finally {
+                    in.close();
+                }
+            }
+        }
+        return PREFIX + hex(digest.digest());
+    }
+
+    /**
+     * @return the SHA-256 of a file's content, in hex
+     */
+    static String sha256(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        InputStream in = new FileInputStream(file);
+        try {
+            update(digest, in);
+        } finally {
+            in.close();
+        }
+        return hex(digest.digest());
+    }
+
+    /**
+     * @return the SHA-256 of a text's UTF-8 bytes, in hex
+     */
+    static String sha256(String text) throws IOException {
+        MessageDigest digest = newDigest();
+        update(digest, text);
+        return hex(digest.digest());
+    }
+
+    /**
+     * @return the hash stamped into the proxy descriptor of a bundle zip, or null
+     */
+    public static String readFromBundle(File bundle) throws IOException {
+        ZipFile zip = new ZipFile(bundle);
+        try {
+            for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+                ZipEntry entry = e.nextElement();
+                if (DESCRIPTOR_ENTRY.matcher(entry.getName()).matches()) {
+                    return extract(read(zip.getInputStream(entry)));
+                }
+            }
+            return null;
+        } finally {
+            zip.close();
+        }
+    }
+
+    /**
+     * @return the hash in a description, or null if it has none
+     */
+    public static String extract(String description) {
+        if (description == null) {
+            return null;
+        }
+        Matcher matcher = MARKER.matcher(description);
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
+    /**
+     * @return the description with its hash replaced by the given one
+     */
+    public static String withHash(String description, String hash) {
+        String text = description == null ? "" : MARKER.matcher(description).replaceAll("").trim();
+        return text.length() == 0 ? "[" + hash + "]" : text + " [" + hash + "]";
+    }
+
+    /**
+     * Replaces the Description of a proxy descriptor, leaving the rest of
+     * the file as it is so that the hash does not change.
+     */
+    static String replaceDescription(String descriptor, String description) throws IOException {
+        String element = "<Description>" + escape(description) + "</Description>";
+        Matcher matcher = DESCRIPTION.matcher(descriptor);
+        if (matcher.find()) {
+            return descriptor.substring(0, matcher.start()) + element + descriptor.substring(matcher.end());
+        }
+        Matcher root = ROOT.matcher(descriptor);
+        if (!root.find()) {
+            throw new IOException("Not a proxy descriptor, no APIProxy element found");
+        }
+        return descriptor.substring(0, root.start()) + startTag(root) + element
+                + (isEmpty(root) ? "</APIProxy>" : "") + descriptor.substring(root.end());
+    }
+
+    static String read(File file) throws IOException {
+        return read(new FileInputStream(file));
+    }
+
+    /**
+     * @return the descriptor without its Description, and with an empty
+     *         APIProxy element written out as start and end tag, so that
+     *         stamping the hash into it does not change the hash
+     */
+    static String withoutDescription(String descriptor) {
+        String text = DESCRIPTION.matcher(descriptor).replaceAll("");
+        Matcher root = ROOT.matcher(text);
+        if (root.find() && isEmpty(root)) {
+            return text.substring(0, root.start()) + startTag(root) + "</APIProxy>" + text.substring(root.end());
+        }
+        return text;
+    }
+
+    private static boolean isEmpty(Matcher root) {
+        return root.group(2).length() > 0;
+    }
+
+    private static String startTag(Matcher root) {
+        return "<APIProxy" + (root.group(1) != null ? root.group(1) : "") + ">";
+    }
+
+    private static void updateWithZip(MessageDigest digest, File file) throws IOException {
+        ZipFile zip = new ZipFile(file);
+        try {
+            List<String> names = new ArrayList<String>();
+            for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+                ZipEntry entry = e.nextElement();
+                if (!entry.isDirectory()) {
+                    names.add(entry.getName());
+                }
+            }
+            Collections.sort(names);
+            for (String name : names) {
+                update(digest, name);
+                InputStream in = zip.getInputStream(zip.getEntry(name));
+                try {
+                    update(digest, in);
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            zip.close();
+        }
+    }
+
+    private static String read(InputStream in) throws IOException {
+        try {
+            return IOUtils.toString(in, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    private static void update(MessageDigest digest, String text) throws IOException {
+        byte[] bytes = text.getBytes("UTF-8");
+        updateLength(digest, bytes.length);
+        digest.update(bytes);
+    }
+
+    private static void update(MessageDigest digest, InputStream in) throws IOException {
+        byte[] buf = new byte[8192];
+        long length = 0;
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            digest.update(buf, 0, n);
+            length += n;
+        }
+        // the length after the content keeps file boundaries unambiguous
+        updateLength(digest, length);
+    }
+
+    private static void updateLength(MessageDigest digest, long length) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            digest.update((byte) (length >>> shift));
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        char[] digits = "0123456789abcdef".toCharArray();
+        char[] out = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            out[2 * i] = digits[(bytes[i] >> 4) & 0xf];
+            out[2 * i + 1] = digits[bytes[i] & 0xf];
+        }
+        return new String(out);
+    }
+}
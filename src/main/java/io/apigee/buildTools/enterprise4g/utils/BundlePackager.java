@@ -0,0 +1,190 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.utils;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The steps that turn a proxy project into a bundle zip: copy the apiproxy
+ * sources to target/, apply config.json, list the bundle entries with the
+ * node.js app, stamp the content hash and zip the bundle. Every step only
+ * touches the given project directories, so several projects can be
+ * packaged at the same time.
+ */
+public class BundlePackager {
+
+    static Logger logger = LoggerFactory.getLogger(BundlePackager.class);
+
+    static final String NODE_PATH = "apiproxy/resources/node";
+
+    /**
+     * Copies baseDir/apiproxy to buildDir/apiproxy, replacing what is there.
+     */
+    public static void copyProxy(File baseDir, File buildDir) throws IOException {
+        File target = new File(buildDir, "apiproxy");
+        FileUtils.deleteDirectory(target);
+        FileUtils.copyDirectory(new File(baseDir, "apiproxy"), target);
+        ApiProxyTree.invalidate(target);
+    }
+
+    /**
+     * Reads the name of the proxy from its descriptor, the single XML file
+     * in baseDir/apiproxy, as the management server does on import: the
+     * name attribute of APIProxy, else the descriptor's file name. Falls
+     * back to the directory name if there is no descriptor.
+     */
+    public static String proxyName(File baseDir) {
+        File[] descriptors = new File(baseDir, "apiproxy").listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().toLowerCase().endsWith(".xml");
+            }
+        });
+        if (descriptors == null || descriptors.length == 0) {
+            return baseDir.getName();
+        }
+        Arrays.sort(descriptors);
+        File descriptor = descriptors[0];
+        try {
+            String name = XmlParsers.documentBuilder().parse(descriptor).getDocumentElement().getAttribute("name");
+            if (name.trim().length() > 0) {
+                return name.trim();
+            }
+        } catch (Exception e) {
+            logger.warn("Unable to read the proxy name from " + descriptor + ": " + e.getMessage());
+        }
+        String fileName = descriptor.getName();
+        return fileName.substring(0, fileName.length() - ".xml".length());
+    }
+
+    /**
+     * @return the project's config.json, or null if it has none
+     */
+    public static File findConfigFile(File baseDir) {
+        File configFile = new File(baseDir, "config.json");
+        if (configFile.exists()) {
+            return configFile;
+        }
+        logger.info("No config.json found. Skipping package configuration.");
+        return null;
+    }
+
+    /**
+     * Applies the config.json tokens of the given profile, if the project has a config.json.
+     */
+    public static void configure(File baseDir, String profile) throws Exception {
+        configure(baseDir, profile, false, PackageConfigurer.ENGINE_DOM, 1);
+    }
+
+    /**
+     * @param incremental whether to reuse the files configured by the last build, see ConfigureState
+     * @param engine      how tokens are applied, PackageConfigurer.ENGINE_DOM or ENGINE_STAX
+     * @param threads     how many files are configured at once
+     */
+    public static void configure(File baseDir, String profile, boolean incremental, String engine, int threads)
+            throws Exception {
+        File configFile = findConfigFile(baseDir);
+        if (configFile != null) {
+            logger.debug("\n\n=============Now updating the configuration values for the App Bundle================\n\n");
+            PackageConfigurer.configurePackage(profile, configFile, incremental, engine, threads);
+        }
+    }
+
+    /**
+     * Lists the entries of the bundle zip: buildDir/apiproxy, with the
+     * node.js app read from baseDir/node if there is one there, else from
+     * apiproxy/resources/node. Every node_modules directory of the app
+     * becomes a zip, built once in buildDir/node-spool and stored as is
+     * in the bundle.
+     */
+    public static List<ParallelZip.Entry> bundleEntries(File baseDir, File buildDir) throws IOException {
+        logger.info("\n\n=============Checking for node.js app================\n\n");
+        File apiproxyDir = new File(buildDir, "apiproxy");
+
+        //if node.js source is inside apiproxy/ directory, it will be in the build directory
+        File nodeDir = new File(apiproxyDir, "resources/node");
+
+        //sometimes node.js source lives outside the apiproxy/ in node/ within the base project directory
+        //this takes precedence over potentially stale node.js code in apiproxy/resources/node
+        File externalNodeDir = new File(baseDir, "node");
+        String[] filesInExternalNodeDir = externalNodeDir.list();
+        if (externalNodeDir.isDirectory() && filesInExternalNodeDir.length > 0) {
+            logger.info("Node.js app code found outside apiproxy/ directory. Packaging it as apiproxy/resources/node (takes precedence).");
+            nodeDir = externalNodeDir;
+        }
+
+        Map<String, ParallelZip.Entry> entries = new TreeMap<String, ParallelZip.Entry>();
+        for (ParallelZip.Entry entry : ApiProxyTree.of(apiproxyDir).entries("apiproxy")) {
+            if (!entry.name.startsWith(NODE_PATH + "/")) {
+                entries.put(entry.name, entry);
+            }
+        }
+        if (nodeDir.isDirectory()) {
+            File spool = new File(buildDir, "node-spool");
+            FileUtils.deleteDirectory(spool);
+            File[] files = nodeDir.listFiles();
+            Arrays.sort(files);
+            for (File file : files) {
+                String name = NODE_PATH + "/" + file.getName();
+                if (file.isDirectory() && file.getName().contains("node_modules")) {
+                    logger.info("Zipping " + file.getName() + " (it is a directory).");
+                    spool.mkdirs();
+                    File zip = new File(spool, file.getName() + ".zip");
+                    new ParallelZip().zipDir(zip, file, file.getName());
+                    entries.put(name + ".zip", new ParallelZip.Entry(name + ".zip", zip));
+                } else if (file.isDirectory()) {
+                    for (ParallelZip.Entry entry : ParallelZip.entries(file, name)) {
+                        entries.put(entry.name, entry);
+                    }
+                } else if (!entries.containsKey(name)) {
+                    // a zip built from a node_modules directory wins over a stale one
+                    entries.put(name, new ParallelZip.Entry(name, file));
+                }
+            }
+        }
+        return new ArrayList<ParallelZip.Entry>(entries.values());
+    }
+
+    /**
+     * Stamps the content hash of the bundle entries into the proxy
+     * descriptor in buildDir/apiproxy.
+     *
+     * @return the hash
+     */
+    public static String stampContentHash(File buildDir, List<ParallelZip.Entry> entries) throws Exception {
+        String hash = BundleHash.compute(entries);
+        PackageConfigurer.stampContentHash(new File(buildDir, "apiproxy"), hash);
+        return hash;
+    }
+
+    /**
+     * Writes the bundle entries into the bundle file.
+     */
+    public static void zipBundle(List<ParallelZip.Entry> entries, File bundle) throws IOException {
+        logger.info("\n\n=============Now zipping the App Bundle================\n\n");
+        new ParallelZip().write(bundle, entries);
+    }
+}
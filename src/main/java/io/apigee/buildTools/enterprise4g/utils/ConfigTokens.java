@@ -15,7 +15,12 @@
  */
 package io.apigee.buildTools.enterprise4g.utils;
 
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.google.api.client.util.Key;
 
@@ -30,6 +35,9 @@ public class ConfigTokens { // represents configuration files containing all
 	@Key
 	public List<Configurations> configurations;
 
+	// lookup indexes, built by index() once the JSON is bound, and dropped by the setters
+	private transient Map<String, Configurations> configurationIndex;
+
 	public class Configurations {
 
 		@Key
@@ -41,6 +49,10 @@ public class ConfigTokens { // represents configuration files containing all
 		
 		public List<Policy> targets; // for listing all target level tokens 
 									 // inside targets folder
+
+		private transient Map<String, Policy> policyIndex;
+		private transient Map<String, Policy> proxyIndex;
+		private transient Map<String, Policy> targetIndex;
 		
 		public String getName() {
 			return name;
@@ -53,45 +65,91 @@ public class ConfigTokens { // represents configuration files containing all
 		}
 		public void setPolicies(List<Policy> policies) {
 			this.policies = policies;
+			this.policyIndex = null;
 		}
 		public List<Policy> getProxies() {
 			return proxies;
 		}
 		public void setProxies(List<Policy> proxies) {
 			this.proxies = proxies;
+			this.proxyIndex = null;
+		}
+		
+		void index() {
+			policyIndex = indexByName(policies);
+			proxyIndex = indexByName(proxies);
+			targetIndex = indexByName(targets);
 		}
 		
+		// a missing section has no tokens; with duplicate names the first entry wins
 		public Policy getPolicyFileNameMatch(String name){
-			for(int i=0;i<this.policies.size();i++)
-				if (this.policies.get(i).name.equals(name)){
-					return this.policies.get(i);
-				}
-			
-			return null; 
+			if (policyIndex == null) {
+				policyIndex = indexByName(policies);
+			}
+			return policyIndex.get(name);
 		}
 		
 		public Policy getProxyFileNameMatch(String name){
-			for(int i=0;i<this.proxies.size();i++)
-				if (this.proxies.get(i).name.equals(name)){
-					return this.proxies.get(i);
-				}
-			
-			return null; 
+			if (proxyIndex == null) {
+				proxyIndex = indexByName(proxies);
+			}
+			return proxyIndex.get(name);
 		}
 		
 		public Policy getTargetFileNameMatch(String name){
-			for(int i=0;i<this.targets.size();i++)
-				if (this.targets.get(i).name.equals(name)){
-					return this.targets.get(i);
+			if (targetIndex == null) {
+				targetIndex = indexByName(targets);
+			}
+			return targetIndex.get(name);
+		}
+		
+		/**
+		 * @return the files of a policies directory that have tokens, in the order of files
+		 */
+		public Map<File, Policy> getPolicyFileMatches(List<File> files){
+			Map<File, Policy> matches = new LinkedHashMap<File, Policy>();
+			for (File file : files) {
+				Policy policy = getPolicyFileNameMatch(file.getName());
+				if (policy != null) {
+					matches.put(file, policy);
+				}
+			}
+			return matches;
+		}
+		
+		/**
+		 * @return the files of a proxies directory that have tokens, in the order of files
+		 */
+		public Map<File, Policy> getProxyFileMatches(List<File> files){
+			Map<File, Policy> matches = new LinkedHashMap<File, Policy>();
+			for (File file : files) {
+				Policy policy = getProxyFileNameMatch(file.getName());
+				if (policy != null) {
+					matches.put(file, policy);
+				}
+			}
+			return matches;
+		}
+		
+		/**
+		 * @return the files of a targets directory that have tokens, in the order of files
+		 */
+		public Map<File, Policy> getTargetFileMatches(List<File> files){
+			Map<File, Policy> matches = new LinkedHashMap<File, Policy>();
+			for (File file : files) {
+				Policy policy = getTargetFileNameMatch(file.getName());
+				if (policy != null) {
+					matches.put(file, policy);
 				}
-			
-			return null; 
+			}
+			return matches;
 		}
 		public List<Policy> getTargets() {
 			return targets;
 		}
 		public void setTargets(List<Policy> targets) {
 			this.targets = targets;
+			this.targetIndex = null;
 		}
 
 	}
@@ -153,15 +211,48 @@ public class ConfigTokens { // represents configuration files containing all
 
 	public void setConfigurations(List<Configurations> configurations) {
 		this.configurations = configurations;
+		this.configurationIndex = null;
+	}
+	
+	/**
+	 * Builds the lookup indexes by environment and file name. The lookups
+	 * build them on first use too, but only indexed tokens may be shared
+	 * between threads.
+	 */
+	public ConfigTokens index() {
+		Map<String, Configurations> index = new HashMap<String, Configurations>();
+		if (configurations != null) {
+			for (Configurations configuration : configurations) {
+				if (configuration == null) {
+					continue;
+				}
+				configuration.index();
+				if (configuration.name != null && !index.containsKey(configuration.name)) {
+					index.put(configuration.name, configuration);
+				}
+			}
+		}
+		configurationIndex = Collections.unmodifiableMap(index);
+		return this;
 	}
 	
 	public Configurations getConfigbyEnv(String name){
-		for(int i=0;i<this.configurations.size();i++)
-			if (this.configurations.get(i).name.equals(name)){
-				return this.configurations.get(i);
+		if (configurationIndex == null) {
+			index();
+		}
+		return configurationIndex.get(name);
+	}
+	
+	private static Map<String, Policy> indexByName(List<Policy> policies) {
+		Map<String, Policy> index = new HashMap<String, Policy>();
+		if (policies != null) {
+			for (Policy policy : policies) {
+				if (policy != null && policy.name != null && !index.containsKey(policy.name)) {
+					index.put(policy.name, policy);
+				}
 			}
-		
-		return null;
+		}
+		return Collections.unmodifiableMap(index);
 	}
 
 }
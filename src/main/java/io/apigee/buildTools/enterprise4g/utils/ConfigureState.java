@@ -0,0 +1,138 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.utils;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * What the last incremental configure did, kept in target/apigee-configure:
+ * for each XML file it transformed, the hash of the file before, the hash
+ * of its tokens and environment, and the hash of the result, along with a
+ * copy of the result.
+ *
+ * Build setups copy apiproxy/ over target/apiproxy before every configure,
+ * so an unchanged file usually shows up untransformed again. It is then
+ * restored from the copy instead of being parsed, transformed and written.
+ */
+public class ConfigureState {
+
+    static final String DIRECTORY = "apigee-configure";
+    static final String STATE_FILE = "state.json";
+
+    static Logger logger = LoggerFactory.getLogger(ConfigureState.class);
+    static Gson gson = new Gson();
+
+    static class FileState {
+        String input;
+        String tokens;
+        String output;
+    }
+
+    Map<String, FileState> files = new TreeMap<String, FileState>();
+
+    private transient File dir;
+    private transient Map<String, FileState> next = new TreeMap<String, FileState>();
+
+    /**
+     * @param targetDir the project's target/ directory
+     * @return the state of the last configure, empty if there is none or it cannot be read
+     */
+    public static ConfigureState load(File targetDir) {
+        File dir = new File(targetDir, DIRECTORY);
+        File stateFile = new File(dir, STATE_FILE);
+        ConfigureState state = null;
+        if (stateFile.isFile()) {
+            try {
+                state = gson.fromJson(FileUtils.readFileToString(stateFile, "UTF-8"), ConfigureState.class);
+            } catch (IOException e) {
+                logger.warn("Could not read " + stateFile + ", configuring every file: " + e.getMessage());
+            } catch (JsonParseException e) {
+                logger.warn("Could not read " + stateFile + ", configuring every file: " + e.getMessage());
+            }
+        }
+        if (state == null || state.files == null) {
+            state = new ConfigureState();
+        }
+        state.dir = dir;
+        state.next = new TreeMap<String, FileState>();
+        return state;
+    }
+
+    /**
+     * @return whether the file at path already is the result of configuring input with these tokens
+     */
+    public boolean isConfigured(String path, String input, String tokens) {
+        FileState file = files.get(path);
+        if (file == null || !tokens.equals(file.tokens) || !input.equals(file.output)) {
+            return false;
+        }
+        seen(path, file);
+        return true;
+    }
+
+    /**
+     * Replaces target with the result of configuring it last time, if
+     * neither the file nor its tokens changed since.
+     *
+     * @return whether target was restored
+     */
+    public boolean restore(String path, String input, String tokens, File target) throws IOException {
+        FileState file = files.get(path);
+        File output = new File(dir, "output/" + path);
+        if (file == null || !tokens.equals(file.tokens) || !input.equals(file.input) || !output.isFile()) {
+            return false;
+        }
+        FileUtils.copyFile(output, target);
+        seen(path, file);
+        return true;
+    }
+
+    /**
+     * Records that target, which had the input hash, was configured with these tokens.
+     */
+    public void record(String path, String input, String tokens, File target) throws IOException {
+        FileState file = new FileState();
+        file.input = input;
+        file.tokens = tokens;
+        file.output = BundleHash.sha256(target);
+        FileUtils.copyFile(target, new File(dir, "output/" + path));
+        seen(path, file);
+    }
+
+    // files are configured on several threads, each path by one of them
+    private synchronized void seen(String path, FileState file) {
+        next.put(path, file);
+    }
+
+    /**
+     * Writes the files seen in this run, dropping the ones that are gone.
+     */
+    public synchronized void save() throws IOException {
+        files = next;
+        next = new TreeMap<String, FileState>();
+        dir.mkdirs();
+        FileUtils.writeStringToFile(new File(dir, STATE_FILE), gson.toJson(this), "UTF-8");
+    }
+}
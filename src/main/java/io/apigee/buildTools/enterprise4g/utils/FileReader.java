@@ -21,7 +21,6 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 
 import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 
 import org.slf4j.Logger;
@@ -43,12 +42,8 @@ public class FileReader {
 			IOException, ParserConfigurationException
 
 	{
-		// Create a builder factory
-		DocumentBuilderFactory docFactory = DocumentBuilderFactory
-				.newInstance();
-
-		// Create the builder and parse the file
-		DocumentBuilder docBuilder = docFactory.newDocumentBuilder();
+		// parse the file with this thread's builder
+		DocumentBuilder docBuilder = XmlParsers.documentBuilder();
 		//Document doc = docBuilder.parse("/Users/santanudey/Projects/4G/code-fest/project/apiproxy/proxies/proxy.xml");
 		Document doc = docBuilder.parse(filepath);
 		return doc;
@@ -64,6 +59,9 @@ public class FileReader {
 		BufferedReader bufferedReader = new BufferedReader(
 				new java.io.FileReader(filepath));
 		conf = gson.fromJson(bufferedReader, ConfigTokens.class); // binds the file to data config objects
+		if (conf != null) {
+			conf.index();
+		}
 		
 		Logger logger = LoggerFactory.getLogger(FileReader.class);
 		
@@ -16,6 +16,7 @@
 package io.apigee.buildTools.enterprise4g.utils;
 
 import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.Ref;
 import org.eclipse.jgit.lib.Repository;
@@ -23,6 +24,10 @@ import org.eclipse.jgit.lib.RepositoryBuilder;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 
@@ -35,7 +40,7 @@ public class GitUtil {
 			if (workspace==null) {
 				throw new IllegalStateException("Does not appear to be a Git workspace: "+f.getCanonicalPath());
 			}
-			Repository r = new RepositoryBuilder().setWorkTree(findWorkspaceRoot(f)).build();
+			Repository r = new RepositoryBuilder().setWorkTree(workspace).build();
 			git = new Git(r);
 		}
 		catch (IOException e) {
@@ -68,41 +73,67 @@ public class GitUtil {
 	
 	}
 	public  Ref getWorkspaceHeadRevision() {
-		Map<String, Ref> refs = git.getRepository().getAllRefs();
-	
-		Ref headRef = refs.get("HEAD");
-		return headRef;
-	
+		// HEAD is read directly, listing every ref is slow in repositories with many tags
+		try {
+			return git.getRepository().getRef(Constants.HEAD);
+		} catch (IOException e) {
+			throw new AstException(e);
+		}
 	}
 
 	/**
-	 * IMP NOTE: Tag number will be displayed only if git tags are peeled manually using the command "git gc"
-	 * @return
+	 * Tags are peeled here, so annotated tags are found whether or not
+	 * "git gc" has peeled them in packed-refs.
+	 * 
+	 * @return the name of a tag pointing at the head revision, the first by name if there are several
 	 */
 	public  String getTagNameForWorkspaceHeadRevision() {
-		String headRevision = getWorkspaceHeadRevisionString();
-		
-		Map<String, Ref> tags = git.getRepository().getAllRefs();
-		for (Ref tagRef : tags.values()) {
-			String tagName = tagRef.getName();
-			ObjectId obj = tagRef.getPeeledObjectId();
-			if (obj == null) obj = tagRef.getObjectId();
-//			 System.out.println(">>>>>>>>>>>>>>>>>" + tagRef.getName() + "," +
-//			 obj.getName() +"," + headRevision  );
-			if (headRevision.equals(obj.getName())) {
-				if (tagName.contains("/tags/")) {
-					int lastSlashIndex = tagName.lastIndexOf("/");
-					if (lastSlashIndex > 0) {
-						tagName = tagName.substring(lastSlashIndex + 1);
-						return tagName;
-					}
-				
+		Ref head = getWorkspaceHeadRevision();
+		if (head == null || head.getObjectId() == null) {
+			return null;
+		}
+		List<String> tagNames = getTagNamesByCommit().get(head.getObjectId());
+		if (tagNames == null) {
+			return null;
+		}
+		// as before, only the last part of a tag like release/1.0 is shown
+		String tagName = tagNames.get(0);
+		return tagName.substring(tagName.lastIndexOf('/') + 1);
+	}
 
-				}
+	/**
+	 * Reads every tag once.
+	 * 
+	 * @return the short names of the tags by the id of the commit they point at, sorted by name
+	 */
+	public Map<ObjectId, List<String>> getTagNamesByCommit() {
+		Repository repository = git.getRepository();
+		Map<ObjectId, List<String>> index = new HashMap<ObjectId, List<String>>();
+		for (Map.Entry<String, Ref> tag : repository.getTags().entrySet()) {
+			Ref ref = tag.getValue();
+			if (!ref.isPeeled()) {
+				ref = repository.peel(ref);
 			}
-
+			ObjectId obj = ref.getPeeledObjectId();
+			if (obj == null) obj = ref.getObjectId();
+			if (obj == null) {
+				continue;
+			}
+			List<String> names = index.get(obj);
+			if (names == null) {
+				names = new ArrayList<String>();
+				index.put(obj, names);
+			}
+			names.add(tag.getKey());
+		}
+		for (List<String> names : index.values()) {
+			Collections.sort(names);
 		}
-		return null;
+		return index;
+	}
+
+	public void close() {
+		git.getRepository().close();
 	}
 	
 
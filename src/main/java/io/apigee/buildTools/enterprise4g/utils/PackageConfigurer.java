@@ -16,22 +16,33 @@
 package io.apigee.buildTools.enterprise4g.utils;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpressionException;
 
+import org.apache.commons.io.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.w3c.dom.Document;
 import org.w3c.dom.NodeList;
+import org.w3c.dom.Text;
 
 import io.apigee.buildTools.enterprise4g.utils.ConfigTokens.Policy;
 
@@ -46,128 +57,280 @@ import com.google.gson.GsonBuilder;
 
 public class PackageConfigurer {
 
+    // Gson instances are thread safe, and costly to build for every file
+    static Gson gson = new Gson();
+    static Gson prettyGson = new GsonBuilder().setPrettyPrinting().create();
+
+    /**
+     * Applies the tokens to a DOM of the file with XPath, see replaceTokens
+     */
+    public static final String ENGINE_DOM = "dom";
+
+    /**
+     * Applies the tokens in one streaming pass, see StaxTokenReplacer, and
+     * uses the DOM only for files with tokens it cannot stream
+     */
+    public static final String ENGINE_STAX = "stax";
+
     public static void configurePackage(String env, File configFile)
             throws Exception {
+        configurePackage(env, configFile, false, ENGINE_DOM, 1);
+    }
+
+    /**
+     * @param incremental whether to reuse the result of the last configure
+     *                    for files whose content and tokens did not change,
+     *                    see ConfigureState
+     * @param engine      ENGINE_DOM or ENGINE_STAX
+     * @param threads     how many files are configured at once
+     */
+    public static void configurePackage(String env, File configFile, boolean incremental, String engine,
+                                        int threads) throws Exception {
 
         Logger logger = LoggerFactory.getLogger(PackageConfigurer.class);
 
-        TransformerFactory transformerFactory = TransformerFactory
-                .newInstance();
-        Transformer transformer = transformerFactory.newTransformer();
+        Transformer transformer = XmlParsers.transformer();
 
-        // get the list of files in proxies folder
         XMLFileListUtil listFileUtil = new XMLFileListUtil();
-
-        List<File> fileList = listFileUtil.getProxyFiles(configFile);
         FileReader fileutil = new FileReader();
 
         ConfigTokens conf = fileutil.getBundleConfigs(configFile);
+        ConfigTokens.Configurations configuration = conf.getConfigbyEnv(env);
+        if (configuration == null) {
+            logger.error(
+                    "\n\n=============No config tokens found for Environment {} in {}================\n",
+                    env, configFile);
+            throw new IllegalArgumentException("config.json has no configuration named " + env);
+        }
 
-        for (int i = 0; i < fileList.size(); i++) {
+        File targetDir = new File(configFile.getParentFile(), "target");
+        ConfigureState state = incremental ? ConfigureState.load(targetDir) : null;
+        File apiproxyDir = new File(targetDir, "apiproxy");
 
-            Document xmlDoc = fileutil.getXMLDocument(fileList.get(i));
+        // the files in the proxies, policies and targets folders that have tokens
+        List<FileTokens> files = new ArrayList<FileTokens>();
+        FileTokens.add(files, "proxy", configuration.getProxyFileMatches(listFileUtil.getProxyFiles(configFile)));
+        FileTokens.add(files, "policy", configuration.getPolicyFileMatches(listFileUtil.getPolicyFiles(configFile)));
+        FileTokens.add(files, "target", configuration.getTargetFileMatches(listFileUtil.getTargetFiles(configFile)));
+        configureFiles(files, apiproxyDir, env, engine, threads, state);
 
-            try {
-                Policy configTokens = conf.getConfigbyEnv(env)
-                        .getProxyFileNameMatch(fileList.get(i).getName());
-                // logger.info("\n\n=============Replacing config tokens for Environment {}, for policy or proxy file name {}================\n",env,fileList.get(i).getName());
-                if (configTokens != null) {
-                    logger.info(
-                            "=============Replacing config tokens for Environment {}, for proxy file name {}================\n",
-                            env, fileList.get(i).getName());
-                    xmlDoc = replaceTokens(xmlDoc, configTokens);
-                    DOMSource source = new DOMSource(xmlDoc);
-                    StreamResult result = new StreamResult(fileList.get(i));
-                    transformer.transform(source, result);
-                }
-            } catch (Exception e) {
-                logger.error(
-                        "\n\n=============No config tokens found for Environment {}, for proxy file name {}================\n",
-                        env, fileList.get(i).getName());
-                throw e;
-            }
+        // update application metadata in the apiproxy folder
+        List<File> fileList = listFileUtil.getAPIProxyFiles(configFile);
 
-        }
+        Document xmlDoc = fileutil.getXMLDocument(fileList.get(0)); // there would be only one file, at least one file
+
+        javax.xml.xpath.XPathExpression expression = XPathCache.compile("/APIProxy/Description");
 
-        // get the list of files in policies folder
-        fileList = listFileUtil.getPolicyFiles(configFile);
-        for (int i = 0; i < fileList.size(); i++) {
+        NodeList nodes = (NodeList) expression.evaluate(xmlDoc,
+                XPathConstants.NODESET);
 
-            Document xmlDoc = fileutil.getXMLDocument(fileList.get(i));
+        // the description is kept as it is in the <proxyname>.xml file, so the file only changes if it is empty
+        if (!nodes.item(0).hasChildNodes()) {
+            // if Description is empty, then it reverts back to appending the username, git hash, etc
+            nodes.item(0).setTextContent(getComment(fileList.get(0)));
 
-            try {
-                Policy configTokens = conf.getConfigbyEnv(env)
-                        .getPolicyFileNameMatch(fileList.get(i).getName());
-                if (configTokens != null) {
-                    logger.info(
-                            "=============Replacing config tokens for Environment {}, for policy file name {}================\n",
-                            env, fileList.get(i).getName());
-                    xmlDoc = replaceTokens(xmlDoc, configTokens);
-                    DOMSource source = new DOMSource(xmlDoc);
-                    StreamResult result = new StreamResult(fileList.get(i));
-                    transformer.transform(source, result);
-                }
-            } catch (Exception e) {
-                logger.error(
-                        "\n\n=============No config tokens found for Environment {}, for proxy file name {}================\n",
-                        env, fileList.get(i).getName());
-                throw e;
-            }
+            DOMSource source = new DOMSource(xmlDoc);
+            StreamResult result = new StreamResult(fileList.get(0));
+            transformer.transform(source, result);
+        }
 
+        if (state != null) {
+            state.save();
         }
+    }
 
-        // get the list of files in targets folder
-        fileList = listFileUtil.getTargetFiles(configFile);
-        for (int i = 0; i < fileList.size(); i++) {
+    /**
+     * A file and the tokens to apply to it.
+     */
+    static class FileTokens {
+        final String kind;
+        final File file;
+        final Policy tokens;
+
+        FileTokens(String kind, File file, Policy tokens) {
+            this.kind = kind;
+            this.file = file;
+            this.tokens = tokens;
+        }
 
-            Document xmlDoc = fileutil.getXMLDocument(fileList.get(i));
+        static void add(List<FileTokens> files, String kind, Map<File, Policy> matches) {
+            for (Map.Entry<File, Policy> match : matches.entrySet()) {
+                files.add(new FileTokens(kind, match.getKey(), match.getValue()));
+            }
+        }
+    }
 
+    /**
+     * Configures every file, on up to threads threads. Each file is
+     * independent, so a failure does not stop the others; the failures are
+     * reported together once all files are done.
+     */
+    static void configureFiles(List<FileTokens> files, final File apiproxyDir, final String env,
+                               final String engine, int threads, final ConfigureState state) throws Exception {
+
+        final Logger logger = LoggerFactory.getLogger(PackageConfigurer.class);
+
+        final Tracing.Span parent = Tracing.current();
+        List<Callable<Exception>> tasks = new ArrayList<Callable<Exception>>();
+        for (final FileTokens file : files) {
+            tasks.add(new Callable<Exception>() {
+                public Exception call() {
+                    Tracing.Span span = Tracing.start("configure " + file.file.getName(), parent)
+                            .set("apigee.file.kind", file.kind)
+                            .set("apigee.config.engine", engine)
+                            .set("apigee.config.tokens", file.tokens.tokens != null ? file.tokens.tokens.size() : 0);
+                    try {
+                        logger.info(
+                                "=============Replacing config tokens for Environment {}, for {} file name {}================\n",
+                                new Object[]{env, file.kind, file.file.getName()});
+                        configureFile(file.file, apiproxyDir, env, file.tokens, engine, XmlParsers.transformer(), state);
+                        span.succeeded();
+                        return null;
+                    } catch (Exception e) {
+                        logger.error(
+                                "\n\n=============Replacing config tokens failed for Environment {}, for {} file name {}================\n{}",
+                                new Object[]{env, file.kind, file.file.getName(), e.getMessage()});
+                        span.failed(e);
+                        return e;
+                    } finally {
+                        span.end();
+                    }
+                }
+            });
+        }
+
+        List<Exception> failures = new ArrayList<Exception>();
+        List<String> failed = new ArrayList<String>();
+        if (threads <= 1 || tasks.size() <= 1) {
+            for (int i = 0; i < tasks.size(); i++) {
+                addFailure(failures, failed, files.get(i), tasks.get(i).call());
+            }
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, tasks.size()),
+                    new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "apigee-configure-" + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
             try {
-                Policy configTokens = conf.getConfigbyEnv(env)
-                        .getTargetFileNameMatch(fileList.get(i).getName());
-                if (configTokens != null) {
-                    logger.info(
-                            "=============Replacing config tokens for Environment {}, for policy file name {}================\n",
-                            env, fileList.get(i).getName());
-                    xmlDoc = replaceTokens(xmlDoc, configTokens);
-                    DOMSource source = new DOMSource(xmlDoc);
-                    StreamResult result = new StreamResult(fileList.get(i));
-                    transformer.transform(source, result);
+                List<Future<Exception>> futures = executor.invokeAll(tasks);
+                for (int i = 0; i < futures.size(); i++) {
+                    try {
+                        addFailure(failures, failed, files.get(i), futures.get(i).get());
+                    } catch (ExecutionException e) {
+                        // the tasks return their exceptions, only errors get here
+                        if (e.getCause() instanceof Error) {
+                            throw (Error) e.getCause();
+                        }
+                        throw new IllegalStateException(e.getCause());
+                    }
                 }
-            } catch (Exception e) {
-                logger.error(
-                        "\n\n=============No config tokens found for Environment {}, for proxy file name {}================\n",
-                        env, fileList.get(i).getName());
-                throw e;
+            } finally {
+                executor.shutdownNow();
             }
+        }
 
+        if (failures.size() == 1) {
+            throw failures.get(0);
+        } else if (failures.size() > 1) {
+            Exception e = new Exception("Replacing config tokens failed for " + failures.size() + " files: " + failed,
+                    failures.get(0));
+            for (int i = 1; i < failures.size(); i++) {
+                e.addSuppressed(failures.get(i));
+            }
+            throw e;
         }
+    }
 
+    private static void addFailure(List<Exception> failures, List<String> failed, FileTokens file, Exception e) {
+        if (e != null) {
+            failures.add(e);
+            failed.add(file.file.getName());
+        }
+    }
 
-        // update application metadata in the apiproxy folder
+    /**
+     * Replaces the tokens in one file, or with an incremental state, puts
+     * back the result of the last run if nothing changed since.
+     */
+    static void configureFile(File file, File apiproxyDir, String env, Policy configTokens, String engine,
+                              Transformer transformer, ConfigureState state) throws Exception {
+        String path = null;
+        String input = null;
+        String tokens = null;
+        if (state != null) {
+            path = apiproxyDir.toURI().relativize(file.toURI()).getPath();
+            input = BundleHash.sha256(file);
+            tokens = BundleHash.sha256(engine + "\n" + env + "\n" + gson.toJson(configTokens));
+            if (state.isConfigured(path, input, tokens) || state.restore(path, input, tokens, file)) {
+                LoggerFactory.getLogger(PackageConfigurer.class).info("{} and its tokens are unchanged, reusing the last result", path);
+                Tracing.current().set("apigee.config.reused", true);
+                return;
+            }
+        }
 
-        // get the list of files in targets folder
-        fileList = listFileUtil.getAPIProxyFiles(configFile);
+        replaceTokens(file, configTokens, engine, transformer);
 
-        Document xmlDoc = fileutil.getXMLDocument(fileList.get(0)); // there would be only one file, at least one file
+        if (state != null) {
+            state.record(path, input, tokens, file);
+        }
+    }
 
-        javax.xml.xpath.XPathFactory factory = javax.xml.xpath.XPathFactory.newInstance();
-        javax.xml.xpath.XPath xpath = factory.newXPath();
-        javax.xml.xpath.XPathExpression expression = xpath.compile("/APIProxy/Description");
+    /**
+     * Appends the content hash of the bundle to the Description of the
+     * proxy descriptor in apiproxyDir, so that a deployment can tell
+     * whether the deployed revision has the same content.
+     *
+     * @see BundleHash
+     */
+    public static void stampContentHash(File apiproxyDir, String hash) throws Exception {
 
-        NodeList nodes = (NodeList) expression.evaluate(xmlDoc,
-                XPathConstants.NODESET);
+        Logger logger = LoggerFactory.getLogger(PackageConfigurer.class);
 
-        if (nodes.item(0).hasChildNodes()) {
-            // sets the description to whatever is in the <proxyname>.xml file
-            nodes.item(0).setTextContent(expression.evaluate(xmlDoc));
-        } else {
-            // if Description is empty, then it reverts back to appending the username, git hash, etc
-            nodes.item(0).setTextContent(getComment(fileList.get(0)));
+        File[] descriptors = apiproxyDir.listFiles(new ExtFileNameFilter("xml"));
+        if (descriptors == null || descriptors.length == 0) {
+            throw new IOException("No proxy descriptor found in " + apiproxyDir);
         }
+        // the descriptor is edited as text, re-serializing it would change the hash
+        NodeList nodes = new FileReader().getXMLDocument(descriptors[0]).getElementsByTagName("Description");
+        String text = nodes.getLength() > 0 ? nodes.item(0).getTextContent() : null;
+        if (text == null || text.trim().length() == 0) {
+            text = getComment(descriptors[0]);
+        }
+        String descriptor = BundleHash.replaceDescription(BundleHash.read(descriptors[0]), BundleHash.withHash(text, hash));
+        FileUtils.writeStringToFile(descriptors[0], descriptor, "UTF-8");
+        logger.info("Bundle content hash is {}", hash);
+    }
 
+    /**
+     * Replaces the tokens in file with the given engine and writes it back.
+     * With ENGINE_STAX, files with a token that cannot be streamed go
+     * through the DOM.
+     */
+    public static void replaceTokens(File file, Policy configTokens, String engine, Transformer transformer)
+            throws Exception {
+        if (ENGINE_STAX.equals(engine)) {
+            if (StaxTokenReplacer.canStream(configTokens)) {
+                LoggerFactory.getLogger(PackageConfigurer.class).info(
+                        "============= to stream the following config tokens ================\n{}",
+                        prettyGson.toJson(configTokens));
+                StaxTokenReplacer.replaceTokens(file, configTokens);
+                return;
+            }
+            LoggerFactory.getLogger(PackageConfigurer.class).info(
+                    "Some of the xpath expressions for {} cannot be streamed, using the DOM", file.getName());
+        } else if (engine != null && !ENGINE_DOM.equals(engine)) {
+            throw new IllegalArgumentException("Unknown configure engine " + engine + ", use dom or stax");
+        }
+
+        Document xmlDoc = new FileReader().getXMLDocument(file);
+        xmlDoc = replaceTokens(xmlDoc, configTokens);
         DOMSource source = new DOMSource(xmlDoc);
-        StreamResult result = new StreamResult(fileList.get(0));
+        StreamResult result = new StreamResult(file);
         transformer.transform(source, result);
     }
 
@@ -176,12 +339,7 @@ public class PackageConfigurer {
 
         Logger logger = LoggerFactory.getLogger(PackageConfigurer.class);
 
-        javax.xml.xpath.XPathFactory factory = javax.xml.xpath.XPathFactory
-                .newInstance();
-        javax.xml.xpath.XPath xpath = factory.newXPath();
-
-        Gson gson = new GsonBuilder().setPrettyPrinting().create();
-        String json = gson.toJson(configTokens);
+        String json = prettyGson.toJson(configTokens);
         logger.info(
                 "============= to apply the following config tokens ================\n{}",
                 json);
@@ -192,7 +350,7 @@ public class PackageConfigurer {
                 logger.debug(
                         "=============Checking for Xpath Expressions {}  ================\n",
                         configTokens.tokens.get(i).xpath);
-                javax.xml.xpath.XPathExpression expression = xpath
+                javax.xml.xpath.XPathExpression expression = XPathCache
                         .compile(configTokens.tokens.get(i).xpath);
 
                 NodeList nodes = (NodeList) expression.evaluate(doc,
@@ -200,7 +358,8 @@ public class PackageConfigurer {
 
                 for (int j = 0; j < nodes.getLength(); j++) {
 
-                    if (nodes.item(j).hasChildNodes()) {
+                    // text() selects text nodes, which have no children of their own
+                    if (nodes.item(j).hasChildNodes() || nodes.item(j) instanceof Text) {
                         logger.debug(
                                 "=============Updated existing value {} to new value {} ================\n",
                                 nodes.item(j).getTextContent(),
@@ -242,11 +401,11 @@ public class PackageConfigurer {
     protected static String getScmRevision(File basePath ) {
         String rev = null;
         try {
-            GitUtil gu = new GitUtil(basePath);
-            String tagName = gu.getTagNameForWorkspaceHeadRevision();
+            ScmMetadata scm = ScmMetadata.of(basePath);
+            String tagName = scm.getTagName();
             rev = "git: ";
             rev = (tagName == null) ? rev + "" : rev + tagName + " - ";
-            String revNum = gu.getWorkspaceHeadRevisionString();
+            String revNum = scm.getHeadRevision();
             revNum = revNum.substring(0, Math.min(revNum.length(), 8));
             rev = rev + revNum ;
 
@@ -0,0 +1,542 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes reproducible zips with entries compressed in parallel. Each entry
+ * is deflated into memory by a task on a fork-join pool while a single
+ * writer appends finished entries to the file in the order given, so the
+ * output does not depend on which task finishes first. Files that are
+ * already compressed, or do not get smaller, are STORED and copied from
+ * their channel straight into the zip.
+ *
+ * Entries are named in path order and carry a fixed time and no
+ * attributes or extra fields, so identical trees give identical zips; this
+ * is the reproducible mode of ZipUtils. Zip64 is not supported, which is
+ * far beyond the size of a bundle.
+ */
+public class ParallelZip {
+
+    static Logger log = LoggerFactory.getLogger(ParallelZip.class);
+
+    /** 2010-01-01 00:00 in MS-DOS date and time format. */
+    static final int DOS_DATE = ((2010 - 1980) << 9) | (1 << 5) | 1;
+    static final int DOS_TIME = 0;
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    /** Largest output buffer a thread keeps for the next entry. */
+    static final int MAX_KEPT_OUTPUT = 4 * 1024 * 1024;
+
+    /** Uncompressed bytes that may be waiting to be written before compression of more entries is held back. */
+    static final long MAX_PENDING_BYTES = 64L * 1024 * 1024;
+
+    private static final String[] STORED_EXTENSIONS = {
+            ".zip", ".jar", ".gz", ".tgz", ".png", ".jpg", ".jpeg", ".gif"
+    };
+
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+    private static final int FLAG_UTF8 = 0x0800;
+
+    /**
+     * A file and its name in the zip.
+     */
+    public static class Entry {
+        public final String name;
+        public final File file;
+
+        public Entry(String name, File file) {
+            this.name = name;
+            this.file = file;
+        }
+    }
+
+    public static final Comparator<Entry> BY_NAME = new Comparator<Entry>() {
+        public int compare(Entry a, Entry b) {
+            return a.name.compareTo(b.name);
+        }
+    };
+
+    /**
+     * An entry ready to be written; data is null for STORED entries, which
+     * are copied from the file.
+     */
+    static class Compressed {
+        final Entry entry;
+        final byte[] name;
+        final int method;
+        final long crc;
+        final long size;
+        final byte[] data;
+        final int compressedSize;
+        long offset;
+
+        Compressed(Entry entry, int method, long crc, long size, byte[] data, int compressedSize) throws IOException {
+            this.entry = entry;
+            this.name = entry.name.getBytes("UTF-8");
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.data = data;
+            this.compressedSize = compressedSize;
+        }
+
+        long getCompressedSize() {
+            return data == null ? size : compressedSize;
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private final int level;
+
+    /**
+     * Compresses on the common fork-join pool at the default level.
+     */
+    public ParallelZip() {
+        this(ForkJoinPool.commonPool(), Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public ParallelZip(ForkJoinPool pool, int level) {
+        this.pool = pool;
+        this.level = level;
+    }
+
+    /**
+     * Lists the files below root as zip entries named prefix/relative path,
+     * in the order of their names.
+     */
+    public static List<Entry> entries(File root, String prefix) {
+        List<Entry> entries = new ArrayList<Entry>();
+        collect(root, (prefix == null) ? "" : prefix + "/", entries);
+        Collections.sort(entries, BY_NAME);
+        return entries;
+    }
+
+    private static void collect(File dir, String path, List<Entry> entries) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                collect(file, path + file.getName() + "/", entries);
+            } else {
+                entries.add(new Entry(path + file.getName(), file));
+            }
+        }
+    }
+
+    /**
+     * Zips the files below dir as prefix/relative path.
+     */
+    public void zipDir(File zipFile, File dir, String prefix) throws IOException {
+        write(zipFile, entries(dir, prefix));
+    }
+
+    /**
+     * Writes the entries to zipFile in the given order.
+     */
+    public void write(File zipFile, List<Entry> entries) throws IOException {
+        if (entries.size() > 0xFFFF) {
+            throw new IOException("Too many entries for a zip without zip64: " + entries.size());
+        }
+        log.debug("Creating : " + zipFile);
+        Tracing.Span span = Tracing.start("zip " + zipFile.getName()).set("apigee.zip.entries", entries.size());
+        Deque<Future<Compressed>> pending = new ArrayDeque<Future<Compressed>>();
+        // the bytes counted for each pending entry, taken off again when it is written
+        Deque<Long> pendingLengths = new ArrayDeque<Long>();
+        final ScratchPool scratch = new ScratchPool();
+        List<Compressed> written = new ArrayList<Compressed>(entries.size());
+        FileOutputStream stream = null;
+        Output out = null;
+        try {
+            stream = new FileOutputStream(zipFile);
+            out = new Output(stream.getChannel());
+            int next = 0;
+            long pendingBytes = 0;
+            while (next < entries.size() || !pending.isEmpty()) {
+                // keep the pool busy without holding the whole bundle in memory
+                while (next < entries.size() && (pending.isEmpty() || pendingBytes < MAX_PENDING_BYTES)) {
+                    final Entry entry = entries.get(next++);
+                    long length = entry.file.length();
+                    pendingBytes += length;
+                    pendingLengths.add(length);
+                    pending.add(pool.submit(new Callable<Compressed>() {
+                        public Compressed call() throws IOException {
+                            return compress(entry, scratch);
+                        }
+                    }));
+                }
+                Compressed compressed = get(pending.poll());
+                pendingBytes -= pendingLengths.poll();
+                compressed.offset = out.position();
+                if (compressed.offset > 0xFFFFFFFFL) {
+                    throw new IOException("Zip too large without zip64: " + zipFile);
+                }
+                writeEntry(out, compressed);
+                written.add(compressed);
+            }
+            writeCentralDirectory(out, written);
+            out.flush();
+            span.set("apigee.zip.bytes", out.position()).succeeded();
+        } catch (IOException e) {
+            span.failed(e);
+            throw e;
+        } catch (RuntimeException e) {
+            span.failed(e);
+            throw e;
+        } finally {
+            for (Future<Compressed> future : pending) {
+                future.cancel(true);
+            }
+            // tasks still running end their Deflater when they are done
+            scratch.close();
+            try {
+                if (stream != null) {
+                    stream.close();
+                }
+            } finally {
+                span.end();
+            }
+        }
+    }
+
+    /**
+     * Buffers of a compressing task, reused for the next entry so that
+     * zipping thousands of small files does not allocate a Deflater and
+     * buffers for each.
+     */
+    static class Scratch {
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        final byte[] input = new byte[BUFFER_SIZE];
+        final ByteBuffer direct = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        byte[] output = new byte[4 * BUFFER_SIZE];
+    }
+
+    /**
+     * The Scratch buffers of one zip, at most one per thread compressing
+     * at a time. Closing it ends their Deflaters, which hold native zlib
+     * memory until then.
+     */
+    static class ScratchPool {
+        private final Deque<Scratch> free = new ArrayDeque<Scratch>();
+        private boolean closed;
+
+        synchronized Scratch take() {
+            Scratch buffers = free.poll();
+            return buffers != null ? buffers : new Scratch();
+        }
+
+        synchronized void release(Scratch buffers) {
+            if (closed) {
+                buffers.deflater.end();
+            } else {
+                free.push(buffers);
+            }
+        }
+
+        synchronized void close() {
+            closed = true;
+            for (Scratch buffers : free) {
+                buffers.deflater.end();
+            }
+            free.clear();
+        }
+    }
+
+    Compressed compress(Entry entry, ScratchPool scratch) throws IOException {
+        Scratch buffers = scratch.take();
+        try {
+            return compress(entry, buffers);
+        } finally {
+            scratch.release(buffers);
+        }
+    }
+
+    private Compressed compress(Entry entry, Scratch buffers) throws IOException {
+        FileInputStream in = new FileInputStream(entry.file);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            CRC32 crc = new CRC32();
+            if (isCompressed(entry.name)) {
+                ByteBuffer buffer = buffers.direct;
+                buffer.clear();
+                while (channel.read(buffer) != -1) {
+                    buffer.flip();
+                    crc.update(buffer);
+                    buffer.clear();
+                }
+                return new Compressed(entry, METHOD_STORED, crc.getValue(), size, null, 0);
+            }
+
+            Deflater deflater = buffers.deflater;
+            deflater.reset();
+            deflater.setLevel(level);
+            byte[] input = buffers.input;
+            byte[] output = buffers.output;
+            int length = 0;
+            int n;
+            long read = 0;
+            while ((n = in.read(input)) != -1) {
+                crc.update(input, 0, n);
+                read += n;
+                deflater.setInput(input, 0, n);
+                while (!deflater.needsInput()) {
+                    output = ensureCapacity(output, length);
+                    length += deflater.deflate(output, length, output.length - length);
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                output = ensureCapacity(output, length);
+                length += deflater.deflate(output, length, output.length - length);
+            }
+            if (output.length <= MAX_KEPT_OUTPUT) {
+                buffers.output = output;
+            }
+            if (read != size) {
+                throw new IOException(entry.file + " changed while it was being zipped");
+            }
+            if (length >= size) {
+                // incompressible, storing it is smaller and cheaper to unzip
+                return new Compressed(entry, METHOD_STORED, crc.getValue(), size, null, 0);
+            }
+            return new Compressed(entry, METHOD_DEFLATED, crc.getValue(), size, Arrays.copyOf(output, length), length);
+        } finally {
+            in.close();
+        }
+    }
+
+    static boolean isCompressed(String name) {
+        String lower = name.toLowerCase(Locale.ENGLISH);
+        for (String extension : STORED_EXTENSIONS) {
+            if (lower.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte[] ensureCapacity(byte[] buffer, int length) {
+        if (buffer.length - length >= BUFFER_SIZE / 4) {
+            return buffer;
+        }
+        byte[] larger = new byte[buffer.length + Math.max(buffer.length / 2, BUFFER_SIZE)];
+        System.arraycopy(buffer, 0, larger, 0, length);
+        return larger;
+    }
+
+    private void writeEntry(Output out, Compressed compressed) throws IOException {
+        if (compressed.size > 0xFFFFFFFFL) {
+            throw new IOException("Entry too large without zip64: " + compressed.entry.name);
+        }
+        ByteBuffer header = out.reserve(30 + compressed.name.length);
+        header.putInt(LOCAL_HEADER);
+        header.putShort((short) (compressed.method == METHOD_DEFLATED ? 20 : 10));
+        header.putShort((short) flags(compressed));
+        header.putShort((short) compressed.method);
+        header.putShort((short) DOS_TIME);
+        header.putShort((short) DOS_DATE);
+        header.putInt((int) compressed.crc);
+        header.putInt((int) compressed.getCompressedSize());
+        header.putInt((int) compressed.size);
+        header.putShort((short) compressed.name.length);
+        header.putShort((short) 0);
+        header.put(compressed.name);
+
+        if (compressed.data != null) {
+            out.write(compressed.data, compressed.compressedSize);
+        } else {
+            transfer(compressed, out.flush());
+        }
+    }
+
+    /**
+     * Copies a STORED file into the zip without passing it through the heap.
+     */
+    private static void transfer(Compressed compressed, FileChannel out) throws IOException {
+        FileInputStream in = new FileInputStream(compressed.entry.file);
+        try {
+            FileChannel channel = in.getChannel();
+            if (channel.size() != compressed.size) {
+                throw new IOException(compressed.entry.file + " changed while it was being zipped");
+            }
+            long position = 0;
+            while (position < compressed.size) {
+                long n = channel.transferTo(position, compressed.size - position, out);
+                if (n <= 0) {
+                    throw new IOException("Could not copy " + compressed.entry.file);
+                }
+                position += n;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void writeCentralDirectory(Output out, List<Compressed> entries) throws IOException {
+        long start = out.position();
+        for (Compressed compressed : entries) {
+            ByteBuffer header = out.reserve(46 + compressed.name.length);
+            header.putInt(CENTRAL_HEADER);
+            header.putShort((short) 20);
+            header.putShort((short) (compressed.method == METHOD_DEFLATED ? 20 : 10));
+            header.putShort((short) flags(compressed));
+            header.putShort((short) compressed.method);
+            header.putShort((short) DOS_TIME);
+            header.putShort((short) DOS_DATE);
+            header.putInt((int) compressed.crc);
+            header.putInt((int) compressed.getCompressedSize());
+            header.putInt((int) compressed.size);
+            header.putShort((short) compressed.name.length);
+            header.putShort((short) 0); // extra field length
+            header.putShort((short) 0); // comment length
+            header.putShort((short) 0); // disk number
+            header.putShort((short) 0); // internal attributes
+            header.putInt(0); // external attributes
+            header.putInt((int) compressed.offset);
+            header.put(compressed.name);
+        }
+        long size = out.position() - start;
+        if (out.position() > 0xFFFFFFFFL) {
+            throw new IOException("Zip too large without zip64");
+        }
+
+        ByteBuffer end = out.reserve(22);
+        end.putInt(END_OF_CENTRAL_DIRECTORY);
+        end.putShort((short) 0);
+        end.putShort((short) 0);
+        end.putShort((short) entries.size());
+        end.putShort((short) entries.size());
+        end.putInt((int) size);
+        end.putInt((int) start);
+        end.putShort((short) 0);
+    }
+
+    private static int flags(Compressed compressed) {
+        for (byte b : compressed.name) {
+            if (b < 0) {
+                return FLAG_UTF8;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * The zip file, written through a direct buffer so that headers and
+     * small entries do not cost a system call each.
+     */
+    static class Output {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(4 * BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        Output(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        long position() throws IOException {
+            return channel.position() + buffer.position();
+        }
+
+        /**
+         * @return the buffer, with room for size bytes at its position
+         */
+        ByteBuffer reserve(int size) throws IOException {
+            if (buffer.remaining() < size) {
+                flush();
+            }
+            return buffer;
+        }
+
+        void write(byte[] data, int length) throws IOException {
+            if (length <= buffer.remaining()) {
+                buffer.put(data, 0, length);
+                return;
+            }
+            flush();
+            if (length <= buffer.remaining()) {
+                buffer.put(data, 0, length);
+            } else {
+                writeFully(channel, ByteBuffer.wrap(data, 0, length));
+            }
+        }
+
+        /**
+         * @return the channel, positioned after everything written so far
+         */
+        FileChannel flush() throws IOException {
+            buffer.flip();
+            writeFully(channel, buffer);
+            buffer.clear();
+            return channel;
+        }
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+    }
+
+    private static Compressed get(Future<Compressed> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while zipping");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+}
@@ -15,102 +15,199 @@
  */
 package io.apigee.buildTools.enterprise4g.utils;
 
+import com.google.api.client.http.HttpContent;
 import com.google.api.client.http.HttpHeaders;
 import com.google.api.client.http.HttpMethod;
 import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpResponse;
-
-import java.io.ByteArrayOutputStream;
-import java.util.Iterator;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
-
+/**
+ * Formats requests to and responses from the management server for the log.
+ *
+ * request and response return objects that format only when the logger
+ * calls toString, so pass them as arguments of a parameterized message:
+ * with the level off nothing is formatted or serialized. Credentials,
+ * cookies and API keys are never shown, and bodies are cut after
+ * MAX_BODY characters.
+ */
 public class PrintUtil {
 
-    public static String formatRequest(HttpRequest request) {
+    /** Characters of a request or response body shown, the rest are counted only */
+    public static final int MAX_BODY = 16 * 1024;
 
-        String prettyRequest = "\n\n\nRequest prepared for the server \n **************************\n";
+    static final String REDACTED = "[Not shown in log]";
 
-        // Print all headers except auth
+    static final Set<String> REDACTED_HEADERS = new HashSet<String>(Arrays.asList(
+            "authorization", "proxy-authorization", "cookie", "set-cookie",
+            "x-api-key", "apikey", "x-auth-token"));
 
-        prettyRequest = prettyRequest + request.getMethod() + "  " + request.getUrl();
+    private static final Gson gson = new GsonBuilder().setPrettyPrinting().create();
 
-        HttpHeaders headers = request.getHeaders();
+    /**
+     * Logs the method and URL of a request at INFO, and the whole request at DEBUG.
+     */
+    public static void logRequest(Logger logger, HttpRequest request) {
+        logger.info("{} {}", request.getMethod(), request.getUrl());
+        logger.debug("{}", request(request));
+    }
 
-        Set<String> tempheadersmap = headers.keySet();
+    /**
+     * Logs the status of a response at INFO, and the whole response at DEBUG.
+     *
+     * @param body the body as a String, or the object it was parsed into
+     */
+    public static void logResponse(Logger logger, HttpResponse response, Object body) {
+        logger.info("{} {}", response.getStatusCode(), response.getStatusMessage());
+        logger.debug("{}", response(response, body));
+    }
+
+    /**
+     * @return an object whose toString formats the request
+     */
+    public static Object request(final HttpRequest request) {
+        return new Object() {
+            @Override
+            public String toString() {
+                return formatRequest(request);
+            }
+        };
+    }
 
-        for (Iterator<String> iter = tempheadersmap.iterator(); iter.hasNext(); ) {
+    /**
+     * @param body the body as a String, or the object it was parsed into,
+     *             serialized only when formatted
+     * @return an object whose toString formats the response
+     */
+    public static Object response(final HttpResponse response, final Object body) {
+        return new Object() {
+            @Override
+            public String toString() {
+                return formatResponse(response, body instanceof String || body == null
+                        ? (String) body : gson.toJson(body));
+            }
+        };
+    }
 
-            try {
-                String headerkey = iter.next();
-                if (!headerkey.trim().equalsIgnoreCase("Authorization")) {
-                    String headervalue = ""+headers.get(headerkey);
-                    prettyRequest = prettyRequest + "\n" + headerkey + ": " + headervalue;
-                }else {
-                    prettyRequest = prettyRequest + "\n" + "authorization" + ": " + "Basic [Not shown in log]";
+    public static String formatRequest(HttpRequest request) {
+        StringBuilder out = new StringBuilder(512)
+                .append("\n\n\nRequest prepared for the server \n **************************\n")
+                .append(request.getMethod()).append("  ").append(request.getUrl());
+        appendHeaders(out, request.getHeaders());
+
+        HttpContent content = request.getContent();
+        if (request.getMethod() == HttpMethod.POST && content != null && content.getType() != null) {
+            out.append("\ncontent-type: ").append(content.getType());
+            if (content.getType().contains("octet")) {
+                out.append("\n [Request body contains data, not shown] \n");
+            } else {
+                // only the first MAX_BODY bytes are kept, however large the body
+                CappedOutputStream body = new CappedOutputStream(MAX_BODY);
+                try {
+                    content.writeTo(body);
+                    out.append("\n [Request body]\n");
+                    appendBody(out, body.toString(), body.getCount());
+                } catch (IOException e) {
+                    out.append("\n [Request body could not be read: ").append(e.getMessage()).append("]");
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
             }
-
         }
+        return out.toString();
+    }
 
-        try {
-        if (request.getMethod().compareTo(HttpMethod.POST) == 0  ){
-
-            if (request.getContent()!=null && request.getContent().getType() !=null)
-            {
-                prettyRequest = prettyRequest + "\n" + "content-type" + ": " + request.getContent().getType();
+    public static String formatResponse(HttpResponse response, String body) {
+        StringBuilder out = new StringBuilder(512)
+                .append("\n\n\nResponse returned by the server \n **************************\n")
+                .append(response.getStatusCode()).append("  ").append(response.getStatusMessage());
+        appendHeaders(out, response.getHeaders());
+        out.append("\n");
+        appendBody(out, body, body == null ? 0 : body.length());
+        return out.toString();
+    }
 
-                if (!request.getContent().getType().contains("octet"))
-                {
-                ByteArrayOutputStream out = new ByteArrayOutputStream();
-                request.getContent().writeTo(out);
-                prettyRequest = prettyRequest + "\n [Request body]\n" + out.toString();
-                } else {
-                    prettyRequest = prettyRequest + "\n [Request body contains data, not shown] \n";
-                }
+    static void appendHeaders(StringBuilder out, HttpHeaders headers) {
+        for (Map.Entry<String, Object> header : headers.entrySet()) {
+            String name = header.getKey();
+            if (header.getValue() == null) {
+                continue;
+            }
+            out.append("\n").append(name).append(": ");
+            if (REDACTED_HEADERS.contains(name.trim().toLowerCase())) {
+                out.append(REDACTED);
+            } else {
+                out.append(header.getValue());
             }
+        }
+    }
 
+    /**
+     * @param length the length of the whole body, of which body may be the start
+     */
+    static void appendBody(StringBuilder out, String body, long length) {
+        if (body == null) {
+            out.append("null");
+            return;
         }
-        }catch (Exception e){
-            e.printStackTrace();
+        if (body.length() > MAX_BODY) {
+            out.append(body, 0, MAX_BODY);
+        } else {
+            out.append(body);
+        }
+        long shown = Math.min(body.length(), MAX_BODY);
+        if (length > shown) {
+            out.append("\n [Truncated, ").append(length).append(" in all]");
         }
-
-        return  prettyRequest;
     }
 
+    /**
+     * Keeps the first bytes written to it and counts the others.
+     */
+    static class CappedOutputStream extends OutputStream {
+        private final byte[] buffer;
+        private int size;
+        private long count;
 
-    public static String formatResponse(HttpResponse response, String body) {
-
-        String prettyString = "\n\n\nResponse returned by the server \n **************************\n";
-
-        // Print all headers except auth
-
-        prettyString = prettyString + response.getStatusCode() + "  " + response.getStatusMessage();
+        CappedOutputStream(int capacity) {
+            buffer = new byte[capacity];
+        }
 
-        HttpHeaders headers = response.getHeaders();
+        @Override
+        public void write(int b) {
+            if (size < buffer.length) {
+                buffer[size++] = (byte) b;
+            }
+            count++;
+        }
 
-        Set<String> tempheadersmap = headers.keySet();
+        @Override
+        public void write(byte[] b, int off, int len) {
+            int kept = Math.min(len, buffer.length - size);
+            System.arraycopy(b, off, buffer, size, kept);
+            size += kept;
+            count += len;
+        }
 
-        for (Iterator<String> iter = tempheadersmap.iterator(); iter.hasNext(); ) {
+        long getCount() {
+            return count;
+        }
 
+        @Override
+        public String toString() {
             try {
-                String headerkey = iter.next();
-                if (!headerkey.trim().equalsIgnoreCase("Authorization")) {
-                    String headervalue = ""+headers.get(headerkey);
-                    prettyString = prettyString + "\n" + headerkey + ": " + headervalue;
-                }
-
-            } catch (Exception e) {
-                e.printStackTrace();
+                return new String(buffer, 0, size, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
             }
-
         }
-
-        // print response body
-        prettyString = prettyString + "\n" + body;
-
-        return  prettyString;
     }
 }
@@ -0,0 +1,93 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+
+/**
+ * The head revision and tag of the Git workspace of a directory.
+ *
+ * Opening the repository and reading its tags takes seconds in
+ * repositories with thousands of tags, so within a build every workspace
+ * is read once and shared by all modules and proxies in it; see
+ * BuildContext. Without a build every call reads the workspace again.
+ */
+public class ScmMetadata {
+
+    static Logger logger = LoggerFactory.getLogger(ScmMetadata.class);
+
+    private final String headRevision;
+    private final String tagName;
+
+    ScmMetadata(String headRevision, String tagName) {
+        this.headRevision = headRevision;
+        this.tagName = tagName;
+    }
+
+    /**
+     * @return the metadata of the Git workspace dir is in
+     * @throws IllegalStateException if dir is not in a Git workspace
+     */
+    public static ScmMetadata of(File dir) {
+        File workspace = GitUtil.findWorkspaceRoot(dir.getAbsoluteFile());
+        if (workspace == null) {
+            throw new IllegalStateException("Does not appear to be a Git workspace: " + dir);
+        }
+        BuildContext build = BuildContext.current();
+        if (build == null) {
+            return read(workspace);
+        }
+        // modules of one build are read one after the other, or are in the same workspace
+        synchronized (ScmMetadata.class) {
+            ScmMetadata metadata = build.workspaces.get(workspace);
+            if (metadata == null) {
+                metadata = read(workspace);
+                build.workspaces.put(workspace, metadata);
+            }
+            return metadata;
+        }
+    }
+
+    static ScmMetadata read(File workspace) {
+        long start = System.currentTimeMillis();
+        GitUtil git = new GitUtil(workspace);
+        try {
+            ScmMetadata metadata = new ScmMetadata(git.getWorkspaceHeadRevisionString(),
+                    git.getTagNameForWorkspaceHeadRevision());
+            logger.debug("Read the Git workspace {} in {} ms", workspace, System.currentTimeMillis() - start);
+            return metadata;
+        } finally {
+            git.close();
+        }
+    }
+
+    /**
+     * @return the id of the head commit
+     */
+    public String getHeadRevision() {
+        return headRevision;
+    }
+
+    /**
+     * @return the name of a tag on the head commit, or null
+     */
+    public String getTagName() {
+        return tagName;
+    }
+}
@@ -30,6 +30,16 @@ public class ServerProfile {
 	private String options;
 	private Long delay;
 	private Long overridedelay;
+	private String httpTransport; // net or pooled
+	private Integer maxConnections;
+	private Integer maxConnectionsPerRoute;
+	private Long idleConnectionTimeout;
+	private Long poolTimeout; // wait for a free pooled connection
+	private Boolean sslInsecure; // trust every server certificate
+	private String trustStore;
+	private String trustStorePassword;
+	private String trustStoreType;
+	private String pinnedCertificates; // comma separated SHA-256 fingerprints
 	
 	public String getApplication() {
 		return application;
@@ -137,6 +147,129 @@ public class ServerProfile {
 		this.overridedelay = overridedelay;
 	}
 
-	
+	public String getHttpTransport() {
+		return httpTransport;
+	}
+
+	public void setHttpTransport(String httpTransport) {
+		this.httpTransport = httpTransport;
+	}
+
+	public Integer getMaxConnections() {
+		return maxConnections;
+	}
+
+	public void setMaxConnections(Integer maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	public Integer getMaxConnectionsPerRoute() {
+		return maxConnectionsPerRoute;
+	}
+
+	public void setMaxConnectionsPerRoute(Integer maxConnectionsPerRoute) {
+		this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+	}
+
+	public Long getIdleConnectionTimeout() {
+		return idleConnectionTimeout;
+	}
+
+	public void setIdleConnectionTimeout(Long idleConnectionTimeout) {
+		this.idleConnectionTimeout = idleConnectionTimeout;
+	}
+
+	public Long getPoolTimeout() {
+		return poolTimeout;
+	}
+
+	public void setPoolTimeout(Long poolTimeout) {
+		this.poolTimeout = poolTimeout;
+	}
+
+	public Boolean getSslInsecure() {
+		return sslInsecure;
+	}
+
+	public void setSslInsecure(Boolean sslInsecure) {
+		this.sslInsecure = sslInsecure;
+	}
+
+	public String getTrustStore() {
+		return trustStore;
+	}
+
+	public void setTrustStore(String trustStore) {
+		this.trustStore = trustStore;
+	}
+
+	public String getTrustStorePassword() {
+		return trustStorePassword;
+	}
+
+	public void setTrustStorePassword(String trustStorePassword) {
+		this.trustStorePassword = trustStorePassword;
+	}
+
+	public String getTrustStoreType() {
+		return trustStoreType;
+	}
+
+	public void setTrustStoreType(String trustStoreType) {
+		this.trustStoreType = trustStoreType;
+	}
+
+	public String getPinnedCertificates() {
+		return pinnedCertificates;
+	}
+
+	public void setPinnedCertificates(String pinnedCertificates) {
+		this.pinnedCertificates = pinnedCertificates;
+	}
+
+	/**
+	 * Returns a copy of this profile that targets another environment.
+	 */
+	public ServerProfile forEnvironment(String environment) {
+		ServerProfile copy = copy();
+		copy.environment = environment;
+		return copy;
+	}
+
+	/**
+	 * Returns a copy of this profile for another application (proxy).
+	 */
+	public ServerProfile forApplication(String application) {
+		ServerProfile copy = copy();
+		copy.application = application;
+		return copy;
+	}
+
+	private ServerProfile copy() {
+		ServerProfile copy = new ServerProfile();
+		copy.application = this.application;
+		copy.org = this.org;
+		copy.credential_user = this.credential_user;
+		copy.credential_pwd = this.credential_pwd;
+		copy.hostURL = this.hostURL;
+		copy.environment = this.environment;
+		copy.api_version = this.api_version;
+		copy.bundle_zip_full_path = this.bundle_zip_full_path;
+		copy.profileId = this.profileId;
+		copy.options = this.options;
+		copy.delay = this.delay;
+		copy.overridedelay = this.overridedelay;
+		copy.httpTransport = this.httpTransport;
+		copy.maxConnections = this.maxConnections;
+		copy.maxConnectionsPerRoute = this.maxConnectionsPerRoute;
+		copy.idleConnectionTimeout = this.idleConnectionTimeout;
+		copy.poolTimeout = this.poolTimeout;
+		copy.sslInsecure = this.sslInsecure;
+		copy.trustStore = this.trustStore;
+		copy.trustStorePassword = this.trustStorePassword;
+		copy.trustStoreType = this.trustStoreType;
+		copy.pinnedCertificates = this.pinnedCertificates;
+		return copy;
+	}
 
 }
@@ -0,0 +1,266 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.utils;
+
+import io.apigee.buildTools.enterprise4g.utils.ConfigTokens.Policy;
+import io.apigee.buildTools.enterprise4g.utils.ConfigTokens.Token;
+import org.apache.commons.io.FileUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartDocument;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+/**
+ * Applies the tokens of a config.json entry in one streaming pass over
+ * the file, instead of building a DOM and evaluating every XPath against it.
+ *
+ * Only the paths config.json usually has can be streamed: absolute child
+ * steps, each with optional attribute predicates, optionally ending in
+ * text(), e.g. /TargetEndpoint/HTTPTargetConnection/URL or
+ * /AssignMessage/Set/Headers/Header[@name='ENV']/text(). Anything else
+ * (//, *, positions, functions, namespace prefixes, ...) cannot, and
+ * canStream tells the caller to use the DOM instead.
+ *
+ * The result is the same as with PackageConfigurer.replaceTokens: the
+ * content of a matched element is replaced by the value unless the element
+ * is empty, a matched text() is replaced by the value, and when several
+ * tokens match the same node the last one wins.
+ */
+public class StaxTokenReplacer {
+
+    private static final String NAME = "[A-Za-z_][\\w.\\-]*";
+    private static final String PREDICATE = "\\[@(" + NAME + ")(?:\\s*=\\s*(?:'([^']*)'|\"([^\"]*)\"))?\\]";
+    private static final Pattern STEP = Pattern.compile("(" + NAME + ")((?:" + PREDICATE + ")*)");
+    private static final Pattern PREDICATES = Pattern.compile(PREDICATE);
+    private static final String TEXT = "text()";
+
+    private static final XMLOutputFactory OUTPUT = XMLOutputFactory.newInstance();
+    private static final XMLEventFactory EVENTS = XMLEventFactory.newInstance();
+
+    /**
+     * One element step of a path, with the attributes it requires. A null
+     * attribute value only requires the attribute to be there.
+     */
+    static class Step {
+        final String name;
+        final Map<String, String> attributes = new LinkedHashMap<String, String>();
+
+        Step(String name) {
+            this.name = name;
+        }
+
+        boolean matches(StartElement element) {
+            QName qname = element.getName();
+            if (qname.getPrefix().length() > 0 || !qname.getLocalPart().equals(name)) {
+                return false;
+            }
+            for (Map.Entry<String, String> required : attributes.entrySet()) {
+                Attribute attribute = element.getAttributeByName(new QName(required.getKey()));
+                if (attribute == null || (required.getValue() != null && !required.getValue().equals(attribute.getValue()))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    static class Path {
+        final List<Step> steps;
+        final boolean text;
+        String value;
+
+        Path(List<Step> steps, boolean text) {
+            this.steps = steps;
+            this.text = text;
+        }
+    }
+
+    /**
+     * @return the compiled path, or null if the expression cannot be streamed
+     */
+    static Path compile(String xpath) {
+        if (xpath == null) {
+            return null;
+        }
+        String path = xpath.trim();
+        List<Step> steps = new ArrayList<Step>();
+        boolean text = false;
+        int pos = 0;
+        while (pos < path.length()) {
+            if (text || path.charAt(pos) != '/') {
+                return null;
+            }
+            pos++;
+            if (path.startsWith(TEXT, pos)) {
+                text = true;
+                pos += TEXT.length();
+                continue;
+            }
+            Matcher step = STEP.matcher(path).region(pos, path.length());
+            if (!step.lookingAt()) {
+                return null;
+            }
+            Step compiled = new Step(step.group(1));
+            Matcher predicate = PREDICATES.matcher(step.group(2));
+            while (predicate.find()) {
+                compiled.attributes.put(predicate.group(1),
+                        predicate.group(2) != null ? predicate.group(2) : predicate.group(3));
+            }
+            steps.add(compiled);
+            pos = step.end();
+        }
+        return steps.isEmpty() ? null : new Path(steps, text);
+    }
+
+    /**
+     * @return whether every token of configTokens can be applied by streaming
+     */
+    public static boolean canStream(Policy configTokens) {
+        return compile(configTokens) != null;
+    }
+
+    static List<Path> compile(Policy configTokens) {
+        List<Path> paths = new ArrayList<Path>();
+        if (configTokens.tokens == null) {
+            return paths;
+        }
+        for (Token token : configTokens.tokens) {
+            Path path = compile(token.xpath);
+            if (path == null || token.value == null) {
+                return null;
+            }
+            path.value = token.value;
+            paths.add(path);
+        }
+        return paths;
+    }
+
+    /**
+     * Replaces the tokens in file, which is rewritten in place.
+     *
+     * @throws IllegalArgumentException if a token cannot be streamed, see canStream
+     */
+    public static void replaceTokens(File file, Policy configTokens) throws IOException, XMLStreamException {
+        List<Path> paths = compile(configTokens);
+        if (paths == null) {
+            throw new IllegalArgumentException("The tokens for " + configTokens.name + " cannot be applied by streaming");
+        }
+
+        byte[] content = FileUtils.readFileToByteArray(file);
+        XMLEventReader reader = XmlParsers.inputFactory().createXMLEventReader(new ByteArrayInputStream(content));
+        // the file is only written once it has been read through
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.length + 1024);
+        XMLEventWriter writer = null;
+        try {
+            // for each open element, the paths it is still on, and the path whose text() it is
+            List<boolean[]> on = new ArrayList<boolean[]>();
+            List<Path> texts = new ArrayList<Path>();
+            boolean[] root = new boolean[paths.size()];
+            Arrays.fill(root, true);
+            on.add(root);
+            texts.add(null);
+
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+                if (event.isStartDocument()) {
+                    StartDocument start = (StartDocument) event;
+                    writer = OUTPUT.createXMLEventWriter(out,
+                            start.encodingSet() ? start.getCharacterEncodingScheme() : "UTF-8");
+                    writer.add(event);
+                } else if (event.isStartElement()) {
+                    int depth = on.size() - 1;
+                    boolean[] parent = on.get(depth);
+                    boolean[] current = new boolean[paths.size()];
+                    Path replace = null;
+                    Path text = null;
+                    for (int i = 0; i < paths.size(); i++) {
+                        Path path = paths.get(i);
+                        if (parent[i] && depth < path.steps.size() && path.steps.get(depth).matches(event.asStartElement())) {
+                            current[i] = true;
+                            if (depth == path.steps.size() - 1) {
+                                if (path.text) {
+                                    text = path;
+                                } else {
+                                    replace = path;
+                                }
+                            }
+                        }
+                    }
+                    writer.add(event);
+                    on.add(current);
+                    texts.add(text);
+                    if (replace != null && !reader.peek().isEndElement()) {
+                        writer.add(EVENTS.createCharacters(replace.value));
+                        skipContent(reader);
+                    }
+                } else if (event.isEndElement()) {
+                    on.remove(on.size() - 1);
+                    texts.remove(texts.size() - 1);
+                    writer.add(event);
+                } else if (event.isCharacters() && texts.get(texts.size() - 1) != null) {
+                    writer.add(EVENTS.createCharacters(texts.get(texts.size() - 1).value));
+                } else {
+                    writer.add(event);
+                }
+            }
+            writer.flush();
+        } finally {
+            reader.close();
+            if (writer != null) {
+                writer.close();
+            }
+        }
+        FileUtils.writeByteArrayToFile(file, out.toByteArray());
+    }
+
+    /**
+     * Consumes the content of the element just started, up to its end element.
+     */
+    private static void skipContent(XMLEventReader reader) throws XMLStreamException {
+        int nested = 0;
+        while (true) {
+            XMLEvent next = reader.peek();
+            if (next.isEndElement() && nested == 0) {
+                return;
+            }
+            reader.nextEvent();
+            if (next.isStartElement()) {
+                nested++;
+            } else if (next.isEndElement()) {
+                nested--;
+            }
+        }
+    }
+}
@@ -0,0 +1,380 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.utils;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Trace spans of a build: the goals, the phases of each proxy, every file
+ * configured, every zip written and every management API call, so that a
+ * slow deploy can be put next to the time the server took.
+ *
+ * All goals of a build share one trace. Spans started on a thread are the
+ * children of the span current on that thread; tasks on other threads
+ * pass their parent explicitly. Each goal appends its finished spans to a
+ * file as one OTLP/JSON ExportTraceServiceRequest per line, the format of
+ * the OpenTelemetry collector's file exporter, which the collector's
+ * otlpjsonfile receiver and most trace viewers read without a collector.
+ *
+ * Outside a build nothing is recorded and spans cost nothing.
+ */
+public class Tracing {
+
+    public static final String SERVICE_NAME = "apigee-edge-maven-plugin";
+    /** W3C trace context header of outgoing calls */
+    public static final String TRACEPARENT = "traceparent";
+
+    static final int KIND_INTERNAL = 1;
+    static final int KIND_CLIENT = 3;
+    static final int STATUS_OK = 1;
+    static final int STATUS_ERROR = 2;
+
+    static Logger logger = LoggerFactory.getLogger(Tracing.class);
+
+    private static final SecureRandom random = new SecureRandom();
+    private static final Gson gson = new Gson();
+    private static final ThreadLocal<Span> CURRENT = new ThreadLocal<Span>();
+
+    /** The span returned outside a build */
+    static final Span NONE = new Span(null, null, null, KIND_INTERNAL);
+
+    /**
+     * A timed operation of the build; end it in a finally block.
+     */
+    public static class Span {
+        final String name;
+        final String traceId;
+        final String spanId;
+        final String parentSpanId;
+        final int kind;
+        final Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+        final long startNanos;
+        long endNanos;
+        int status;
+        String statusMessage;
+        private final long start = System.nanoTime();
+        private Span previous;
+        private boolean ended;
+
+        Span(String name, String traceId, Span parent, int kind) {
+            this.name = name;
+            this.traceId = traceId;
+            this.spanId = traceId != null ? id(8) : null;
+            this.parentSpanId = parent != null ? parent.spanId : null;
+            this.kind = kind;
+            this.startNanos = System.currentTimeMillis() * 1000000;
+        }
+
+        /**
+         * Adds an attribute: a String, a number or a Boolean; null is left out.
+         */
+        public Span set(String key, Object value) {
+            if (this != NONE && value != null) {
+                synchronized (this) {
+                    attributes.put(key, value);
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Marks the span as successful when it ends.
+         */
+        public Span succeeded() {
+            if (status == 0) {
+                status = STATUS_OK;
+            }
+            return this;
+        }
+
+        /**
+         * Marks the span as failed.
+         */
+        public Span failed(Throwable e) {
+            status = STATUS_ERROR;
+            statusMessage = e.getClass().getSimpleName() + (e.getMessage() != null ? ": " + e.getMessage() : "");
+            return this;
+        }
+
+        /**
+         * @return the traceparent header that makes a call a child of this span, null outside a build
+         */
+        public String traceparent() {
+            return this == NONE ? null : "00-" + traceId + "-" + spanId + "-01";
+        }
+
+        /**
+         * Ends the span and makes its parent current again on this thread;
+         * ending it again does nothing.
+         */
+        public void end() {
+            if (this == NONE) {
+                return;
+            }
+            if (CURRENT.get() == this) {
+                if (previous != null) {
+                    CURRENT.set(previous);
+                } else {
+                    CURRENT.remove();
+                }
+            }
+            synchronized (Tracing.class) {
+                if (ended) {
+                    return;
+                }
+                ended = true;
+                endNanos = startNanos + (System.nanoTime() - start);
+                BuildContext build = BuildContext.current();
+                if (build != null && traceId.equals(build.traceId)) {
+                    build.finishedSpans.add(this);
+                }
+            }
+        }
+    }
+
+    private Tracing() {
+    }
+
+    /**
+     * @return whether the running build is traced, see BuildContext
+     */
+    public static boolean isTracing() {
+        return traceId() != null;
+    }
+
+    private static String traceId() {
+        BuildContext build = BuildContext.current();
+        return build != null ? build.traceId : null;
+    }
+
+    /**
+     * Starts a span as a child of the span current on this thread, and makes it current.
+     */
+    public static Span start(String name) {
+        return start(name, current(), KIND_INTERNAL);
+    }
+
+    /**
+     * Starts a span as a child of parent, e.g. in a task on a pool, and makes it current on this thread.
+     *
+     * @param parent the current span of the thread that handed over the work, null for none
+     */
+    public static Span start(String name, Span parent) {
+        return start(name, parent, KIND_INTERNAL);
+    }
+
+    /**
+     * Starts the span of a call to a server, as a child of the span current on this thread.
+     */
+    public static Span startClient(String name) {
+        return start(name, current(), KIND_CLIENT);
+    }
+
+    private static Span start(String name, Span parent, int kind) {
+        String trace = traceId();
+        if (trace == null) {
+            return NONE;
+        }
+        Span span = new Span(name, trace, parent != null && trace.equals(parent.traceId) ? parent : null, kind);
+        span.previous = CURRENT.get();
+        CURRENT.set(span);
+        return span;
+    }
+
+    /**
+     * @return the span current on this thread, to hand to tasks on other threads; never null
+     */
+    public static Span current() {
+        Span span = CURRENT.get();
+        // a span left open by an earlier build is not part of this one
+        return span != null && span.traceId.equals(traceId()) ? span : NONE;
+    }
+
+    /**
+     * Makes a span current on this thread, e.g. in a task run for the
+     * thread whose current span it is.
+     *
+     * @return the span that was current, to give to detach
+     */
+    public static Span attach(Span span) {
+        Span previous = CURRENT.get();
+        if (span == null || span == NONE) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(span);
+        }
+        return previous;
+    }
+
+    /**
+     * Makes the span that was current before attach current again.
+     */
+    public static void detach(Span previous) {
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+    }
+
+    /**
+     * Appends the spans that ended since the last call to file, as one
+     * line of OTLP/JSON, and forgets them.
+     */
+    public static void write(File file) throws IOException {
+        BuildContext build = BuildContext.current();
+        if (build == null) {
+            return;
+        }
+        List<Span> spans;
+        synchronized (Tracing.class) {
+            if (build.finishedSpans.isEmpty()) {
+                return;
+            }
+            spans = new ArrayList<Span>(build.finishedSpans);
+            build.finishedSpans.clear();
+        }
+        String line = gson.toJson(export(spans));
+        synchronized (Tracing.class) {
+            if (file.getAbsoluteFile().getParentFile() != null) {
+                file.getAbsoluteFile().getParentFile().mkdirs();
+            }
+            Writer out = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+            try {
+                out.write(line);
+                out.write('\n');
+            } finally {
+                out.close();
+            }
+        }
+        logger.info("Trace {}: {} spans written to {}", new Object[]{spans.get(0).traceId, spans.size(), file});
+    }
+
+    /**
+     * @return the spans as an ExportTraceServiceRequest in the OTLP/JSON encoding
+     */
+    static JsonObject export(List<Span> spans) {
+        JsonArray json = new JsonArray();
+        for (Span span : spans) {
+            JsonObject s = new JsonObject();
+            s.addProperty("traceId", span.traceId);
+            s.addProperty("spanId", span.spanId);
+            if (span.parentSpanId != null) {
+                s.addProperty("parentSpanId", span.parentSpanId);
+            }
+            s.addProperty("name", span.name);
+            s.addProperty("kind", span.kind);
+            // 64 bit integers are strings in OTLP/JSON
+            s.addProperty("startTimeUnixNano", String.valueOf(span.startNanos));
+            s.addProperty("endTimeUnixNano", String.valueOf(span.endNanos));
+            synchronized (span) {
+                s.add("attributes", attributes(span.attributes));
+            }
+            JsonObject status = new JsonObject();
+            if (span.status != 0) {
+                status.addProperty("code", span.status);
+            }
+            if (span.statusMessage != null) {
+                status.addProperty("message", span.statusMessage);
+            }
+            s.add("status", status);
+            json.add(s);
+        }
+
+        JsonObject scope = new JsonObject();
+        scope.addProperty("name", Tracing.class.getPackage().getName());
+        JsonObject scopeSpans = new JsonObject();
+        scopeSpans.add("scope", scope);
+        scopeSpans.add("spans", json);
+        JsonArray scopes = new JsonArray();
+        scopes.add(scopeSpans);
+
+        Map<String, Object> serviceName = new LinkedHashMap<String, Object>();
+        serviceName.put("service.name", SERVICE_NAME);
+        JsonObject resource = new JsonObject();
+        resource.add("attributes", attributes(serviceName));
+        JsonObject resourceSpans = new JsonObject();
+        resourceSpans.add("resource", resource);
+        resourceSpans.add("scopeSpans", scopes);
+        JsonArray resources = new JsonArray();
+        resources.add(resourceSpans);
+
+        JsonObject request = new JsonObject();
+        request.add("resourceSpans", resources);
+        return request;
+    }
+
+    private static JsonArray attributes(Map<String, Object> attributes) {
+        JsonArray json = new JsonArray();
+        for (Map.Entry<String, Object> attribute : attributes.entrySet()) {
+            JsonObject value = new JsonObject();
+            Object v = attribute.getValue();
+            if (v instanceof Boolean) {
+                value.addProperty("boolValue", (Boolean) v);
+            } else if (v instanceof Integer || v instanceof Long) {
+                value.addProperty("intValue", String.valueOf(v));
+            } else if (v instanceof Number) {
+                value.addProperty("doubleValue", (Number) v);
+            } else {
+                value.addProperty("stringValue", String.valueOf(v));
+            }
+            JsonObject entry = new JsonObject();
+            entry.addProperty("key", attribute.getKey());
+            entry.add("value", value);
+            json.add(entry);
+        }
+        return json;
+    }
+
+    /**
+     * @return a random, non-zero id of the given number of bytes, in lower case hex
+     */
+    static String id(int bytes) {
+        byte[] id = new byte[bytes];
+        do {
+            random.nextBytes(id);
+        } while (isZero(id));
+        StringBuilder hex = new StringBuilder(2 * bytes);
+        for (byte b : id) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    private static boolean isZero(byte[] id) {
+        for (byte b : id) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
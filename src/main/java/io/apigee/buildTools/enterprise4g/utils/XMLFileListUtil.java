@@ -18,7 +18,6 @@ package io.apigee.buildTools.enterprise4g.utils;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 import org.slf4j.Logger;
@@ -60,41 +59,16 @@ public class XMLFileListUtil {
 	public List<File> getProxyFiles(File configFile) throws IOException { // assumes the present directory is at
 		// the project pom level.
 
-		List<File> fileNames = new ArrayList<File>();
-		String sDirectory = configFile.getParent()+File.separator+"target" + File.separator + "apiproxy" + File.separator + "proxies";
-
-		fileNames = getXMLFiles(sDirectory);
-
-		return fileNames;
+		return getTree(configFile).getXMLFiles(ApiProxyTree.PROXIES);
 
 	}
 
 	public List<File> getPolicyFiles(File configFile) throws IOException { // assumes the present directory is at
 		// the project pom level.
 
-		List<File> fileNames = new ArrayList<File>();
-
-		String sDirectory = configFile.getParent()+File.separator+"target" + File.separator + "apiproxy" + File.separator + "policies";
-
-		fileNames = getXMLFiles(sDirectory);
-
-		List<File> stepNames = getStepFiles(configFile);
-		if(stepNames != null) {
-			fileNames.addAll(stepNames);
-		}
-
-		return fileNames;
-
-	}
-
-	private List<File> getStepFiles(File configFile) throws IOException { // assumes the present directory is at
-		// the project pom level.
-
-		List<File> fileNames = new ArrayList<File>();
-
-		String sDirectory = configFile.getParent()+File.separator+"target" + File.separator + "apiproxy" + File.separator + "stepdefinitions";
-
-		fileNames = getXMLFiles(sDirectory);
+		ApiProxyTree tree = getTree(configFile);
+		List<File> fileNames = new ArrayList<File>(tree.getXMLFiles(ApiProxyTree.POLICIES));
+		fileNames.addAll(tree.getXMLFiles(ApiProxyTree.STEP_DEFINITIONS));
 
 		return fileNames;
 
@@ -103,51 +77,23 @@ public class XMLFileListUtil {
 	public List<File> getTargetFiles(File configFile) throws IOException { // assumes the present directory is at
 		// the project pom level.
 
-		List<File> fileNames = new ArrayList<File>();
-
-		String sDirectory = configFile.getParent()+File.separator+"target" + File.separator + "apiproxy" + File.separator + "targets";
-
-		fileNames = getXMLFiles(sDirectory);
-
-		return fileNames;
+		return getTree(configFile).getXMLFiles(ApiProxyTree.TARGETS);
 
 	}
 	
 	public List<File> getAPIProxyFiles(File configFile) throws IOException { // assumes the present directory is at
 		// the project pom level.
 
-		List<File> fileNames = new ArrayList<File>();
-
-		String sDirectory = configFile.getParent()+File.separator+"target" + File.separator + "apiproxy";
-
-		fileNames = getXMLFiles(sDirectory);
-
-		return fileNames;
+		return getTree(configFile).getXMLFiles(ApiProxyTree.ROOT);
 
 	}
 
-	private List<File> getXMLFiles(String sFolder) { // assumes the present
-		// directory is at the
-		// project pom level.
-
-		ArrayList<File> aList = new ArrayList<File>();
+	// one walk of target/apiproxy serves every list, and the packaging of the same build
+	private ApiProxyTree getTree(File configFile) throws IOException {
+		File apiproxyDir = new File(configFile.getAbsoluteFile().getParentFile(), "target" + File.separator + "apiproxy");
 		Logger logger = LoggerFactory.getLogger(XMLFileListUtil.class);
-		try {
-			File folder = new File(sFolder);
-
-			ExtFileNameFilter xmlFilter = new ExtFileNameFilter("xml");
-
-			logger.debug("=============Searching for XML files in the following directory ================\n{}", folder.getAbsolutePath());
-
-			aList = new ArrayList<File>(Arrays.asList(folder.listFiles(xmlFilter)));
-
-			logger.debug("=============Nuber of files found is================\n{}", aList.size());
-		} catch (Exception e) {
-			logger.debug("=============Error Encountered in Searching files [" + sFolder + "]================\n" + e);
-		}
-
-		return aList;
-
+		logger.debug("=============Searching for XML files in the following directory ================\n{}", apiproxyDir);
+		return ApiProxyTree.of(apiproxyDir);
 	}
 
 }
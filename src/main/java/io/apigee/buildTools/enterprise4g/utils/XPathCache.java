@@ -0,0 +1,77 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+
+/**
+ * Compiled XPath expressions, by expression string.
+ *
+ * XPathFactory.newInstance() looks the implementation up through the
+ * service loader, which is slow, and neither XPath nor XPathExpression
+ * objects may be used by two threads at once. So every thread gets its
+ * own XPath and its own cache, kept for as long as the thread and the
+ * plugin class loader live: a multi-module build, or deploy-all on its
+ * packaging threads, compiles each expression once per thread.
+ */
+public class XPathCache {
+
+    /** Expressions kept per thread, the least recently used are dropped */
+    static final int MAX_EXPRESSIONS = 1024;
+
+    private static final ThreadLocal<XPathCache> CACHE = new ThreadLocal<XPathCache>() {
+        @Override
+        protected XPathCache initialValue() {
+            return new XPathCache();
+        }
+    };
+
+    private final XPath xpath = XPathFactory.newInstance().newXPath();
+
+    private final Map<String, XPathExpression> expressions =
+            new LinkedHashMap<String, XPathExpression>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, XPathExpression> eldest) {
+                    return size() > MAX_EXPRESSIONS;
+                }
+            };
+
+    private XPathCache() {
+    }
+
+    /**
+     * @return the compiled expression, for use by the calling thread only
+     * @throws XPathExpressionException if the expression is invalid, which is not cached
+     */
+    public static XPathExpression compile(String expression) throws XPathExpressionException {
+        return CACHE.get().get(expression);
+    }
+
+    private XPathExpression get(String expression) throws XPathExpressionException {
+        XPathExpression compiled = expressions.get(expression);
+        if (compiled == null) {
+            compiled = xpath.compile(expression);
+            expressions.put(expression, compiled);
+        }
+        return compiled;
+    }
+}
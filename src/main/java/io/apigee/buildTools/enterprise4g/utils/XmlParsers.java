@@ -0,0 +1,142 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+
+/**
+ * The XML parsers and serializers of the plugin, set up once.
+ *
+ * The factories are looked up through the service loader, which is slow
+ * with xalan and axis2 on the plugin classpath, so each is looked up
+ * once per class loader. DocumentBuilders and Transformers may not be
+ * shared between threads, so every thread gets its own, reset before each
+ * use.
+ *
+ * Bundle files never need external entities or DTDs, so the parsers do
+ * not load them, and expand no entity beyond the secure processing limits.
+ * An inline DOCTYPE is still accepted.
+ */
+public class XmlParsers {
+
+    static Logger logger = LoggerFactory.getLogger(XmlParsers.class);
+
+    private static final DocumentBuilderFactory DOCUMENT_BUILDERS = newDocumentBuilderFactory();
+    private static final TransformerFactory TRANSFORMERS = newTransformerFactory();
+    private static final XMLInputFactory INPUT = newInputFactory();
+
+    private static final ThreadLocal<DocumentBuilder> DOCUMENT_BUILDER = new ThreadLocal<DocumentBuilder>() {
+        @Override
+        protected DocumentBuilder initialValue() {
+            // factories are not thread safe either
+            synchronized (DOCUMENT_BUILDERS) {
+                try {
+                    return DOCUMENT_BUILDERS.newDocumentBuilder();
+                } catch (ParserConfigurationException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+    };
+
+    private static final ThreadLocal<Transformer> TRANSFORMER = new ThreadLocal<Transformer>() {
+        @Override
+        protected Transformer initialValue() {
+            synchronized (TRANSFORMERS) {
+                try {
+                    return TRANSFORMERS.newTransformer();
+                } catch (TransformerConfigurationException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+    };
+
+    private XmlParsers() {
+    }
+
+    /**
+     * @return this thread's document builder, reset, for use by this thread only
+     */
+    public static DocumentBuilder documentBuilder() {
+        DocumentBuilder builder = DOCUMENT_BUILDER.get();
+        builder.reset();
+        return builder;
+    }
+
+    /**
+     * @return this thread's identity transformer, reset, for use by this thread only
+     */
+    public static Transformer transformer() {
+        Transformer transformer = TRANSFORMER.get();
+        transformer.reset();
+        return transformer;
+    }
+
+    /**
+     * @return the StAX input factory, which coalesces adjacent text into one
+     *         event, as the DOM does; it may be shared once configured
+     */
+    public static XMLInputFactory inputFactory() {
+        return INPUT;
+    }
+
+    static DocumentBuilderFactory newDocumentBuilderFactory() {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        setFeature(factory, XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        setFeature(factory, "http://xml.org/sax/features/external-general-entities", false);
+        setFeature(factory, "http://xml.org/sax/features/external-parameter-entities", false);
+        setFeature(factory, "http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+        factory.setXIncludeAware(false);
+        return factory;
+    }
+
+    static TransformerFactory newTransformerFactory() {
+        TransformerFactory factory = TransformerFactory.newInstance();
+        try {
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+        } catch (TransformerConfigurationException e) {
+            logger.debug("{} does not support secure processing", factory.getClass().getName());
+        }
+        return factory;
+    }
+
+    static XMLInputFactory newInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        return factory;
+    }
+
+    // not every parser on the classpath knows every feature, the others are still set
+    private static void setFeature(DocumentBuilderFactory factory, String feature, boolean value) {
+        try {
+            factory.setFeature(feature, value);
+        } catch (ParserConfigurationException e) {
+            logger.debug("{} does not support {}", factory.getClass().getName(), feature);
+        }
+    }
+}
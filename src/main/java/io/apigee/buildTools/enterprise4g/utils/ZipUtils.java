@@ -72,27 +72,50 @@ public class ZipUtils {
 
     }
 
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private final boolean reproducible;
+
+    public ZipUtils() {
+        this(false);
+    }
+
+    /**
+     * @param reproducible whether identical directory trees must give byte
+     *                     for byte identical zips: entries are written in
+     *                     path order, with a fixed time and fixed
+     *                     compression settings, by ParallelZip
+     */
+    public ZipUtils(boolean reproducible) {
+        this.reproducible = reproducible;
+    }
+
     public void zipDir(File zipFileName, File dirObj, String prefix) throws IOException {
 
-        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zipFileName));
+        if (reproducible) {
+            new ParallelZip().zipDir(zipFileName, dirObj, prefix);
+            return;
+        }
+        ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(zipFileName), BUFFER_SIZE));
         log.debug("Creating : " + zipFileName);
-        addDir(dirObj, out, dirObj, prefix);
-        out.close();
+        try {
+            addDir(dirObj, out, dirObj.getCanonicalPath(), prefix);
+        } finally {
+            out.close();
+        }
     }
 
-    static void addDir(File dirObj, ZipOutputStream out, File root, String prefix) throws IOException {
+    static void addDir(File dirObj, ZipOutputStream out, String root, String prefix) throws IOException {
         File[] files = dirObj.listFiles();
-        byte[] tmpBuf = new byte[1024];
 
         for (int i = 0; i < files.length; i++) {
             if (files[i].isDirectory()) {
                 addDir(files[i], out, root, prefix);
                 continue;
             }
-            FileInputStream in = new FileInputStream(files[i].getAbsolutePath());
             log.debug(" Adding: " + files[i].getAbsolutePath());
 
-            String relativePath = files[i].getCanonicalPath().substring(root.getCanonicalPath().length());
+            String relativePath = files[i].getCanonicalPath().substring(root.length());
             while (relativePath.startsWith("/")) {
                 relativePath = relativePath.substring(1);
             }
@@ -105,12 +128,21 @@ public class ZipUtils {
 
             relativePath = relativePath.replaceAll(left, right);
             relativePath = (prefix == null) ? relativePath : prefix + "/" + relativePath;
-            out.putNextEntry(new ZipEntry(relativePath));
+            addFile(files[i], new ZipEntry(relativePath), out);
+        }
+    }
+
+    private static void addFile(File file, ZipEntry entry, ZipOutputStream out) throws IOException {
+        byte[] tmpBuf = new byte[BUFFER_SIZE];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            out.putNextEntry(entry);
             int len;
             while ((len = in.read(tmpBuf)) > 0) {
                 out.write(tmpBuf, 0, len);
             }
             out.closeEntry();
+        } finally {
             in.close();
         }
     }
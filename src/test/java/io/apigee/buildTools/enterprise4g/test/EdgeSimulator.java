@@ -0,0 +1,545 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.test;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+import io.apigee.buildTools.enterprise4g.utils.ServerProfile;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-process stand-in for the Edge management API, with the calls
+ * RestUtil makes to import, update, list, activate, undeploy and delete
+ * revisions of API proxies. It keeps the revisions and deployments of
+ * every organization in memory, so a whole deploy runs against it.
+ *
+ * Latency, injected errors, slow activation and a rate limit per
+ * organization can be set at any time. Over HTTPS it uses the certificate
+ * in simulator.jks, which the plugin trusts unless told otherwise.
+ */
+public class EdgeSimulator implements HttpHandler {
+
+    static final String ORG = "org";
+    static final String ENV = "test";
+
+    private final Gson gson = new Gson();
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final String url;
+
+    private volatile long latency;
+    private volatile long latencyJitter;
+    private volatile double errorRate;
+    private volatile int errorStatus = 503;
+    private volatile long activationTime;
+    private volatile double rateLimit;
+
+    private final Random random = new Random(42);
+
+    // org/api -> revisions and deployments, guarded by this
+    private final Map<String, Api> apis = new HashMap<String, Api>();
+    // org -> token bucket, guarded by this
+    private final Map<String, double[]> buckets = new HashMap<String, double[]>();
+
+    private final AtomicInteger requests = new AtomicInteger();
+    private final ConcurrentHashMap<Integer, AtomicInteger> statuses = new ConcurrentHashMap<Integer, AtomicInteger>();
+    private final List<String> traceparents = Collections.synchronizedList(new ArrayList<String>());
+
+    static class Api {
+        final List<Integer> revisions = new ArrayList<Integer>();
+        int lastRevision;
+        // environment -> deployed revision
+        final Map<String, Deployment> deployments = new HashMap<String, Deployment>();
+    }
+
+    static class Deployment {
+        final int revision;
+        // the servers report deployed from then on
+        final long readyAt;
+
+        Deployment(int revision, long readyAt) {
+            this.revision = revision;
+            this.readyAt = readyAt;
+        }
+    }
+
+    /**
+     * Starts a simulator on a free local port.
+     */
+    public EdgeSimulator(boolean https) throws Exception {
+        if (https) {
+            KeyStore keyStore = KeyStore.getInstance("JKS");
+            InputStream in = EdgeSimulator.class.getResourceAsStream("/simulator.jks");
+            try {
+                keyStore.load(in, "changeit".toCharArray());
+            } finally {
+                in.close();
+            }
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(keyStore, "changeit".toCharArray());
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(kmf.getKeyManagers(), null, null);
+            HttpsServer httpsServer = HttpsServer.create(new InetSocketAddress("localhost", 0), 1024);
+            httpsServer.setHttpsConfigurator(new HttpsConfigurator(sslContext));
+            server = httpsServer;
+        } else {
+            server = HttpServer.create(new InetSocketAddress("localhost", 0), 1024);
+        }
+        server.createContext("/", this);
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "edge-simulator");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+        url = (https ? "https" : "http") + "://localhost:" + server.getAddress().getPort();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @return a profile for deploying the application to the test environment of the simulator
+     */
+    public ServerProfile profile(String application) {
+        ServerProfile profile = new ServerProfile();
+        profile.setHostUrl(url);
+        profile.setApi_version("v1");
+        profile.setOrg(ORG);
+        profile.setEnvironment(ENV);
+        profile.setApplication(application);
+        profile.setCredential_user("user");
+        profile.setCredential_pwd("password");
+        return profile;
+    }
+
+    /**
+     * Delays every response by latency milliseconds plus up to jitter more.
+     */
+    public EdgeSimulator setLatency(long latency, long jitter) {
+        this.latency = latency;
+        this.latencyJitter = jitter;
+        return this;
+    }
+
+    /**
+     * Fails that share of requests with the status, before they take effect.
+     */
+    public EdgeSimulator setErrors(double rate, int status) {
+        this.errorRate = rate;
+        this.errorStatus = status;
+        return this;
+    }
+
+    /**
+     * Reports activated revisions as pending on the servers for that long.
+     */
+    public EdgeSimulator setActivationTime(long millis) {
+        this.activationTime = millis;
+        return this;
+    }
+
+    /**
+     * Answers 429 to requests beyond that many per second and organization,
+     * after a burst of one second worth of requests; 0 for no limit.
+     */
+    public EdgeSimulator setRateLimit(double requestsPerSecond) {
+        synchronized (this) {
+            buckets.clear();
+        }
+        this.rateLimit = requestsPerSecond;
+        return this;
+    }
+
+    public int getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return the traceparent headers of the requests, in order, without those that had none
+     */
+    public List<String> getTraceparents() {
+        synchronized (traceparents) {
+            return new ArrayList<String>(traceparents);
+        }
+    }
+
+    /**
+     * @return how many responses had the status
+     */
+    public int getResponses(int status) {
+        AtomicInteger count = statuses.get(status);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * @return the revision of the application deployed to the environment, or null
+     */
+    public synchronized Integer getDeployedRevision(String application, String environment) {
+        Api api = apis.get(ORG + "/" + application);
+        Deployment deployment = api == null ? null : api.deployments.get(environment);
+        return deployment == null ? null : deployment.revision;
+    }
+
+    public void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        if (exchange.getRequestHeaders().getFirst("traceparent") != null) {
+            traceparents.add(exchange.getRequestHeaders().getFirst("traceparent"));
+        }
+        String body = readBody(exchange);
+        int status = 200;
+        Object response;
+        try {
+            String[] path = exchange.getRequestURI().getPath().split("/");
+            // /v1/organizations/{org}/...
+            String org = path.length > 3 ? path[3] : "";
+            sleep();
+            if (!acquire(org)) {
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                throw new SimulatedError(429, "RateLimitExceeded", "Rate limit exceeded for " + org);
+            }
+            if (errorRate > 0 && nextDouble() < errorRate) {
+                throw new SimulatedError(errorStatus, "InjectedError", "Injected error");
+            }
+            response = route(exchange.getRequestMethod(), path, query(exchange.getRequestURI().getRawQuery()), body);
+        } catch (SimulatedError e) {
+            status = e.status;
+            Map<String, Object> error = new LinkedHashMap<String, Object>();
+            error.put("code", "simulator." + e.code);
+            error.put("message", e.getMessage());
+            response = error;
+        }
+
+        statuses.putIfAbsent(status, new AtomicInteger());
+        statuses.get(status).incrementAndGet();
+
+        byte[] bytes = gson.toJson(response).getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    synchronized Object route(String method, String[] path, Map<String, String> query, String body) throws SimulatedError {
+        if (path.length < 5 || !"organizations".equals(path[2])) {
+            throw new SimulatedError(404, "NotFound", "No resource " + join(path));
+        }
+        String org = path[3];
+        if ("apis".equals(path[4])) {
+            if (path.length == 5 && "POST".equals(method) && "import".equals(query.get("action"))) {
+                String name = query.get("name");
+                Api api = apis.get(org + "/" + name);
+                if (api == null) {
+                    api = new Api();
+                    apis.put(org + "/" + name, api);
+                }
+                int revision = ++api.lastRevision;
+                api.revisions.add(revision);
+                return appConfig(name, revision);
+            }
+            String name = path.length > 5 ? path[5] : "";
+            Api api = apis.get(org + "/" + name);
+            if (api == null) {
+                throw new SimulatedError(404, "ApplicationDoesNotExist", "APIProxy named " + name + " does not exist");
+            }
+            if (path.length == 6 && "GET".equals(method)) {
+                Map<String, Object> revisions = new LinkedHashMap<String, Object>();
+                revisions.put("name", name);
+                revisions.put("revision", names(api.revisions));
+                return revisions;
+            }
+            if (path.length == 7 && "revisions".equals(path[6]) && "GET".equals(method)) {
+                return names(api.revisions);
+            }
+            if (path.length == 7 && "deployments".equals(path[6]) && "GET".equals(method)) {
+                return deployments(org, name, api);
+            }
+            if (path.length == 8 && "revisions".equals(path[6])) {
+                int revision = revision(api, path[7]);
+                if ("GET".equals(method) || "POST".equals(method)) {
+                    return appConfig(name, revision);
+                }
+                if ("DELETE".equals(method)) {
+                    for (Deployment deployment : api.deployments.values()) {
+                        if (deployment.revision == revision) {
+                            throw new SimulatedError(400, "ApplicationRevisionIsDeployed",
+                                    "Revision " + revision + " is deployed, undeploy it first");
+                        }
+                    }
+                    api.revisions.remove(Integer.valueOf(revision));
+                    return appConfig(name, revision);
+                }
+            }
+        } else if ("environments".equals(path[4]) && path.length == 11 && "apis".equals(path[6])
+                && "revisions".equals(path[8]) && "deployments".equals(path[10])) {
+            String env = path[5];
+            String name = path[7];
+            Api api = apis.get(org + "/" + name);
+            if (api == null) {
+                throw new SimulatedError(404, "ApplicationDoesNotExist", "APIProxy named " + name + " does not exist");
+            }
+            int revision = revision(api, path[9]);
+            Deployment deployment = api.deployments.get(env);
+            boolean deployed = deployment != null && deployment.revision == revision;
+            if ("GET".equals(method)) {
+                if (!deployed) {
+                    throw new SimulatedError(400, "ApplicationNotDeployed", "Revision " + revision + " is not deployed in " + env);
+                }
+                return activation(org, env, name, deployment);
+            }
+            if ("POST".equals(method)) {
+                boolean override = query(body).containsKey("override") || query.containsKey("override");
+                if (deployed) {
+                    throw new SimulatedError(400, "ApplicationRevisionAlreadyDeployed",
+                            "Revision " + revision + " is already deployed in " + env);
+                }
+                if (deployment != null && !override) {
+                    throw new SimulatedError(400, "ConflictingDeployment", "Revision " + deployment.revision
+                            + " is deployed in " + env + ", undeploy it or deploy with override");
+                }
+                deployment = new Deployment(revision, System.currentTimeMillis() + activationTime);
+                api.deployments.put(env, deployment);
+                if (override) {
+                    Map<String, Object> seamless = new LinkedHashMap<String, Object>();
+                    seamless.put("aPIProxy", name);
+                    List<Object> environments = new ArrayList<Object>();
+                    environments.add(activation(org, env, name, deployment));
+                    seamless.put("environment", environments);
+                    seamless.put("organization", org);
+                    return seamless;
+                }
+                return activation(org, env, name, deployment);
+            }
+            if ("DELETE".equals(method)) {
+                if (!deployed) {
+                    throw new SimulatedError(400, "ApplicationNotDeployed", "Revision " + revision + " is not deployed in " + env);
+                }
+                api.deployments.remove(env);
+                Map<String, Object> undeployed = activation(org, env, name, deployment);
+                undeployed.put("state", "undeployed");
+                undeployed.remove("server");
+                return undeployed;
+            }
+        }
+        throw new SimulatedError(404, "NotFound", "No resource " + method + " " + join(path));
+    }
+
+    Map<String, Object> appConfig(String name, int revision) {
+        Map<String, Object> config = new LinkedHashMap<String, Object>();
+        Map<String, Object> version = new LinkedHashMap<String, Object>();
+        version.put("majorVersion", 4);
+        version.put("minorVersion", 0);
+        config.put("configurationVersion", version);
+        config.put("contextInfo", "Revision " + revision + " of application " + name);
+        config.put("createdAt", 1400000000000L);
+        config.put("createdBy", "user");
+        config.put("description", "");
+        config.put("name", name);
+        config.put("revision", String.valueOf(revision));
+        config.put("type", "Application");
+        return config;
+    }
+
+    Map<String, Object> activation(String org, String env, String name, Deployment deployment) {
+        String state = System.currentTimeMillis() >= deployment.readyAt ? "deployed" : "pending";
+        Map<String, Object> activation = new LinkedHashMap<String, Object>();
+        activation.put("aPIProxy", name);
+        activation.put("environment", env);
+        activation.put("name", String.valueOf(deployment.revision));
+        activation.put("organization", org);
+        activation.put("revision", String.valueOf(deployment.revision));
+        activation.put("state", state);
+        List<Object> servers = new ArrayList<Object>();
+        for (int i = 0; i < 2; i++) {
+            Map<String, Object> server = new LinkedHashMap<String, Object>();
+            server.put("status", state);
+            server.put("type", new String[]{"message-processor"});
+            server.put("uUID", "mp-" + i);
+            servers.add(server);
+        }
+        activation.put("server", servers);
+        return activation;
+    }
+
+    Map<String, Object> deployments(String org, String name, Api api) {
+        List<Object> environments = new ArrayList<Object>();
+        for (Map.Entry<String, Deployment> entry : api.deployments.entrySet()) {
+            Map<String, Object> revision = new LinkedHashMap<String, Object>();
+            revision.put("name", String.valueOf(entry.getValue().revision));
+            revision.put("state", System.currentTimeMillis() >= entry.getValue().readyAt ? "deployed" : "pending");
+            List<Object> revisions = new ArrayList<Object>();
+            revisions.add(revision);
+            Map<String, Object> environment = new LinkedHashMap<String, Object>();
+            environment.put("name", entry.getKey());
+            environment.put("revision", revisions);
+            environments.add(environment);
+        }
+        Map<String, Object> deployments = new LinkedHashMap<String, Object>();
+        deployments.put("environment", environments);
+        deployments.put("name", name);
+        deployments.put("organization", org);
+        return deployments;
+    }
+
+    static int revision(Api api, String name) throws SimulatedError {
+        try {
+            int revision = Integer.parseInt(name);
+            if (api.revisions.contains(revision)) {
+                return revision;
+            }
+        } catch (NumberFormatException e) {
+            // not a revision
+        }
+        throw new SimulatedError(404, "ApplicationRevisionDoesNotExist", "Revision " + name + " does not exist");
+    }
+
+    static List<String> names(List<Integer> revisions) {
+        List<String> names = new ArrayList<String>();
+        for (Integer revision : revisions) {
+            names.add(String.valueOf(revision));
+        }
+        return names;
+    }
+
+    boolean acquire(String org) {
+        double limit = rateLimit;
+        if (limit <= 0) {
+            return true;
+        }
+        synchronized (this) {
+            long now = System.nanoTime();
+            double[] bucket = buckets.get(org);
+            if (bucket == null) {
+                bucket = new double[]{limit, now};
+                buckets.put(org, bucket);
+            }
+            bucket[0] = Math.min(limit, bucket[0] + (now - bucket[1]) * limit / 1e9);
+            bucket[1] = now;
+            if (bucket[0] < 1) {
+                return false;
+            }
+            bucket[0]--;
+            return true;
+        }
+    }
+
+    void sleep() throws IOException {
+        long millis = latency;
+        if (latencyJitter > 0) {
+            millis += (long) (nextDouble() * latencyJitter);
+        }
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            }
+        }
+    }
+
+    double nextDouble() {
+        synchronized (random) {
+            return random.nextDouble();
+        }
+    }
+
+    static String readBody(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int read;
+        while ((read = in.read(buf)) != -1) {
+            body.write(buf, 0, read);
+        }
+        in.close();
+        return body.toString("ISO-8859-1");
+    }
+
+    static Map<String, String> query(String query) {
+        Map<String, String> parameters = new HashMap<String, String>();
+        if (query == null || query.length() == 0) {
+            return parameters;
+        }
+        for (String parameter : query.split("&")) {
+            int eq = parameter.indexOf('=');
+            try {
+                parameters.put(URLDecoder.decode(eq < 0 ? parameter : parameter.substring(0, eq), "UTF-8"),
+                        eq < 0 ? "" : URLDecoder.decode(parameter.substring(eq + 1), "UTF-8"));
+            } catch (Exception e) {
+                // not a form, e.g. a bundle
+                return new HashMap<String, String>();
+            }
+        }
+        return parameters;
+    }
+
+    static String join(String[] path) {
+        StringBuilder joined = new StringBuilder();
+        for (String segment : path) {
+            if (segment.length() > 0) {
+                joined.append('/').append(segment);
+            }
+        }
+        return joined.toString();
+    }
+
+    static class SimulatedError extends Exception {
+        final int status;
+        final String code;
+
+        SimulatedError(int status, String code, String message) {
+            super(message);
+            this.status = status;
+            this.code = code;
+        }
+    }
+}
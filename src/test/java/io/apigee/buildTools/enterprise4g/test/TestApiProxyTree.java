@@ -0,0 +1,106 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.test;
+
+import io.apigee.buildTools.enterprise4g.utils.ApiProxyTree;
+import io.apigee.buildTools.enterprise4g.utils.BuildContext;
+import io.apigee.buildTools.enterprise4g.utils.XMLFileListUtil;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Lists a small target/apiproxy tree and checks what is kept per build.
+ */
+public class TestApiProxyTree extends TestCase {
+
+    File baseDir;
+    File apiproxy;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        baseDir = File.createTempFile("tree", "");
+        baseDir.delete();
+        apiproxy = new File(baseDir, "target/apiproxy");
+        write("taskservice.xml", "proxies/default.xml", "policies/Quota.xml", "policies/readme.txt",
+                "stepdefinitions/Step.XML", "targets/default.xml", "resources/jsc/script.js", "resources/xsl/t.xml");
+    }
+
+    protected void tearDown() throws Exception {
+        BuildContext.start(null, false);
+        FileUtils.deleteDirectory(baseDir);
+        super.tearDown();
+    }
+
+    public void testFilesAreSortedIntoDirectories() throws Exception {
+        XMLFileListUtil util = new XMLFileListUtil();
+        File configFile = new File(baseDir, "config.json");
+        assertEquals(Arrays.asList(new File(apiproxy, "taskservice.xml")), util.getAPIProxyFiles(configFile));
+        assertEquals(Arrays.asList(new File(apiproxy, "proxies/default.xml")), util.getProxyFiles(configFile));
+        assertEquals(Arrays.asList(new File(apiproxy, "policies/Quota.xml"), new File(apiproxy, "stepdefinitions/Step.XML")),
+                util.getPolicyFiles(configFile));
+        assertEquals(Arrays.asList(new File(apiproxy, "targets/default.xml")), util.getTargetFiles(configFile));
+
+        List<String> paths = new ArrayList<String>();
+        for (ApiProxyTree.FileInfo file : ApiProxyTree.scan(apiproxy).getFiles()) {
+            paths.add(file.path);
+            assertEquals(file.file.length(), file.size);
+            assertEquals(file.file.lastModified(), file.lastModified);
+        }
+        assertEquals(Arrays.asList("policies/Quota.xml", "policies/readme.txt", "proxies/default.xml",
+                "resources/jsc/script.js", "resources/xsl/t.xml", "stepdefinitions/Step.XML", "targets/default.xml",
+                "taskservice.xml"), paths);
+        assertEquals("apiproxy/policies/Quota.xml", ApiProxyTree.scan(apiproxy).entries("apiproxy").get(0).name);
+    }
+
+    public void testMissingDirectoryIsEmpty() throws Exception {
+        ApiProxyTree tree = ApiProxyTree.scan(new File(baseDir, "missing"));
+        assertTrue(tree.getFiles().isEmpty());
+        assertTrue(tree.getXMLFiles(ApiProxyTree.POLICIES).isEmpty());
+    }
+
+    public void testTreesAreKeptForOneBuild() throws Exception {
+        BuildContext.start(null, false);
+        assertNotSame(ApiProxyTree.of(apiproxy), ApiProxyTree.of(apiproxy));
+
+        BuildContext.start("build 1", false);
+        ApiProxyTree tree = ApiProxyTree.of(apiproxy);
+        write("policies/Spike.xml");
+        assertSame(tree, ApiProxyTree.of(apiproxy));
+        assertEquals(1, tree.getXMLFiles(ApiProxyTree.POLICIES).size());
+
+        ApiProxyTree.invalidate(apiproxy);
+        assertEquals(2, ApiProxyTree.of(apiproxy).getXMLFiles(ApiProxyTree.POLICIES).size());
+
+        tree = ApiProxyTree.of(apiproxy);
+        BuildContext.start("build 1", false);
+        assertSame(tree, ApiProxyTree.of(apiproxy));
+        BuildContext.start("build 2", false);
+        assertNotSame(tree, ApiProxyTree.of(apiproxy));
+    }
+
+    void write(String... paths) throws Exception {
+        for (String path : paths) {
+            File file = new File(apiproxy, path);
+            file.getParentFile().mkdirs();
+            FileUtils.writeStringToFile(file, "<" + file.getName() + "/>", "UTF-8");
+        }
+    }
+}
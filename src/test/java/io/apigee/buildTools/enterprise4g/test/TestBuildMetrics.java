@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.test;
+
+import io.apigee.buildTools.enterprise4g.rest.RestUtil;
+import io.apigee.buildTools.enterprise4g.utils.BuildContext;
+import io.apigee.buildTools.enterprise4g.utils.BuildMetrics;
+import io.apigee.buildTools.enterprise4g.utils.ServerProfile;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Deploys to an EdgeSimulator while recording BuildMetrics, and checks the
+ * JSON and Prometheus reports.
+ */
+public class TestBuildMetrics extends TestCase {
+
+    EdgeSimulator simulator;
+    File dir;
+    String bundle;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        simulator = new EdgeSimulator(false);
+        dir = File.createTempFile("metrics", "");
+        dir.delete();
+        bundle = TestBuildMetrics.class.getResource("/taskservice1.zip").getFile();
+        RestUtil.Options.retryInitialDelay = 10;
+        RestUtil.Options.pollInterval = 20;
+        BuildContext.start("build 1", false);
+    }
+
+    protected void tearDown() throws Exception {
+        BuildContext.start(null, false);
+        RestUtil.Options.retryInitialDelay = 0;
+        RestUtil.Options.pollInterval = 0;
+        simulator.stop();
+        FileUtils.deleteDirectory(dir);
+        super.tearDown();
+    }
+
+    public void testDeployIsReported() throws Exception {
+        simulator.setActivationTime(100);
+        ServerProfile profile = simulator.profile("taskservice");
+        BuildMetrics.Phase phase = BuildMetrics.startPhase("taskservice", "importing");
+        String revision = RestUtil.uploadBundle(profile, bundle);
+        phase.succeeded();
+        phase.end();
+        assertEquals(RestUtil.STATE_DEPLOYED, RestUtil.refreshBundle(profile, revision));
+        RestUtil.uploadBundle(simulator.profile("other"), bundle);
+
+        BuildMetrics.write(dir, Collections.singleton("taskservice"), true);
+        String json = FileUtils.readFileToString(new File(dir, BuildMetrics.JSON_REPORT), "UTF-8");
+        assertTrue(json, json.contains("\"name\": \"importing\""));
+        assertTrue(json, json.contains("\"name\": \"poll\""));
+        assertTrue(json, json.contains("\"endpoint\": \"/v1/organizations/{}/apis\""));
+        assertTrue(json, json.contains("\"endpoint\": \"/v1/organizations/{}/environments/{}/apis/{}/revisions/{}/deployments\""));
+        assertTrue(json, json.contains("\"bytesSent\": " + new File(bundle).length()));
+        assertFalse(json, json.contains("\"other\""));
+
+        String prometheus = FileUtils.readFileToString(new File(dir, BuildMetrics.PROMETHEUS_REPORT), "UTF-8");
+        assertTrue(prometheus, prometheus.contains("apigee_phase_duration_seconds{proxy=\"taskservice\",phase=\"importing\",outcome=\"success\"}"));
+        assertTrue(prometheus, prometheus.contains("apigee_http_requests_total{proxy=\"taskservice\",method=\"POST\","
+                + "endpoint=\"/v1/organizations/{}/apis\",status=\"200\"} 1"));
+        assertTrue(prometheus, prometheus.contains("# TYPE apigee_http_request_duration_seconds summary\n"));
+        assertTrue(prometheus, prometheus.contains("apigee_http_request_duration_seconds_count{proxy=\"taskservice\",method=\"POST\","
+                + "endpoint=\"/v1/organizations/{}/apis\",status=\"200\"} 1"));
+        assertTrue(prometheus, prometheus.contains("apigee_http_request_duration_seconds_sum{proxy=\"taskservice\",method=\"POST\","
+                + "endpoint=\"/v1/organizations/{}/apis\",status=\"200\"} "));
+    }
+
+    public void testRetriesAreCounted() throws Exception {
+        simulator.setErrors(0.3, 503);
+        ServerProfile profile = simulator.profile("taskservice");
+        for (int i = 0; i < 5; i++) {
+            RestUtil.uploadBundle(profile, bundle);
+        }
+        BuildMetrics.write(dir, null, true);
+        String prometheus = FileUtils.readFileToString(new File(dir, BuildMetrics.PROMETHEUS_REPORT), "UTF-8");
+        assertTrue(prometheus, prometheus.contains("status=\"503\"} "));
+        int retries = 0;
+        for (String line : prometheus.split("\n")) {
+            if (line.startsWith("apigee_http_retries_total{")) {
+                retries += Integer.parseInt(line.substring(line.lastIndexOf(' ') + 1));
+            }
+        }
+        assertTrue(prometheus, retries > 0);
+    }
+
+    public void testLaterGoalsContinueTheBuild() throws Exception {
+        BuildMetrics.startPhase("taskservice", "configuring").end();
+        BuildContext.start("build 1", false);
+        BuildMetrics.startPhase("taskservice", "importing").end();
+        BuildMetrics.write(dir, null, false);
+        String json = FileUtils.readFileToString(new File(dir, BuildMetrics.JSON_REPORT), "UTF-8");
+        assertTrue(json, json.contains("\"name\": \"configuring\""));
+        assertTrue(json, json.contains("\"name\": \"importing\""));
+
+        BuildContext.start("build 2", false);
+        BuildMetrics.write(dir, null, false);
+        json = FileUtils.readFileToString(new File(dir, BuildMetrics.JSON_REPORT), "UTF-8");
+        assertFalse(json, json.contains("\"name\": \"configuring\""));
+    }
+
+    public void testNothingIsRecordedOutsideABuild() throws Exception {
+        BuildContext.start(null, false);
+        RestUtil.getRevisions(simulator.profile("taskservice"));
+        BuildMetrics.write(dir, null, false);
+        assertFalse(new File(dir, BuildMetrics.JSON_REPORT).exists());
+        assertEquals(Arrays.asList(), Arrays.asList(dir.list() == null ? new String[0] : dir.list()));
+    }
+}
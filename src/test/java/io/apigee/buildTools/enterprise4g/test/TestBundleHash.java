@@ -0,0 +1,163 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.test;
+
+import io.apigee.buildTools.enterprise4g.utils.BundleHash;
+import io.apigee.buildTools.enterprise4g.utils.BundlePackager;
+import io.apigee.buildTools.enterprise4g.utils.ParallelZip;
+import io.apigee.buildTools.enterprise4g.utils.XmlParsers;
+import io.apigee.buildTools.enterprise4g.utils.ZipUtils;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Hashes, stamps and packages a small proxy bundle built in a temporary
+ * directory.
+ */
+public class TestBundleHash extends TestCase {
+
+    File buildDir;
+    File apiproxy;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        buildDir = File.createTempFile("bundle", "");
+        buildDir.delete();
+        apiproxy = new File(buildDir, "apiproxy");
+        write("taskservice.xml", "<APIProxy name=\"taskservice\"><Description>build 1</Description></APIProxy>");
+        write("proxies/default.xml", "<ProxyEndpoint name=\"default\"/>");
+        write("policies/Quota.xml", "<Quota name=\"Quota\"><Allow count=\"10\"/></Quota>");
+    }
+
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(buildDir);
+        super.tearDown();
+    }
+
+    public void testDescriptionIsNotPartOfTheHash() throws IOException {
+        String hash = BundleHash.compute(apiproxy);
+        write("taskservice.xml", "<APIProxy name=\"taskservice\"><Description>build 2 [" + hash + "]</Description></APIProxy>");
+        assertEquals(hash, BundleHash.compute(apiproxy));
+    }
+
+    public void testContentChangesTheHash() throws IOException {
+        String hash = BundleHash.compute(apiproxy);
+        write("policies/Quota.xml", "<Quota name=\"Quota\"><Allow count=\"20\"/></Quota>");
+        assertFalse(hash.equals(BundleHash.compute(apiproxy)));
+    }
+
+    public void testZipsAreHashedByContent() throws Exception {
+        File modules = new File(buildDir, "node_modules");
+        new File(modules, "express").mkdirs();
+        new File(apiproxy, "resources/node").mkdirs();
+        FileUtils.writeStringToFile(new File(modules, "express/index.js"), "module.exports = {};", "UTF-8");
+        new ZipUtils().zipDir(new File(apiproxy, "resources/node/node_modules.zip"), modules, "node_modules");
+        String hash = BundleHash.compute(apiproxy);
+
+        Thread.sleep(2000);
+        new ZipUtils().zipDir(new File(apiproxy, "resources/node/node_modules.zip"), modules, "node_modules");
+        assertEquals(hash, BundleHash.compute(apiproxy));
+    }
+
+    public void testStampedHashIsReadFromTheBundle() throws Exception {
+        List<ParallelZip.Entry> entries = BundlePackager.bundleEntries(buildDir, buildDir);
+        String hash = BundlePackager.stampContentHash(buildDir, entries);
+        assertTrue(hash.startsWith("sha256:"));
+        assertEquals(hash, BundleHash.compute(apiproxy));
+
+        File bundle = new File(buildDir, "taskservice.zip");
+        BundlePackager.zipBundle(entries, bundle);
+        assertEquals(hash, BundleHash.readFromBundle(bundle));
+
+        // stamping again replaces the hash instead of adding another
+        BundlePackager.stampContentHash(buildDir, entries);
+        String descriptor = FileUtils.readFileToString(new File(apiproxy, "taskservice.xml"), "UTF-8");
+        assertEquals(descriptor.indexOf("sha256:"), descriptor.lastIndexOf("sha256:"));
+        assertTrue(descriptor, descriptor.contains("build 1 [" + hash + "]"));
+    }
+
+    public void testHashIsStampedIntoEmptyDescriptor() throws Exception {
+        write("taskservice.xml", "<APIProxy name=\"taskservice\"/>");
+        List<ParallelZip.Entry> entries = BundlePackager.bundleEntries(buildDir, buildDir);
+        String hash = BundlePackager.stampContentHash(buildDir, entries);
+        assertEquals(hash, BundleHash.compute(apiproxy));
+
+        File descriptor = new File(apiproxy, "taskservice.xml");
+        String text = FileUtils.readFileToString(descriptor, "UTF-8");
+        assertTrue(text, text.startsWith("<APIProxy name=\"taskservice\"><Description>"));
+        assertTrue(text, text.endsWith("[" + hash + "]</Description></APIProxy>"));
+        // still well formed
+        XmlParsers.documentBuilder().parse(descriptor);
+    }
+
+    public void testHashIsStampedIntoDescriptorWithoutDescription() throws Exception {
+        write("taskservice.xml", "<APIProxy name=\"taskservice\">\n  <Basepaths>/tasks</Basepaths>\n</APIProxy>");
+        List<ParallelZip.Entry> entries = BundlePackager.bundleEntries(buildDir, buildDir);
+        String hash = BundlePackager.stampContentHash(buildDir, entries);
+        assertEquals(hash, BundleHash.compute(apiproxy));
+        String text = FileUtils.readFileToString(new File(apiproxy, "taskservice.xml"), "UTF-8");
+        assertTrue(text, text.contains("[" + hash + "]</Description>\n  <Basepaths>"));
+    }
+
+    public void testExternalNodeAppIsPackagedFromTheSource() throws Exception {
+        File baseDir = new File(buildDir, "project");
+        File modules = new File(baseDir, "node/node_modules/express");
+        modules.mkdirs();
+        FileUtils.writeStringToFile(new File(modules, "index.js"), "module.exports = {};", "UTF-8");
+        FileUtils.writeStringToFile(new File(baseDir, "node/app.js"), "require('express');", "UTF-8");
+        write("resources/node/stale.js", "// replaced by node/");
+
+        List<ParallelZip.Entry> entries = BundlePackager.bundleEntries(baseDir, buildDir);
+        String hash = BundlePackager.stampContentHash(buildDir, entries);
+        File bundle = new File(buildDir, "taskservice.zip");
+        BundlePackager.zipBundle(entries, bundle);
+
+        ZipFile zip = new ZipFile(bundle);
+        try {
+            assertNull(zip.getEntry("apiproxy/resources/node/stale.js"));
+            assertNotNull(zip.getEntry("apiproxy/resources/node/app.js"));
+            ZipEntry modulesZip = zip.getEntry("apiproxy/resources/node/node_modules.zip");
+            assertEquals(ZipEntry.STORED, modulesZip.getMethod());
+            ZipInputStream nested = new ZipInputStream(zip.getInputStream(modulesZip));
+            assertEquals("node_modules/express/index.js", nested.getNextEntry().getName());
+            nested.close();
+        } finally {
+            zip.close();
+        }
+        // nothing was copied into the build directory
+        assertTrue(new File(apiproxy, "resources/node/stale.js").exists());
+        assertFalse(new File(apiproxy, "resources/node/app.js").exists());
+
+        FileUtils.writeStringToFile(new File(modules, "index.js"), "module.exports = { v: 2 };", "UTF-8");
+        assertFalse(hash.equals(BundleHash.compute(BundlePackager.bundleEntries(baseDir, buildDir))));
+    }
+
+    void write(String path, String content) throws IOException {
+        File file = new File(apiproxy, path);
+        file.getParentFile().mkdirs();
+        FileWriter writer = new FileWriter(file);
+        writer.write(content);
+        writer.close();
+    }
+}
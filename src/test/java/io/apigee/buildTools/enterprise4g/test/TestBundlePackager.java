@@ -0,0 +1,60 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.test;
+
+import io.apigee.buildTools.enterprise4g.utils.BundlePackager;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+
+/**
+ * Checks the name deploy-all gives a proxy directory.
+ */
+public class TestBundlePackager extends TestCase {
+
+    File baseDir;
+    File apiproxy;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        baseDir = File.createTempFile("proxy-dir", "");
+        baseDir.delete();
+        apiproxy = new File(baseDir, "apiproxy");
+        apiproxy.mkdirs();
+    }
+
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(baseDir);
+        super.tearDown();
+    }
+
+    public void testNameComesFromDescriptor() throws Exception {
+        FileUtils.writeStringToFile(new File(apiproxy, "descriptor.xml"),
+                "<APIProxy revision=\"1\" name=\"taskservice\"><Description/></APIProxy>", "UTF-8");
+        assertEquals("taskservice", BundlePackager.proxyName(baseDir));
+    }
+
+    public void testDescriptorFileNameWithoutNameAttribute() throws Exception {
+        FileUtils.writeStringToFile(new File(apiproxy, "taskservice.xml"),
+                "<APIProxy revision=\"1\"><Description/></APIProxy>", "UTF-8");
+        assertEquals("taskservice", BundlePackager.proxyName(baseDir));
+    }
+
+    public void testDirectoryNameWithoutDescriptor() throws Exception {
+        assertEquals(baseDir.getName(), BundlePackager.proxyName(baseDir));
+    }
+}
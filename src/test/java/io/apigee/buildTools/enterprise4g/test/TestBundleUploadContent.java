@@ -0,0 +1,197 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.test;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpTransport;
+import io.apigee.buildTools.enterprise4g.rest.BundleUploadContent;
+import io.apigee.buildTools.enterprise4g.rest.HttpTransportFactory;
+import junit.framework.TestCase;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class TestBundleUploadContent extends TestCase {
+
+    File bundle;
+    byte[] data = new byte[1024 * 1024];
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        new Random(42).nextBytes(data);
+        bundle = File.createTempFile("bundle", ".zip");
+        FileOutputStream out = new FileOutputStream(bundle);
+        out.write(data);
+        out.close();
+    }
+
+    protected void tearDown() throws Exception {
+        bundle.delete();
+        super.tearDown();
+    }
+
+    public void testStreamsWholeFile() throws IOException {
+        BundleUploadContent content = new BundleUploadContent(bundle, 0, 0);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        content.writeTo(out);
+
+        assertEquals(data.length, content.getLength());
+        assertEquals(data.length, content.getBytesSent());
+        assertTrue(Arrays.equals(data, out.toByteArray()));
+    }
+
+    public void testFailsWhenThroughputStaysBelowMinimum() throws IOException {
+        // 64 KB every 100 ms is well under the 10 MB/s floor
+        BundleUploadContent content = new BundleUploadContent(bundle, 10 * 1024 * 1024, 200);
+        try {
+            content.writeTo(new SlowOutputStream(100));
+            fail("slow upload should have been aborted");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("below the minimum"));
+            assertTrue(content.getBytesSent() < data.length);
+        }
+    }
+
+    public void testNetTransportAbortsStalledUpload() throws Exception {
+        assertStalledUploadAborted(HttpTransportFactory.TRANSPORT_NET);
+    }
+
+    public void testPooledTransportAbortsStalledUpload() throws Exception {
+        assertStalledUploadAborted(HttpTransportFactory.TRANSPORT_POOLED);
+    }
+
+    /**
+     * The server accepts the TLS connection and then stops reading, so the
+     * upload blocks in a socket write once the buffers are full.
+     */
+    void assertStalledUploadAborted(String transport) throws Exception {
+        File large = File.createTempFile("large", ".zip");
+        FileOutputStream out = new FileOutputStream(large);
+        for (int i = 0; i < 32; i++) {
+            out.write(data);
+        }
+        out.close();
+        StalledServer server = new StalledServer();
+        HttpTransport httpTransport = HttpTransportFactory.create(
+                new HttpTransportFactory.Settings(transport, null, null, null));
+        try {
+            BundleUploadContent content = new BundleUploadContent(large, 1024 * 1024, 500);
+            long start = System.currentTimeMillis();
+            try {
+                httpTransport.createRequestFactory()
+                        .buildPostRequest(new GenericUrl("https://localhost:" + server.getPort() + "/"), content)
+                        .execute();
+                fail("upload to a server that stopped reading should have been aborted");
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("below the minimum"));
+                assertTrue(content.getBytesSent() < large.length());
+            }
+            assertTrue("abort took too long", System.currentTimeMillis() - start < 10000);
+        } finally {
+            HttpTransportFactory.shutdown(httpTransport);
+            server.close();
+            large.delete();
+        }
+    }
+
+    static class StalledServer extends Thread {
+
+        final SSLServerSocket serverSocket;
+        final List<Socket> accepted = Collections.synchronizedList(new ArrayList<Socket>());
+
+        StalledServer() throws Exception {
+            KeyStore keyStore = KeyStore.getInstance("JKS");
+            InputStream in = TestBundleUploadContent.class.getResourceAsStream("/simulator.jks");
+            try {
+                keyStore.load(in, "changeit".toCharArray());
+            } finally {
+                in.close();
+            }
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            kmf.init(keyStore, "changeit".toCharArray());
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(kmf.getKeyManagers(), null, null);
+            serverSocket = (SSLServerSocket) sslContext.getServerSocketFactory().createServerSocket();
+            serverSocket.setReceiveBufferSize(4096);
+            serverSocket.bind(new InetSocketAddress("localhost", 0));
+            setDaemon(true);
+            start();
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    SSLSocket socket = (SSLSocket) serverSocket.accept();
+                    accepted.add(socket);
+                    socket.startHandshake();
+                    // and never read the request
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        }
+
+        void close() throws IOException {
+            serverSocket.close();
+            synchronized (accepted) {
+                for (Socket socket : accepted) {
+                    socket.close();
+                }
+            }
+        }
+    }
+
+    static class SlowOutputStream extends OutputStream {
+
+        final long delay;
+
+        SlowOutputStream(long delay) {
+            this.delay = delay;
+        }
+
+        public void write(int b) throws IOException {
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                throw new IOException(e.getMessage());
+            }
+        }
+    }
+}
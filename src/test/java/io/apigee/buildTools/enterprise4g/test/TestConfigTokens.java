@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.test;
+
+import io.apigee.buildTools.enterprise4g.utils.ConfigTokens;
+import io.apigee.buildTools.enterprise4g.utils.ConfigTokens.Policy;
+import io.apigee.buildTools.enterprise4g.utils.FileReader;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Looks up environments and files in a config.json bound by FileReader.
+ */
+public class TestConfigTokens extends TestCase {
+
+    ConfigTokens conf;
+    File configFile;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        configFile = File.createTempFile("config", ".json");
+        FileUtils.writeStringToFile(configFile, "{\"configurations\": ["
+                + "{\"name\": \"test\", \"policies\": ["
+                + "{\"name\": \"Quota.xml\", \"tokens\": [{\"xpath\": \"/Quota/Allow\", \"value\": \"first\"}]},"
+                + "{\"name\": \"Spike.xml\", \"tokens\": []},"
+                + "{\"name\": \"Quota.xml\", \"tokens\": [{\"xpath\": \"/Quota/Allow\", \"value\": \"second\"}]}]},"
+                + "{\"name\": \"prod\", \"targets\": [{\"name\": \"default.xml\", \"tokens\": []}]},"
+                + "{\"name\": \"test\", \"proxies\": [{\"name\": \"default.xml\", \"tokens\": []}]}]}", "UTF-8");
+        conf = new FileReader().getBundleConfigs(configFile);
+    }
+
+    protected void tearDown() throws Exception {
+        configFile.delete();
+        super.tearDown();
+    }
+
+    public void testLookupsKeepTheFirstMatch() {
+        assertNull(conf.getConfigbyEnv("uat"));
+        ConfigTokens.Configurations test = conf.getConfigbyEnv("test");
+        assertSame(conf.getConfigurations().get(0), test);
+        assertEquals("first", test.getPolicyFileNameMatch("Quota.xml").getTokens().get(0).getValue());
+        assertNull(test.getPolicyFileNameMatch("Missing.xml"));
+    }
+
+    public void testMissingSectionsHaveNoTokens() {
+        assertNull(conf.getConfigbyEnv("test").getProxyFileNameMatch("default.xml"));
+        assertNull(conf.getConfigbyEnv("test").getTargetFileNameMatch("default.xml"));
+        assertNull(conf.getConfigbyEnv("prod").getPolicyFileNameMatch("Quota.xml"));
+        assertNotNull(conf.getConfigbyEnv("prod").getTargetFileNameMatch("default.xml"));
+        assertTrue(conf.getConfigbyEnv("prod").getProxyFileMatches(Arrays.asList(new File("default.xml"))).isEmpty());
+    }
+
+    public void testFileMatchesAreInFileOrder() {
+        Map<File, Policy> matches = conf.getConfigbyEnv("test").getPolicyFileMatches(Arrays.asList(
+                new File("policies/Spike.xml"), new File("policies/Other.xml"), new File("policies/Quota.xml")));
+        assertEquals(Arrays.asList(new File("policies/Spike.xml"), new File("policies/Quota.xml")),
+                new ArrayList<File>(matches.keySet()));
+        assertEquals("Spike.xml", matches.get(new File("policies/Spike.xml")).getName());
+    }
+
+    public void testSettersDropTheIndex() {
+        ConfigTokens.Configurations test = conf.getConfigbyEnv("test");
+        test.setPolicies(new ArrayList<Policy>());
+        assertNull(test.getPolicyFileNameMatch("Quota.xml"));
+        conf.setConfigurations(new ArrayList<ConfigTokens.Configurations>());
+        assertNull(conf.getConfigbyEnv("test"));
+    }
+}
@@ -0,0 +1,274 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsParameters;
+import com.sun.net.httpserver.HttpsServer;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpTransport;
+import io.apigee.buildTools.enterprise4g.rest.CircuitBreaker;
+import io.apigee.buildTools.enterprise4g.rest.HttpTransportFactory;
+import io.apigee.buildTools.enterprise4g.rest.RestUtil;
+import io.apigee.buildTools.enterprise4g.rest.SslConfiguration;
+import io.apigee.buildTools.enterprise4g.utils.ServerProfile;
+import junit.framework.TestCase;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Benchmark comparing TLS handshakes per deploy for the legacy
+ * HttpURLConnection transport and the pooled keep-alive transport.
+ * Runs against a local HTTPS server, no Edge credentials needed:
+ *
+ * mvn test -Dmaven.test.skip=false -Dtest=TestConnectionReuse
+ */
+public class TestConnectionReuse extends TestCase {
+
+    static final int DEPLOYS = 40;
+    static final int THREADS = 8;
+
+    HttpsServer server;
+    KeyStore keyStore;
+    AtomicInteger handshakes = new AtomicInteger();
+    AtomicInteger requests = new AtomicInteger();
+    ServerProfile profile = new ServerProfile();
+
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        keyStore = KeyStore.getInstance("JKS");
+        InputStream in = TestConnectionReuse.class.getResourceAsStream("/simulator.jks");
+        try {
+            keyStore.load(in, "changeit".toCharArray());
+        } finally {
+            in.close();
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, "changeit".toCharArray());
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(kmf.getKeyManagers(), null, null);
+
+        server = HttpsServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.setHttpsConfigurator(new HttpsConfigurator(sslContext) {
+            // called once for every new TLS connection
+            public void configure(HttpsParameters params) {
+                handshakes.incrementAndGet();
+                super.configure(params);
+            }
+        });
+        server.createContext("/", new DeployHandler());
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+
+        profile.setHostUrl("https://localhost:" + server.getAddress().getPort());
+        profile.setApplication("taskservice");
+        profile.setCredential_user("user");
+        profile.setCredential_pwd("password");
+        profile.setEnvironment("test");
+        profile.setOrg("org");
+        profile.setApi_version("v1");
+    }
+
+    protected void tearDown() throws Exception {
+        server.stop(0);
+        CircuitBreaker.reset();
+        RestUtil.setHttpTransport(HttpTransportFactory.create(
+                new HttpTransportFactory.Settings(HttpTransportFactory.TRANSPORT_NET, null, null, null)));
+        super.tearDown();
+    }
+
+    public void testHandshakesPerDeploy() throws Exception {
+        report("sequential", run(HttpTransportFactory.TRANSPORT_NET, 1), run(HttpTransportFactory.TRANSPORT_POOLED, 1));
+        report("parallel", run(HttpTransportFactory.TRANSPORT_NET, THREADS), run(HttpTransportFactory.TRANSPORT_POOLED, THREADS));
+    }
+
+    public void testPinnedCertificate() throws Exception {
+        profile.setPinnedCertificates(fingerprint());
+        assertEquals(1, run(HttpTransportFactory.TRANSPORT_POOLED, 1) * DEPLOYS, 0.0);
+    }
+
+    public void testWrongPinnedCertificateIsRejected() throws Exception {
+        profile.setPinnedCertificates("00:11:22:33");
+        try {
+            run(HttpTransportFactory.TRANSPORT_POOLED, 1);
+            fail("server with an unpinned certificate should be rejected");
+        } catch (Exception e) {
+            assertEquals(0, requests.get());
+        }
+    }
+
+    public void testNetTransportLeavesJvmDefaultsAlone() throws Exception {
+        SSLSocketFactory socketFactory = HttpsURLConnection.getDefaultSSLSocketFactory();
+        HostnameVerifier hostnameVerifier = HttpsURLConnection.getDefaultHostnameVerifier();
+        profile.setHostUrl("https://127.0.0.1:" + server.getAddress().getPort());
+        run(HttpTransportFactory.TRANSPORT_NET, 1);
+        assertSame(socketFactory, HttpsURLConnection.getDefaultSSLSocketFactory());
+        assertSame(hostnameVerifier, HttpsURLConnection.getDefaultHostnameVerifier());
+    }
+
+    public void testNetTransportVerifiesHostname() throws Exception {
+        // insecure first, the previous release left a trust-all verifier installed at this point
+        profile.setHostUrl("https://127.0.0.1:" + server.getAddress().getPort());
+        run(HttpTransportFactory.TRANSPORT_NET, 1);
+
+        profile.setSslInsecure(false);
+        profile.setTrustStore(TestConnectionReuse.class.getResource("/simulator.jks").getFile());
+        profile.setTrustStorePassword("changeit");
+        profile.setTrustStoreType("JKS");
+        try {
+            run(HttpTransportFactory.TRANSPORT_NET, 1);
+            fail("certificate issued to localhost should be rejected for 127.0.0.1");
+        } catch (Exception e) {
+            assertEquals(0, requests.get());
+        }
+
+        profile.setHostUrl("https://localhost:" + server.getAddress().getPort());
+        run(HttpTransportFactory.TRANSPORT_NET, 1);
+        assertTrue(requests.get() > 0);
+    }
+
+    public void testPoolTimeoutIsNotIdleTimeout() throws Exception {
+        HttpTransport transport = HttpTransportFactory.create(new HttpTransportFactory.Settings(
+                HttpTransportFactory.TRANSPORT_POOLED, 1, 1, 600000L, 200L,
+                new SslConfiguration(null, null, null, null, null)));
+        try {
+            GenericUrl url = new GenericUrl(profile.getHostUrl() + "/v1/organizations/org/apis/taskservice/revisions");
+            // the only connection stays leased until the response is read
+            HttpResponse held = transport.createRequestFactory().buildGetRequest(url).execute();
+            long start = System.currentTimeMillis();
+            try {
+                transport.createRequestFactory().buildGetRequest(url).execute();
+                fail("no connection should be available");
+            } catch (IOException e) {
+                long waited = System.currentTimeMillis() - start;
+                assertTrue("waited " + waited + " ms", waited >= 200 && waited < 5000);
+            }
+            held.ignore();
+        } finally {
+            HttpTransportFactory.shutdown(transport);
+        }
+    }
+
+    String fingerprint() throws Exception {
+        X509Certificate cert = (X509Certificate) keyStore.getCertificate("simulator");
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(cert.getEncoded());
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest) {
+            hex.append(String.format("%02X:", b));
+        }
+        return hex.substring(0, hex.length() - 1);
+    }
+
+    void report(String mode, double net, double pooled) {
+        System.out.println(String.format("%-10s net: %.2f handshakes/deploy, pooled: %.2f handshakes/deploy", mode, net, pooled));
+        assertTrue("pooled transport should not need more handshakes than the net transport", pooled <= net);
+        assertTrue("pooled transport should reuse connections across deploys", pooled < 1.0);
+    }
+
+    double run(final String transport, int threads) throws Exception {
+        profile.setHttpTransport(transport);
+        RestUtil.configureTransport(profile);
+        handshakes.set(0);
+        requests.set(0);
+
+        final String bundle = TestConnectionReuse.class.getResource("/taskservice1.zip").getFile();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Object>> deploys = new ArrayList<Future<Object>>();
+        long start = System.nanoTime();
+        for (int i = 0; i < DEPLOYS; i++) {
+            deploys.add(executor.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    String revision = RestUtil.uploadBundle(profile, bundle);
+                    return RestUtil.refreshBundle(profile, revision);
+                }
+            }));
+        }
+        try {
+            for (Future<Object> deploy : deploys) {
+                deploy.get();
+            }
+        } finally {
+            // drop the queued deploys when one fails, they would keep calling the server
+            executor.shutdownNow();
+        }
+        long millis = (System.nanoTime() - start) / 1000000;
+
+        System.out.println(String.format("%-8s %d threads, %d deploys, %d requests, %d handshakes, %d ms",
+                transport, threads, DEPLOYS, requests.get(), handshakes.get(), millis));
+        return (double) handshakes.get() / DEPLOYS;
+    }
+
+    /**
+     * Answers the calls of an import + refresh with canned responses.
+     */
+    class DeployHandler implements HttpHandler {
+
+        public void handle(HttpExchange exchange) throws IOException {
+            requests.incrementAndGet();
+            InputStream in = exchange.getRequestBody();
+            byte[] buf = new byte[8192];
+            while (in.read(buf) != -1) {
+                // drain the request so the connection can be reused
+            }
+            in.close();
+
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath();
+            String body;
+            if ("GET".equals(method) && path.endsWith("/deployments")) {
+                body = "{\"name\":\"taskservice\",\"organization\":\"org\",\"environment\":"
+                        + "[{\"name\":\"test\",\"revision\":[{\"name\":\"1\",\"state\":\"deployed\"}]}]}";
+            } else if ("GET".equals(method) && path.endsWith("/revisions")) {
+                body = "[\"1\"]";
+            } else if ("POST".equals(method) && path.endsWith("/apis")) {
+                body = "{\"name\":\"taskservice\",\"revision\":\"2\"}";
+            } else if ("DELETE".equals(method)) {
+                body = "{\"name\":\"1\",\"state\":\"undeployed\",\"environment\":\"test\"}";
+            } else {
+                body = "{\"name\":\"2\",\"state\":\"deployed\",\"environment\":\"test\"}";
+            }
+
+            byte[] bytes = body.getBytes("UTF-8");
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, bytes.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(bytes);
+            out.close();
+        }
+    }
+}
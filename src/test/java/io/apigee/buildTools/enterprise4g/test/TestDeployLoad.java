@@ -0,0 +1,221 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.test;
+
+import io.apigee.buildTools.enterprise4g.mavenplugin.DeployMojo;
+import io.apigee.buildTools.enterprise4g.rest.DeploymentPoller;
+import io.apigee.buildTools.enterprise4g.rest.HttpTransportFactory;
+import io.apigee.buildTools.enterprise4g.rest.RestUtil;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Load test of the deploy goal: runs many DeployMojo executions at once,
+ * each importing and activating its own proxy, against an EdgeSimulator,
+ * and reports throughput and latency percentiles. No Edge credentials
+ * needed:
+ *
+ * mvn test -Dmaven.test.skip=false -Dtest=TestDeployLoad -Dload.deploys=500 -Dload.concurrency=200
+ */
+public class TestDeployLoad extends TestCase {
+
+    static final int DEPLOYS = Integer.getInteger("load.deploys", 200);
+    static final int CONCURRENCY = Integer.getInteger("load.concurrency", 100);
+
+    EdgeSimulator simulator;
+    File baseDir;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        simulator = new EdgeSimulator(Boolean.getBoolean("load.https"));
+        baseDir = File.createTempFile("deployload", "");
+        baseDir.delete();
+        File bundle = new File(TestDeployLoad.class.getResource("/taskservice1.zip").getFile());
+        for (int i = 0; i < DEPLOYS; i++) {
+            FileUtils.copyFile(bundle, new File(baseDir, "target/proxy" + i + "-1.0-test.zip"));
+        }
+        RestUtil.Options.pollInterval = 50;
+    }
+
+    protected void tearDown() throws Exception {
+        simulator.stop();
+        FileUtils.deleteDirectory(baseDir);
+        RestUtil.Options.pollInterval = DeploymentPoller.DEFAULT_INTERVAL;
+        RestUtil.Options.requestsPerSecond = 0;
+        RestUtil.setHttpTransport(HttpTransportFactory.create(
+                new HttpTransportFactory.Settings(HttpTransportFactory.TRANSPORT_NET, null, null, null)));
+        super.tearDown();
+    }
+
+    public void testConcurrentDeploys() throws Exception {
+        simulator.setLatency(10, 20).setActivationTime(200);
+        Report report = run("steady", DEPLOYS, CONCURRENCY);
+
+        assertEquals(report.toString(), 0, report.failures);
+        for (int i = 0; i < DEPLOYS; i++) {
+            assertEquals(Integer.valueOf(1), simulator.getDeployedRevision("proxy" + i, EdgeSimulator.ENV));
+        }
+    }
+
+    public void testInjectedErrorsAreRetried() throws Exception {
+        simulator.setLatency(5, 10).setActivationTime(100).setErrors(0.05, 503);
+        Report report = run("errors", DEPLOYS, CONCURRENCY);
+
+        assertTrue(simulator.getResponses(503) > 0);
+        assertEquals(report.toString(), 0, report.failures);
+    }
+
+    public void testClientRateLimitAvoidsThrottling() throws Exception {
+        simulator.setRateLimit(60);
+        RestUtil.Options.requestsPerSecond = 50;
+        Report report = run("rate limited", 40, CONCURRENCY);
+
+        assertEquals(report.toString(), 0, report.failures);
+        assertEquals(0, simulator.getResponses(429));
+    }
+
+    Report run(String name, int deploys, int concurrency) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        List<Future<Long>> results = new ArrayList<Future<Long>>();
+        long start = System.nanoTime();
+        for (int i = 0; i < deploys; i++) {
+            final DeployMojo mojo = mojo("proxy" + i, concurrency);
+            results.add(executor.submit(new Callable<Long>() {
+                public Long call() throws Exception {
+                    long started = System.nanoTime();
+                    mojo.execute();
+                    return System.nanoTime() - started;
+                }
+            }));
+        }
+
+        Report report = new Report();
+        report.name = name;
+        List<Long> latencies = new ArrayList<Long>();
+        for (Future<Long> result : results) {
+            try {
+                latencies.add(result.get());
+            } catch (ExecutionException e) {
+                report.failed(e.getCause());
+            }
+        }
+        executor.shutdown();
+        report.millis = (System.nanoTime() - start) / 1000000;
+        report.deploys = deploys;
+        report.concurrency = concurrency;
+        report.requests = simulator.getRequests();
+        report.latencies = new long[latencies.size()];
+        for (int i = 0; i < latencies.size(); i++) {
+            report.latencies[i] = latencies.get(i) / 1000000;
+        }
+        Arrays.sort(report.latencies);
+        System.out.println(report);
+        return report;
+    }
+
+    DeployMojo mojo(String application, int connections) throws Exception {
+        DeployMojo mojo = new DeployMojo();
+        mojo.setBaseDirectory(baseDir);
+        set(mojo, "projectName", application);
+        set(mojo, "projectVersion", "-1.0");
+        set(mojo, "id", EdgeSimulator.ENV);
+        set(mojo, "hostURL", simulator.getUrl());
+        set(mojo, "deploymentEnv", EdgeSimulator.ENV);
+        set(mojo, "apiVersion", "v1");
+        set(mojo, "orgName", EdgeSimulator.ORG);
+        set(mojo, "userName", "user");
+        set(mojo, "password", "password");
+        set(mojo, "httpTransport", HttpTransportFactory.TRANSPORT_POOLED);
+        set(mojo, "maxConnections", connections);
+        set(mojo, "maxConnectionsPerRoute", connections);
+        return mojo;
+    }
+
+    // the parameters Maven injects have no setters
+    static void set(Object mojo, String name, Object value) throws Exception {
+        for (Class<?> type = mojo.getClass(); type != null; type = type.getSuperclass()) {
+            try {
+                Field field = type.getDeclaredField(name);
+                field.setAccessible(true);
+                field.set(mojo, value);
+                return;
+            } catch (NoSuchFieldException e) {
+                // declared further up
+            }
+        }
+        throw new NoSuchFieldException(name);
+    }
+
+    static class Report {
+        static final int MAX_ERRORS = 5;
+
+        String name;
+        int deploys;
+        int concurrency;
+        int failures;
+        int requests;
+        long millis;
+        long[] latencies;
+        /** The first few failures, for the assertion message */
+        List<Throwable> errors = new ArrayList<Throwable>();
+
+        void failed(Throwable error) {
+            failures++;
+            if (errors.size() < MAX_ERRORS) {
+                errors.add(error);
+            }
+        }
+
+        long percentile(double p) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(p * latencies.length) - 1;
+            return latencies[Math.max(0, Math.min(index, latencies.length - 1))];
+        }
+
+        public String toString() {
+            double seconds = millis / 1000.0;
+            return String.format("%-12s %d deploys, %d at once, %d failed, %d requests in %d ms: %.1f deploys/s, "
+                            + "%.1f requests/s, latency p50 %d ms, p90 %d ms, p99 %d ms, max %d ms",
+                    name, deploys, concurrency, failures, requests, millis, deploys / seconds, requests / seconds,
+                    percentile(0.5), percentile(0.9), percentile(0.99), percentile(1.0))
+                    + describe(errors);
+        }
+
+        static String describe(List<Throwable> errors) {
+            StringBuilder out = new StringBuilder();
+            for (Throwable error : errors) {
+                out.append("\n  ").append(error);
+                for (Throwable cause = error.getCause(); cause != null && cause != cause.getCause(); cause = cause.getCause()) {
+                    out.append("\n    caused by ").append(cause);
+                }
+            }
+            return out.toString();
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.test;
+
+import com.google.api.client.http.HttpResponseException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import io.apigee.buildTools.enterprise4g.rest.DeploymentPoller;
+import io.apigee.buildTools.enterprise4g.rest.RestClient;
+import io.apigee.buildTools.enterprise4g.rest.RestUtil;
+import io.apigee.buildTools.enterprise4g.utils.ServerProfile;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks the deployment poller against a local server that reports a
+ * revision as deployed after a number of status calls.
+ */
+public class TestDeploymentPoller extends TestCase {
+
+    HttpServer server;
+    AtomicInteger polls = new AtomicInteger();
+    volatile int pollsUntilDeployed;
+    volatile int errorStatus;
+    volatile int errorPolls;
+    ServerProfile profile = new ServerProfile();
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new DeploymentHandler());
+        server.start();
+
+        profile.setHostUrl("http://localhost:" + server.getAddress().getPort());
+        profile.setApplication("taskservice");
+        profile.setCredential_user("user");
+        profile.setCredential_pwd("password");
+        profile.setEnvironment("test");
+        profile.setOrg("org");
+        profile.setApi_version("v1");
+
+        RestUtil.Options.pollInterval = 10;
+        RestUtil.Options.pollMaxInterval = 40;
+        RestUtil.Options.pollTimeout = 5000;
+    }
+
+    protected void tearDown() throws Exception {
+        server.stop(0);
+        RestUtil.Options.pollInterval = DeploymentPoller.DEFAULT_INTERVAL;
+        RestUtil.Options.pollMaxInterval = DeploymentPoller.DEFAULT_MAX_INTERVAL;
+        RestUtil.Options.pollTimeout = DeploymentPoller.DEFAULT_TIMEOUT;
+        super.tearDown();
+    }
+
+    public void testReturnsOnceEveryServerIsDeployed() throws IOException {
+        pollsUntilDeployed = 4;
+        assertTrue(DeploymentPoller.awaitDeployed(new RestClient.Context(profile), "2"));
+        assertEquals(4, polls.get());
+    }
+
+    public void testReturnsImmediatelyWhenAlreadyDeployed() throws IOException {
+        pollsUntilDeployed = 1;
+        assertTrue(DeploymentPoller.awaitDeployed(new RestClient.Context(profile), "2"));
+        assertEquals(1, polls.get());
+    }
+
+    public void testGivesUpAtDeadline() throws IOException {
+        pollsUntilDeployed = Integer.MAX_VALUE;
+        RestUtil.Options.pollTimeout = 300;
+        long start = System.currentTimeMillis();
+        assertFalse(DeploymentPoller.awaitDeployed(new RestClient.Context(profile), "2"));
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("took " + elapsed + " ms", elapsed >= 300 && elapsed < 2000);
+        // backoff keeps the number of calls well below timeout / initial interval
+        assertTrue("made " + polls.get() + " calls", polls.get() < 30);
+    }
+
+    public void testTimeoutComesFromContext() throws IOException {
+        pollsUntilDeployed = Integer.MAX_VALUE;
+        RestUtil.Options.pollTimeout = 300;
+        RestClient.Context context = new RestClient.Context(profile);
+        // another operation changing the options does not change the deadline of this one
+        RestUtil.Options.pollTimeout = 5000;
+        long start = System.currentTimeMillis();
+        assertFalse(DeploymentPoller.awaitDeployed(context, "2"));
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("took " + elapsed + " ms", elapsed >= 300 && elapsed < 2000);
+    }
+
+    public void testKeepsPollingWhileNotFound() throws IOException {
+        errorStatus = 404;
+        errorPolls = 2;
+        assertTrue(DeploymentPoller.awaitDeployed(new RestClient.Context(profile), "2"));
+        assertEquals(3, polls.get());
+    }
+
+    public void testKeepsPollingThroughTransientErrors() throws IOException {
+        errorStatus = 503;
+        errorPolls = 2;
+        assertTrue(DeploymentPoller.awaitDeployed(new RestClient.Context(profile), "2"));
+        assertEquals(3, polls.get());
+    }
+
+    public void testFailsOnAuthorizationErrorWhileAwaitingDeploy() throws IOException {
+        errorStatus = 403;
+        errorPolls = Integer.MAX_VALUE;
+        try {
+            DeploymentPoller.awaitDeployed(new RestClient.Context(profile), "2");
+            fail("403 should not be taken for a deployment that is not visible yet");
+        } catch (HttpResponseException e) {
+            assertEquals(403, e.getStatusCode());
+            assertEquals(1, polls.get());
+        }
+    }
+
+    public void testNotFoundMeansUndeployed() throws IOException {
+        errorStatus = 404;
+        errorPolls = Integer.MAX_VALUE;
+        assertTrue(DeploymentPoller.awaitUndeployed(new RestClient.Context(profile), "2"));
+        assertEquals(1, polls.get());
+    }
+
+    public void testFailsOnAuthorizationErrorWhileAwaitingUndeploy() throws IOException {
+        errorStatus = 401;
+        errorPolls = Integer.MAX_VALUE;
+        try {
+            DeploymentPoller.awaitUndeployed(new RestClient.Context(profile), "2");
+            fail("401 should not be taken for an undeployed revision");
+        } catch (HttpResponseException e) {
+            assertEquals(401, e.getStatusCode());
+            assertEquals(1, polls.get());
+        }
+    }
+
+    /**
+     * Answers the first errorPolls calls with errorStatus, then reports one
+     * server still deploying until the configured number of polls.
+     */
+    class DeploymentHandler implements HttpHandler {
+
+        public void handle(HttpExchange exchange) throws IOException {
+            InputStream in = exchange.getRequestBody();
+            while (in.read() != -1) {
+                // drain the request
+            }
+            in.close();
+
+            int poll = polls.incrementAndGet();
+            if (poll <= errorPolls) {
+                exchange.sendResponseHeaders(errorStatus, -1);
+                exchange.close();
+                return;
+            }
+            String second = poll >= pollsUntilDeployed ? "deployed" : "deploying";
+            String body = "{\"name\":\"2\",\"environment\":\"test\",\"state\":\"deployed\",\"server\":["
+                    + "{\"status\":\"deployed\",\"type\":[\"message-processor\"],\"uUID\":\"a\"},"
+                    + "{\"status\":\"" + second + "\",\"type\":[\"message-processor\"],\"uUID\":\"b\"}]}";
+
+            byte[] bytes = body.getBytes("UTF-8");
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, bytes.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(bytes);
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import io.apigee.buildTools.enterprise4g.rest.EnvironmentActivator;
+import io.apigee.buildTools.enterprise4g.rest.RestUtil;
+import io.apigee.buildTools.enterprise4g.utils.ServerProfile;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Imports a bundle once and activates it in several environments against a
+ * local server that takes a while to answer every activation.
+ */
+public class TestEnvironmentActivator extends TestCase {
+
+    static final long ACTIVATION_MILLIS = 300;
+
+    HttpServer server;
+    AtomicInteger imports = new AtomicInteger();
+    AtomicInteger activating = new AtomicInteger();
+    AtomicInteger maxActivating = new AtomicInteger();
+    ServerProfile profile = new ServerProfile();
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new EnvironmentHandler());
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+
+        profile.setHostUrl("http://localhost:" + server.getAddress().getPort());
+        profile.setApplication("taskservice");
+        profile.setCredential_user("user");
+        profile.setCredential_pwd("password");
+        profile.setEnvironment("test");
+        profile.setOrg("org");
+        profile.setApi_version("v1");
+    }
+
+    protected void tearDown() throws Exception {
+        server.stop(0);
+        super.tearDown();
+    }
+
+    public void testActivatesEveryEnvironmentConcurrently() throws Exception {
+        String bundle = TestEnvironmentActivator.class.getResource("/taskservice1.zip").getFile();
+        String revision = RestUtil.uploadBundle(profile, bundle);
+        assertEquals("2", revision);
+
+        long start = System.currentTimeMillis();
+        List<EnvironmentActivator.Result> results = new EnvironmentActivator(profile, 2)
+                .activate(revision, Arrays.asList("test", "uat", "prod"));
+        long elapsed = System.currentTimeMillis() - start;
+        System.out.println(EnvironmentActivator.formatResults(results));
+
+        assertEquals(1, imports.get());
+        assertEquals(3, results.size());
+        assertEquals("test", results.get(0).environment);
+        assertEquals("prod", results.get(2).environment);
+        assertTrue(EnvironmentActivator.allDeployed(results));
+        assertEquals(2, maxActivating.get());
+        assertTrue("took " + elapsed + " ms", elapsed < 3 * ACTIVATION_MILLIS);
+    }
+
+    public void testFailureInOneEnvironmentIsReported() throws Exception {
+        List<EnvironmentActivator.Result> results = new EnvironmentActivator(profile, 4)
+                .activate("2", Arrays.asList("test", "broken"));
+
+        assertFalse(EnvironmentActivator.allDeployed(results));
+        assertTrue(results.get(0).isDeployed());
+        assertEquals(RestUtil.STATE_ERROR, results.get(1).state);
+        assertNotNull(results.get(1).error);
+    }
+
+    /**
+     * Answers import, deployment lookup, undeploy and activation calls; the
+     * "broken" environment rejects activations.
+     */
+    class EnvironmentHandler implements HttpHandler {
+
+        public void handle(HttpExchange exchange) throws IOException {
+            InputStream in = exchange.getRequestBody();
+            byte[] buf = new byte[8192];
+            while (in.read(buf) != -1) {
+                // drain the request
+            }
+            in.close();
+
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath();
+            int status = 200;
+            String body;
+            if ("POST".equals(method) && path.endsWith("/apis")) {
+                imports.incrementAndGet();
+                body = "{\"name\":\"taskservice\",\"revision\":\"2\"}";
+            } else if ("GET".equals(method) && path.endsWith("/revisions")) {
+                body = "[\"1\"]";
+            } else if ("GET".equals(method)) {
+                body = "{\"name\":\"taskservice\",\"organization\":\"org\",\"environment\":[]}";
+            } else if (path.contains("/environments/broken/")) {
+                status = 500;
+                body = "{\"code\":\"messaging.config.beans.ApplicationDoesNotExist\"}";
+            } else {
+                int now = activating.incrementAndGet();
+                synchronized (maxActivating) {
+                    maxActivating.set(Math.max(maxActivating.get(), now));
+                }
+                try {
+                    Thread.sleep(ACTIVATION_MILLIS);
+                } catch (InterruptedException e) {
+                    throw new IOException(e.getMessage());
+                }
+                activating.decrementAndGet();
+                body = "{\"name\":\"2\",\"state\":\"deployed\",\"environment\":\"test\"}";
+            }
+
+            byte[] bytes = body.getBytes("UTF-8");
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, bytes.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(bytes);
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.test;
+
+import com.google.gson.Gson;
+import io.apigee.buildTools.enterprise4g.utils.ConfigTokens.Policy;
+import io.apigee.buildTools.enterprise4g.utils.FileReader;
+import io.apigee.buildTools.enterprise4g.utils.PackageConfigurer;
+import io.apigee.buildTools.enterprise4g.utils.StaxTokenReplacer;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import org.w3c.dom.Document;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+
+/**
+ * Configures a small project twice, copying the sources over target/
+ * in between as the resources plugin does, and checks what the
+ * incremental configure reuses. Also compares the streaming and the DOM
+ * token replacement.
+ */
+public class TestPackageConfigurer extends TestCase {
+
+    static final String POLICY = "<AssignMessage name=\"Assign-Message-1\"><Set><Headers>"
+            + "<Header name=\"ENV\">LOCAL</Header></Headers></Set></AssignMessage>";
+
+    File baseDir;
+    File configFile;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        baseDir = File.createTempFile("configure", "");
+        baseDir.delete();
+        configFile = new File(baseDir, "config.json");
+        writeConfig("TEST");
+        write("apiproxy/taskservice.xml", "<APIProxy name=\"taskservice\"><Description>build 1</Description></APIProxy>");
+        write("apiproxy/policies/Assign-Message-1.xml", POLICY);
+        write("apiproxy/policies/Quota.xml", "<Quota name=\"Quota\"/>");
+    }
+
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(baseDir);
+        super.tearDown();
+    }
+
+    public void testUnchangedFilesAreRestored() throws Exception {
+        copySources();
+        PackageConfigurer.configurePackage("test", configFile, true, PackageConfigurer.ENGINE_DOM, 1);
+        String configured = read("target/apiproxy/policies/Assign-Message-1.xml");
+        assertTrue(configured, configured.contains(">TEST<"));
+
+        copySources();
+        File policy = new File(baseDir, "target/apiproxy/policies/Assign-Message-1.xml");
+        assertEquals(POLICY, read("target/apiproxy/policies/Assign-Message-1.xml"));
+        PackageConfigurer.configurePackage("test", configFile, true, PackageConfigurer.ENGINE_DOM, 1);
+        assertEquals(configured, FileUtils.readFileToString(policy, "UTF-8"));
+
+        // configuring again without copying leaves the file as it is
+        PackageConfigurer.configurePackage("test", configFile, true, PackageConfigurer.ENGINE_DOM, 1);
+        assertEquals(configured, FileUtils.readFileToString(policy, "UTF-8"));
+    }
+
+    public void testChangedTokensAreApplied() throws Exception {
+        copySources();
+        PackageConfigurer.configurePackage("test", configFile, true, PackageConfigurer.ENGINE_DOM, 1);
+
+        writeConfig("STAGING");
+        copySources();
+        PackageConfigurer.configurePackage("test", configFile, true, PackageConfigurer.ENGINE_DOM, 1);
+        String configured = read("target/apiproxy/policies/Assign-Message-1.xml");
+        assertTrue(configured, configured.contains(">STAGING<"));
+    }
+
+    public void testChangedFilesAreConfigured() throws Exception {
+        copySources();
+        PackageConfigurer.configurePackage("test", configFile, true, PackageConfigurer.ENGINE_DOM, 1);
+
+        write("apiproxy/policies/Assign-Message-1.xml", POLICY.replace("Assign-Message-1\"", "Assign-Message-1\" enabled=\"false\""));
+        copySources();
+        PackageConfigurer.configurePackage("test", configFile, true, PackageConfigurer.ENGINE_DOM, 1);
+        String configured = read("target/apiproxy/policies/Assign-Message-1.xml");
+        assertTrue(configured, configured.contains(">TEST<"));
+        assertTrue(configured, configured.contains("enabled=\"false\""));
+    }
+
+    public void testStreamingGivesTheSameResultAsTheDom() throws Exception {
+        String target = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<TargetEndpoint name=\"default\">\n"
+                + "    <!-- backend -->\n"
+                + "    <HTTPTargetConnection>\n"
+                + "        <URL>http://localhost:8080</URL>\n"
+                + "        <Properties>\n"
+                + "            <Property name=\"io.timeout.millis\">1000</Property>\n"
+                + "            <Property name=\"keepalive.timeout.millis\">60000</Property>\n"
+                + "            <Property name=\"empty\"/>\n"
+                + "        </Properties>\n"
+                + "        <SSLInfo><Enabled>false</Enabled><KeyStore>ks</KeyStore></SSLInfo>\n"
+                + "    </HTTPTargetConnection>\n"
+                + "    <Description>a &lt; b</Description>\n"
+                + "</TargetEndpoint>\n";
+        String[][] tokens = {
+                {"/TargetEndpoint/HTTPTargetConnection/URL", "https://backend.example.com/a?b=1&c=2"},
+                {"/TargetEndpoint/HTTPTargetConnection/Properties/Property[@name='io.timeout.millis']/text()", "5000"},
+                {"/TargetEndpoint/HTTPTargetConnection/Properties/Property[@name=\"empty\"]", "ignored"},
+                {"/TargetEndpoint/HTTPTargetConnection/SSLInfo", "<none>"},
+                {"/TargetEndpoint/HTTPTargetConnection/URL", "https://last.example.com"},
+                {"/TargetEndpoint/Missing", "x"}};
+        File dom = new File(baseDir, "dom.xml");
+        File stax = new File(baseDir, "stax.xml");
+        write("dom.xml", target);
+        write("stax.xml", target);
+
+        assertTrue(StaxTokenReplacer.canStream(policy(tokens)));
+        Transformer transformer = TransformerFactory.newInstance().newTransformer();
+        PackageConfigurer.replaceTokens(dom, policy(tokens), PackageConfigurer.ENGINE_DOM, transformer);
+        PackageConfigurer.replaceTokens(stax, policy(tokens), PackageConfigurer.ENGINE_STAX, transformer);
+
+        Document expected = new FileReader().getXMLDocument(dom);
+        Document actual = new FileReader().getXMLDocument(stax);
+        assertTrue(read("stax.xml"), expected.getDocumentElement().isEqualNode(actual.getDocumentElement()));
+        String configured = read("stax.xml");
+        assertTrue(configured, configured.contains("<URL>https://last.example.com</URL>"));
+        assertTrue(configured, configured.contains(">5000<"));
+        assertTrue(configured, configured.contains("<SSLInfo>&lt;none"));
+        assertTrue(configured, configured.contains("<!-- backend -->"));
+    }
+
+    public void testUnsupportedPathsFallBackToTheDom() throws Exception {
+        assertFalse(StaxTokenReplacer.canStream(policy(new String[][]{{"//URL", "x"}})));
+        assertFalse(StaxTokenReplacer.canStream(policy(new String[][]{{"/A/B[1]", "x"}})));
+        assertFalse(StaxTokenReplacer.canStream(policy(new String[][]{{"/A/*", "x"}})));
+        assertFalse(StaxTokenReplacer.canStream(policy(new String[][]{{"/A/text()/B", "x"}})));
+        assertFalse(StaxTokenReplacer.canStream(policy(new String[][]{{"/A/@name", "x"}})));
+
+        write("policy.xml", POLICY);
+        File policy = new File(baseDir, "policy.xml");
+        PackageConfigurer.replaceTokens(policy, policy(new String[][]{{"//Header[@name='ENV']", "TEST"}}),
+                PackageConfigurer.ENGINE_STAX, TransformerFactory.newInstance().newTransformer());
+        String configured = read("policy.xml");
+        assertTrue(configured, configured.contains(">TEST<"));
+    }
+
+    public void testFilesAreConfiguredInParallel() throws Exception {
+        StringBuilder policies = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            write("apiproxy/policies/Assign-" + i + ".xml", POLICY);
+            policies.append(", {\"name\": \"Assign-").append(i).append(".xml\", \"tokens\": [{\"xpath\": ")
+                    .append("\"/AssignMessage/Set/Headers/Header[@name='ENV']\", \"value\": \"TEST-").append(i).append("\"}]}");
+        }
+        write("config.json", "{\"configurations\": [{\"name\": \"test\", \"policies\": [" + policies.substring(2) + "]}]}");
+        copySources();
+        PackageConfigurer.configurePackage("test", configFile, false, PackageConfigurer.ENGINE_DOM, 4);
+        for (int i = 0; i < 20; i++) {
+            String configured = read("target/apiproxy/policies/Assign-" + i + ".xml");
+            assertTrue(configured, configured.contains(">TEST-" + i + "<"));
+        }
+    }
+
+    public void testFailuresAreReportedForAllFiles() throws Exception {
+        write("apiproxy/policies/Assign-1.xml", "<AssignMessage>");
+        write("apiproxy/policies/Assign-2.xml", POLICY);
+        write("apiproxy/policies/Assign-3.xml", "not xml");
+        StringBuilder policies = new StringBuilder();
+        for (int i = 1; i <= 3; i++) {
+            policies.append(i > 1 ? ", " : "").append("{\"name\": \"Assign-").append(i).append(".xml\", \"tokens\": [{\"xpath\": ")
+                    .append("\"/AssignMessage/Set/Headers/Header[@name='ENV']\", \"value\": \"TEST\"}]}");
+        }
+        write("config.json", "{\"configurations\": [{\"name\": \"test\", \"policies\": [" + policies + "]}]}");
+        copySources();
+        try {
+            PackageConfigurer.configurePackage("test", configFile, false, PackageConfigurer.ENGINE_DOM, 2);
+            fail();
+        } catch (Exception e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("2 files: [Assign-1.xml, Assign-3.xml]"));
+            assertEquals(1, e.getSuppressed().length);
+        }
+        // the good file was configured anyway
+        assertTrue(read("target/apiproxy/policies/Assign-2.xml").contains(">TEST<"));
+    }
+
+    Policy policy(String[][] tokens) {
+        StringBuilder json = new StringBuilder("{\"name\": \"default.xml\", \"tokens\": [");
+        for (int i = 0; i < tokens.length; i++) {
+            json.append(i > 0 ? ", " : "").append("{\"xpath\": ").append(new Gson().toJson(tokens[i][0]))
+                    .append(", \"value\": ").append(new Gson().toJson(tokens[i][1])).append("}");
+        }
+        return new Gson().fromJson(json.append("]}").toString(), Policy.class);
+    }
+
+    void copySources() throws IOException {
+        FileUtils.copyDirectory(new File(baseDir, "apiproxy"), new File(baseDir, "target/apiproxy"));
+    }
+
+    void writeConfig(String value) throws IOException {
+        write("config.json", "{\"configurations\": [{\"name\": \"test\", \"policies\": [{\"name\": \"Assign-Message-1.xml\", "
+                + "\"tokens\": [{\"xpath\": \"/AssignMessage/Set/Headers/Header[@name='ENV']\", \"value\": \"" + value + "\"}]}]}]}");
+    }
+
+    void write(String path, String content) throws IOException {
+        File file = new File(baseDir, path);
+        file.getParentFile().mkdirs();
+        FileUtils.writeStringToFile(file, content, "UTF-8");
+    }
+
+    String read(String path) throws IOException {
+        return FileUtils.readFileToString(new File(baseDir, path), "UTF-8");
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.test;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import io.apigee.buildTools.enterprise4g.utils.PrintUtil;
+import junit.framework.TestCase;
+
+/**
+ * Formats requests and responses built on a mock transport.
+ */
+public class TestPrintUtil extends TestCase {
+
+    static class Deployment {
+        String state = "deployed";
+    }
+
+    public void testCredentialsAreNotShown() throws Exception {
+        HttpRequest request = transport(new MockLowLevelHttpResponse()).createRequestFactory()
+                .buildPostRequest(new GenericUrl("https://api.enterprise.apigee.com/v1/o/org/apis"),
+                        ByteArrayContent.fromString("application/json", "{\"name\": \"taskservice\"}"));
+        HttpHeaders headers = new HttpHeaders();
+        headers.setBasicAuthentication("user", "secret");
+        headers.setCookie("session=1234");
+        headers.set("X-Api-Key", "key");
+        headers.setAccept("application/json");
+        request.setHeaders(headers);
+
+        String formatted = PrintUtil.request(request).toString();
+        assertTrue(formatted, formatted.contains("POST  https://api.enterprise.apigee.com/v1/o/org/apis"));
+        assertTrue(formatted, formatted.contains("accept: application/json"));
+        assertTrue(formatted, formatted.contains("{\"name\": \"taskservice\"}"));
+        assertFalse(formatted, formatted.contains("dXNlcjpzZWNyZXQ"));
+        assertFalse(formatted, formatted.contains("1234"));
+        assertFalse(formatted, formatted.contains(": key"));
+    }
+
+    public void testLargeBodiesAreCut() throws Exception {
+        StringBuilder body = new StringBuilder();
+        while (body.length() < 3 * PrintUtil.MAX_BODY) {
+            body.append("0123456789");
+        }
+        HttpRequest request = transport(new MockLowLevelHttpResponse()).createRequestFactory()
+                .buildPostRequest(new GenericUrl("https://localhost/"), ByteArrayContent.fromString("text/plain", body.toString()));
+
+        String formatted = PrintUtil.request(request).toString();
+        assertTrue(formatted.length() < PrintUtil.MAX_BODY + 1024);
+        assertTrue(formatted, formatted.endsWith("[Truncated, " + body.length() + " in all]"));
+
+        request = transport(new MockLowLevelHttpResponse()).createRequestFactory()
+                .buildPostRequest(new GenericUrl("https://localhost/"),
+                        ByteArrayContent.fromString("application/octet-stream", body.toString()));
+        formatted = PrintUtil.request(request).toString();
+        assertFalse(formatted, formatted.contains("0123456789"));
+    }
+
+    public void testResponsesAreFormattedWhenLogged() throws Exception {
+        MockLowLevelHttpResponse lowLevel = new MockLowLevelHttpResponse();
+        lowLevel.setStatusCode(200);
+        lowLevel.setReasonPhrase("OK");
+        lowLevel.addHeader("Set-Cookie", "session=1234");
+        lowLevel.addHeader("X-Request-Id", "42");
+        HttpResponse response = transport(lowLevel).createRequestFactory()
+                .buildGetRequest(new GenericUrl("https://localhost/")).execute();
+
+        Deployment deployment = new Deployment();
+        Object formatted = PrintUtil.response(response, deployment);
+        // nothing was serialized yet
+        deployment.state = "undeployed";
+        String text = formatted.toString();
+        assertTrue(text, text.contains("200  OK"));
+        assertTrue(text, text.contains("\"state\": \"undeployed\""));
+        assertTrue(text, text.contains("42"));
+        assertFalse(text, text.contains("1234"));
+    }
+
+    static MockHttpTransport transport(final MockLowLevelHttpResponse response) {
+        return new MockHttpTransport() {
+            @Override
+            public LowLevelHttpRequest buildGetRequest(String url) {
+                return new MockLowLevelHttpRequest(url).setResponse(response);
+            }
+
+            @Override
+            public LowLevelHttpRequest buildPostRequest(String url) {
+                return new MockLowLevelHttpRequest(url).setResponse(response);
+            }
+        };
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import io.apigee.buildTools.enterprise4g.rest.RestUtil;
+import io.apigee.buildTools.enterprise4g.utils.ServerProfile;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Checks that management API calls are held to the configured rate for
+ * each organization, across threads.
+ */
+public class TestRequestRateLimiter extends TestCase {
+
+    static final double RATE = 20;
+
+    HttpServer server;
+    ServerProfile profile = new ServerProfile();
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] bytes = "{\"name\":\"taskservice\",\"environment\":[]}".getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+                exchange.sendResponseHeaders(200, bytes.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(bytes);
+                out.close();
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+
+        profile.setHostUrl("http://localhost:" + server.getAddress().getPort());
+        profile.setApplication("taskservice");
+        profile.setCredential_user("user");
+        profile.setCredential_pwd("password");
+        profile.setEnvironment("test");
+        profile.setOrg("org");
+        profile.setApi_version("v1");
+
+        RestUtil.Options.requestsPerSecond = RATE;
+    }
+
+    protected void tearDown() throws Exception {
+        RestUtil.Options.requestsPerSecond = 0;
+        server.stop(0);
+        super.tearDown();
+    }
+
+    public void testCallsAreHeldToTheRate() throws Exception {
+        // the first second worth of calls is a burst, the next 20 take about a second
+        long millis = run(profile, (int) (2 * RATE), 4);
+        assertTrue("took " + millis + " ms", millis >= 900);
+    }
+
+    public void testOrganizationsAreLimitedSeparately() throws Exception {
+        run(profile, (int) RATE, 4);
+        // another organization still has its full burst available
+        ServerProfile other = profile.forEnvironment("test");
+        other.setOrg("other");
+        long millis = run(other, (int) RATE, 4);
+        assertTrue("took " + millis + " ms", millis < 500);
+    }
+
+    long run(final ServerProfile profile, int calls, int threads) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<String>> futures = new ArrayList<Future<String>>();
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < calls; i++) {
+            futures.add(executor.submit(new Callable<String>() {
+                public String call() throws Exception {
+                    return RestUtil.getDeployedRevision(profile);
+                }
+            }));
+        }
+        for (Future<String> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        return System.currentTimeMillis() - start;
+    }
+}
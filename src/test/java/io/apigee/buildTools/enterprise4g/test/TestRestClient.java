@@ -0,0 +1,147 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.test;
+
+import com.google.gson.JsonObject;
+import io.apigee.buildTools.enterprise4g.rest.RestClient;
+import io.apigee.buildTools.enterprise4g.rest.RestUtil;
+import io.apigee.buildTools.enterprise4g.rest.RetryPolicy;
+import io.apigee.buildTools.enterprise4g.utils.BuildContext;
+import io.apigee.buildTools.enterprise4g.utils.Tracing;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Function;
+
+/**
+ * Imports and activates many proxies at once through the asynchronous
+ * client against an EdgeSimulator.
+ */
+public class TestRestClient extends TestCase {
+
+    EdgeSimulator simulator;
+    ExecutorService executor;
+    RestClient client;
+    String bundle;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        simulator = new EdgeSimulator(false);
+        executor = RestClient.newVirtualThreadExecutor();
+        client = new RestClient(executor);
+        bundle = TestRestClient.class.getResource("/taskservice1.zip").getFile();
+        RestUtil.Options.pollInterval = 20;
+        RestUtil.Options.retryInitialDelay = 10;
+    }
+
+    protected void tearDown() throws Exception {
+        executor.shutdownNow();
+        simulator.stop();
+        BuildContext.start(null, false);
+        RestUtil.Options.pollInterval = 0;
+        RestUtil.Options.retryInitialDelay = 0;
+        RestUtil.Options.retryMaxAttempts = RetryPolicy.DEFAULT_MAX_ATTEMPTS;
+        RestUtil.Options.override = false;
+        super.tearDown();
+    }
+
+    public void testProxiesAreDeployedConcurrently() throws Exception {
+        simulator.setLatency(50, 0).setActivationTime(100);
+        List<CompletableFuture<String>> deploys = new ArrayList<CompletableFuture<String>>();
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 20; i++) {
+            final RestClient.Context context = new RestClient.Context(simulator.profile("proxy-" + i));
+            deploys.add(client.importBundle(context, bundle).thenCompose(new Function<String, CompletionStage<String>>() {
+                public CompletionStage<String> apply(String revision) {
+                    return client.activate(context, revision);
+                }
+            }));
+        }
+        for (CompletableFuture<String> deploy : deploys) {
+            assertEquals(RestUtil.STATE_DEPLOYED, RestClient.await(deploy));
+        }
+        // one after the other, each deploy takes at least four calls and the activation time
+        assertTrue(System.currentTimeMillis() - start < 20 * 300);
+        for (int i = 0; i < 20; i++) {
+            assertEquals(Integer.valueOf(1), simulator.getDeployedRevision("proxy-" + i, EdgeSimulator.ENV));
+            RestClient.Context context = new RestClient.Context(simulator.profile("proxy-" + i));
+            assertEquals("1", RestClient.await(client.getDeployedRevision(context)));
+        }
+    }
+
+    public void testFailuresCompleteTheFuture() throws Exception {
+        RestUtil.Options.retryMaxAttempts = 1;
+        simulator.setErrors(1.0, 500);
+        CompletableFuture<String> imported = client.importBundle(new RestClient.Context(simulator.profile("taskservice")), bundle);
+        try {
+            RestClient.await(imported);
+            fail();
+        } catch (IOException e) {
+            assertTrue(imported.isCompletedExceptionally());
+        }
+
+        // the blocking methods throw the same exception
+        try {
+            RestUtil.uploadBundle(simulator.profile("taskservice"), bundle);
+            fail();
+        } catch (IOException e) {
+            assertNull(simulator.getDeployedRevision("taskservice", EdgeSimulator.ENV));
+        }
+    }
+
+    public void testOptionsAreTakenWhenTheContextIsMade() throws Exception {
+        RestClient.Context context = new RestClient.Context(simulator.profile("taskservice"));
+        RestUtil.Options.override = true;
+        assertFalse(context.override);
+        assertTrue(new RestClient.Context(simulator.profile("taskservice")).override);
+        assertTrue(context.withOverride(true).override);
+        assertEquals("prod", context.forProfile(simulator.profile("taskservice").forEnvironment("prod")).profile.getEnvironment());
+
+        String revision = RestClient.await(client.importBundle(context, bundle));
+        assertEquals(RestUtil.STATE_DEPLOYED, RestClient.await(client.activate(context, revision)));
+        assertEquals(revision, RestClient.await(client.refresh(context, revision).thenCompose(
+                new Function<String, CompletionStage<String>>() {
+                    public CompletionStage<String> apply(String state) {
+                        return client.getDeployedRevision(context);
+                    }
+                })));
+    }
+
+    public void testCallsAreChildrenOfTheSubmittingSpan() throws Exception {
+        File trace = File.createTempFile("trace", ".json");
+        try {
+            BuildContext.start("build 1", true);
+            Tracing.Span parent = Tracing.start("deploy");
+            RestClient.await(client.getRevisions(new RestClient.Context(simulator.profile("taskservice"))));
+            parent.end();
+            Tracing.write(trace);
+            Map<String, JsonObject> spans = TestTracing.spans(FileUtils.readFileToString(trace, "UTF-8"));
+            JsonObject call = spans.get("GET /v1/organizations/{}/apis/{}/revisions");
+            assertNotNull(spans.keySet().toString(), call);
+            assertEquals(TestTracing.id(spans.get("deploy")), TestTracing.parent(call));
+        } finally {
+            trace.delete();
+        }
+    }
+}
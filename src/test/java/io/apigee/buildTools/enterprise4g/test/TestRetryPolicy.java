@@ -0,0 +1,219 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import io.apigee.buildTools.enterprise4g.rest.CircuitBreaker;
+import io.apigee.buildTools.enterprise4g.rest.RestUtil;
+import io.apigee.buildTools.enterprise4g.rest.RetryPolicy;
+import io.apigee.buildTools.enterprise4g.utils.ServerProfile;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs management API calls against a local server that fails on purpose.
+ */
+public class TestRetryPolicy extends TestCase {
+
+    HttpServer server;
+    AtomicInteger gets = new AtomicInteger();
+    AtomicInteger imports = new AtomicInteger();
+    volatile int failures;
+    volatile int listFailures;
+    volatile int failureStatus = 503;
+    volatile int latestRevision = 2;
+    ServerProfile profile = new ServerProfile();
+    String bundle;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new FlakyHandler());
+        server.start();
+
+        profile.setHostUrl("http://localhost:" + server.getAddress().getPort());
+        profile.setApplication("taskservice");
+        profile.setCredential_user("user");
+        profile.setCredential_pwd("password");
+        profile.setEnvironment("test");
+        profile.setOrg("org");
+        profile.setApi_version("v1");
+        bundle = TestRetryPolicy.class.getResource("/taskservice1.zip").getFile();
+
+        RestUtil.Options.retryInitialDelay = 10;
+        RestUtil.Options.retryMaxDelay = 50;
+        CircuitBreaker.reset();
+    }
+
+    protected void tearDown() throws Exception {
+        server.stop(0);
+        RestUtil.Options.retryInitialDelay = RetryPolicy.DEFAULT_INITIAL_DELAY;
+        RestUtil.Options.retryMaxDelay = RetryPolicy.DEFAULT_MAX_DELAY;
+        RestUtil.Options.retryMaxAttempts = RetryPolicy.DEFAULT_MAX_ATTEMPTS;
+        RestUtil.Options.circuitBreakerThreshold = CircuitBreaker.DEFAULT_THRESHOLD;
+        RestUtil.Options.circuitBreakerCooldown = CircuitBreaker.DEFAULT_COOLDOWN;
+        CircuitBreaker.reset();
+        super.tearDown();
+    }
+
+    public void testGetIsRetried() throws IOException {
+        failures = 2;
+        assertEquals("2", RestUtil.getDeployedRevision(profile));
+        assertEquals(3, gets.get());
+    }
+
+    public void testImportThatLandedIsNotRepeated() throws IOException {
+        // the server creates revision 3 but answers 502
+        failures = 1;
+        failureStatus = 502;
+        assertEquals("3", RestUtil.uploadBundle(profile, bundle));
+        assertEquals(1, imports.get());
+    }
+
+    public void testImportIsRecoveredInHalfOpenCircuit() throws IOException {
+        // the failed import opens the circuit, the retry is its trial call
+        RestUtil.Options.circuitBreakerThreshold = 1;
+        RestUtil.Options.circuitBreakerCooldown = 1;
+        failures = 1;
+        failureStatus = 502;
+        assertEquals("3", RestUtil.uploadBundle(profile, bundle));
+        assertEquals(1, imports.get());
+        CircuitBreaker.forHost("localhost").before();
+    }
+
+    public void testFailedRevisionListingBeforeImportIsRetried() throws IOException {
+        listFailures = 1;
+        assertEquals("3", RestUtil.uploadBundle(profile, bundle));
+        assertEquals(1, imports.get());
+    }
+
+    public void testClientErrorIsNotRetried() throws IOException {
+        failures = 1;
+        failureStatus = 400;
+        try {
+            RestUtil.uploadBundle(profile, bundle);
+            fail("a bad request should not be retried");
+        } catch (IOException e) {
+            assertEquals(1, imports.get());
+        }
+    }
+
+    public void testCircuitBreakerStopsCalls() throws IOException {
+        RestUtil.Options.circuitBreakerThreshold = 2;
+        RestUtil.Options.retryMaxAttempts = 10;
+        failures = Integer.MAX_VALUE;
+        try {
+            RestUtil.getRevisions(profile);
+            fail("the server never answers");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Circuit breaker"));
+        }
+        assertEquals(2, gets.get());
+    }
+
+    public void testHalfOpenCircuitLetsOneTrialCallThrough() throws IOException, InterruptedException {
+        RestUtil.Options.circuitBreakerThreshold = 1;
+        RestUtil.Options.circuitBreakerCooldown = 20;
+        CircuitBreaker breaker = CircuitBreaker.forHost("localhost");
+        breaker.before();
+        breaker.onFailure();
+        Thread.sleep(50);
+
+        // the trial call
+        breaker.before();
+        try {
+            breaker.before();
+            fail("only one call should get through while the trial call is running");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("trial call"));
+        }
+        breaker.onSuccess();
+        breaker.before();
+    }
+
+    public void testRateLimitDoesNotOpenCircuit() throws IOException {
+        RestUtil.Options.circuitBreakerThreshold = 2;
+        RestUtil.Options.retryMaxAttempts = 4;
+        failures = Integer.MAX_VALUE;
+        failureStatus = 429;
+        try {
+            RestUtil.getRevisions(profile);
+            fail("the server never answers");
+        } catch (IOException e) {
+            assertFalse(e.getMessage(), e.getMessage().contains("Circuit breaker"));
+        }
+        assertEquals(4, gets.get());
+    }
+
+    /**
+     * Fails the first calls with failureStatus; an import always creates the next revision.
+     */
+    class FlakyHandler implements HttpHandler {
+
+        public void handle(HttpExchange exchange) throws IOException {
+            InputStream in = exchange.getRequestBody();
+            byte[] buf = new byte[8192];
+            while (in.read(buf) != -1) {
+                // drain the request
+            }
+            in.close();
+
+            String method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getPath();
+            String body;
+            if ("POST".equals(method)) {
+                imports.incrementAndGet();
+                latestRevision++;
+                body = "{\"name\":\"taskservice\",\"revision\":\"" + latestRevision + "\"}";
+            } else if (path.endsWith("/revisions")) {
+                gets.incrementAndGet();
+                StringBuilder revisions = new StringBuilder("[");
+                for (int i = 1; i <= latestRevision; i++) {
+                    revisions.append(i > 1 ? "," : "").append('"').append(i).append('"');
+                }
+                body = revisions.append("]").toString();
+            } else {
+                gets.incrementAndGet();
+                body = "{\"name\":\"taskservice\",\"environment\":[{\"name\":\"test\",\"revision\":[{\"name\":\"2\",\"state\":\"deployed\"}]}]}";
+            }
+
+            int status = 200;
+            if (path.endsWith("/revisions") && listFailures > 0) {
+                listFailures--;
+                status = failureStatus;
+            } else if ((!path.endsWith("/revisions") || failures == Integer.MAX_VALUE) && failures > 0) {
+                if (failures != Integer.MAX_VALUE) {
+                    failures--;
+                }
+                status = failureStatus;
+                exchange.getResponseHeaders().set("Retry-After", "0");
+            }
+            byte[] bytes = body.getBytes("UTF-8");
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, bytes.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(bytes);
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.test;
+
+import io.apigee.buildTools.enterprise4g.utils.BuildContext;
+import io.apigee.buildTools.enterprise4g.utils.GitUtil;
+import io.apigee.buildTools.enterprise4g.utils.ScmMetadata;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.revwalk.RevCommit;
+
+import java.io.File;
+
+/**
+ * Reads the head revision and tags of a Git repository created in a
+ * temporary directory.
+ */
+public class TestScmMetadata extends TestCase {
+
+    File workspace;
+    Git git;
+    RevCommit first;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        workspace = File.createTempFile("workspace", "");
+        workspace.delete();
+        new File(workspace, "proxy/apiproxy").mkdirs();
+        FileUtils.writeStringToFile(new File(workspace, "proxy/apiproxy/taskservice.xml"), "<APIProxy/>", "UTF-8");
+        git = Git.init().setDirectory(workspace).call();
+        git.add().addFilepattern(".").call();
+        first = git.commit().setMessage("first").call();
+    }
+
+    protected void tearDown() throws Exception {
+        BuildContext.start(null, false);
+        git.getRepository().close();
+        FileUtils.deleteDirectory(workspace);
+        super.tearDown();
+    }
+
+    public void testAnnotatedTagsAreFoundWithoutGc() throws Exception {
+        git.tag().setName("release/1.0").setMessage("annotated").call();
+        git.tag().setName("lightweight").setAnnotated(false).call();
+
+        ScmMetadata scm = ScmMetadata.of(new File(workspace, "proxy/apiproxy"));
+        assertEquals(first.getName(), scm.getHeadRevision());
+        // the first tag by name, without its path
+        assertEquals("lightweight", scm.getTagName());
+
+        GitUtil gitUtil = new GitUtil(workspace);
+        try {
+            assertEquals(2, gitUtil.getTagNamesByCommit().get(first.getId()).size());
+        } finally {
+            gitUtil.close();
+        }
+    }
+
+    public void testWorkspaceIsReadOncePerBuild() throws Exception {
+        File proxy = new File(workspace, "proxy");
+        assertNull(ScmMetadata.of(proxy).getTagName());
+
+        BuildContext.start("build 1", false);
+        ScmMetadata scm = ScmMetadata.of(proxy);
+        git.tag().setName("v1").setMessage("v1").call();
+        assertSame(scm, ScmMetadata.of(new File(workspace, "proxy/apiproxy")));
+
+        BuildContext.start("build 2", false);
+        assertEquals("v1", ScmMetadata.of(proxy).getTagName());
+    }
+}
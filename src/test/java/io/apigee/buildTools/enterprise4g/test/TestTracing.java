@@ -0,0 +1,199 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import io.apigee.buildTools.enterprise4g.rest.RestUtil;
+import io.apigee.buildTools.enterprise4g.utils.BuildContext;
+import io.apigee.buildTools.enterprise4g.utils.BuildMetrics;
+import io.apigee.buildTools.enterprise4g.utils.PackageConfigurer;
+import io.apigee.buildTools.enterprise4g.utils.ParallelZip;
+import io.apigee.buildTools.enterprise4g.utils.ServerProfile;
+import io.apigee.buildTools.enterprise4g.utils.Tracing;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Traces a deploy to an EdgeSimulator and a configure on several threads,
+ * and checks how the spans nest, the OTLP/JSON file and the traceparent
+ * headers the server got.
+ */
+public class TestTracing extends TestCase {
+
+    EdgeSimulator simulator;
+    File dir;
+    File traceFile;
+    String bundle;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        simulator = new EdgeSimulator(false);
+        dir = File.createTempFile("tracing", "");
+        dir.delete();
+        traceFile = new File(dir, "trace.json");
+        bundle = TestTracing.class.getResource("/taskservice1.zip").getFile();
+        RestUtil.Options.pollInterval = 20;
+        BuildContext.start("build 1", true);
+    }
+
+    protected void tearDown() throws Exception {
+        BuildContext.start(null, false);
+        RestUtil.Options.pollInterval = 0;
+        simulator.stop();
+        FileUtils.deleteDirectory(dir);
+        super.tearDown();
+    }
+
+    public void testDeployIsOneTrace() throws Exception {
+        simulator.setActivationTime(50);
+        ServerProfile profile = simulator.profile("taskservice");
+        Tracing.Span goal = Tracing.start("apigee:deploy");
+        BuildMetrics.Phase phase = BuildMetrics.startPhase("taskservice", "importing");
+        String revision = RestUtil.uploadBundle(profile, bundle);
+        phase.succeeded();
+        phase.end();
+        assertEquals(RestUtil.STATE_DEPLOYED, RestUtil.refreshBundle(profile, revision));
+        goal.succeeded().end();
+        // every span made its parent current again
+        assertNull(Tracing.current().traceparent());
+        Tracing.write(traceFile);
+
+        List<String> lines = Files.readAllLines(traceFile.toPath(), StandardCharsets.UTF_8);
+        assertEquals(1, lines.size());
+        Map<String, JsonObject> spans = spans(lines.get(0));
+        JsonObject root = spans.get("apigee:deploy");
+        JsonObject importing = spans.get("importing");
+        JsonObject upload = spans.get("POST /v1/organizations/{}/apis");
+        JsonObject poll = spans.get("poll");
+        assertNotNull(spans.keySet().toString(), upload);
+        assertNotNull(spans.keySet().toString(), poll);
+
+        assertNull(root.get("parentSpanId"));
+        assertEquals(id(root), parent(importing));
+        assertEquals(id(importing), parent(upload));
+        assertEquals(id(root), parent(poll));
+        for (JsonObject span : spans.values()) {
+            assertEquals(root.get("traceId").getAsString(), span.get("traceId").getAsString());
+            assertTrue(span.get("endTimeUnixNano").getAsLong() >= span.get("startTimeUnixNano").getAsLong());
+        }
+        assertEquals(3, upload.get("kind").getAsInt());
+        assertEquals("200", attribute(upload, "http.response.status_code").get("intValue").getAsString());
+        assertEquals("taskservice", attribute(upload, "apigee.proxy").get("stringValue").getAsString());
+        assertEquals(1, importing.getAsJsonObject("status").get("code").getAsInt());
+
+        // the server got the context of the span of each call
+        List<String> traceparents = simulator.getTraceparents();
+        assertEquals(simulator.getRequests(), traceparents.size());
+        assertTrue(traceparents.toString(), traceparents.contains(
+                "00-" + root.get("traceId").getAsString() + "-" + id(upload) + "-01"));
+
+        // spans already written are not written again
+        Tracing.start("apigee:configure").end();
+        Tracing.write(traceFile);
+        lines = Files.readAllLines(traceFile.toPath(), StandardCharsets.UTF_8);
+        assertEquals(2, lines.size());
+        assertEquals(1, spans(lines.get(1)).size());
+    }
+
+    public void testTasksOnOtherThreadsAreChildrenOfTheirParent() throws Exception {
+        File baseDir = new File(dir, "project");
+        new File(baseDir, "target/apiproxy/policies").mkdirs();
+        FileUtils.writeStringToFile(new File(baseDir, "target/apiproxy/taskservice.xml"),
+                "<APIProxy name=\"taskservice\"><Description>build 1</Description></APIProxy>", "UTF-8");
+        StringBuilder policies = new StringBuilder();
+        for (int i = 0; i < 8; i++) {
+            FileUtils.writeStringToFile(new File(baseDir, "target/apiproxy/policies/Assign-" + i + ".xml"),
+                    TestPackageConfigurer.POLICY, "UTF-8");
+            policies.append(i > 0 ? ", " : "").append("{\"name\": \"Assign-").append(i).append(".xml\", \"tokens\": [{\"xpath\": ")
+                    .append("\"/AssignMessage/Set/Headers/Header[@name='ENV']\", \"value\": \"TEST\"}]}");
+        }
+        FileUtils.writeStringToFile(new File(baseDir, "config.json"),
+                "{\"configurations\": [{\"name\": \"test\", \"policies\": [" + policies + "]}]}", "UTF-8");
+
+        Tracing.Span goal = Tracing.start("apigee:configure");
+        PackageConfigurer.configurePackage("test", new File(baseDir, "config.json"), false, PackageConfigurer.ENGINE_DOM, 4);
+        new ParallelZip().zipDir(new File(dir, "bundle.zip"), new File(baseDir, "target/apiproxy"), "apiproxy");
+        goal.end();
+        Tracing.write(traceFile);
+
+        Map<String, JsonObject> spans = spans(FileUtils.readFileToString(traceFile, "UTF-8"));
+        String root = id(spans.get("apigee:configure"));
+        for (int i = 0; i < 8; i++) {
+            JsonObject file = spans.get("configure Assign-" + i + ".xml");
+            assertNotNull(spans.keySet().toString(), file);
+            assertEquals(root, parent(file));
+            assertEquals("policy", attribute(file, "apigee.file.kind").get("stringValue").getAsString());
+        }
+        JsonObject zip = spans.get("zip bundle.zip");
+        assertEquals(root, parent(zip));
+        assertEquals("9", attribute(zip, "apigee.zip.entries").get("intValue").getAsString());
+        assertEquals(String.valueOf(new File(dir, "bundle.zip").length()),
+                attribute(zip, "apigee.zip.bytes").get("intValue").getAsString());
+    }
+
+    public void testNothingIsTracedOutsideABuild() throws Exception {
+        BuildContext.start(null, false);
+        Tracing.Span span = Tracing.start("apigee:deploy");
+        assertNull(span.traceparent());
+        RestUtil.getRevisions(simulator.profile("taskservice"));
+        span.end();
+        Tracing.write(traceFile);
+        assertTrue(simulator.getTraceparents().isEmpty());
+        assertFalse(traceFile.exists());
+    }
+
+    static Map<String, JsonObject> spans(String line) {
+        JsonObject request = new JsonParser().parse(line).getAsJsonObject();
+        JsonObject resourceSpans = request.getAsJsonArray("resourceSpans").get(0).getAsJsonObject();
+        JsonObject resource = resourceSpans.getAsJsonObject("resource");
+        assertEquals(Tracing.SERVICE_NAME, resource.getAsJsonArray("attributes").get(0).getAsJsonObject()
+                .getAsJsonObject("value").get("stringValue").getAsString());
+        JsonArray array = resourceSpans.getAsJsonArray("scopeSpans").get(0).getAsJsonObject().getAsJsonArray("spans");
+        Map<String, JsonObject> spans = new HashMap<String, JsonObject>();
+        for (JsonElement span : array) {
+            spans.put(span.getAsJsonObject().get("name").getAsString(), span.getAsJsonObject());
+        }
+        return spans;
+    }
+
+    static String id(JsonObject span) {
+        return span.get("spanId").getAsString();
+    }
+
+    static String parent(JsonObject span) {
+        return span.get("parentSpanId") == null ? null : span.get("parentSpanId").getAsString();
+    }
+
+    static JsonObject attribute(JsonObject span, String key) {
+        for (JsonElement attribute : span.getAsJsonArray("attributes")) {
+            if (attribute.getAsJsonObject().get("key").getAsString().equals(key)) {
+                return attribute.getAsJsonObject().getAsJsonObject("value");
+            }
+        }
+        fail(key + " not in " + span);
+        return null;
+    }
+}
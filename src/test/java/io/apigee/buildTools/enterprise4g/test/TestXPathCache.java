@@ -0,0 +1,63 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.test;
+
+import io.apigee.buildTools.enterprise4g.utils.XPathCache;
+import junit.framework.TestCase;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+
+/**
+ * Checks that expressions are compiled once per thread.
+ */
+public class TestXPathCache extends TestCase {
+
+    public void testExpressionsAreCompiledOncePerThread() throws Exception {
+        final String path = "/APIProxy/Description";
+        XPathExpression first = XPathCache.compile(path);
+        assertSame(first, XPathCache.compile(path));
+        assertNotSame(first, XPathCache.compile("/APIProxy/DisplayName"));
+
+        final AtomicReference<XPathExpression> other = new AtomicReference<XPathExpression>();
+        Thread thread = new Thread() {
+            public void run() {
+                try {
+                    other.set(XPathCache.compile(path));
+                } catch (XPathExpressionException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        thread.start();
+        thread.join();
+        assertNotNull(other.get());
+        assertNotSame(first, other.get());
+    }
+
+    public void testInvalidExpressionsFailEveryTime() {
+        for (int i = 0; i < 2; i++) {
+            try {
+                XPathCache.compile("/APIProxy[");
+                fail();
+            } catch (XPathExpressionException e) {
+                // expected
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.test;
+
+import io.apigee.buildTools.enterprise4g.utils.FileReader;
+import io.apigee.buildTools.enterprise4g.utils.XmlParsers;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+
+/**
+ * Parses files with the shared parsers, including one that refers to an
+ * external entity.
+ */
+public class TestXmlParsers extends TestCase {
+
+    File dir;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = File.createTempFile("parsers", "");
+        dir.delete();
+        dir.mkdirs();
+    }
+
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+        super.tearDown();
+    }
+
+    public void testBuildersAreReusedPerThread() throws Exception {
+        assertSame(XmlParsers.documentBuilder(), XmlParsers.documentBuilder());
+        assertSame(XmlParsers.transformer(), XmlParsers.transformer());
+
+        File file = new File(dir, "Quota.xml");
+        FileUtils.writeStringToFile(file, "<Quota name=\"Quota\"><Allow count=\"10\"/></Quota>", "UTF-8");
+        for (int i = 0; i < 3; i++) {
+            assertEquals("Quota", new FileReader().getXMLDocument(file).getDocumentElement().getAttribute("name"));
+        }
+    }
+
+    public void testExternalEntitiesAreNotRead() throws Exception {
+        File secret = new File(dir, "secret.txt");
+        FileUtils.writeStringToFile(secret, "secret", "UTF-8");
+        File file = new File(dir, "Quota.xml");
+        FileUtils.writeStringToFile(file, "<!DOCTYPE Quota [<!ENTITY secret SYSTEM \"" + secret.toURI() + "\">]>"
+                + "<Quota name=\"Quota\">&secret;</Quota>", "UTF-8");
+
+        String text = new FileReader().getXMLDocument(file).getDocumentElement().getTextContent();
+        assertFalse(text, text.contains("secret"));
+    }
+}
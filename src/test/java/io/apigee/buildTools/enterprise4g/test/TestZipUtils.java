@@ -0,0 +1,128 @@
+/**
+ * Copyright (C) 2014 Apigee Corporation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.apigee.buildTools.enterprise4g.test;
+
+import io.apigee.buildTools.enterprise4g.utils.ParallelZip;
+import io.apigee.buildTools.enterprise4g.utils.ZipUtils;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Zips the same tree, written at different times and in a different
+ * order, and compares the archives.
+ */
+public class TestZipUtils extends TestCase {
+
+    File dir;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = File.createTempFile("zip", "");
+        dir.delete();
+    }
+
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+        super.tearDown();
+    }
+
+    public void testIdenticalTreesGiveIdenticalZips() throws Exception {
+        File first = new File(dir, "first");
+        write(first, "proxies/default.xml", "b.xml", "policies/Quota.xml", "a.xml");
+        File second = new File(dir, "second");
+        write(second, "a.xml", "policies/Quota.xml", "b.xml", "proxies/default.xml");
+        new File(second, "a.xml").setLastModified(System.currentTimeMillis() - 86400000L);
+
+        File firstZip = new File(dir, "first.zip");
+        File secondZip = new File(dir, "second.zip");
+        new ZipUtils(true).zipDir(firstZip, first, "apiproxy");
+        new ZipUtils(true).zipDir(secondZip, second, "apiproxy");
+
+        assertTrue(Arrays.equals(FileUtils.readFileToByteArray(firstZip), FileUtils.readFileToByteArray(secondZip)));
+        assertEquals(Arrays.asList("apiproxy/a.xml", "apiproxy/b.xml", "apiproxy/policies/Quota.xml",
+                "apiproxy/proxies/default.xml"), entries(firstZip));
+    }
+
+    public void testParallelZipIsReadable() throws Exception {
+        File tree = new File(dir, "tree");
+        write(tree, "a.xml", "policies/Quota.xml");
+        byte[] random = new byte[200000];
+        new Random(1).nextBytes(random);
+        new File(tree, "resources/node").mkdirs();
+        FileUtils.writeByteArrayToFile(new File(tree, "resources/node/random.bin"), random);
+        FileUtils.writeByteArrayToFile(new File(tree, "resources/node/node_modules.zip"), random);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            text.append("var x").append(i).append(" = require('x');\n");
+        }
+        FileUtils.writeStringToFile(new File(tree, "resources/node/app.js"), text.toString(), "UTF-8");
+
+        File zip = new File(dir, "parallel.zip");
+        new ParallelZip(new ForkJoinPool(4), Deflater.DEFAULT_COMPRESSION).zipDir(zip, tree, "apiproxy");
+
+        ZipFile zipFile = new ZipFile(zip);
+        try {
+            assertEquals(ZipEntry.STORED, zipFile.getEntry("apiproxy/resources/node/node_modules.zip").getMethod());
+            assertEquals(ZipEntry.STORED, zipFile.getEntry("apiproxy/resources/node/random.bin").getMethod());
+            assertEquals(ZipEntry.DEFLATED, zipFile.getEntry("apiproxy/resources/node/app.js").getMethod());
+            assertTrue(Arrays.equals(random, IOUtils.toByteArray(
+                    zipFile.getInputStream(zipFile.getEntry("apiproxy/resources/node/random.bin")))));
+            assertEquals(text.toString(), IOUtils.toString(
+                    zipFile.getInputStream(zipFile.getEntry("apiproxy/resources/node/app.js")), "UTF-8"));
+        } finally {
+            zipFile.close();
+        }
+
+        // the number of threads does not change the output
+        File single = new File(dir, "single.zip");
+        new ParallelZip(new ForkJoinPool(1), Deflater.DEFAULT_COMPRESSION).zipDir(single, tree, "apiproxy");
+        assertTrue(Arrays.equals(FileUtils.readFileToByteArray(zip), FileUtils.readFileToByteArray(single)));
+    }
+
+    void write(File root, String... paths) throws IOException {
+        for (String path : paths) {
+            File file = new File(root, path);
+            file.getParentFile().mkdirs();
+            FileWriter writer = new FileWriter(file);
+            writer.write("<" + file.getName() + "/>");
+            writer.close();
+        }
+    }
+
+    List<String> entries(File zip) throws IOException {
+        List<String> names = new ArrayList<String>();
+        ZipFile zipFile = new ZipFile(zip);
+        for (Enumeration<? extends ZipEntry> e = zipFile.entries(); e.hasMoreElements(); ) {
+            names.add(e.nextElement().getName());
+        }
+        zipFile.close();
+        return names;
+    }
+}